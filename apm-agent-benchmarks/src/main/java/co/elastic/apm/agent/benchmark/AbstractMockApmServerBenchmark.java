@@ -76,18 +76,20 @@ public class AbstractMockApmServerBenchmark extends AbstractBenchmark {
 
         server.start();
         int port = ((InetSocketAddress) server.getListenerInfo().get(0).getAddress()).getPort();
+        SimpleSource configSource = new SimpleSource()
+            .add(CoreConfigurationImpl.SERVICE_NAME, "benchmark")
+            .add(CoreConfigurationImpl.INSTRUMENT, Boolean.toString(apmEnabled))
+            .add("active", Boolean.toString(apmEnabled))
+            .add("api_request_size", "10mb")
+            .add("capture_headers", "false")
+//             .add("profiling_inferred_spans", "true")
+//             .add("profiling_interval", "10s")
+            .add("classes_excluded_from_instrumentation", "java.*,com.sun.*,sun.*")
+            .add("server_url", "http://localhost:" + port);
+        addConfiguration(configSource);
         tracer = new ElasticApmTracerBuilder()
             .configurationRegistry(ConfigurationRegistry.builder()
-                .addConfigSource(new SimpleSource()
-                    .add(CoreConfigurationImpl.SERVICE_NAME, "benchmark")
-                    .add(CoreConfigurationImpl.INSTRUMENT, Boolean.toString(apmEnabled))
-                    .add("active", Boolean.toString(apmEnabled))
-                    .add("api_request_size", "10mb")
-                    .add("capture_headers", "false")
-//                     .add("profiling_inferred_spans", "true")
-//                     .add("profiling_interval", "10s")
-                    .add("classes_excluded_from_instrumentation", "java.*,com.sun.*,sun.*")
-                    .add("server_url", "http://localhost:" + port))
+                .addConfigSource(configSource)
                 .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
                 .build())
             .buildAndStart();
@@ -95,6 +97,14 @@ public class AbstractMockApmServerBenchmark extends AbstractBenchmark {
 
     }
 
+    /**
+     * Allows subclasses to add or override configuration options of the benchmarked tracer
+     *
+     * @param configSource the config source the tracer is created with
+     */
+    protected void addConfiguration(SimpleSource configSource) {
+    }
+
     @TearDown
     public void tearDown() throws ExecutionException, InterruptedException {
         Thread.sleep(1000);
@@ -0,0 +1,91 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of starting and ending a span, depending on the resolution of the clock used for timestamps
+ * (see {@code clock_resolution}).
+ * <p>
+ * The spans belong to a transaction which is not sampled, so that the results are not dominated by reporting the spans.
+ * </p>
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class ClockResolutionBenchmark extends AbstractMockApmServerBenchmark {
+
+    @Param({"0ms", "1ms"})
+    public String clockResolution;
+
+    private TransactionImpl transaction;
+
+    public ClockResolutionBenchmark() {
+        super(true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(ClockResolutionBenchmark.class);
+    }
+
+    @Override
+    public void setUp(Blackhole blackhole) throws IOException {
+        super.setUp(blackhole);
+        transaction = Objects.requireNonNull(tracer.startRootTransaction(null))
+            .withName("benchmark")
+            .withType("request");
+    }
+
+    @Override
+    protected void addConfiguration(SimpleSource configSource) {
+        configSource
+            .add("clock_resolution", clockResolution)
+            .add("transaction_sample_rate", "0");
+    }
+
+    @Override
+    public void tearDown() throws ExecutionException, InterruptedException {
+        transaction.end();
+        super.tearDown();
+    }
+
+    @Benchmark
+    public void startAndEndSpan() {
+        transaction.createSpan()
+            .withName("SELECT FROM benchmark")
+            .withType("db")
+            .end();
+    }
+}
@@ -19,13 +19,21 @@
 package co.elastic.apm.agent.benchmark;
 
 import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.source.SimpleSource;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
 
 public class ElasticApmActiveContinuousBenchmark extends ElasticApmContinuousBenchmark {
 
+    /**
+     * Whether the application thread serializes the events (see {@code serialize_on_report})
+     */
+    @Param({"false", "true"})
+    public String serializeOnReport;
+
     public ElasticApmActiveContinuousBenchmark() {
         super(true);
     }
@@ -34,6 +42,11 @@ public class ElasticApmActiveContinuousBenchmark extends ElasticApmContinuousBen
         run(ElasticApmActiveContinuousBenchmark.class);
     }
 
+    @Override
+    protected void addConfiguration(SimpleSource configSource) {
+        configSource.add("serialize_on_report", serializeOnReport);
+    }
+
     @Benchmark
     public int benchmarkWithApm(RequestState requestState) throws IOException, ServletException {
         httpServlet.service(requestState.request, requestState.response);
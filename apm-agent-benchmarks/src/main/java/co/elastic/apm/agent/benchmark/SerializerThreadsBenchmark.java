@@ -0,0 +1,99 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.report.Reporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many events the reporter is able to send to a mock APM Server,
+ * depending on the number of threads which serialize the events in front of the reporter thread (see {@code serializer_threads}).
+ * <p>
+ * Look at the {@code reporter.reported} and {@code reporter.dropped} results of the
+ * {@link co.elastic.apm.agent.benchmark.profiler.ReporterProfiler} to compare the settings,
+ * as the application threads are decoupled from the reporter thread.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class SerializerThreadsBenchmark extends AbstractMockApmServerBenchmark {
+
+    @Param({"0", "1", "2"})
+    public String serializerThreads;
+
+    public SerializerThreadsBenchmark() {
+        super(true);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        run(SerializerThreadsBenchmark.class);
+    }
+
+    @Override
+    public void setUp(Blackhole blackhole) throws IOException {
+        super.setUp(blackhole);
+        System.getProperties().put(Reporter.class.getName(), tracer.getReporter());
+    }
+
+    @Override
+    protected void addConfiguration(SimpleSource configSource) {
+        configSource
+            .add("serializer_threads", serializerThreads)
+            // large enough to not drop events because of the application threads outpacing the reporter
+            .add("max_queue_size", "8192");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void reportTransactionWithSpans() {
+        TransactionImpl transaction = Objects.requireNonNull(tracer.startRootTransaction(null))
+            .withName("benchmark")
+            .withType("request")
+            .activate();
+        try {
+            for (int i = 0; i < 5; i++) {
+                SpanImpl span = transaction.createSpan()
+                    .withName("SELECT FROM benchmark")
+                    .withType("db")
+                    .withSubtype("h2")
+                    .withAction("query");
+                span.end();
+            }
+        } finally {
+            transaction.deactivate().end();
+        }
+    }
+}
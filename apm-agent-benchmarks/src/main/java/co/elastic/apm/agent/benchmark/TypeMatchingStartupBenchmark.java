@@ -0,0 +1,121 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.bci.bytebuddy.NamePreFilterIndex;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.sdk.ElasticApmInstrumentation;
+import co.elastic.apm.agent.util.DependencyInjectingServiceLoader;
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Measures how long it takes to evaluate the type matcher pre-filters of all instrumentations on the class path
+ * for all classes on the class path, which approximates the pre-filtering overhead of an application that loads that many classes on startup.
+ * <p>
+ * Compares evaluating the pre-filters one after another with looking up the candidates in a {@link NamePreFilterIndex}.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class TypeMatchingStartupBenchmark extends AbstractBenchmark {
+
+    private ElasticApmTracer tracer;
+    private List<TypeDescription> types;
+    private List<ElementMatcher<? super NamedElement>> preFilters;
+    private List<ElementMatcher<? super NamedElement>> indexedPreFilters;
+
+    public static void main(String[] args) throws RunnerException {
+        run(TypeMatchingStartupBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        tracer = new ElasticApmTracerBuilder().build();
+        preFilters = new ArrayList<>();
+        for (ElasticApmInstrumentation instrumentation : DependencyInjectingServiceLoader.load(ElasticApmInstrumentation.class, tracer)) {
+            preFilters.add(instrumentation.getTypeMatcherPreFilter());
+        }
+        indexedPreFilters = NamePreFilterIndex.of(preFilters).getPreFilters();
+        types = new ArrayList<>();
+        for (String classPathEntry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (classPathEntry.endsWith(".jar")) {
+                try (JarFile jarFile = new JarFile(classPathEntry)) {
+                    for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements(); ) {
+                        String name = entries.nextElement().getName();
+                        if (name.endsWith(".class") && !name.contains("-")) {
+                            types.add(new TypeDescription.Latent(name.substring(0, name.length() - ".class".length()).replace('/', '.'),
+                                0, TypeDescription.Generic.OfNonGenericType.ForLoadedType.of(Object.class)));
+                        }
+                    }
+                }
+            }
+        }
+        System.out.println("Pre-filters: " + preFilters.size() + ", types: " + types.size());
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.stop();
+    }
+
+    @Benchmark
+    public int testPreFiltersOneByOne() {
+        return countMatches(preFilters);
+    }
+
+    @Benchmark
+    public int testNamePreFilterIndex() {
+        return countMatches(indexedPreFilters);
+    }
+
+    private int countMatches(List<ElementMatcher<? super NamedElement>> preFilters) {
+        int matches = 0;
+        for (int i = 0; i < types.size(); i++) {
+            TypeDescription type = types.get(i);
+            for (int j = 0; j < preFilters.size(); j++) {
+                if (preFilters.get(j).matches(type)) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.common.util.WildcardMatcher;
+import co.elastic.apm.agent.common.util.WildcardMatcherSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.RunnerException;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares matching a string against a plain list of {@link WildcardMatcher}s,
+ * which tries one matcher after another, with matching it against a compiled {@link WildcardMatcherSet}.
+ * <p>
+ * The patterns are a mix of prefix, suffix, infix and exact patterns,
+ * similar to what users configure for options like {@code transaction_ignore_urls} or {@code sanitize_field_names}.
+ * The matched string doesn't match any pattern, which is the common case and the worst case for the linear scan.
+ * </p>
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class WildcardMatcherBenchmark extends AbstractBenchmark {
+
+    private static final String URL = "/api/v1/customers/4711/orders/recent";
+
+    @Param({"1", "10", "100", "500"})
+    public int patterns;
+
+    private List<WildcardMatcher> matcherList;
+    private WildcardMatcherSet matcherSet;
+
+    public static void main(String[] args) throws RunnerException {
+        run(WildcardMatcherBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        matcherList = new ArrayList<>(patterns);
+        for (int i = 0; i < patterns; i++) {
+            switch (i % 4) {
+                case 0:
+                    matcherList.add(WildcardMatcher.valueOf("/static/" + i + "/*"));
+                    break;
+                case 1:
+                    matcherList.add(WildcardMatcher.valueOf("*.asset" + i));
+                    break;
+                case 2:
+                    matcherList.add(WildcardMatcher.valueOf("*/internal" + i + "/*"));
+                    break;
+                default:
+                    matcherList.add(WildcardMatcher.valueOf("/health" + i));
+                    break;
+            }
+        }
+        matcherSet = WildcardMatcherSet.of(matcherList);
+    }
+
+    @Benchmark
+    @Nullable
+    public WildcardMatcher testLinearScan() {
+        return WildcardMatcher.anyMatch(matcherList, URL);
+    }
+
+    @Benchmark
+    @Nullable
+    public WildcardMatcher testWildcardMatcherSet() {
+        return matcherSet.anyMatch(URL);
+    }
+}
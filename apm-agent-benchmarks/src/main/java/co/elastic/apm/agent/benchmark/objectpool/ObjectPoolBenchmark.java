@@ -24,6 +24,7 @@ import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
 import co.elastic.apm.agent.impl.transaction.TransactionImpl;
 import co.elastic.apm.agent.objectpool.ObservableObjectPool;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
+import co.elastic.apm.agent.objectpool.impl.ThreadLocalCachingObjectPool;
 import co.elastic.apm.agent.objectpool.impl.ThreadLocalObjectPool;
 import org.agrona.concurrent.ManyToManyConcurrentArrayQueue;
 import org.jctools.queues.MpmcArrayQueue;
@@ -35,7 +36,10 @@ import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
 
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -48,11 +52,24 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
     private ObservableObjectPool<TransactionImpl> blockingQueueObjectPool;
     private ObservableObjectPool<TransactionImpl> agronaQueueObjectPool;
     private ObservableObjectPool<TransactionImpl> threadLocalObjectPool;
+    private ThreadLocalCachingObjectPool<TransactionImpl> threadLocalCachingObjectPool;
     private ObservableObjectPool<TransactionImpl> jctoolsQueueObjectPool;
     private ObservableObjectPool<TransactionImpl> jctoolsAtomicQueueObjectPool;
 
+    /**
+     * Runs the benchmarks with 1 to 64 threads in order to show how the pools scale with contention.
+     * When running via the benchmarks jar, use the {@code -t} option to override the thread count.
+     */
     public static void main(String[] args) throws RunnerException {
-        run(ObjectPoolBenchmark.class);
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            new Runner(new OptionsBuilder()
+                .include(ObjectPoolBenchmark.class.getSimpleName())
+                .threads(threads)
+                .measurementTime(TimeValue.seconds(1))
+                .warmupTime(TimeValue.seconds(1))
+                .build())
+                .run();
+        }
     }
 
     @Setup
@@ -63,11 +80,14 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         jctoolsAtomicQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(256), true, () -> new TransactionImpl(tracer));
         agronaQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new ManyToManyConcurrentArrayQueue<>(256), true, () -> new TransactionImpl(tracer));
         threadLocalObjectPool = new ThreadLocalObjectPool<>(64, true, () -> new TransactionImpl(tracer));
+        threadLocalCachingObjectPool = ThreadLocalCachingObjectPool.ofRecyclable(256, () -> new TransactionImpl(tracer));
     }
 
     @TearDown
     public void tearDown() {
         System.out.println("Objects created by agronaQueueObjectPool: " + agronaQueueObjectPool.getGarbageCreated());
+        System.out.println("Hits/misses of threadLocalCachingObjectPool: "
+            + threadLocalCachingObjectPool.getHits() + "/" + threadLocalCachingObjectPool.getMisses());
     }
 
     //    @Benchmark
@@ -116,4 +136,12 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         return transaction;
     }
 
+    @Benchmark
+    @Threads(8)
+    public TransactionImpl testThreadLocalCachingObjectPool() {
+        TransactionImpl transaction = threadLocalCachingObjectPool.createInstance();
+        threadLocalCachingObjectPool.recycle(transaction);
+        return transaction;
+    }
+
 }
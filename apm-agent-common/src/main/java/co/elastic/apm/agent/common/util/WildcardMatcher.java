@@ -133,6 +133,9 @@ public abstract class WildcardMatcher {
 
     /**
      * Returns {@code true}, if any of the matchers match the provided string.
+     * <p>
+     * When matching against many matchers, consider compiling them into a {@link WildcardMatcherSet}.
+     * </p>
      *
      * @param matchers the matchers which should be used to match the provided string
      * @param s        the string to match against
@@ -179,6 +182,9 @@ public abstract class WildcardMatcher {
      */
     @Nullable
     public static WildcardMatcher anyMatch(List<WildcardMatcher> matchers, CharSequence firstPart, @Nullable CharSequence secondPart) {
+        if (matchers instanceof WildcardMatcherSet) {
+            return ((WildcardMatcherSet) matchers).anyMatch(firstPart, secondPart);
+        }
         for (int i = 0; i < matchers.size(); i++) {
             if (matchers.get(i).matches(firstPart, secondPart)) {
                 return matchers.get(i);
@@ -323,6 +329,10 @@ public abstract class WildcardMatcher {
             return wildcardString;
         }
 
+        List<SimpleWildcardMatcher> getWildcardMatchers() {
+            return wildcardMatchers;
+        }
+
         @Override
         public String getMatcher() {
             return matcher;
@@ -394,5 +404,17 @@ public abstract class WildcardMatcher {
         public String getMatcher() {
             return matcher;
         }
+
+        boolean isWildcardAtBeginning() {
+            return wildcardAtBeginning;
+        }
+
+        boolean isWildcardAtEnd() {
+            return wildcardAtEnd;
+        }
+
+        boolean isIgnoreCase() {
+            return ignoreCase;
+        }
     }
 }
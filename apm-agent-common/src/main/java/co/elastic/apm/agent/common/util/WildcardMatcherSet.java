@@ -0,0 +1,448 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.common.util;
+
+import javax.annotation.Nullable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable list of {@link WildcardMatcher}s which are compiled into automata,
+ * so that {@link #anyMatch(CharSequence)} does not have to try each matcher one after another.
+ * <p>
+ * {@link WildcardMatcher#anyMatch(List, CharSequence)} and its variants automatically make use of the automata
+ * when they are called with a {@link WildcardMatcherSet}.
+ * </p>
+ * <p>
+ * Matchers without a wildcard, or with a single wildcard at the end, are compiled into a trie which is walked from the
+ * start of the string. Matchers with a single wildcard at the beginning are compiled into a trie which is walked from
+ * the end of the string. Matchers with wildcards at both ends, like {@code *foo*}, are looked up with an Aho-Corasick
+ * automaton built on top of the first trie, so that all of these matchers are evaluated with a single pass over the string.
+ * Matchers with wildcards in the middle, like {@code foo*bar}, are still evaluated one by one,
+ * but only if no matcher with a lower index has matched already.
+ * There is one set of automata for case sensitive and one for case insensitive matchers.
+ * </p>
+ * <p>
+ * Just like {@link WildcardMatcher#matches(CharSequence)}, matching is allocation free,
+ * and {@link #anyMatch(CharSequence)} returns the first matching matcher in list order.
+ * </p>
+ */
+// don't use for-each as it allocates memory by instantiating an iterator
+@SuppressWarnings("ForLoopReplaceableByForEach")
+public final class WildcardMatcherSet extends AbstractList<WildcardMatcher> {
+
+    private static final int NO_MATCH = Integer.MAX_VALUE;
+    private static final WildcardMatcherSet EMPTY = new WildcardMatcherSet(Collections.<WildcardMatcher>emptyList());
+
+    private final WildcardMatcher[] matchers;
+    private final Automaton caseInsensitive;
+    private final Automaton caseSensitive;
+    /**
+     * Indices of the matchers which are evaluated one by one, in ascending order
+     */
+    private final int[] uncompiledMatchers;
+    /**
+     * For each of the {@link #uncompiledMatchers}, the minimum length of a string it can match
+     */
+    private final int[] uncompiledMinLengths;
+    /**
+     * The index of the first matcher which matches any string, like {@code *}
+     */
+    private final int matchAllIndex;
+
+    public static WildcardMatcherSet of(List<WildcardMatcher> matchers) {
+        if (matchers instanceof WildcardMatcherSet) {
+            return (WildcardMatcherSet) matchers;
+        }
+        if (matchers.isEmpty()) {
+            return EMPTY;
+        }
+        return new WildcardMatcherSet(matchers);
+    }
+
+    private WildcardMatcherSet(List<WildcardMatcher> matcherList) {
+        matchers = matcherList.toArray(new WildcardMatcher[0]);
+        AutomatonBuilder caseInsensitiveBuilder = new AutomatonBuilder(true);
+        AutomatonBuilder caseSensitiveBuilder = new AutomatonBuilder(false);
+        List<Integer> uncompiled = new ArrayList<>();
+        int firstMatchAll = NO_MATCH;
+        for (int i = 0; i < matchers.length; i++) {
+            WildcardMatcher matcher = matchers[i];
+            if (matcher instanceof WildcardMatcher.SimpleWildcardMatcher) {
+                WildcardMatcher.SimpleWildcardMatcher simpleMatcher = (WildcardMatcher.SimpleWildcardMatcher) matcher;
+                AutomatonBuilder builder = simpleMatcher.isIgnoreCase() ? caseInsensitiveBuilder : caseSensitiveBuilder;
+                String needle = simpleMatcher.getMatcher();
+                boolean wildcardAtBeginning = simpleMatcher.isWildcardAtBeginning();
+                boolean wildcardAtEnd = simpleMatcher.isWildcardAtEnd();
+                if (needle.isEmpty() && (wildcardAtBeginning || wildcardAtEnd)) {
+                    firstMatchAll = Math.min(firstMatchAll, i);
+                } else if (wildcardAtBeginning && wildcardAtEnd) {
+                    builder.addInfix(needle, i);
+                } else if (wildcardAtBeginning) {
+                    builder.addSuffix(needle, i);
+                } else if (wildcardAtEnd) {
+                    builder.addPrefix(needle, i);
+                } else {
+                    builder.addExact(needle, i);
+                }
+            } else if (matcher instanceof WildcardMatcher.CompoundWildcardMatcher
+                && ((WildcardMatcher.CompoundWildcardMatcher) matcher).getWildcardMatchers().isEmpty()) {
+                firstMatchAll = Math.min(firstMatchAll, i);
+            } else {
+                uncompiled.add(i);
+            }
+        }
+        caseInsensitive = caseInsensitiveBuilder.build();
+        caseSensitive = caseSensitiveBuilder.build();
+        matchAllIndex = firstMatchAll;
+        uncompiledMatchers = new int[uncompiled.size()];
+        uncompiledMinLengths = new int[uncompiled.size()];
+        for (int i = 0; i < uncompiledMatchers.length; i++) {
+            uncompiledMatchers[i] = uncompiled.get(i);
+            uncompiledMinLengths[i] = getMinLength(matchers[uncompiledMatchers[i]]);
+        }
+    }
+
+    private static int getMinLength(WildcardMatcher matcher) {
+        int minLength = 0;
+        if (matcher instanceof WildcardMatcher.CompoundWildcardMatcher) {
+            // each part has to be found in the string, but parts may overlap
+            List<WildcardMatcher.SimpleWildcardMatcher> parts = ((WildcardMatcher.CompoundWildcardMatcher) matcher).getWildcardMatchers();
+            for (int i = 0; i < parts.size(); i++) {
+                minLength = Math.max(minLength, parts.get(i).getMatcher().length());
+            }
+        }
+        return minLength;
+    }
+
+    /**
+     * Returns the first {@link WildcardMatcher} {@linkplain WildcardMatcher#matches(CharSequence) matching} the provided string.
+     *
+     * @param s the string to match against
+     * @return the first matching {@link WildcardMatcher}, or {@code null} if none match.
+     */
+    @Nullable
+    public WildcardMatcher anyMatch(@Nullable CharSequence s) {
+        if (s == null) {
+            return null;
+        }
+        return anyMatch(s, null);
+    }
+
+    /**
+     * Returns the first {@link WildcardMatcher} {@linkplain WildcardMatcher#matches(CharSequence, CharSequence) matching}
+     * the provided partitioned string.
+     *
+     * @param firstPart  The first part of the string to match against.
+     * @param secondPart The second part of the string to match against.
+     * @return the first matching {@link WildcardMatcher}, or {@code null} if none match.
+     */
+    @Nullable
+    public WildcardMatcher anyMatch(CharSequence firstPart, @Nullable CharSequence secondPart) {
+        if (secondPart == null) {
+            secondPart = "";
+        }
+        int firstMatch = matchAllIndex;
+        if (firstMatch > 0) {
+            firstMatch = caseInsensitive.firstMatch(firstPart, secondPart, firstMatch);
+        }
+        if (firstMatch > 0) {
+            firstMatch = caseSensitive.firstMatch(firstPart, secondPart, firstMatch);
+        }
+        int length = firstPart.length() + secondPart.length();
+        for (int i = 0; i < uncompiledMatchers.length; i++) {
+            int index = uncompiledMatchers[i];
+            if (index >= firstMatch) {
+                break;
+            }
+            if (length >= uncompiledMinLengths[i] && matchers[index].matches(firstPart, secondPart)) {
+                firstMatch = index;
+                break;
+            }
+        }
+        return firstMatch == NO_MATCH ? null : matchers[firstMatch];
+    }
+
+    public boolean isAnyMatch(@Nullable CharSequence s) {
+        return anyMatch(s) != null;
+    }
+
+    @Override
+    public WildcardMatcher get(int index) {
+        return matchers[index];
+    }
+
+    @Override
+    public int size() {
+        return matchers.length;
+    }
+
+    /**
+     * A trie of the exact, prefix and infix matchers which doubles as Aho-Corasick automaton for the infix matchers,
+     * and a separate trie of the reversed suffix matchers.
+     * The nodes are stored in arrays, the root always being node {@code 0}.
+     */
+    private static final class Automaton {
+
+        private final boolean ignoreCase;
+
+        // forward trie
+        private final char[][] childChars;
+        private final int[][] childNodes;
+        private final int[] exactMatch;
+        private final int[] prefixMatch;
+        /**
+         * The lowest index of all infix matchers ending in a node, including the ones reachable via failure links
+         */
+        private final int[] infixMatch;
+        private final int[] failure;
+        private final boolean hasForwardMatchers;
+        private final boolean hasInfixMatchers;
+
+        // reverse trie
+        private final char[][] reverseChildChars;
+        private final int[][] reverseChildNodes;
+        private final int[] suffixMatch;
+        private final boolean hasSuffixMatchers;
+
+        private Automaton(boolean ignoreCase,
+                          char[][] childChars, int[][] childNodes, int[] exactMatch, int[] prefixMatch, int[] infixMatch, int[] failure,
+                          char[][] reverseChildChars, int[][] reverseChildNodes, int[] suffixMatch) {
+            this.ignoreCase = ignoreCase;
+            this.childChars = childChars;
+            this.childNodes = childNodes;
+            this.exactMatch = exactMatch;
+            this.prefixMatch = prefixMatch;
+            this.infixMatch = infixMatch;
+            this.failure = failure;
+            this.reverseChildChars = reverseChildChars;
+            this.reverseChildNodes = reverseChildNodes;
+            this.suffixMatch = suffixMatch;
+            this.hasForwardMatchers = childChars[0].length > 0 || exactMatch[0] != NO_MATCH;
+            this.hasInfixMatchers = hasMatch(infixMatch);
+            this.hasSuffixMatchers = reverseChildChars[0].length > 0;
+        }
+
+        private static boolean hasMatch(int[] matches) {
+            for (int i = 0; i < matches.length; i++) {
+                if (matches[i] != NO_MATCH) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the lowest index of all matchers in this automaton matching the string, if it is lower than {@code firstMatch},
+         * {@code firstMatch} otherwise
+         */
+        int firstMatch(CharSequence firstPart, CharSequence secondPart, int firstMatch) {
+            int firstPartLength = firstPart.length();
+            int length = firstPartLength + secondPart.length();
+            if (hasForwardMatchers) {
+                int anchoredNode = 0;
+                int infixNode = 0;
+                for (int i = 0; i < length && (anchoredNode >= 0 || hasInfixMatchers); i++) {
+                    char c = charAt(i, firstPart, secondPart, firstPartLength);
+                    if (anchoredNode >= 0) {
+                        anchoredNode = child(childChars, childNodes, anchoredNode, c);
+                        if (anchoredNode >= 0) {
+                            firstMatch = Math.min(firstMatch, prefixMatch[anchoredNode]);
+                        }
+                    }
+                    if (hasInfixMatchers) {
+                        int next = child(childChars, childNodes, infixNode, c);
+                        while (next < 0 && infixNode != 0) {
+                            infixNode = failure[infixNode];
+                            next = child(childChars, childNodes, infixNode, c);
+                        }
+                        infixNode = next < 0 ? 0 : next;
+                        firstMatch = Math.min(firstMatch, infixMatch[infixNode]);
+                    }
+                }
+                if (anchoredNode >= 0) {
+                    firstMatch = Math.min(firstMatch, exactMatch[anchoredNode]);
+                }
+            }
+            if (hasSuffixMatchers) {
+                int node = 0;
+                for (int i = length - 1; i >= 0 && node >= 0; i--) {
+                    node = child(reverseChildChars, reverseChildNodes, node, charAt(i, firstPart, secondPart, firstPartLength));
+                    if (node >= 0) {
+                        firstMatch = Math.min(firstMatch, suffixMatch[node]);
+                    }
+                }
+            }
+            return firstMatch;
+        }
+
+        private char charAt(int i, CharSequence firstPart, CharSequence secondPart, int firstPartLength) {
+            char c = WildcardMatcher.charAt(i, firstPart, secondPart, firstPartLength);
+            return ignoreCase ? Character.toLowerCase(c) : c;
+        }
+
+        private static int child(char[][] childChars, int[][] childNodes, int node, char c) {
+            int i = Arrays.binarySearch(childChars[node], c);
+            return i < 0 ? -1 : childNodes[node][i];
+        }
+    }
+
+    private static final class AutomatonBuilder {
+
+        private final boolean ignoreCase;
+        private final Node root = new Node();
+        private final Node reverseRoot = new Node();
+
+        private AutomatonBuilder(boolean ignoreCase) {
+            this.ignoreCase = ignoreCase;
+        }
+
+        void addExact(String needle, int index) {
+            Node node = add(root, needle, false);
+            node.exactMatch = Math.min(node.exactMatch, index);
+        }
+
+        void addPrefix(String needle, int index) {
+            Node node = add(root, needle, false);
+            node.prefixMatch = Math.min(node.prefixMatch, index);
+        }
+
+        void addInfix(String needle, int index) {
+            Node node = add(root, needle, false);
+            node.infixMatch = Math.min(node.infixMatch, index);
+        }
+
+        void addSuffix(String needle, int index) {
+            Node node = add(reverseRoot, needle, true);
+            node.prefixMatch = Math.min(node.prefixMatch, index);
+        }
+
+        private Node add(Node node, String needle, boolean reverse) {
+            for (int i = 0; i < needle.length(); i++) {
+                char c = needle.charAt(reverse ? needle.length() - 1 - i : i);
+                if (ignoreCase) {
+                    c = Character.toLowerCase(c);
+                }
+                Node child = node.children.get(c);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        Automaton build() {
+            List<Node> nodes = breadthFirst(root);
+            computeFailureLinks(nodes);
+            int[] exactMatch = new int[nodes.size()];
+            int[] prefixMatch = new int[nodes.size()];
+            int[] infixMatch = new int[nodes.size()];
+            int[] failure = new int[nodes.size()];
+            char[][] childChars = new char[nodes.size()][];
+            int[][] childNodes = new int[nodes.size()][];
+            freeze(nodes, childChars, childNodes);
+            for (int i = 0; i < nodes.size(); i++) {
+                Node node = nodes.get(i);
+                exactMatch[i] = node.exactMatch;
+                prefixMatch[i] = node.prefixMatch;
+                infixMatch[i] = node.infixMatch;
+                failure[i] = node.failure == null ? 0 : node.failure.id;
+            }
+
+            List<Node> reverseNodes = breadthFirst(reverseRoot);
+            int[] suffixMatch = new int[reverseNodes.size()];
+            char[][] reverseChildChars = new char[reverseNodes.size()][];
+            int[][] reverseChildNodes = new int[reverseNodes.size()][];
+            freeze(reverseNodes, reverseChildChars, reverseChildNodes);
+            for (int i = 0; i < reverseNodes.size(); i++) {
+                suffixMatch[i] = reverseNodes.get(i).prefixMatch;
+            }
+            return new Automaton(ignoreCase, childChars, childNodes, exactMatch, prefixMatch, infixMatch, failure,
+                reverseChildChars, reverseChildNodes, suffixMatch);
+        }
+
+        private static List<Node> breadthFirst(Node root) {
+            List<Node> nodes = new ArrayList<>();
+            nodes.add(root);
+            for (int i = 0; i < nodes.size(); i++) {
+                Node node = nodes.get(i);
+                node.id = i;
+                nodes.addAll(node.children.values());
+            }
+            return nodes;
+        }
+
+        /**
+         * As the nodes are in breadth-first order, the failure link of a node's parent is always computed before the node's own.
+         * The infix matches are propagated along the failure links, so that the automaton only has to look at the current node.
+         */
+        private static void computeFailureLinks(List<Node> nodes) {
+            Node root = nodes.get(0);
+            for (int i = 0; i < nodes.size(); i++) {
+                Node node = nodes.get(i);
+                for (Map.Entry<Character, Node> entry : node.children.entrySet()) {
+                    Node child = entry.getValue();
+                    if (node == root) {
+                        child.failure = root;
+                    } else {
+                        Node failure = node.failure;
+                        while (failure != root && !failure.children.containsKey(entry.getKey())) {
+                            failure = failure.failure;
+                        }
+                        Node failureChild = failure.children.get(entry.getKey());
+                        child.failure = failureChild != null ? failureChild : root;
+                    }
+                    child.infixMatch = Math.min(child.infixMatch, child.failure.infixMatch);
+                }
+            }
+        }
+
+        private static void freeze(List<Node> nodes, char[][] childChars, int[][] childNodes) {
+            for (int i = 0; i < nodes.size(); i++) {
+                Node node = nodes.get(i);
+                childChars[i] = new char[node.children.size()];
+                childNodes[i] = new int[node.children.size()];
+                int j = 0;
+                // TreeMap iterates in ascending order, which is required for the binary search
+                for (Map.Entry<Character, Node> entry : node.children.entrySet()) {
+                    childChars[i][j] = entry.getKey();
+                    childNodes[i][j] = entry.getValue().id;
+                    j++;
+                }
+            }
+        }
+    }
+
+    private static final class Node {
+        private final TreeMap<Character, Node> children = new TreeMap<>();
+        private int id;
+        @Nullable
+        private Node failure;
+        private int exactMatch = NO_MATCH;
+        private int prefixMatch = NO_MATCH;
+        private int infixMatch = NO_MATCH;
+    }
+}
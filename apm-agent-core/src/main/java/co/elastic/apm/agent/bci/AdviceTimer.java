@@ -0,0 +1,131 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the time spent in the advices of an instrumentation group at runtime.
+ * <p>
+ * Only every n-th invocation of an advice method is timed.
+ * The decision is made by a counter per {@code invokedynamic} call site, which is not synchronized,
+ * so that the invocations which are not timed only pay for a guard and a field increment.
+ * The counts and durations are never reset, consumers compute the increase since they last looked at them.
+ * </p>
+ * <p>
+ * Note that the time spent in nested advices, for example when an advice calls an instrumented method,
+ * is counted for both instrumentation groups.
+ * </p>
+ */
+public class AdviceTimer {
+
+    private static final MethodHandle SHOULD_SAMPLE;
+    private static final MethodHandle INVOKE_TIMED;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            SHOULD_SAMPLE = lookup.findVirtual(SampledCallSite.class, "shouldSample", MethodType.methodType(boolean.class));
+            INVOKE_TIMED = lookup.findVirtual(SampledCallSite.class, "invokeTimed", MethodType.methodType(Object.class, Object[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final String instrumentationGroup;
+    private final AtomicLong sampledInvocations = new AtomicLong();
+    private final AtomicLong sampledDuration = new AtomicLong();
+
+    public AdviceTimer(String instrumentationGroup) {
+        this.instrumentationGroup = instrumentationGroup;
+    }
+
+    /**
+     * Wraps the method handle of an advice so that every n-th invocation is timed
+     *
+     * @param advice         the method handle of an advice method
+     * @param sampleInterval the n in every n-th invocation
+     * @return a method handle of the same type as the advice's
+     */
+    public MethodHandle time(MethodHandle advice, int sampleInterval) {
+        SampledCallSite callSite = new SampledCallSite(this, advice.asSpreader(Object[].class, advice.type().parameterCount()), sampleInterval);
+        MethodHandle timedAdvice = INVOKE_TIMED.bindTo(callSite)
+            .asCollector(Object[].class, advice.type().parameterCount())
+            .asType(advice.type());
+        return MethodHandles.guardWithTest(SHOULD_SAMPLE.bindTo(callSite), timedAdvice, advice);
+    }
+
+    void addSample(long duration) {
+        sampledInvocations.incrementAndGet();
+        sampledDuration.addAndGet(duration);
+    }
+
+    public String getInstrumentationGroup() {
+        return instrumentationGroup;
+    }
+
+    /**
+     * @return the number of timed invocations since the timer has been created
+     */
+    public long getSampledInvocations() {
+        return sampledInvocations.get();
+    }
+
+    /**
+     * @return the time spent in the timed invocations since the timer has been created, in nanoseconds
+     */
+    public long getSampledDuration() {
+        return sampledDuration.get();
+    }
+
+    private static class SampledCallSite {
+
+        private final AdviceTimer timer;
+        private final MethodHandle spreadAdvice;
+        private final int sampleInterval;
+        private int invocations;
+
+        private SampledCallSite(AdviceTimer timer, MethodHandle spreadAdvice, int sampleInterval) {
+            this.timer = timer;
+            this.spreadAdvice = spreadAdvice;
+            this.sampleInterval = sampleInterval;
+        }
+
+        boolean shouldSample() {
+            // lost updates only slightly change the sample rate, which is cheaper than an atomic increment on each invocation
+            if (++invocations >= sampleInterval) {
+                invocations = 0;
+                return true;
+            }
+            return false;
+        }
+
+        Object invokeTimed(Object[] arguments) throws Throwable {
+            long start = System.nanoTime();
+            try {
+                return spreadAdvice.invoke(arguments);
+            } finally {
+                timer.addSample(System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -26,15 +26,19 @@ import co.elastic.apm.agent.bci.bytebuddy.InstallationListenerImpl;
 import co.elastic.apm.agent.bci.bytebuddy.Instrumented;
 import co.elastic.apm.agent.bci.bytebuddy.LruTypePoolCache;
 import co.elastic.apm.agent.bci.bytebuddy.MinimumClassFileVersionValidator;
+import co.elastic.apm.agent.bci.bytebuddy.NamePreFilterIndex;
 import co.elastic.apm.agent.bci.bytebuddy.NonInstrumented;
+import co.elastic.apm.agent.bci.bytebuddy.ParallelDiscoveryStrategy;
 import co.elastic.apm.agent.bci.bytebuddy.PatchBytecodeVersionTo51Transformer;
 import co.elastic.apm.agent.bci.bytebuddy.RootPackageCustomLocator;
+import co.elastic.apm.agent.bci.bytebuddy.TypeMatchCache;
 import co.elastic.apm.agent.sdk.bytebuddy.SimpleMethodSignatureOffsetMappingFactory;
 import co.elastic.apm.agent.bci.classloading.ExternalPluginClassLoader;
 import co.elastic.apm.agent.bci.modules.ModuleOpener;
 import co.elastic.apm.agent.common.ThreadUtils;
 import co.elastic.apm.agent.common.util.SystemStandardOutputLogger;
 import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
 import co.elastic.apm.agent.tracer.GlobalTracer;
@@ -48,6 +52,7 @@ import co.elastic.apm.agent.sdk.weakconcurrent.WeakMap;
 import co.elastic.apm.agent.tracemethods.TraceMethodInstrumentation;
 import co.elastic.apm.agent.util.DependencyInjectingServiceLoader;
 import co.elastic.apm.agent.util.ExecutorUtils;
+import co.elastic.apm.agent.util.VersionUtils;
 import co.elastic.apm.agent.sdk.internal.util.PrivilegedActionUtils;
 import net.bytebuddy.ByteBuddy;
 import net.bytebuddy.agent.builder.AgentBuilder;
@@ -92,6 +97,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
@@ -120,12 +126,16 @@ public class ElasticApmAgent {
 
     private static boolean ancientBytecodeInstrumentationEnabled;
 
+    private static int adviceTimingSampleInterval;
+
     private static final InstrumentationStats instrumentationStats = new InstrumentationStats();
 
     @Nullable
     private static Instrumentation instrumentation;
     @Nullable
     private static ResettableClassFileTransformer resettableClassFileTransformer;
+    @Nullable
+    private static volatile TypeMatchCache typeMatchCache;
     private static final List<ResettableClassFileTransformer> dynamicClassFileTransformers = new ArrayList<>();
     private static final WeakMap<Class<?>, Set<Collection<Class<? extends ElasticApmInstrumentation>>>> dynamicallyInstrumentedClasses = WeakConcurrent.buildMap();
     @Nullable
@@ -138,6 +148,14 @@ public class ElasticApmAgent {
      */
     private static final ConcurrentMap<String, ClassLoader> adviceClassName2instrumentationClassLoader = new ConcurrentHashMap<>();
     private static final ConcurrentMap<String, PluginClassLoaderCustomizations> pluginPackages2pluginClassLoaderCustomizations = new ConcurrentHashMap<>();
+    /**
+     * A mapping from advice class name to the instrumentation group the time spent in the advice is accounted to.
+     */
+    private static final ConcurrentMap<String, String> adviceClassName2instrumentationGroup = new ConcurrentHashMap<>();
+    /**
+     * Instrumentation groups which are disabled at runtime in addition to the {@code disable_instrumentations} configuration.
+     */
+    private static final Set<String> suspendedInstrumentationGroups = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     /**
      * Called reflectively by {@code co.elastic.apm.agent.premain.AgentMain} to initialize the agent
@@ -238,6 +256,7 @@ public class ElasticApmAgent {
             return;
         }
         ancientBytecodeInstrumentationEnabled = coreConfig.isInstrumentAncientBytecode();
+        adviceTimingSampleInterval = tracer.getConfig(MetricsConfigurationImpl.class).getInstrumentationOverheadSampleInterval();
         String bytecodeDumpPath = coreConfig.getBytecodeDumpPath();
         if (bytecodeDumpPath != null) {
             bytecodeDumpPath = bytecodeDumpPath.trim();
@@ -278,6 +297,11 @@ public class ElasticApmAgent {
         Runtime.getRuntime().addShutdownHook(new Thread(ThreadUtils.addElasticApmThreadPrefix("init-instrumentation-shutdown-hook")) {
             @Override
             public void run() {
+                // saving before stopping the tracer, which shuts down logging
+                TypeMatchCache cache = typeMatchCache;
+                if (cache != null) {
+                    cache.save();
+                }
                 tracer.stop();
             }
         });
@@ -286,8 +310,9 @@ public class ElasticApmAgent {
             logger.warn("Instrumentation has already been initialized");
             return;
         }
+        typeMatchCache = createTypeMatchCache(tracer, instrumentations);
         // POOL_ONLY because we don't want to cause eager linking on startup as the class path may not be complete yet
-        AgentBuilder agentBuilder = initAgentBuilder(tracer, instrumentation, instrumentations, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, premain);
+        AgentBuilder agentBuilder = initAgentBuilder(tracer, instrumentation, instrumentations, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, premain, typeMatchCache);
 
         // Warmup Byte Buddy and agent's invokedynamic linkage paths on the attaching thread before installing it
         if (tracer.getConfig(CoreConfigurationImpl.class).shouldWarmupByteBuddy()) {
@@ -341,44 +366,109 @@ public class ElasticApmAgent {
     static synchronized void doReInitInstrumentation(Iterable<ElasticApmInstrumentation> instrumentations) {
         Logger logger = getLogger();
         logger.info("Re initializing instrumentation");
-        AgentBuilder agentBuilder = initAgentBuilder(GlobalTracer.get().require(ElasticApmTracer.class), instrumentation, instrumentations, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, false);
+        // the verdicts of the type match cache only apply to the configuration at startup
+        AgentBuilder agentBuilder = initAgentBuilder(GlobalTracer.get().require(ElasticApmTracer.class), instrumentation, instrumentations, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, false, null);
 
         resettableClassFileTransformer = agentBuilder.patchOn(instrumentation, resettableClassFileTransformer);
     }
 
     private static AgentBuilder initAgentBuilder(ElasticApmTracer tracer, Instrumentation instrumentation,
                                                  Iterable<ElasticApmInstrumentation> instrumentations, Logger logger,
-                                                 AgentBuilder.DescriptionStrategy descriptionStrategy, boolean premain) {
+                                                 AgentBuilder.DescriptionStrategy descriptionStrategy, boolean premain,
+                                                 @Nullable TypeMatchCache typeMatchCache) {
         final CoreConfigurationImpl coreConfiguration = tracer.getConfig(CoreConfigurationImpl.class);
         ElasticApmAgent.instrumentation = instrumentation;
         final ByteBuddy byteBuddy = new ByteBuddy()
             .with(TypeValidation.of(logger.isDebugEnabled()))
             .with(FailSafeDeclaredMethodsCompiler.INSTANCE);
+        ParallelDiscoveryStrategy discoveryStrategy = null;
+        if (!premain && coreConfiguration.getRetransformationDiscoveryThreads() > 1) {
+            discoveryStrategy = new ParallelDiscoveryStrategy(coreConfiguration.getRetransformationDiscoveryThreads(), instrumentationStats);
+        }
         AgentBuilder agentBuilder = getAgentBuilder(
-            byteBuddy, coreConfiguration, logger, descriptionStrategy, premain, coreConfiguration.isTypePoolCacheEnabled()
+            byteBuddy, coreConfiguration, logger, descriptionStrategy, premain, coreConfiguration.isTypePoolCacheEnabled(), typeMatchCache, discoveryStrategy
         );
-        int numberOfAdvices = 0;
+        List<ElasticApmInstrumentation> includedInstrumentations = new ArrayList<>();
+        List<ElementMatcher<? super NamedElement>> typeMatcherPreFilters = new ArrayList<>();
         for (final ElasticApmInstrumentation advice : instrumentations) {
             if (isIncluded(advice, coreConfiguration)) {
-                instrumentationStats.addInstrumentation(advice);
-                try {
-                    agentBuilder = applyAdvice(tracer, agentBuilder, advice, advice.getTypeMatcher());
-                    numberOfAdvices++;
-                } catch (Exception e) {
-                    logger.error("Exception occurred while applying instrumentation {}", advice.getClass().getName(), e);
-                    // this should fail tests but skip the instrumentations in prod
-                    assert false;
-                }
+                includedInstrumentations.add(advice);
+                typeMatcherPreFilters.add(advice.getTypeMatcherPreFilter());
             } else {
                 logger.debug("Not applying excluded instrumentation {}", advice.getClass().getName());
             }
         }
+        if (coreConfiguration.isTypeMatchingWithNamePreFilter()) {
+            // finds the candidate instrumentations of a type with a single lookup, instead of evaluating each pre-filter
+            typeMatcherPreFilters = NamePreFilterIndex.of(typeMatcherPreFilters).getPreFilters();
+        }
+        int numberOfAdvices = 0;
+        for (int i = 0; i < includedInstrumentations.size(); i++) {
+            ElasticApmInstrumentation advice = includedInstrumentations.get(i);
+            instrumentationStats.addInstrumentation(advice);
+            try {
+                agentBuilder = applyAdvice(tracer, agentBuilder, advice, advice.getTypeMatcher(), typeMatcherPreFilters.get(i), discoveryStrategy);
+                numberOfAdvices++;
+            } catch (Exception e) {
+                logger.error("Exception occurred while applying instrumentation {}", advice.getClass().getName(), e);
+                // this should fail tests but skip the instrumentations in prod
+                assert false;
+            }
+        }
         logger.debug("Applied {} advices", numberOfAdvices);
         return agentBuilder;
     }
 
+    @Nullable
+    private static TypeMatchCache createTypeMatchCache(ElasticApmTracer tracer, Iterable<ElasticApmInstrumentation> instrumentations) {
+        String typeMatchCacheDir = tracer.getConfig(CoreConfigurationImpl.class).getTypeMatchCacheDir();
+        if (typeMatchCacheDir.isEmpty()) {
+            return null;
+        }
+        // any option may have an influence on the type matchers, so a change of any option invalidates the cache
+        StringBuilder configurationDescription = new StringBuilder();
+        configurationDescription.append(VersionUtils.getAgentVersion()).append('\n');
+        Map<String, ConfigurationOption<?>> options = new TreeMap<>(tracer.getConfigurationRegistry().getConfigurationOptionsByKey());
+        for (Map.Entry<String, ConfigurationOption<?>> option : options.entrySet()) {
+            configurationDescription.append(option.getKey()).append('=').append(option.getValue().getValueAsString()).append('\n');
+        }
+        for (ElasticApmInstrumentation apmInstrumentation : instrumentations) {
+            configurationDescription.append(apmInstrumentation.getClass().getName()).append('\n');
+        }
+        return new TypeMatchCache(new File(typeMatchCacheDir), configurationDescription.toString());
+    }
+
+    /**
+     * Returns the last group name, which is usually the most specific one, ignoring the {@code experimental} group.
+     * Disabling this group disables the instrumentation while affecting as few other instrumentations as possible.
+     */
+    @Nullable
+    private static String getMostSpecificInstrumentationGroup(Collection<String> instrumentationGroupNames) {
+        String mostSpecificGroup = null;
+        for (String groupName : instrumentationGroupNames) {
+            if (mostSpecificGroup == null || !"experimental".equals(groupName)) {
+                mostSpecificGroup = groupName;
+            }
+        }
+        return mostSpecificGroup;
+    }
+
     private static boolean isIncluded(ElasticApmInstrumentation advice, CoreConfigurationImpl coreConfiguration) {
-        return isInstrumentationEnabled(advice, coreConfiguration) && coreConfiguration.isInstrumentationEnabled(advice.getInstrumentationGroupNames());
+        return isInstrumentationEnabled(advice, coreConfiguration)
+            && coreConfiguration.isInstrumentationEnabled(advice.getInstrumentationGroupNames())
+            && !isAnyInstrumentationGroupSuspended(advice.getInstrumentationGroupNames());
+    }
+
+    private static boolean isAnyInstrumentationGroupSuspended(Collection<String> instrumentationGroupNames) {
+        if (suspendedInstrumentationGroups.isEmpty()) {
+            return false;
+        }
+        for (String groupName : instrumentationGroupNames) {
+            if (suspendedInstrumentationGroups.contains(groupName)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private static boolean isInstrumentationEnabled(ElasticApmInstrumentation advice, CoreConfigurationImpl coreConfiguration) {
@@ -386,27 +476,40 @@ public class ElasticApmAgent {
     }
 
     private static AgentBuilder applyAdvice(final ElasticApmTracer tracer, final AgentBuilder agentBuilder,
-                                            final ElasticApmInstrumentation instrumentation, final ElementMatcher<? super TypeDescription> typeMatcher) {
+                                            final ElasticApmInstrumentation instrumentation, final ElementMatcher<? super TypeDescription> typeMatcher,
+                                            final ElementMatcher<? super NamedElement> typeMatcherPreFilter,
+                                            @Nullable ParallelDiscoveryStrategy discoveryStrategy) {
         final Logger logger = getLogger();
         logger.debug("Applying instrumentation {}", instrumentation.getClass().getName());
         final boolean classLoadingMatchingPreFilter = tracer.getConfig(CoreConfigurationImpl.class).isClassLoadingMatchingPreFilter();
         final boolean typeMatchingWithNamePreFilter = tracer.getConfig(CoreConfigurationImpl.class).isTypeMatchingWithNamePreFilter();
         final ElementMatcher.Junction<ClassLoader> classLoaderMatcher = instrumentation.getClassLoaderMatcher();
-        final ElementMatcher<? super NamedElement> typeMatcherPreFilter = instrumentation.getTypeMatcherPreFilter();
         final ElementMatcher.Junction<ProtectionDomain> versionPostFilter = instrumentation.getProtectionDomainPostFilter();
         final ElementMatcher<? super MethodDescription> methodMatcher = new ElementMatcher.Junction.Conjunction<>(instrumentation.getMethodMatcher(), not(isAbstract()));
-        final AgentBuilder.RawMatcher matcher = new AgentBuilder.RawMatcher() {
+        String instrumentationGroup = getMostSpecificInstrumentationGroup(instrumentation.getInstrumentationGroupNames());
+        if (instrumentationGroup != null) {
+            adviceClassName2instrumentationGroup.put(instrumentation.getAdviceClassName(), instrumentationGroup);
+        }
+        // free of side effects, so that it can also be used to find the candidates for retransformation concurrently
+        final AgentBuilder.RawMatcher candidateMatcher = new AgentBuilder.RawMatcher() {
             @Override
             public boolean matches(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module, Class<?> classBeingRedefined, ProtectionDomain protectionDomain) {
-                if (classLoadingMatchingPreFilter && !classLoaderMatcher.matches(classLoader)) {
+                // the name pre-filter is checked first as it is usually backed by a single lookup in the NamePreFilterIndex
+                if (typeMatchingWithNamePreFilter && !typeMatcherPreFilter.matches(typeDescription)) {
                     return false;
                 }
-                if (typeMatchingWithNamePreFilter && !typeMatcherPreFilter.matches(typeDescription)) {
+                if (classLoadingMatchingPreFilter && !classLoaderMatcher.matches(classLoader)) {
                     return false;
                 }
+                return typeMatcher.matches(typeDescription) && versionPostFilter.matches(protectionDomain);
+            }
+        };
+        final AgentBuilder.RawMatcher matcher = new AgentBuilder.RawMatcher() {
+            @Override
+            public boolean matches(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module, Class<?> classBeingRedefined, ProtectionDomain protectionDomain) {
                 boolean typeMatches;
                 try {
-                    typeMatches = typeMatcher.matches(typeDescription) && versionPostFilter.matches(protectionDomain);
+                    typeMatches = candidateMatcher.matches(typeDescription, classLoader, module, classBeingRedefined, protectionDomain);
                 } catch (Exception ignored) {
                     // could be because of a missing type
                     typeMatches = false;
@@ -438,6 +541,9 @@ public class ElasticApmAgent {
                 }
             }
         };
+        if (discoveryStrategy != null) {
+            discoveryStrategy.addCandidateMatcher(candidateMatcher);
+        }
         return agentBuilder
             .type(instrumentationStats.shouldMeasureMatching() ? statsCollectingMatcher : matcher)
             .transform(new PatchBytecodeVersionTo51Transformer())
@@ -658,6 +764,7 @@ public class ElasticApmAgent {
             }
             resettableClassFileTransformer = null;
         }
+        typeMatchCache = null;
         dynamicallyInstrumentedClasses.clear();
         for (ResettableClassFileTransformer transformer : dynamicClassFileTransformers) {
             try {
@@ -675,11 +782,15 @@ public class ElasticApmAgent {
         IndyPluginClassLoaderFactory.clear();
         adviceClassName2instrumentationClassLoader.clear();
         pluginPackages2pluginClassLoaderCustomizations.clear();
+        adviceClassName2instrumentationGroup.clear();
+        suspendedInstrumentationGroups.clear();
+        adviceTimingSampleInterval = 0;
     }
 
     private static AgentBuilder getAgentBuilder(final ByteBuddy byteBuddy, final CoreConfigurationImpl coreConfiguration, final Logger logger,
                                                 final AgentBuilder.DescriptionStrategy descriptionStrategy, final boolean premain,
-                                                final boolean useTypePoolCache) {
+                                                final boolean useTypePoolCache, @Nullable TypeMatchCache typeMatchCache,
+                                                @Nullable ParallelDiscoveryStrategy discoveryStrategy) {
         AgentBuilder.LocationStrategy locationStrategy = AgentBuilder.LocationStrategy.ForClassLoader.WEAK;
         if (agentJarFile != null) {
             try {
@@ -702,18 +813,35 @@ public class ElasticApmAgent {
             .with(RedefinitionStrategy.RETRANSFORMATION)
             // when runtime attaching, only retransform up to 100 classes at once and sleep 100ms in-between as retransformation causes a stop-the-world pause
             .with(premain ? RedefinitionStrategy.BatchAllocator.ForTotal.INSTANCE : RedefinitionStrategy.BatchAllocator.ForFixedSize.ofSize(100))
+            // the candidates for retransformation are matched in parallel, so that only the matching candidates are matched on the attaching thread
+            .with(discoveryStrategy != null ? discoveryStrategy : RedefinitionStrategy.DiscoveryStrategy.SinglePass.INSTANCE)
             .with(premain ? RedefinitionStrategy.Listener.NoOp.INSTANCE : RedefinitionStrategy.Listener.Pausing.of(100, TimeUnit.MILLISECONDS))
             .with(new RedefinitionStrategy.Listener.Adapter() {
+                @Override
+                public void onBatch(int index, List<Class<?>> batch, List<Class<?>> types) {
+                    if (index == 0) {
+                        instrumentationStats.onRetransformationStarted(types.size());
+                    }
+                    instrumentationStats.onRetransformationBatch(batch.size());
+                }
+
                 @Override
                 public Iterable<? extends List<Class<?>>> onError(int index, List<Class<?>> batch, Throwable throwable, List<Class<?>> types) {
+                    instrumentationStats.onRetransformationError(batch.size());
                     logger.warn("Error while redefining classes {}", throwable.getMessage());
                     logger.debug(throwable.getMessage(), throwable);
                     return super.onError(index, batch, throwable, types);
                 }
+
+                @Override
+                public void onComplete(int amount, List<Class<?>> types, Map<List<Class<?>>, Throwable> failures) {
+                    logger.debug("Retransformed {} classes in {} batches", types.size(), amount);
+                }
             })
             .with(descriptionStrategy)
             .with(locationStrategy)
             .with(new ErrorLoggingListener())
+            .with(typeMatchCache != null ? typeMatchCache : AgentBuilder.Listener.NoOp.INSTANCE)
             // ReaderMode.FAST as we don't need to read method parameter names
             .with(useTypePoolCache
                 ? new LruTypePoolCache(TypePool.Default.ReaderMode.FAST).scheduleEntryEviction()
@@ -750,6 +878,8 @@ public class ElasticApmAgent {
             .or(nameContains(".asm."))
             .or(anyMatch(coreConfiguration.getDefaultClassesExcludedFromInstrumentation()))
             .or(anyMatch(coreConfiguration.getClassesExcludedFromInstrumentation()))
+            // types that did not match any instrumentation on a previous start
+            .or(typeMatchCache != null ? typeMatchCache : AgentBuilder.RawMatcher.Trivial.NON_MATCHING)
             .disableClassFormatChanges();
     }
 
@@ -831,7 +961,7 @@ public class ElasticApmAgent {
             .with(TypeValidation.of(logger.isDebugEnabled()))
             .with(FailSafeDeclaredMethodsCompiler.INSTANCE);
         AgentBuilder agentBuilder = getAgentBuilder(
-            byteBuddy, config, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, false, false
+            byteBuddy, config, logger, AgentBuilder.DescriptionStrategy.Default.POOL_ONLY, false, false, null, null
         );
         for (Class<? extends ElasticApmInstrumentation> instrumentationClass : instrumentationClasses) {
             ElasticApmInstrumentation apmInstrumentation = instantiate(instrumentationClass);
@@ -840,7 +970,8 @@ public class ElasticApmAgent {
                 PrivilegedActionUtils.getClassLoader(instrumentationClass));
             ElementMatcher.Junction<? super TypeDescription> typeMatcher = getTypeMatcher(classToInstrument, apmInstrumentation.getMethodMatcher(), none());
             if (typeMatcher != null && isIncluded(apmInstrumentation, config)) {
-                agentBuilder = applyAdvice(tracer, agentBuilder, apmInstrumentation, typeMatcher.and(apmInstrumentation.getTypeMatcher()));
+                agentBuilder = applyAdvice(tracer, agentBuilder, apmInstrumentation, typeMatcher.and(apmInstrumentation.getTypeMatcher()),
+                    apmInstrumentation.getTypeMatcherPreFilter(), null);
             }
         }
         dynamicClassFileTransformers.add(agentBuilder.installOn(instrumentation));
@@ -950,6 +1081,55 @@ public class ElasticApmAgent {
         return classLoader;
     }
 
+    /**
+     * Returns the timer measuring the time spent in the given advice class at runtime.
+     *
+     * @param adviceClass name of the advice class
+     * @return the timer of the advice's instrumentation group, or {@code null} if advices are not timed
+     */
+    @Nullable
+    static AdviceTimer getAdviceTimer(String adviceClass) {
+        if (adviceTimingSampleInterval <= 0) {
+            return null;
+        }
+        String instrumentationGroup = adviceClassName2instrumentationGroup.get(adviceClass);
+        if (instrumentationGroup == null) {
+            return null;
+        }
+        return instrumentationStats.getOrCreateAdviceTimer(instrumentationGroup);
+    }
+
+    static int getAdviceTimingSampleInterval() {
+        return adviceTimingSampleInterval;
+    }
+
+    /**
+     * Disables the instrumentations of a group without changing the {@code disable_instrumentations} configuration,
+     * for example to reduce the overhead of the agent.
+     * Takes effect with the next {@link #reInitInstrumentation()}.
+     *
+     * @param instrumentationGroup the name of the instrumentation group
+     * @return {@code true} if the group has not already been suspended
+     */
+    public static boolean suspendInstrumentationGroup(String instrumentationGroup) {
+        return suspendedInstrumentationGroups.add(instrumentationGroup);
+    }
+
+    /**
+     * Reverts {@link #suspendInstrumentationGroup(String)}.
+     * Takes effect with the next {@link #reInitInstrumentation()}.
+     *
+     * @param instrumentationGroup the name of the instrumentation group
+     * @return {@code true} if the group has been suspended
+     */
+    public static boolean resumeInstrumentationGroup(String instrumentationGroup) {
+        return suspendedInstrumentationGroups.remove(instrumentationGroup);
+    }
+
+    public static Set<String> getSuspendedInstrumentationGroups() {
+        return Collections.unmodifiableSet(suspendedInstrumentationGroups);
+    }
+
     public static Collection<String> getPluginClassLoaderRootPackages(String pluginPackage) {
         PluginClassLoaderCustomizations customizations = pluginPackages2pluginClassLoaderCustomizations.get(pluginPackage);
         if (customizations != null) {
@@ -503,6 +503,10 @@ public class IndyBootstrap {
             MethodHandles.Lookup indyLookup = (MethodHandles.Lookup) lookupExposer.getMethod("getLookup").invoke(null);
             // When calling findStatic now, the lookup class will be one that is loaded by the plugin class loader
             MethodHandle methodHandle = indyLookup.findStatic(adviceInPluginCL, adviceMethodName, adviceMethodType);
+            AdviceTimer adviceTimer = ElasticApmAgent.getAdviceTimer(adviceClassName);
+            if (adviceTimer != null) {
+                methodHandle = adviceTimer.time(methodHandle, ElasticApmAgent.getAdviceTimingSampleInterval());
+            }
             return new ConstantCallSite(methodHandle);
         } catch (Throwable e) {
             logger().error(e.getMessage(), e);
@@ -31,6 +31,7 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class InstrumentationStats {
 
@@ -40,13 +41,36 @@ public final class InstrumentationStats {
 
     private final ConcurrentMap<String, MatcherTimer> matcherTimers = new ConcurrentHashMap<>();
 
+    private final ConcurrentMap<String, AdviceTimer> adviceTimers = new ConcurrentHashMap<>();
+
     private boolean measureMatching = false;
 
+    private volatile int loadedClassesOnRetransformation;
+
+    private volatile int retransformationCandidates;
+
+    private volatile long retransformationDiscoveryTime;
+
+    private final AtomicInteger classesToRetransform = new AtomicInteger();
+
+    private final AtomicInteger retransformedClasses = new AtomicInteger();
+
+    private final AtomicInteger failedRetransformations = new AtomicInteger();
+
+    private final AtomicInteger retransformationBatches = new AtomicInteger();
+
     void reset() {
         allInstrumentations.clear();
         usedInstrumentations.clear();
         matcherTimers.clear();
         measureMatching = false;
+        loadedClassesOnRetransformation = 0;
+        retransformationCandidates = 0;
+        retransformationDiscoveryTime = 0;
+        classesToRetransform.set(0);
+        retransformedClasses.set(0);
+        failedRetransformations.set(0);
+        retransformationBatches.set(0);
     }
 
     void addInstrumentation(ElasticApmInstrumentation instrumentation) {
@@ -128,6 +152,24 @@ public final class InstrumentationStats {
         }
     }
 
+    /**
+     * Note that the advice timers are not {@linkplain #reset() reset},
+     * as they are referenced by the call sites of the advices which outlive a tracer.
+     */
+    AdviceTimer getOrCreateAdviceTimer(String instrumentationGroup) {
+        AdviceTimer timer = adviceTimers.get(instrumentationGroup);
+        if (timer == null) {
+            adviceTimers.putIfAbsent(instrumentationGroup, new AdviceTimer(instrumentationGroup));
+            return adviceTimers.get(instrumentationGroup);
+        } else {
+            return timer;
+        }
+    }
+
+    public Collection<AdviceTimer> getAdviceTimers() {
+        return adviceTimers.values();
+    }
+
     long getTotalMatcherTime() {
         long totalTime = 0;
         for (MatcherTimer value : matcherTimers.values()) {
@@ -147,4 +189,83 @@ public final class InstrumentationStats {
     public boolean shouldMeasureMatching() {
         return measureMatching;
     }
+
+    /**
+     * Records the outcome of the discovery of the already loaded classes that may need to be retransformed
+     *
+     * @param loadedClasses the number of loaded classes
+     * @param candidates    the number of loaded classes that may match an instrumentation
+     * @param duration      the time it took to find the candidates, in nanoseconds
+     */
+    public void onRetransformationCandidatesDiscovered(int loadedClasses, int candidates, long duration) {
+        loadedClassesOnRetransformation = loadedClasses;
+        retransformationCandidates = candidates;
+        retransformationDiscoveryTime = duration;
+    }
+
+    void onRetransformationStarted(int classesToRetransform) {
+        this.classesToRetransform.addAndGet(classesToRetransform);
+    }
+
+    void onRetransformationBatch(int batchSize) {
+        retransformationBatches.incrementAndGet();
+        retransformedClasses.addAndGet(batchSize);
+    }
+
+    void onRetransformationError(int batchSize) {
+        failedRetransformations.addAndGet(batchSize);
+    }
+
+    /**
+     * @return the number of loaded classes when the last retransformation started,
+     * {@code 0} if the classes have not been discovered in parallel
+     */
+    public int getLoadedClassesOnRetransformation() {
+        return loadedClassesOnRetransformation;
+    }
+
+    /**
+     * @return the number of loaded classes that may have matched an instrumentation when the last retransformation started,
+     * {@code 0} if the classes have not been discovered in parallel
+     */
+    public int getRetransformationCandidates() {
+        return retransformationCandidates;
+    }
+
+    /**
+     * @return the time it took to find the candidates for the last retransformation, in nanoseconds
+     */
+    public long getRetransformationDiscoveryTime() {
+        return retransformationDiscoveryTime;
+    }
+
+    /**
+     * @return the number of loaded classes that match an instrumentation and are retransformed,
+     * summed up over all retransformations, like the one on attachment and the ones after a configuration change
+     */
+    public int getClassesToRetransform() {
+        return classesToRetransform.get();
+    }
+
+    /**
+     * @return the number of classes retransformation has been attempted for so far, including failed ones,
+     * comparing it with {@link #getClassesToRetransform()} tells the progress of the retransformation
+     */
+    public int getRetransformedClasses() {
+        return retransformedClasses.get();
+    }
+
+    /**
+     * @return the number of classes whose retransformation failed
+     */
+    public int getFailedRetransformations() {
+        return failedRetransformations.get();
+    }
+
+    /**
+     * @return the number of batches the classes have been retransformed in so far
+     */
+    public int getRetransformationBatches() {
+        return retransformationBatches.get();
+    }
 }
@@ -0,0 +1,625 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.matcher.BooleanMatcher;
+import net.bytebuddy.matcher.ElementMatcher;
+import net.bytebuddy.matcher.NameMatcher;
+import net.bytebuddy.matcher.StringMatcher;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Compiles the {@linkplain co.elastic.apm.agent.sdk.ElasticApmInstrumentation#getTypeMatcherPreFilter() name pre-filters}
+ * of all instrumentations into a single index,
+ * so that the candidate instrumentations for a type name are found with one pass over the name,
+ * instead of evaluating each pre-filter one after another.
+ * <p>
+ * The pre-filters are decomposed into {@code named}, {@code nameStartsWith}, {@code nameEndsWith}, {@code nameContains}
+ * and {@code nameContainsIgnoreCase} conditions.
+ * The named and starts-with conditions are stored in a trie, the ends-with conditions in a trie of the reversed names,
+ * and the contains conditions are compiled into deterministic Aho-Corasick automata.
+ * For each pre-filter, a condition which is necessary for the pre-filter to match is extracted:
+ * a disjunction of the name conditions above.
+ * If the pre-filter consists of nothing but this disjunction,
+ * the index alone decides whether the pre-filter matches.
+ * Otherwise, like for {@code nameStartsWith("io.grpc").and(nameContains("Channel"))},
+ * the pre-filter itself is only evaluated if the index found the necessary condition to match.
+ * Pre-filters without such a condition, like negations or custom matchers, are always evaluated.
+ * </p>
+ * <p>
+ * As all pre-filters are called with the same type in a row,
+ * the candidates of the last type name are cached per thread.
+ * </p>
+ *
+ * @see net.bytebuddy.matcher.ElementMatchers
+ */
+// don't use for-each as it allocates memory by instantiating an iterator
+@SuppressWarnings("ForLoopReplaceableByForEach")
+public class NamePreFilterIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(NamePreFilterIndex.class);
+
+    @Nullable
+    private static final Field NAME_MATCHER_MATCHER = getField(NameMatcher.class, "matcher");
+    @Nullable
+    private static final Field STRING_MATCHER_VALUE = getField(StringMatcher.class, "value");
+    @Nullable
+    private static final Field STRING_MATCHER_MODE = getField(StringMatcher.class, "mode");
+    @Nullable
+    private static final Field CONJUNCTION_MATCHERS = getField(ElementMatcher.Junction.Conjunction.class, "matchers");
+    @Nullable
+    private static final Field DISJUNCTION_MATCHERS = getField(ElementMatcher.Junction.Disjunction.class, "matchers");
+    @Nullable
+    private static final Field BOOLEAN_MATCHER_MATCHES = getField(BooleanMatcher.class, "matches");
+
+    private static final Condition ALWAYS = new Condition(null, true);
+    private static final Condition NEVER = new Condition(Collections.<Atom>emptyList(), true);
+    private static final Condition UNKNOWN = new Condition(null, false);
+
+    private final List<ElementMatcher<? super NamedElement>> preFilters;
+    /**
+     * The pre-filters without a necessary condition, which are candidates for any type name
+     */
+    private final long[] alwaysCandidates;
+    /**
+     * The pre-filters that are fully decided by the index
+     */
+    private final long[] decidedByIndex;
+    private final int words;
+
+    // trie of named and starts-with conditions
+    private final char[][] childChars;
+    private final int[][] childNodes;
+    @Nullable
+    private final long[][] exactMatch;
+    @Nullable
+    private final long[][] prefixMatch;
+
+    private final InfixAutomaton infixAutomaton;
+    private final InfixAutomaton ignoreCaseInfixAutomaton;
+    /**
+     * The pre-filters with ignore case contains conditions, which are candidates for all names containing non-ASCII characters
+     */
+    private final long[] ignoreCaseCandidates;
+
+    // reverse trie
+    private final char[][] reverseChildChars;
+    private final int[][] reverseChildNodes;
+    @Nullable
+    private final long[][] suffixMatch;
+
+    private final ThreadLocal<Candidates> candidatesOfLastName = new ThreadLocal<Candidates>() {
+        @Override
+        protected Candidates initialValue() {
+            return new Candidates(words);
+        }
+    };
+
+    public static NamePreFilterIndex of(List<? extends ElementMatcher<? super NamedElement>> preFilters) {
+        return new NamePreFilterIndex(preFilters);
+    }
+
+    private NamePreFilterIndex(List<? extends ElementMatcher<? super NamedElement>> preFilterList) {
+        preFilters = new ArrayList<ElementMatcher<? super NamedElement>>(preFilterList);
+        words = (preFilters.size() + 63) >>> 6;
+        alwaysCandidates = new long[words];
+        decidedByIndex = new long[words];
+        ignoreCaseCandidates = new long[words];
+        Node root = new Node();
+        Node infixRoot = new Node();
+        Node ignoreCaseInfixRoot = new Node();
+        Node reverseRoot = new Node();
+        int indexed = 0;
+        for (int i = 0; i < preFilters.size(); i++) {
+            Condition condition = getNecessaryCondition(preFilters.get(i));
+            if (condition.decidedByIndex) {
+                set(decidedByIndex, i);
+            }
+            if (condition.atoms == null) {
+                set(alwaysCandidates, i);
+                continue;
+            }
+            indexed++;
+            for (int j = 0; j < condition.atoms.size(); j++) {
+                Atom atom = condition.atoms.get(j);
+                switch (atom.mode) {
+                    case EQUALS_FULLY:
+                        add(root, atom.value, false).exactMatch.set(i);
+                        break;
+                    case STARTS_WITH:
+                        add(root, atom.value, false).prefixMatch.set(i);
+                        break;
+                    case CONTAINS:
+                        add(infixRoot, atom.value, false).infixMatch.set(i);
+                        break;
+                    case CONTAINS_IGNORE_CASE:
+                        add(ignoreCaseInfixRoot, atom.value.toLowerCase(Locale.ROOT), false).infixMatch.set(i);
+                        set(ignoreCaseCandidates, i);
+                        break;
+                    default:
+                        add(reverseRoot, atom.value, true).prefixMatch.set(i);
+                        break;
+                }
+            }
+        }
+        logger.debug("Indexed {} of {} type matcher pre-filters", indexed, preFilters.size());
+
+        List<Node> nodes = breadthFirst(root);
+        childChars = new char[nodes.size()][];
+        childNodes = new int[nodes.size()][];
+        freeze(nodes, childChars, childNodes);
+        exactMatch = new long[nodes.size()][];
+        prefixMatch = new long[nodes.size()][];
+        for (int i = 0; i < nodes.size(); i++) {
+            exactMatch[i] = toWords(nodes.get(i).exactMatch, words);
+            prefixMatch[i] = toWords(nodes.get(i).prefixMatch, words);
+        }
+
+        infixAutomaton = new InfixAutomaton(infixRoot, false);
+        ignoreCaseInfixAutomaton = new InfixAutomaton(ignoreCaseInfixRoot, true);
+
+        List<Node> reverseNodes = breadthFirst(reverseRoot);
+        reverseChildChars = new char[reverseNodes.size()][];
+        reverseChildNodes = new int[reverseNodes.size()][];
+        freeze(reverseNodes, reverseChildChars, reverseChildNodes);
+        suffixMatch = new long[reverseNodes.size()][];
+        for (int i = 0; i < reverseNodes.size(); i++) {
+            suffixMatch[i] = toWords(reverseNodes.get(i).prefixMatch, words);
+        }
+    }
+
+    /**
+     * Returns a matcher for each pre-filter, in the order they have been provided to {@link #of(List)},
+     * which consults the index before evaluating the pre-filter.
+     *
+     * @return a matcher for each pre-filter
+     */
+    public List<ElementMatcher<? super NamedElement>> getPreFilters() {
+        List<ElementMatcher<? super NamedElement>> result = new ArrayList<>(preFilters.size());
+        for (int i = 0; i < preFilters.size(); i++) {
+            result.add(new IndexedPreFilter(i));
+        }
+        return result;
+    }
+
+    boolean matches(int preFilter, NamedElement namedElement) {
+        String name = namedElement.getActualName();
+        Candidates candidates = candidatesOfLastName.get();
+        if (!name.equals(candidates.name)) {
+            computeCandidates(name, candidates.words);
+            candidates.name = name;
+        }
+        if (!isSet(candidates.words, preFilter)) {
+            return false;
+        }
+        return isSet(decidedByIndex, preFilter) || preFilters.get(preFilter).matches(namedElement);
+    }
+
+    private void computeCandidates(String name, long[] candidates) {
+        System.arraycopy(alwaysCandidates, 0, candidates, 0, words);
+        int length = name.length();
+        int node = 0;
+        for (int i = 0; i < length && node >= 0; i++) {
+            node = child(childChars, childNodes, node, name.charAt(i));
+            if (node >= 0) {
+                or(candidates, prefixMatch[node]);
+            }
+        }
+        if (node >= 0) {
+            or(candidates, exactMatch[node]);
+        }
+        infixAutomaton.addMatches(name, candidates);
+        if (ignoreCaseInfixAutomaton.addMatches(name, candidates)) {
+            // String#toLowerCase may turn non-ASCII characters into ASCII characters
+            or(candidates, ignoreCaseCandidates);
+        }
+        node = 0;
+        for (int i = length - 1; i >= 0 && node >= 0; i--) {
+            node = child(reverseChildChars, reverseChildNodes, node, name.charAt(i));
+            if (node >= 0) {
+                or(candidates, suffixMatch[node]);
+            }
+        }
+    }
+
+    private static int child(char[][] childChars, int[][] childNodes, int node, char c) {
+        int i = Arrays.binarySearch(childChars[node], c);
+        return i < 0 ? -1 : childNodes[node][i];
+    }
+
+    private static void or(long[] target, @Nullable long[] bits) {
+        if (bits != null) {
+            for (int i = 0; i < bits.length; i++) {
+                target[i] |= bits[i];
+            }
+        }
+    }
+
+    private static void set(long[] bits, int index) {
+        bits[index >>> 6] |= 1L << index;
+    }
+
+    private static boolean isSet(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    @Nullable
+    private static long[] toWords(BitSet bitSet, int words) {
+        return bitSet.isEmpty() ? null : Arrays.copyOf(bitSet.toLongArray(), words);
+    }
+
+    /**
+     * Extracts a disjunction of name conditions that is necessary for the matcher to match.
+     */
+    static Condition getNecessaryCondition(ElementMatcher<?> matcher) {
+        try {
+            if (matcher instanceof NameMatcher && NAME_MATCHER_MATCHER != null) {
+                return getNameCondition(NAME_MATCHER_MATCHER.get(matcher));
+            } else if (matcher instanceof BooleanMatcher && BOOLEAN_MATCHER_MATCHES != null) {
+                return BOOLEAN_MATCHER_MATCHES.getBoolean(matcher) ? ALWAYS : NEVER;
+            } else if (matcher instanceof ElementMatcher.Junction.Disjunction && DISJUNCTION_MATCHERS != null) {
+                return getDisjunctionCondition((List<?>) DISJUNCTION_MATCHERS.get(matcher));
+            } else if (matcher instanceof ElementMatcher.Junction.Conjunction && CONJUNCTION_MATCHERS != null) {
+                return getConjunctionCondition((List<?>) CONJUNCTION_MATCHERS.get(matcher));
+            }
+        } catch (Exception e) {
+            logger.debug("Could not decompose pre-filter {}: {}", matcher, e.getMessage());
+        }
+        return UNKNOWN;
+    }
+
+    private static Condition getNameCondition(Object stringMatcher) throws IllegalAccessException {
+        if (!(stringMatcher instanceof StringMatcher) || STRING_MATCHER_VALUE == null || STRING_MATCHER_MODE == null) {
+            return UNKNOWN;
+        }
+        String value = (String) STRING_MATCHER_VALUE.get(stringMatcher);
+        StringMatcher.Mode mode = (StringMatcher.Mode) STRING_MATCHER_MODE.get(stringMatcher);
+        if (value.isEmpty()) {
+            return UNKNOWN;
+        }
+        switch (mode) {
+            case EQUALS_FULLY:
+            case STARTS_WITH:
+            case ENDS_WITH:
+            case CONTAINS:
+                return new Condition(Collections.singletonList(new Atom(mode, value)), true);
+            case CONTAINS_IGNORE_CASE:
+                // the index only compares ASCII characters case insensitively,
+                // while String#toLowerCase, which is used by the matcher, depends on the default locale
+                return isAscii(value) ? new Condition(Collections.singletonList(new Atom(mode, value)), false) : UNKNOWN;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 128) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Condition getDisjunctionCondition(List<?> matchers) {
+        List<Atom> atoms = new ArrayList<>();
+        boolean decidedByIndex = true;
+        boolean hasCondition = true;
+        for (int i = 0; i < matchers.size(); i++) {
+            Condition condition = getNecessaryCondition((ElementMatcher<?>) matchers.get(i));
+            if (condition == ALWAYS) {
+                return ALWAYS;
+            }
+            if (condition.atoms == null) {
+                hasCondition = false;
+            } else {
+                atoms.addAll(condition.atoms);
+            }
+            decidedByIndex &= condition.decidedByIndex;
+        }
+        return hasCondition ? new Condition(atoms, decidedByIndex) : UNKNOWN;
+    }
+
+    private static Condition getConjunctionCondition(List<?> matchers) {
+        List<Condition> conditions = new ArrayList<>();
+        for (int i = 0; i < matchers.size(); i++) {
+            Condition condition = getNecessaryCondition((ElementMatcher<?>) matchers.get(i));
+            if (condition == NEVER) {
+                return NEVER;
+            }
+            if (condition != ALWAYS) {
+                conditions.add(condition);
+            }
+        }
+        if (conditions.isEmpty()) {
+            return ALWAYS;
+        } else if (conditions.size() == 1) {
+            return conditions.get(0);
+        }
+        // any of the conjuncts is necessary, the one with the fewest alternatives is likely the most selective one
+        List<Atom> atoms = null;
+        for (int i = 0; i < conditions.size(); i++) {
+            List<Atom> conditionAtoms = conditions.get(i).atoms;
+            if (conditionAtoms != null && (atoms == null || conditionAtoms.size() < atoms.size())) {
+                atoms = conditionAtoms;
+            }
+        }
+        return new Condition(atoms, false);
+    }
+
+    @Nullable
+    private static Field getField(Class<?> type, String name) {
+        try {
+            Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            // the pre-filters are just not indexed in that case
+            logger.debug("Could not access field {} of {}: {}", name, type.getName(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static Node add(Node node, String value, boolean reverse) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(reverse ? value.length() - 1 - i : i);
+            Node child = node.children.get(c);
+            if (child == null) {
+                child = new Node();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private static List<Node> breadthFirst(Node root) {
+        List<Node> nodes = new ArrayList<>();
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            node.id = i;
+            nodes.addAll(node.children.values());
+        }
+        return nodes;
+    }
+
+    /**
+     * As the nodes are in breadth-first order, the failure link of a node's parent is always computed before the node's own.
+     * The contains conditions are propagated along the failure links, so that the automaton only has to look at the current state.
+     */
+    private static void computeFailureLinks(List<Node> nodes) {
+        Node root = nodes.get(0);
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            for (Map.Entry<Character, Node> entry : node.children.entrySet()) {
+                Node child = entry.getValue();
+                if (node == root) {
+                    child.failure = root;
+                } else {
+                    Node failure = node.failure;
+                    while (failure != root && !failure.children.containsKey(entry.getKey())) {
+                        failure = failure.failure;
+                    }
+                    Node failureChild = failure.children.get(entry.getKey());
+                    child.failure = failureChild != null ? failureChild : root;
+                }
+                child.infixMatch.or(child.failure.infixMatch);
+            }
+        }
+    }
+
+    private static void freeze(List<Node> nodes, char[][] childChars, int[][] childNodes) {
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            Character[] chars = node.children.keySet().toArray(new Character[0]);
+            Arrays.sort(chars);
+            childChars[i] = new char[chars.length];
+            childNodes[i] = new int[chars.length];
+            for (int j = 0; j < chars.length; j++) {
+                childChars[i][j] = chars[j];
+                childNodes[i][j] = node.children.get(chars[j]).id;
+            }
+        }
+    }
+
+    /**
+     * A deterministic Aho-Corasick automaton, which finds all contains conditions with a single table lookup per character.
+     */
+    private final class InfixAutomaton {
+
+        /**
+         * Maps ASCII characters to their symbol, {@code 0} being the symbol of characters no contains condition consists of
+         */
+        private final int[] asciiSymbols = new int[128];
+        private final char[] nonAsciiChars;
+        private final int[] nonAsciiSymbols;
+        private final int alphabetSize;
+        /**
+         * The next state for a given state and symbol, at index {@code state * alphabetSize + symbol}
+         */
+        private final int[] transitions;
+        /**
+         * The pre-filters of all contains conditions ending in a state, including the ones reachable via failure links
+         */
+        @Nullable
+        private final long[][] infixMatch;
+        private final boolean empty;
+
+        /**
+         * @param root           the root of the trie of all contains conditions
+         * @param ignoreAsciiCase whether upper case ASCII characters should be treated like their lower case counterparts,
+         *                       which requires the trie to only contain lower case characters
+         */
+        private InfixAutomaton(Node root, boolean ignoreAsciiCase) {
+            List<Node> nodes = breadthFirst(root);
+            computeFailureLinks(nodes);
+            TreeSet<Character> alphabet = new TreeSet<>();
+            for (int i = 0; i < nodes.size(); i++) {
+                alphabet.addAll(nodes.get(i).children.keySet());
+            }
+            alphabetSize = alphabet.size() + 1;
+            List<Character> nonAscii = new ArrayList<>();
+            int symbol = 1;
+            for (Character c : alphabet) {
+                if (c < 128) {
+                    asciiSymbols[c] = symbol;
+                    if (ignoreAsciiCase && c >= 'a' && c <= 'z') {
+                        asciiSymbols[Character.toUpperCase(c)] = symbol;
+                    }
+                } else {
+                    nonAscii.add(c);
+                }
+                symbol++;
+            }
+            nonAsciiChars = new char[nonAscii.size()];
+            nonAsciiSymbols = new int[nonAscii.size()];
+            for (int i = 0; i < nonAsciiChars.length; i++) {
+                nonAsciiChars[i] = nonAscii.get(i);
+                nonAsciiSymbols[i] = alphabet.headSet(nonAsciiChars[i]).size() + 1;
+            }
+            transitions = new int[nodes.size() * alphabetSize];
+            infixMatch = new long[nodes.size()][];
+            for (int i = 0; i < nodes.size(); i++) {
+                Node node = nodes.get(i);
+                infixMatch[i] = toWords(node.infixMatch, words);
+                symbol = 1;
+                for (Character c : alphabet) {
+                    Node child = node.children.get(c);
+                    if (child != null) {
+                        transitions[i * alphabetSize + symbol] = child.id;
+                    } else if (node.failure != null) {
+                        // as the nodes are in breadth-first order, the transitions of the shallower failure node are already known
+                        transitions[i * alphabetSize + symbol] = transitions[node.failure.id * alphabetSize + symbol];
+                    }
+                    symbol++;
+                }
+            }
+            empty = nodes.size() == 1;
+        }
+
+        /**
+         * Adds the pre-filters of all contains conditions found in the name to the candidates.
+         *
+         * @return whether the name contains non-ASCII characters
+         */
+        private boolean addMatches(String name, long[] candidates) {
+            if (empty) {
+                return false;
+            }
+            boolean nonAsciiName = false;
+            int state = 0;
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                int symbol;
+                if (c < 128) {
+                    symbol = asciiSymbols[c];
+                } else {
+                    nonAsciiName = true;
+                    int index = Arrays.binarySearch(nonAsciiChars, c);
+                    symbol = index < 0 ? 0 : nonAsciiSymbols[index];
+                }
+                state = transitions[state * alphabetSize + symbol];
+                or(candidates, infixMatch[state]);
+            }
+            return nonAsciiName;
+        }
+    }
+
+    private class IndexedPreFilter extends ElementMatcher.Junction.AbstractBase<NamedElement> {
+
+        private final int preFilter;
+
+        private IndexedPreFilter(int preFilter) {
+            this.preFilter = preFilter;
+        }
+
+        @Override
+        public boolean matches(@Nullable NamedElement target) {
+            return target != null && NamePreFilterIndex.this.matches(preFilter, target);
+        }
+
+        @Override
+        public String toString() {
+            return preFilters.get(preFilter).toString();
+        }
+    }
+
+    static class Condition {
+        /**
+         * A disjunction of name conditions which is necessary for the matcher to match,
+         * {@code null} if there is no such condition
+         */
+        @Nullable
+        final List<Atom> atoms;
+        /**
+         * Whether the matcher matches if, and only if, the disjunction matches
+         */
+        final boolean decidedByIndex;
+
+        Condition(@Nullable List<Atom> atoms, boolean decidedByIndex) {
+            this.atoms = atoms;
+            this.decidedByIndex = decidedByIndex;
+        }
+    }
+
+    private static class Atom {
+        private final StringMatcher.Mode mode;
+        private final String value;
+
+        private Atom(StringMatcher.Mode mode, String value) {
+            this.mode = mode;
+            this.value = value;
+        }
+    }
+
+    private static class Node {
+        private final Map<Character, Node> children = new HashMap<>();
+        private final BitSet exactMatch = new BitSet();
+        private final BitSet prefixMatch = new BitSet();
+        private final BitSet infixMatch = new BitSet();
+        @Nullable
+        private Node failure;
+        private int id;
+    }
+
+    private static class Candidates {
+        @Nullable
+        private String name;
+        private final long[] words;
+
+        private Candidates(int words) {
+            this.words = new long[words];
+        }
+    }
+}
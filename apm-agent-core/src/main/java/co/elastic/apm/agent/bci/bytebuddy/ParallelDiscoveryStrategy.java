@@ -0,0 +1,229 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import co.elastic.apm.agent.bci.InstrumentationStats;
+import co.elastic.apm.agent.sdk.internal.util.PrivilegedActionUtils;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.util.ExecutorUtils;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.ClassFileLocator;
+import net.bytebuddy.pool.TypePool;
+import net.bytebuddy.utility.JavaModule;
+
+import javax.annotation.Nullable;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discovers the already loaded classes that need to be retransformed when the agent is attached at runtime.
+ * <p>
+ * By default, Byte Buddy evaluates the matchers of all instrumentations against every loaded class on the attaching thread,
+ * which takes seconds in applications that have loaded tens of thousands of classes.
+ * This strategy evaluates the side effect free part of the matchers in parallel instead
+ * and only hands the classes that may match an instrumentation over to Byte Buddy.
+ * Byte Buddy then applies the actual matchers to these candidates and retransforms the matching classes
+ * in batches, according to the configured {@link AgentBuilder.RedefinitionStrategy.BatchAllocator}.
+ * </p>
+ * <p>
+ * A class is considered a candidate if it can't be described or if a matcher throws an exception,
+ * so that the actual matchers have the final say in case of doubt.
+ * </p>
+ */
+public class ParallelDiscoveryStrategy implements AgentBuilder.RedefinitionStrategy.DiscoveryStrategy {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParallelDiscoveryStrategy.class);
+
+    /**
+     * The number of slices per thread the loaded classes are split into,
+     * which evens out the cost of slices containing the classes of expensive class loaders
+     */
+    private static final int SLICES_PER_THREAD = 8;
+
+    private final List<AgentBuilder.RawMatcher> candidateMatchers = new CopyOnWriteArrayList<>();
+    private final int parallelism;
+    private final InstrumentationStats instrumentationStats;
+
+    public ParallelDiscoveryStrategy(int parallelism, InstrumentationStats instrumentationStats) {
+        this.parallelism = parallelism;
+        this.instrumentationStats = instrumentationStats;
+    }
+
+    /**
+     * Registers the matcher of an instrumentation.
+     * As the matcher is evaluated concurrently, it must be thread safe and must not have side effects.
+     *
+     * @param candidateMatcher a matcher that matches at least all types the instrumentation applies to
+     */
+    public void addCandidateMatcher(AgentBuilder.RawMatcher candidateMatcher) {
+        candidateMatchers.add(candidateMatcher);
+    }
+
+    @Override
+    public Iterable<Iterable<Class<?>>> resolve(Instrumentation instrumentation) {
+        long start = System.nanoTime();
+        Class<?>[] loadedClasses = instrumentation.getAllLoadedClasses();
+        List<Class<?>> candidates = findCandidates(instrumentation, loadedClasses);
+        long duration = System.nanoTime() - start;
+        instrumentationStats.onRetransformationCandidatesDiscovered(loadedClasses.length, candidates.size(), duration);
+        logger.debug("Found {} out of {} loaded classes to be candidates for retransformation in {}ms using {} threads",
+            candidates.size(), loadedClasses.length, TimeUnit.NANOSECONDS.toMillis(duration), parallelism);
+        return Collections.<Iterable<Class<?>>>singletonList(candidates);
+    }
+
+    private List<Class<?>> findCandidates(final Instrumentation instrumentation, final Class<?>[] loadedClasses) {
+        final TypePools typePools = new TypePools();
+        int slices = Math.min(loadedClasses.length, parallelism * SLICES_PER_THREAD);
+        if (parallelism <= 1 || slices <= 1) {
+            return findCandidates(instrumentation, loadedClasses, 0, loadedClasses.length, typePools);
+        }
+        ThreadPoolExecutor executor = ExecutorUtils.createThreadDaemonPool("retransformation-discovery", parallelism, slices);
+        try {
+            List<Future<List<Class<?>>>> results = new ArrayList<>(slices);
+            for (int i = 0; i < slices; i++) {
+                final int from = getSliceStart(loadedClasses.length, i, slices);
+                final int to = getSliceStart(loadedClasses.length, i + 1, slices);
+                results.add(executor.submit(new Callable<List<Class<?>>>() {
+                    @Override
+                    public List<Class<?>> call() {
+                        return findCandidates(instrumentation, loadedClasses, from, to, typePools);
+                    }
+                }));
+            }
+            // joining the slices in order keeps the order of the loaded classes, just like the default discovery strategy
+            List<Class<?>> candidates = new ArrayList<>();
+            for (int i = 0; i < slices; i++) {
+                try {
+                    candidates.addAll(results.get(i).get());
+                } catch (ExecutionException e) {
+                    logger.warn("Failed to discover retransformation candidates, considering all classes of the slice", e.getCause());
+                    addModifiableClasses(instrumentation, loadedClasses, getSliceStart(loadedClasses.length, i, slices),
+                        getSliceStart(loadedClasses.length, i + 1, slices), candidates);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    // falling back to the remaining loaded classes, as every class needs to be looked at
+                    addModifiableClasses(instrumentation, loadedClasses, getSliceStart(loadedClasses.length, i, slices),
+                        loadedClasses.length, candidates);
+                    break;
+                }
+            }
+            return candidates;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static int getSliceStart(int length, int slice, int slices) {
+        return (int) ((long) length * slice / slices);
+    }
+
+    private List<Class<?>> findCandidates(Instrumentation instrumentation, Class<?>[] loadedClasses, int from, int to, TypePools typePools) {
+        List<Class<?>> candidates = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            Class<?> type = loadedClasses[i];
+            if (isRetransformable(instrumentation, type) && isCandidate(type, typePools)) {
+                candidates.add(type);
+            }
+        }
+        return candidates;
+    }
+
+    private static void addModifiableClasses(Instrumentation instrumentation, Class<?>[] loadedClasses, int from, int to, List<Class<?>> candidates) {
+        for (int i = from; i < to; i++) {
+            if (isRetransformable(instrumentation, loadedClasses[i])) {
+                candidates.add(loadedClasses[i]);
+            }
+        }
+    }
+
+    private static boolean isRetransformable(Instrumentation instrumentation, @Nullable Class<?> type) {
+        return type != null && !type.isArray() && !type.isPrimitive() && instrumentation.isModifiableClass(type);
+    }
+
+    private boolean isCandidate(Class<?> type, TypePools typePools) {
+        String name = type.getName();
+        if (name.indexOf('/') != -1) {
+            // hidden classes can't be looked up by their name, leaving the decision to Byte Buddy
+            return true;
+        }
+        try {
+            ClassLoader classLoader = PrivilegedActionUtils.getClassLoader(type);
+            TypePool.Resolution resolution = typePools.get(classLoader).describe(name);
+            if (!resolution.isResolved()) {
+                return true;
+            }
+            TypeDescription typeDescription = resolution.resolve();
+            JavaModule module = JavaModule.ofType(type);
+            for (AgentBuilder.RawMatcher candidateMatcher : candidateMatchers) {
+                if (candidateMatcher.matches(typeDescription, classLoader, module, type, PrivilegedActionUtils.getProtectionDomain(type))) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (Throwable t) {
+            return true;
+        }
+    }
+
+    /**
+     * The type pools used during a single discovery, one per class loader.
+     * They are discarded after the discovery so that the parsed class files don't outlive the attachment.
+     */
+    private static class TypePools {
+
+        private final ConcurrentMap<ClassLoader, TypePool> typePools = new ConcurrentHashMap<>();
+        @Nullable
+        private volatile TypePool bootstrapTypePool;
+
+        TypePool get(@Nullable ClassLoader classLoader) {
+            if (classLoader == null) {
+                TypePool typePool = bootstrapTypePool;
+                if (typePool == null) {
+                    typePool = bootstrapTypePool = create(null);
+                }
+                return typePool;
+            }
+            TypePool typePool = typePools.get(classLoader);
+            if (typePool == null) {
+                TypePool previous = typePools.putIfAbsent(classLoader, typePool = create(classLoader));
+                if (previous != null) {
+                    typePool = previous;
+                }
+            }
+            return typePool;
+        }
+
+        private static TypePool create(@Nullable ClassLoader classLoader) {
+            // FAST as method parameter names are not needed, and lazy so that only the properties used by the matchers are read
+            return AgentBuilder.PoolStrategy.Default.FAST.typePool(ClassFileLocator.ForClassLoader.of(classLoader), classLoader);
+        }
+    }
+}
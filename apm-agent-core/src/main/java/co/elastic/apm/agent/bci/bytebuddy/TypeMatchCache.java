@@ -0,0 +1,460 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
+import co.elastic.apm.agent.sdk.weakconcurrent.WeakMap;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.DynamicType;
+import net.bytebuddy.utility.JavaModule;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Remembers the types no instrumentation has matched across JVM restarts,
+ * so that type matching can be skipped for them on the next start.
+ * <p>
+ * This is registered both as an ignore matcher, which ignores the types that did not match on a previous start,
+ * and as a listener, which records whether the types that had to be matched were transformed.
+ * A verdict is identified by a 64 bit hash of the type name, the type of its class loader and the origin of the type:
+ * the path, size and modification time of the jar file the type has been loaded from, or the JDK installation for JDK types.
+ * Types with another origin, like directories or generated classes, are never skipped.
+ * </p>
+ * <p>
+ * Whether a type matches may also depend on other types, like its super types or classes a class loader matcher looks up,
+ * which may come from other jar files. Therefore, the key also includes a fingerprint of the class path of the class loader
+ * and of its parents, so that all verdicts of a class loader are invalidated if any jar on its class path changes.
+ * Types of class loaders whose class path is unknown or contains directories are never skipped.
+ * </p>
+ * <p>
+ * The verdicts are stored in a file whose name is derived from the agent version and configuration,
+ * so that verdicts of another configuration are never applied.
+ * When saving, only the verdicts which have been used or recorded by the current JVM are written,
+ * which removes verdicts of jar files that are not in use anymore.
+ * </p>
+ */
+public class TypeMatchCache extends AgentBuilder.Listener.Adapter implements AgentBuilder.RawMatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(TypeMatchCache.class);
+
+    private static final int MAGIC = 0xE1A57C01;
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_ENTRIES = 10_000_000;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    /**
+     * Marks origins and types that can't be cached.
+     * A valid key that happens to have this value is just never cached.
+     */
+    static final long NOT_CACHEABLE = 0;
+
+    private final File file;
+    private final long configurationKey;
+    private final long jdkFingerprint;
+    /**
+     * Sorted keys of the types that no instrumentation has matched on a previous start
+     */
+    private final long[] persistedKeys;
+    /**
+     * Marks which of the {@link #persistedKeys} have been used by this JVM
+     */
+    private final AtomicIntegerArray persistedKeysUsed;
+    /**
+     * The verdicts of this JVM: {@code false} if no instrumentation has matched the type, {@code true} otherwise.
+     * A type that has been matched once is never persisted,
+     * even if other class loaders of the same type load it without matching.
+     */
+    private final ConcurrentMap<Long, Boolean> verdicts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> fingerprintByLocation = new ConcurrentHashMap<>();
+    /**
+     * The fingerprints of the own class path of each class loader, without the class paths of its parents
+     */
+    private final WeakMap<ClassLoader, ClassPathFingerprint> classPathFingerprints = WeakConcurrent.buildMap();
+    /**
+     * The type that is currently being matched on this thread,
+     * so that the listener callbacks, which don't know the protection domain, can look up its key.
+     */
+    private final ThreadLocal<PendingType> pendingType = new ThreadLocal<PendingType>() {
+        @Override
+        protected PendingType initialValue() {
+            return new PendingType();
+        }
+    };
+
+    /**
+     * @param directory                the directory to store the cache file in
+     * @param configurationDescription a description of everything, apart from the types themselves, that has an influence on
+     *                                 which types are matched, like the agent version, the instrumentations and the configuration
+     */
+    public TypeMatchCache(File directory, String configurationDescription) {
+        configurationKey = hash(FNV_OFFSET_BASIS, configurationDescription);
+        file = new File(directory, "type-match-cache-" + Long.toHexString(configurationKey) + ".bin");
+        jdkFingerprint = hash(hash(hash(FNV_OFFSET_BASIS, String.valueOf(System.getProperty("java.home"))),
+            String.valueOf(System.getProperty("java.version"))),
+            String.valueOf(System.getProperty("java.vm.version")));
+        persistedKeys = load(file, configurationKey);
+        persistedKeysUsed = new AtomicIntegerArray(persistedKeys.length);
+        logger.debug("Loaded {} types that did not match any instrumentation from {}", persistedKeys.length, file);
+    }
+
+    private static long[] load(File file, long configurationKey) {
+        if (!file.isFile()) {
+            return new long[0];
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || in.readLong() != configurationKey) {
+                logger.info("Ignoring type match cache {} as it has been written by a different agent version or configuration", file);
+                return new long[0];
+            }
+            int size = in.readInt();
+            if (size < 0 || size > MAX_ENTRIES) {
+                logger.warn("Ignoring corrupt type match cache {}", file);
+                return new long[0];
+            }
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = in.readLong();
+            }
+            Arrays.sort(keys);
+            return keys;
+        } catch (IOException e) {
+            logger.warn("Failed to read type match cache {}: {}", file, e.getMessage());
+            return new long[0];
+        }
+    }
+
+    /**
+     * Returns {@code true} if no instrumentation has matched the type on a previous start, which makes it ignored.
+     */
+    @Override
+    public boolean matches(TypeDescription typeDescription, @Nullable ClassLoader classLoader, @Nullable JavaModule module,
+                           @Nullable Class<?> classBeingRedefined, @Nullable ProtectionDomain protectionDomain) {
+        String typeName = typeDescription.getName();
+        long key = getKey(typeName, classLoader, protectionDomain);
+        if (key == NOT_CACHEABLE) {
+            return false;
+        }
+        int index = Arrays.binarySearch(persistedKeys, key);
+        if (index >= 0) {
+            persistedKeysUsed.set(index, 1);
+            return true;
+        }
+        PendingType pending = pendingType.get();
+        pending.typeName = typeName;
+        pending.key = key;
+        return false;
+    }
+
+    @Override
+    public void onIgnored(TypeDescription typeDescription, @Nullable ClassLoader classLoader, @Nullable JavaModule module, boolean loaded) {
+        Long key = getPendingKey(typeDescription);
+        if (key != null) {
+            verdicts.putIfAbsent(key, Boolean.FALSE);
+        }
+    }
+
+    @Override
+    public void onTransformation(TypeDescription typeDescription, @Nullable ClassLoader classLoader, @Nullable JavaModule module,
+                                 boolean loaded, DynamicType dynamicType) {
+        Long key = getPendingKey(typeDescription);
+        if (key != null) {
+            verdicts.put(key, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public void onError(String typeName, @Nullable ClassLoader classLoader, @Nullable JavaModule module, boolean loaded, Throwable throwable) {
+        // don't persist a verdict for types that could not be matched or transformed
+        pendingType.get().typeName = null;
+    }
+
+    @Override
+    public void onComplete(String typeName, @Nullable ClassLoader classLoader, @Nullable JavaModule module, boolean loaded) {
+        pendingType.get().typeName = null;
+    }
+
+    @Nullable
+    private Long getPendingKey(TypeDescription typeDescription) {
+        PendingType pending = pendingType.get();
+        // a nested class load while matching the pending type completes (and resets) the pending type,
+        // in this case no verdict is recorded for the outer type
+        if (typeDescription.getName().equals(pending.typeName)) {
+            return pending.key;
+        }
+        return null;
+    }
+
+    long getKey(String typeName, @Nullable ClassLoader classLoader, @Nullable ProtectionDomain protectionDomain) {
+        // hidden classes, lambdas, proxies and other generated classes are not guaranteed to have the same content on the next start
+        if (typeName.indexOf('/') >= 0 || typeName.contains("$$") || typeName.contains("$Proxy")) {
+            return NOT_CACHEABLE;
+        }
+        long originFingerprint = getOriginFingerprint(classLoader, protectionDomain);
+        if (originFingerprint == NOT_CACHEABLE) {
+            return NOT_CACHEABLE;
+        }
+        long classPathFingerprint = getClassPathFingerprint(classLoader);
+        if (classPathFingerprint == NOT_CACHEABLE) {
+            return NOT_CACHEABLE;
+        }
+        long key = hash(hash(originFingerprint, classPathFingerprint), classLoader == null ? "bootstrap" : classLoader.getClass().getName());
+        return hash(key, typeName);
+    }
+
+    private long getOriginFingerprint(@Nullable ClassLoader classLoader, @Nullable ProtectionDomain protectionDomain) {
+        if (classLoader == null) {
+            return jdkFingerprint;
+        }
+        CodeSource codeSource = protectionDomain != null ? protectionDomain.getCodeSource() : null;
+        URL location = codeSource != null ? codeSource.getLocation() : null;
+        if (location == null) {
+            return NOT_CACHEABLE;
+        }
+        String locationString = location.toString();
+        if (locationString.startsWith("jrt:")) {
+            return jdkFingerprint;
+        }
+        return getJarFingerprint(locationString);
+    }
+
+    private long getJarFingerprint(String location) {
+        Long fingerprint = fingerprintByLocation.get(location);
+        if (fingerprint == null) {
+            fingerprint = computeJarFingerprint(location);
+            fingerprintByLocation.put(location, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Computes the fingerprint of the class path of a class loader and of its parents.
+     * Only the class paths of {@link URLClassLoader}s, of the system class loader and of the JDK class loaders are known.
+     */
+    private long getClassPathFingerprint(@Nullable ClassLoader classLoader) {
+        long fingerprint = jdkFingerprint;
+        for (ClassLoader loader = classLoader; loader != null; loader = loader.getParent()) {
+            long ownFingerprint = getOwnClassPathFingerprint(loader);
+            if (ownFingerprint == NOT_CACHEABLE) {
+                return NOT_CACHEABLE;
+            }
+            fingerprint = hash(fingerprint, ownFingerprint);
+        }
+        return fingerprint;
+    }
+
+    private long getOwnClassPathFingerprint(ClassLoader classLoader) {
+        ClassPathFingerprint cached = classPathFingerprints.get(classLoader);
+        if (classLoader instanceof URLClassLoader) {
+            // URLs can be added to a URLClassLoader at any time
+            URL[] urls = ((URLClassLoader) classLoader).getURLs();
+            if (cached == null || cached.entries != urls.length) {
+                String[] locations = new String[urls.length];
+                for (int i = 0; i < urls.length; i++) {
+                    locations[i] = urls[i].toString();
+                }
+                cached = new ClassPathFingerprint(urls.length, computeClassPathFingerprint(locations));
+                classPathFingerprints.put(classLoader, cached);
+            }
+            return cached.fingerprint;
+        }
+        if (cached != null) {
+            return cached.fingerprint;
+        }
+        long fingerprint;
+        ClassLoader systemClassLoader = ClassLoader.getSystemClassLoader();
+        if (classLoader == systemClassLoader) {
+            String[] entries = String.valueOf(System.getProperty("java.class.path")).split(File.pathSeparator);
+            String[] locations = new String[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                locations[i] = new File(entries[i]).toURI().toString();
+            }
+            fingerprint = computeClassPathFingerprint(locations);
+        } else if (systemClassLoader != null && classLoader == systemClassLoader.getParent()) {
+            // the platform class loader only loads JDK modules
+            fingerprint = jdkFingerprint;
+        } else {
+            fingerprint = NOT_CACHEABLE;
+        }
+        classPathFingerprints.put(classLoader, new ClassPathFingerprint(-1, fingerprint));
+        return fingerprint;
+    }
+
+    private long computeClassPathFingerprint(String[] locations) {
+        long fingerprint = FNV_OFFSET_BASIS;
+        for (String location : locations) {
+            long jarFingerprint = getJarFingerprint(location);
+            if (jarFingerprint == NOT_CACHEABLE) {
+                return NOT_CACHEABLE;
+            }
+            fingerprint = hash(fingerprint, jarFingerprint);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Computes the fingerprint of a location like {@code file:/app/lib/lib.jar} or {@code jar:file:/app/app.jar!/BOOT-INF/lib/lib.jar!/}.
+     * Hashing the whole content of every jar would take about as long as matching its types,
+     * so the size and modification time of the outermost jar file are used instead.
+     */
+    private long computeJarFingerprint(String location) {
+        int start = location.indexOf("file:");
+        if (start < 0) {
+            return NOT_CACHEABLE;
+        }
+        int end = location.indexOf('!', start);
+        File jarFile;
+        try {
+            jarFile = new File(new URI(location.substring(start, end < 0 ? location.length() : end)));
+        } catch (Exception e) {
+            return NOT_CACHEABLE;
+        }
+        if (jarFile.isDirectory()) {
+            // exploded directories may change without a change of the directory itself
+            return NOT_CACHEABLE;
+        }
+        // a missing jar file, which may be on a class path, has a size and modification time of 0
+        long fingerprint = hash(FNV_OFFSET_BASIS, location);
+        fingerprint = hash(fingerprint, Long.toString(jarFile.length()));
+        return hash(fingerprint, Long.toString(jarFile.lastModified()));
+    }
+
+    /**
+     * Writes the verdicts that have been used or recorded by this JVM.
+     */
+    public synchronized void save() {
+        long[] keys = getKeysToSave();
+        File directory = file.getParentFile();
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                logger.warn("Failed to create the type match cache directory {}", directory);
+                return;
+            }
+            // writing to a temporary file and moving it makes sure other JVMs never read a partially written file
+            File tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeLong(configurationKey);
+                    out.writeInt(keys.length);
+                    for (long key : keys) {
+                        out.writeLong(key);
+                    }
+                }
+                try {
+                    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tempFile.toPath());
+            }
+            logger.debug("Saved {} types that did not match any instrumentation to {}", keys.length, file);
+        } catch (IOException e) {
+            logger.warn("Failed to write type match cache {}: {}", file, e.getMessage());
+        }
+    }
+
+    long[] getKeysToSave() {
+        long[] keys = new long[persistedKeys.length + verdicts.size()];
+        int size = 0;
+        for (int i = 0; i < persistedKeys.length; i++) {
+            if (persistedKeysUsed.get(i) == 1) {
+                keys[size++] = persistedKeys[i];
+            }
+        }
+        for (Map.Entry<Long, Boolean> verdict : verdicts.entrySet()) {
+            if (!verdict.getValue() && size < keys.length) {
+                keys[size++] = verdict.getKey();
+            }
+        }
+        keys = Arrays.copyOf(keys, size);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * 64 bit FNV-1a hash, as 32 bit hashes like {@link String#hashCode()} collide too often for the number of types of large applications.
+     */
+    private static long hash(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        // separator, so that ("ab", "c") and ("a", "bc") result in different hashes
+        hash ^= 0xFFFF;
+        hash *= FNV_PRIME;
+        return hash;
+    }
+
+    private static long hash(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static class ClassPathFingerprint {
+        /**
+         * The number of URLs of a {@link URLClassLoader}, {@code -1} for other class loaders
+         */
+        private final int entries;
+        private final long fingerprint;
+
+        private ClassPathFingerprint(int entries, long fingerprint) {
+            this.entries = entries;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private static class PendingType {
+        @Nullable
+        private String typeName;
+        private long key;
+    }
+}
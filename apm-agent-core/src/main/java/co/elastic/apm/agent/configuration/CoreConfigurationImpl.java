@@ -20,6 +20,7 @@ package co.elastic.apm.agent.configuration;
 
 import co.elastic.apm.agent.bci.ElasticApmAgent;
 import co.elastic.apm.agent.common.util.WildcardMatcher;
+import co.elastic.apm.agent.common.util.WildcardMatcherSet;
 import co.elastic.apm.agent.impl.transaction.SpanImpl;
 import co.elastic.apm.agent.matcher.MethodMatcher;
 import co.elastic.apm.agent.matcher.MethodMatcherValueConverter;
@@ -31,6 +32,7 @@ import co.elastic.apm.agent.tracer.configuration.RegexValidator;
 import co.elastic.apm.agent.tracer.configuration.RoundedDoubleConverter;
 import co.elastic.apm.agent.tracer.configuration.TimeDuration;
 import co.elastic.apm.agent.tracer.configuration.TimeDurationValueConverter;
+import co.elastic.apm.agent.tracer.configuration.WildcardMatcherSetValueConverter;
 import co.elastic.apm.agent.tracer.configuration.WildcardMatcherValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
@@ -59,6 +61,7 @@ import java.util.concurrent.TimeUnit;
 
 import static co.elastic.apm.agent.logging.LoggingConfigurationImpl.AGENT_HOME_PLACEHOLDER;
 import static co.elastic.apm.agent.tracer.configuration.RangeValidator.isInRange;
+import static co.elastic.apm.agent.tracer.configuration.RangeValidator.min;
 
 public class CoreConfigurationImpl extends ConfigurationOptionProvider implements CoreConfiguration {
 
@@ -240,6 +243,20 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
         .addValidator(isInRange(0d, 1d))
         .buildWithDefault(1.0);
 
+    private final ConfigurationOption<Double> sampleTarget = ConfigurationOption.doubleOption()
+        .key("transaction_sample_target")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance")
+        .description("The number of sampled traces per second the agent aims for. " +
+            "When set to a value greater than 0, the agent continuously adapts the effective sample rate to the observed throughput of root transactions, " +
+            "so that a traffic spike does not result in a proportional spike of sampled data and quiet periods are sampled in full.\n\n" +
+            "The effective sample rate never exceeds <<config-transaction-sample-rate,`transaction_sample_rate`>> and is propagated in the `tracestate` header, " +
+            "so that downstream services and the APM Server can extrapolate metrics.\n\n" +
+            "The default of `0` disables rate limiting, in which case only <<config-transaction-sample-rate,`transaction_sample_rate`>> applies.")
+        .dynamic(true)
+        .addValidator(min(0d))
+        .buildWithDefault(0d);
+
     private final ConfigurationOption<Integer> transactionMaxSpans = ConfigurationOption.integerOption()
         .key("transaction_max_spans")
         .configurationCategory(CORE_CATEGORY)
@@ -269,7 +286,7 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
         .buildWithDefault(DEFAULT_LONG_FIELD_MAX_LENGTH);
 
     private final ConfigurationOption<List<WildcardMatcher>> sanitizeFieldNames = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("sanitize_field_names")
         .configurationCategory(CORE_CATEGORY)
         .description("Sometimes it is necessary to sanitize the data sent to Elastic APM,\n" +
@@ -297,7 +314,7 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
         )
         .dynamic(true)
         .tags("security")
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcherSet.of(Arrays.asList(
             WildcardMatcher.valueOf("password"),
             WildcardMatcher.valueOf("passwd"),
             WildcardMatcher.valueOf("pwd"),
@@ -311,7 +328,7 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
             WildcardMatcher.valueOf("*principal*"),
             // HTTP response header which can contain session ids
             WildcardMatcher.valueOf("set-cookie")
-        ));
+        )));
 
     private final ConfigurationOption<Collection<String>> enabledInstrumentations = ConfigurationOption.stringsOption()
         .key("enable_instrumentations")
@@ -370,7 +387,7 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
         .buildWithDefault(false);
 
     private final ConfigurationOption<List<WildcardMatcher>> unnestExceptions = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("unnest_exceptions")
         .configurationCategory(CORE_CATEGORY)
         .description("When reporting exceptions,\n" +
@@ -380,10 +397,10 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
             "\n" +
             WildcardMatcher.DOCUMENTATION)
         .dynamic(true)
-        .buildWithDefault(Collections.singletonList(WildcardMatcher.valueOf("(?-i)*Nested*Exception")));
+        .buildWithDefault(WildcardMatcherSet.of(Collections.singletonList(WildcardMatcher.valueOf("(?-i)*Nested*Exception"))));
 
     private final ConfigurationOption<List<WildcardMatcher>> ignoreExceptions = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("ignore_exceptions")
         .tags("added[1.11.0]")
         .configurationCategory(CORE_CATEGORY)
@@ -401,7 +418,7 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
             "NOTE: Exception inheritance is not supported, thus you have to explicitly list all the thrown exception types"
         )
         .dynamic(true)
-        .buildWithDefault(Collections.<WildcardMatcher>emptyList());
+        .buildWithDefault(WildcardMatcherSet.of(Collections.<WildcardMatcher>emptyList()));
 
     private final ConfigurationOption<Boolean> captureExceptionDetails = ConfigurationOption.<Boolean>booleanOption()
         .key("capture_exception_details")
@@ -514,6 +531,36 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
             "is available somewhere in the classpath where it never gets loaded unless this matching is applied.")
         .buildWithDefault(true);
 
+    private final ConfigurationOption<Integer> retransformationDiscoveryThreads = ConfigurationOption.integerOption()
+        .key("retransformation_discovery_threads")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("internal")
+        .description("The number of threads used to find the already loaded classes that need to be retransformed " +
+            "when the agent is attached at runtime.\n" +
+            "When set to 0, half of the available processors are used. When set to 1, the classes are matched on the attaching thread.")
+        .dynamic(false)
+        .addValidator(min(0))
+        .buildWithDefault(0);
+
+    private final ConfigurationOption<String> typeMatchCacheDir = ConfigurationOption.stringOption()
+        .key("type_match_cache_dir")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("experimental")
+        .description("When set, the agent remembers the classes no instrumentation has matched in a file within this directory " +
+            "and skips matching these classes on the next start.\n" +
+            "This speeds up the startup of applications which load many classes.\n" +
+            "\n" +
+            "The classes are identified by their name, the type of their class loader, the jar file they are loaded from " +
+            "and the jar files on the class path of their class loader and its parents, using the path, size and modification time of each jar file. " +
+            "An update of any jar file on the class path invalidates all classes of the class loader. " +
+            "Classes which are not loaded from a jar file or the JDK, like generated classes, " +
+            "and classes of class loaders whose class path is unknown or contains directories are always matched.\n" +
+            "The verdicts are only reused with the same agent version and the same configuration, " +
+            "a change to any configuration option, like `disable_instrumentations` or `trace_methods`, starts with an empty cache.\n" +
+            "The file is written when the JVM shuts down.")
+        .dynamic(false)
+        .buildWithDefault("");
+
     private final ConfigurationOption<Boolean> contextPropagationOnly = ConfigurationOption.booleanOption()
         .key("context_propagation_only")
         .configurationCategory(CORE_CATEGORY)
@@ -698,6 +745,30 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
             "the higher of both thresholds will determine which spans will be discarded.")
         .buildWithDefault(TimeDuration.of("0ms"));
 
+    private final ConfigurationOption<TimeDuration> clockResolution = TimeDurationValueConverter.durationOption("ms")
+        .key("clock_resolution")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance")
+        .description("The resolution of the clock the agent uses to timestamp transactions and spans.\n" +
+            "\n" +
+            "By default, the agent reads the system clock whenever a transaction or span starts or ends.\n" +
+            "When set to a value greater than `0ms`, a background thread updates a cached clock value once per resolution tick instead,\n" +
+            "which makes starting and ending spans cheaper for applications creating a very high number of short spans.\n" +
+            "\n" +
+            "The trade-off is accuracy: timestamps and durations are only accurate to the configured resolution,\n" +
+            "and spans which are shorter than the resolution may be reported with a duration of `0`.\n" +
+            "Durations are still derived from a monotonic clock, so they are not affected by adjustments of the wall clock.\n" +
+            "The resolution has to be at least `1ms`, as the background thread would otherwise keep a CPU core busy.")
+        .addValidator(new ConfigurationOption.Validator<TimeDuration>() {
+            @Override
+            public void assertValid(TimeDuration value) {
+                if (value.getMicros() < 0 || (value.getMicros() > 0 && value.getMillis() < 1)) {
+                    throw new IllegalArgumentException("clock_resolution must be either 0ms (disabled) or at least 1ms, but was " + value);
+                }
+            }
+        })
+        .buildWithDefault(TimeDuration.of("0ms"));
+
     private final ConfigurationOption<Boolean> centralConfig = ConfigurationOption.booleanOption()
         .key("central_config")
         .tags("added[1.8.0]")
@@ -828,7 +899,7 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
         .buildWithDefault(false);
 
     private final ConfigurationOption<List<WildcardMatcher>> transactionNameGroups = ConfigurationOption
-        .builder(new org.stagemonitor.configuration.converter.ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("transaction_name_groups")
         .tags("added[1.33.0]")
         .configurationCategory(CORE_CATEGORY)
@@ -841,7 +912,7 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
             "\n" +
             WildcardMatcher.DOCUMENTATION)
         .dynamic(true)
-        .buildWithDefault(Collections.<WildcardMatcher>emptyList());
+        .buildWithDefault(WildcardMatcherSet.of(Collections.<WildcardMatcher>emptyList()));
 
     private final ConfigurationOption<TraceContinuationStrategy> traceContinuationStrategy = ConfigurationOption.enumOption(TraceContinuationStrategy.class)
         .key("trace_continuation_strategy")
@@ -944,6 +1015,14 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
         return sampleRate;
     }
 
+    public ConfigurationOption<Double> getSampleTarget() {
+        return sampleTarget;
+    }
+
+    public TimeDuration getClockResolution() {
+        return clockResolution.get();
+    }
+
     public int getTransactionMaxSpans() {
         return transactionMaxSpans.get();
     }
@@ -1042,6 +1121,18 @@ public class CoreConfigurationImpl extends ConfigurationOptionProvider implement
         return typeMatchingWithNamePreFilter.get();
     }
 
+    public String getTypeMatchCacheDir() {
+        return typeMatchCacheDir.get();
+    }
+
+    public int getRetransformationDiscoveryThreads() {
+        int threads = retransformationDiscoveryThreads.get();
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors() / 2;
+        }
+        return Math.max(1, threads);
+    }
+
     public boolean isClassLoadingMatchingPreFilter() {
         return classLoadingMatchingPreFilter.get();
     }
@@ -30,6 +30,8 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 
+import static co.elastic.apm.agent.tracer.configuration.RangeValidator.min;
+
 public class MetricsConfigurationImpl extends ConfigurationOptionProvider implements MetricsConfiguration {
 
     private static final String METRICS_CATEGORY = "Metrics";
@@ -105,6 +107,37 @@ public class MetricsConfigurationImpl extends ConfigurationOptionProvider implem
         .dynamic(false)
         .buildWithDefault(false);
 
+    private final ConfigurationOption<Integer> instrumentationOverheadSampleInterval = ConfigurationOption.integerOption()
+        .key("instrumentation_overhead_sample_interval")
+        .configurationCategory(METRICS_CATEGORY)
+        .description("When set to a value greater than 0, the agent measures the time spent in every n-th invocation of each advice, " +
+            "the code the agent adds to instrumented methods, and reports it in the `agent.instrumentation.overhead` metrics " +
+            "broken down by instrumentation group.\n" +
+            "This helps to find out which instrumentation groups are the most expensive ones, " +
+            "so that they can be turned off with `disable_instrumentations`.\n" +
+            "\n" +
+            "Higher values reduce the overhead of the measurement but make the metrics less accurate for rarely invoked advices. " +
+            "0 turns off the measurement.")
+        .tags("experimental")
+        .dynamic(false)
+        .addValidator(min(0))
+        .buildWithDefault(0);
+
+    private final ConfigurationOption<Boolean> durationHistogramMetricsEnabled = ConfigurationOption.booleanOption()
+        .key("duration_histogram_metrics")
+        .configurationCategory(METRICS_CATEGORY)
+        .description("Enables histograms of transaction and span durations, which are aggregated by the agent.\n" +
+            "\n" +
+            "The `transaction.duration.histogram` metric is broken down by transaction name and type " +
+            "and the `span.duration.histogram` metric additionally by span type and subtype. " +
+            "The durations of all transactions and spans are recorded, regardless of whether they are sampled, " +
+            "so that latency percentiles stay accurate with a low `transaction_sample_rate`.\n" +
+            "The durations are counted in buckets with a relative error of at most 12.5%, " +
+            "and the number of histograms is limited by `metric_set_limit`.")
+        .tags("experimental")
+        .dynamic(false)
+        .buildWithDefault(false);
+
     @Override
     public boolean isDedotCustomMetrics() {
         return dedotCustomMetrics.get();
@@ -114,10 +147,18 @@ public class MetricsConfigurationImpl extends ConfigurationOptionProvider implem
         return metricSetLimit.get();
     }
 
+    public boolean isDurationHistogramMetricsEnabled() {
+        return durationHistogramMetricsEnabled.get();
+    }
+
     public boolean isReporterHealthMetricsEnabled() {
         return reporterHealthMetricsEnabled.get();
     }
 
+    public int getInstrumentationOverheadSampleInterval() {
+        return instrumentationOverheadSampleInterval.get();
+    }
+
     public boolean isOverheadMetricsEnabled() {
         return overheadMetricsEnabled.get();
     }
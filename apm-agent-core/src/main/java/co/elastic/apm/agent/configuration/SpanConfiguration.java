@@ -67,6 +67,20 @@ public class SpanConfiguration extends ConfigurationOptionProvider {
         .dynamic(true)
         .buildWithDefault(TimeDuration.ofFine("0ms"));
 
+    private final ConfigurationOption<Boolean> exitSpanAggregationEnabled = ConfigurationOption.booleanOption()
+        .key("exit_span_aggregation_enabled")
+        .configurationCategory(HUGE_TRACES_CATEGORY)
+        .tags("experimental")
+        .description("Setting this option to true records the durations of exit spans that are discarded because they are faster than " +
+            "`exit_span_min_duration` in latency histograms, instead of only dropping them.\n" +
+            "\n" +
+            "The histograms are aggregated across all transactions per service target and outcome " +
+            "and are reported as the `span.destination.service.response_time.histogram` metric every `metrics_interval`. " +
+            "This keeps the latency distribution of calls to databases, caches and other services visible " +
+            "while these spans are neither reported nor stored individually.")
+        .dynamic(true)
+        .buildWithDefault(false);
+
     public boolean isSpanCompressionEnabled() {
         return spanCompressionEnabled.get();
     }
@@ -82,4 +96,8 @@ public class SpanConfiguration extends ConfigurationOptionProvider {
     public TimeDuration getExitSpanMinDuration() {
         return exitSpanMinDuration.get();
     }
+
+    public boolean isExitSpanAggregationEnabled() {
+        return exitSpanAggregationEnabled.get();
+    }
 }
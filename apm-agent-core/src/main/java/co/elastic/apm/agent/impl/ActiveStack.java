@@ -33,7 +33,7 @@ import java.util.concurrent.Callable;
 
 /**
  * Manages a thread's tracing-context activation state.
- * Instances of this class should be used as thread-locals.
+ * Instances of this class should be used as thread-locals, see {@link ContextStorage}.
  * Accordingly, it is implemented without taking any thread-safety considerations into account.
  */
 class ActiveStack {
@@ -64,19 +64,40 @@ class ActiveStack {
         this.emptyContext = emptyContextForTracer;
     }
 
+    /**
+     * Creates a stack which already has a context activated.
+     * The context's references and activation listeners are expected to have been handled when it has been activated.
+     *
+     * @param activeContext the currently active context, which becomes the bottom of the stack
+     */
+    ActiveStack(int stackMaxDepth, EmptyTraceState emptyContextForTracer, TraceStateImpl<?> activeContext) {
+        this(stackMaxDepth, emptyContextForTracer);
+        activeContextStack.push(activeContext);
+    }
+
+    /**
+     * @return {@code true} if no context is active, including contexts which could not be activated due to an overflow
+     */
+    boolean isEmpty() {
+        return activeContextStack.isEmpty() && overflowCounter == 0;
+    }
+
     /**
      * @return the current context, potentially empty when no span, transaction or baggage is currently active.
      */
 
     public TraceStateImpl<?> currentContext() {
         TraceStateImpl<?> current = activeContextStack.peek();
+        return current != null ? unwrap(current) : emptyContext;
+    }
 
+    static TraceStateImpl<?> unwrap(TraceStateImpl<?> current) {
         // When the active context is wrapped, the wrapper should be transparent to the caller, thus we always return
         // the underlying wrapped context.
         if (current instanceof TraceStateWrapper) {
             return ((TraceStateWrapper<?>) current).getWrappedContext();
         }
-        return current != null ? current : emptyContext;
+        return current;
     }
 
     boolean activate(TraceStateImpl<?> context, List<ActivationListener> activationListeners) {
@@ -131,7 +152,7 @@ class ActiveStack {
         return true;
     }
 
-    private void triggerActivationListeners(AbstractSpanImpl<?> span, boolean isActivate, List<ActivationListener> activationListeners) {
+    static void triggerActivationListeners(AbstractSpanImpl<?> span, boolean isActivate, List<ActivationListener> activationListeners) {
         for (int i = 0, size = activationListeners.size(); i < size; i++) {
             ActivationListener listener = activationListeners.get(i);
             try {
@@ -149,7 +170,7 @@ class ActiveStack {
         }
     }
 
-    private void assertIsActive(TraceStateImpl<?> context, @Nullable TraceStateImpl<?> currentlyActive, boolean assertionsEnabled) {
+    static void assertIsActive(TraceStateImpl<?> context, @Nullable TraceStateImpl<?> currentlyActive, boolean assertionsEnabled) {
         if (context != currentlyActive) {
             logger.warn("Deactivating a context ({}) which is not the currently active one ({}). " +
                 "This can happen when not properly deactivating a previous span or context.", context, currentlyActive);
@@ -172,15 +193,7 @@ class ActiveStack {
     <T extends TraceStateImpl<T>> T wrapActiveContextIfRequired(Class<T> wrapperClass, Callable<T> wrapFunction, int approximateContextSize) {
 
         // the current context might be either a "regular" one or a "wrapped" one if it has already been wrapped
-        TraceStateImpl<?> current = activeContextStack.peek();
-
-        Objects.requireNonNull(current, "active context required for wrapping");
-        TraceStateWrapper<?> wrapper;
-        if (current instanceof TraceStateWrapper) {
-            wrapper = (TraceStateWrapper<?>) current;
-        } else {
-            wrapper = new TraceStateWrapper<>(approximateContextSize, current);
-        }
+        TraceStateWrapper<?> wrapper = getOrCreateWrapper(activeContextStack.peek(), approximateContextSize);
         T wrapped = wrapper.wrapIfRequired(wrapperClass, wrapFunction);
 
         // replace the currently active on the stack, however currentContext() will make sure to return the original
@@ -190,4 +203,12 @@ class ActiveStack {
 
         return wrapped;
     }
+
+    static TraceStateWrapper<?> getOrCreateWrapper(@Nullable TraceStateImpl<?> current, int approximateContextSize) {
+        Objects.requireNonNull(current, "active context required for wrapping");
+        if (current instanceof TraceStateWrapper) {
+            return (TraceStateWrapper<?>) current;
+        }
+        return new TraceStateWrapper<>(approximateContextSize, current);
+    }
 }
@@ -0,0 +1,143 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.impl.transaction.AbstractSpanImpl;
+import co.elastic.apm.agent.impl.transaction.TraceStateImpl;
+import co.elastic.apm.agent.impl.transaction.TraceStateWrapper;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Stores the activation state of threads which are expected to be short-lived and numerous, like virtual threads.
+ * <p>
+ * Instead of keeping an {@link ActiveStack} per thread, the thread-local slot holds either
+ * </p>
+ * <ul>
+ *     <li>{@code null}, when no context is active,</li>
+ *     <li>the active {@link TraceStateImpl} itself, when exactly one context is active, or</li>
+ *     <li>an {@link ActiveStack}, when contexts are nested.</li>
+ * </ul>
+ * <p>
+ * That makes activating a single context, which is the most common case, allocation-free.
+ * Only nested activations allocate a stack, which is dropped again as soon as the outermost context is deactivated,
+ * so that threads don't retain any activation state while nothing is active.
+ * </p>
+ */
+class CompactContextStorage implements ContextStorage {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompactContextStorage.class);
+
+    private final ThreadLocal<Object> activeContext = new ThreadLocal<Object>();
+    private final int stackMaxDepth;
+    private final EmptyTraceState emptyContext;
+
+    CompactContextStorage(int stackMaxDepth, EmptyTraceState emptyContext) {
+        this.stackMaxDepth = stackMaxDepth;
+        this.emptyContext = emptyContext;
+    }
+
+    @Override
+    public TraceStateImpl<?> currentContext() {
+        Object active = activeContext.get();
+        if (active == null) {
+            return emptyContext;
+        } else if (active instanceof ActiveStack) {
+            return ((ActiveStack) active).currentContext();
+        } else {
+            return ActiveStack.unwrap((TraceStateImpl<?>) active);
+        }
+    }
+
+    @Override
+    public boolean activate(TraceStateImpl<?> context, List<ActivationListener> activationListeners) {
+        Object active = activeContext.get();
+        if (active instanceof ActiveStack) {
+            return ((ActiveStack) active).activate(context, activationListeners);
+        } else if (active != null) {
+            // nested activation, from now on the stack keeps track of the previously active context
+            ActiveStack stack = new ActiveStack(stackMaxDepth, emptyContext, (TraceStateImpl<?>) active);
+            activeContext.set(stack);
+            return stack.activate(context, activationListeners);
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Activating {} on thread {}", context, Thread.currentThread().getId());
+        }
+        context.incrementReferences();
+        AbstractSpanImpl<?> span = context.getSpan();
+        if (span != null) {
+            ActiveStack.triggerActivationListeners(span, true, activationListeners);
+        }
+        activeContext.set(context);
+        return true;
+    }
+
+    @Override
+    public boolean deactivate(TraceStateImpl<?> context, List<ActivationListener> activationListeners, boolean assertionsEnabled) {
+        Object active = activeContext.get();
+        if (active instanceof ActiveStack) {
+            ActiveStack stack = (ActiveStack) active;
+            try {
+                return stack.deactivate(context, activationListeners, assertionsEnabled);
+            } finally {
+                if (stack.isEmpty()) {
+                    activeContext.set(null);
+                }
+            }
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Deactivating {} on thread {}", context, Thread.currentThread().getId());
+        }
+        if (active == null) {
+            ActiveStack.assertIsActive(context, null, assertionsEnabled);
+            return false;
+        }
+
+        activeContext.set(null);
+        try {
+            ActiveStack.assertIsActive(context, ActiveStack.unwrap((TraceStateImpl<?>) active), assertionsEnabled);
+
+            AbstractSpanImpl<?> span = context.getSpan();
+            if (null != span) {
+                ActiveStack.triggerActivationListeners(span, false, activationListeners);
+            }
+        } finally {
+            context.decrementReferences();
+        }
+        return true;
+    }
+
+    @Override
+    public <T extends TraceStateImpl<T>> T wrapActiveContextIfRequired(Class<T> wrapperClass, Callable<T> wrapFunction, int approximateContextSize) {
+        Object active = activeContext.get();
+        if (active instanceof ActiveStack) {
+            return ((ActiveStack) active).wrapActiveContextIfRequired(wrapperClass, wrapFunction, approximateContextSize);
+        }
+
+        TraceStateWrapper<?> wrapper = ActiveStack.getOrCreateWrapper((TraceStateImpl<?>) active, approximateContextSize);
+        T wrapped = wrapper.wrapIfRequired(wrapperClass, wrapFunction);
+        activeContext.set(wrapper);
+        return wrapped;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.impl.transaction.TraceStateImpl;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Stores the tracing-context activation state of the current thread.
+ * <p>
+ * All methods act on the state of the calling thread.
+ * See {@link ActiveStack} for the semantics of activating, deactivating and wrapping contexts.
+ * </p>
+ */
+interface ContextStorage {
+
+    /**
+     * @return the current context, potentially empty when no span, transaction or baggage is currently active.
+     */
+    TraceStateImpl<?> currentContext();
+
+    boolean activate(TraceStateImpl<?> context, List<ActivationListener> activationListeners);
+
+    boolean deactivate(TraceStateImpl<?> context, List<ActivationListener> activationListeners, boolean assertionsEnabled);
+
+    <T extends TraceStateImpl<T>> T wrapActiveContextIfRequired(Class<T> wrapperClass, Callable<T> wrapFunction, int approximateContextSize);
+}
@@ -35,6 +35,7 @@ import co.elastic.apm.agent.impl.metadata.MetaDataFuture;
 import co.elastic.apm.agent.impl.metadata.NameAndIdField;
 import co.elastic.apm.agent.impl.metadata.ServiceFactory;
 import co.elastic.apm.agent.impl.transaction.*;
+import co.elastic.apm.agent.sdk.internal.ThreadUtil;
 import co.elastic.apm.agent.sdk.internal.util.LoggerUtils;
 import co.elastic.apm.agent.tracer.Tracer;
 import co.elastic.apm.agent.tracer.metrics.DoubleSupplier;
@@ -42,19 +43,19 @@ import co.elastic.apm.agent.tracer.metrics.Labels;
 import co.elastic.apm.agent.tracer.pooling.Allocator;
 import co.elastic.apm.agent.tracer.service.Service;
 import co.elastic.apm.agent.tracer.service.ServiceInfo;
-import co.elastic.apm.agent.configuration.SpanConfiguration;
 import co.elastic.apm.agent.context.ClosableLifecycleListenerAdapter;
 import co.elastic.apm.agent.tracer.LifecycleListener;
 import co.elastic.apm.agent.impl.baggage.BaggageImpl;
 import co.elastic.apm.agent.impl.baggage.W3CBaggagePropagation;
 import co.elastic.apm.agent.impl.error.ErrorCaptureImpl;
-import co.elastic.apm.agent.impl.sampling.ProbabilitySampler;
+import co.elastic.apm.agent.impl.sampling.RateLimitingSampler;
 import co.elastic.apm.agent.impl.sampling.Sampler;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfigurationImpl;
 import co.elastic.apm.agent.logging.LoggingConfigurationImpl;
 import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.objectpool.ObservableObjectPool;
 import co.elastic.apm.agent.objectpool.ObjectPoolFactoryImpl;
+import co.elastic.apm.agent.objectpool.ObjectPoolSizer;
 import co.elastic.apm.agent.report.ApmServerClient;
 import co.elastic.apm.agent.report.Reporter;
 import co.elastic.apm.agent.report.ReporterConfigurationImpl;
@@ -129,29 +130,39 @@ public class ElasticApmTracer implements Tracer {
     private final ObservableObjectPool<IdImpl> profilingCorrelationStackTraceIdPool;
     private final Reporter reporter;
     private final ObjectPoolFactoryImpl objectPoolFactory;
+    private final ObjectPoolSizer objectPoolSizer;
 
     private final EmptyTraceState emptyContext;
 
-    private final ThreadLocal<ActiveStack> activeStack = new ThreadLocal<ActiveStack>() {
-        @Override
-        protected ActiveStack initialValue() {
-            //We allow transactionMaxSpan activation plus a constant minimum of 16 to account for
-            // * the activation of the transaction itself
-            // * account for baggage updates, which also count towards the depth
-            return new ActiveStack(ACTIVATION_STACK_BASE_SIZE + transactionMaxSpans, emptyContext);
-        }
-    };
+    /**
+     * Stores the activation state of platform threads.
+     */
+    private final ContextStorage platformThreadContextStorage;
+
+    /**
+     * Stores the activation state of virtual threads, of which there can be millions at the same time.
+     */
+    private final ContextStorage virtualThreadContextStorage;
 
     private final CoreConfigurationImpl coreConfiguration;
     private final int transactionMaxSpans;
-    private final SpanConfiguration spanConfiguration;
     private final List<ActivationListener> activationListeners;
     private final MetricRegistry metricRegistry;
 
     private final UniversalProfilingIntegration profilingIntegration;
     private final ScheduledThreadPoolExecutor sharedPool;
+    @Nullable
+    private final CoarseNanoClock coarseNanoClock;
     private final int approximateContextSize;
     private Sampler sampler;
+    /**
+     * Scales down the configured sample rate, see {@link #setSampleRateFactor(double)}
+     */
+    private volatile double sampleRateFactor = 1;
+    /**
+     * A lower bound for {@code span_min_duration}, see {@link #setSpanMinDurationFloorUs(long)}
+     */
+    private volatile long spanMinDurationFloorUs = 0;
     boolean assertionsEnabled = false;
 
     /**
@@ -226,8 +237,15 @@ public class ElasticApmTracer implements Tracer {
         this.metaDataFuture = metaDataFuture;
         int maxPooledElements = configurationRegistry.getConfig(ReporterConfigurationImpl.class).getMaxQueueSize() * 2;
         coreConfiguration = configurationRegistry.getConfig(CoreConfigurationImpl.class);
+        long clockResolutionMicros = coreConfiguration.getClockResolution().getMicros();
+        coarseNanoClock = clockResolutionMicros > 0 ? new CoarseNanoClock(clockResolutionMicros, TimeUnit.MICROSECONDS) : null;
         transactionMaxSpans = coreConfiguration.getTransactionMaxSpans();
-        spanConfiguration = configurationRegistry.getConfig(SpanConfiguration.class);
+        //We allow transactionMaxSpan activation plus a constant minimum of 16 to account for
+        // * the activation of the transaction itself
+        // * account for baggage updates, which also count towards the depth
+        int activationStackMaxDepth = ACTIVATION_STACK_BASE_SIZE + transactionMaxSpans;
+        platformThreadContextStorage = new ThreadLocalContextStorage(activationStackMaxDepth, emptyContext);
+        virtualThreadContextStorage = new CompactContextStorage(activationStackMaxDepth, emptyContext);
 
         TracerConfiguration tracerConfiguration = configurationRegistry.getConfig(TracerConfiguration.class);
         recordingConfigOptionSet = tracerConfiguration.getRecordingConfig().get();
@@ -255,16 +273,25 @@ public class ElasticApmTracer implements Tracer {
             }
         });
 
-        sampler = ProbabilitySampler.of(coreConfiguration.getSampleRate().get());
-        coreConfiguration.getSampleRate().addChangeListener(new ConfigurationOption.ChangeListener<Double>() {
+        objectPoolSizer = new ObjectPoolSizer();
+        objectPoolSizer.register("transaction", transactionPool);
+        objectPoolSizer.register("span", spanPool);
+        objectPoolSizer.register("error", errorPool);
+        objectPoolSizer.register("span_link", spanLinkPool);
+
+        sampler = createSampler();
+        ConfigurationOption.ChangeListener<Double> samplerChangeListener = new ConfigurationOption.ChangeListener<Double>() {
             @Override
             public void onChange(ConfigurationOption<?> configurationOption, Double oldValue, Double newValue) {
-                sampler = ProbabilitySampler.of(newValue);
+                sampler = createSampler();
             }
-        });
+        };
+        coreConfiguration.getSampleRate().addChangeListener(samplerChangeListener);
+        coreConfiguration.getSampleTarget().addChangeListener(samplerChangeListener);
         this.activationListeners = DependencyInjectingServiceLoader.load(ActivationListener.class, this);
         sharedPool = ExecutorUtils.createSingleThreadSchedulingDaemonPool("shared");
         IndyBootstrap.setFallbackLogExecutor(sharedPool);
+        sharedPool.scheduleWithFixedDelay(objectPoolSizer, ObjectPoolSizer.TICK_INTERVAL_SECONDS, ObjectPoolSizer.TICK_INTERVAL_SECONDS, TimeUnit.SECONDS);
 
         // The estimated number of wrappers is linear to the number of the number of external/OTel plugins
         // - for an internal agent context, there will be at most one wrapper per external/OTel plugin.
@@ -573,6 +600,7 @@ public class ElasticApmTracer implements Tracer {
             }
         }
 
+        span.updateDurationHistogram();
         if (!span.isSampled()) {
             TransactionImpl transaction = span.getTransaction();
             if (transaction != null) {
@@ -582,12 +610,15 @@ public class ElasticApmTracer implements Tracer {
             return;
         }
         if (span.isExit()) {
-            if (span.getDuration() < spanConfiguration.getExitSpanMinDuration().getMicros()) {
+            if (span.getDuration() < span.getConfigurationSnapshot().getExitSpanMinDurationUs()) {
                 logger.debug("Span faster than exit_span_min_duration. Request discarding {}", span);
                 span.requestDiscarding();
+                if (span.isDiscarded() && span.getConfigurationSnapshot().isExitSpanAggregationEnabled()) {
+                    span.aggregateDestinationDuration();
+                }
             }
         } else if (!span.isComposite()) {
-            if (span.getDuration() < coreConfiguration.getSpanMinDuration().getMicros()) {
+            if (span.getDuration() < span.getConfigurationSnapshot().getSpanMinDurationUs()) {
                 logger.debug("Span faster than span_min_duration. Request discarding {}", span);
                 span.requestDiscarding();
             }
@@ -665,6 +696,9 @@ public class ElasticApmTracer implements Tracer {
             }
         }
         ExecutorUtils.shutdownAndWaitTermination(sharedPool);
+        if (coarseNanoClock != null) {
+            coarseNanoClock.stop();
+        }
         tracerState = TracerState.STOPPED;
         logger.info("Tracer switched to STOPPED state");
         if (logger.isDebugEnabled()) {
@@ -696,11 +730,49 @@ public class ElasticApmTracer implements Tracer {
         return sampler;
     }
 
+    private Sampler createSampler() {
+        return RateLimitingSampler.of(coreConfiguration.getSampleTarget().get(), coreConfiguration.getSampleRate().get() * sampleRateFactor);
+    }
+
+    /**
+     * Scales down the configured {@code transaction_sample_rate} without changing the configuration,
+     * for example to reduce the overhead of the agent.
+     *
+     * @param sampleRateFactor the factor the configured sample rate is multiplied with, {@code 1} restores the configured rate
+     */
+    public void setSampleRateFactor(double sampleRateFactor) {
+        this.sampleRateFactor = sampleRateFactor;
+        sampler = createSampler();
+    }
+
+    public double getSampleRateFactor() {
+        return sampleRateFactor;
+    }
+
+    /**
+     * Sets a lower bound for {@code span_min_duration} without changing the configuration,
+     * for example to reduce the overhead of the agent.
+     * It applies to transactions started afterwards.
+     *
+     * @param spanMinDurationFloorUs the minimum span duration in microseconds, {@code 0} restores the configured value
+     */
+    public void setSpanMinDurationFloorUs(long spanMinDurationFloorUs) {
+        this.spanMinDurationFloorUs = spanMinDurationFloorUs;
+    }
+
+    public long getSpanMinDurationFloorUs() {
+        return spanMinDurationFloorUs;
+    }
+
     @Override
     public ObjectPoolFactoryImpl getObjectPoolFactory() {
         return objectPoolFactory;
     }
 
+    public ObjectPoolSizer getObjectPoolSizer() {
+        return objectPoolSizer;
+    }
+
     @Override
     public <K, V extends ReferenceCounted> ReferenceCountedMap<K, V> newReferenceCountedMap() {
         return new WeakReferenceCountedMap<>();
@@ -799,6 +871,7 @@ public class ElasticApmTracer implements Tracer {
 
     public synchronized void onStressDetected() {
         currentlyUnderStress = true;
+        reporter.onStressDetected();
         if (tracerState == TracerState.RUNNING) {
             pause();
         }
@@ -806,6 +879,7 @@ public class ElasticApmTracer implements Tracer {
 
     public synchronized void onStressRelieved() {
         currentlyUnderStress = false;
+        reporter.onStressRelieved();
         if (tracerState == TracerState.PAUSED && recordingConfigOptionSet) {
             resume();
         }
@@ -891,7 +965,7 @@ public class ElasticApmTracer implements Tracer {
      */
 
     public TraceStateImpl<?> currentContext() {
-        return activeStack.get().currentContext();
+        return getContextStorage().currentContext();
     }
 
     @Nullable
@@ -910,11 +984,11 @@ public class ElasticApmTracer implements Tracer {
      * @return newly (or previously) created wrapper
      */
     public <T extends TraceStateImpl<T>> T wrapActiveContextIfRequired(Class<T> wrapperClass, Callable<T> wrapFunction) {
-        return activeStack.get().wrapActiveContextIfRequired(wrapperClass, wrapFunction, approximateContextSize);
+        return getContextStorage().wrapActiveContextIfRequired(wrapperClass, wrapFunction, approximateContextSize);
     }
 
     public void activate(TraceStateImpl<?> context) {
-        activeStack.get().activate(context, activationListeners);
+        getContextStorage().activate(context, activationListeners);
     }
 
     public Scope activateInScope(final TraceStateImpl<?> context) {
@@ -937,7 +1011,20 @@ public class ElasticApmTracer implements Tracer {
     }
 
     public void deactivate(TraceStateImpl<?> context) {
-        activeStack.get().deactivate(context, activationListeners, assertionsEnabled);
+        getContextStorage().deactivate(context, activationListeners, assertionsEnabled);
+    }
+
+    /**
+     * @return the clock to read instead of the system clock when timestamping transactions and spans,
+     * {@code null} if the system clock is read (see {@link CoreConfigurationImpl#getClockResolution()})
+     */
+    @Nullable
+    public CoarseNanoClock getCoarseNanoClock() {
+        return coarseNanoClock;
+    }
+
+    private ContextStorage getContextStorage() {
+        return ThreadUtil.isVirtual(Thread.currentThread()) ? virtualThreadContextStorage : platformThreadContextStorage;
     }
 
     public MetricRegistry getMetricRegistry() {
@@ -0,0 +1,75 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.impl.transaction.TraceStateImpl;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Keeps an {@link ActiveStack} per thread for the thread's whole lifetime.
+ * <p>
+ * This suits platform threads, which are usually long-lived and pooled:
+ * once a thread has activated a context, later activations don't allocate.
+ * The stack is only created on the first activation,
+ * so threads which only ever query the current context don't pay for it.
+ * </p>
+ */
+class ThreadLocalContextStorage implements ContextStorage {
+
+    private final ThreadLocal<ActiveStack> activeStack = new ThreadLocal<ActiveStack>();
+    private final int stackMaxDepth;
+    private final EmptyTraceState emptyContext;
+
+    ThreadLocalContextStorage(int stackMaxDepth, EmptyTraceState emptyContext) {
+        this.stackMaxDepth = stackMaxDepth;
+        this.emptyContext = emptyContext;
+    }
+
+    @Override
+    public TraceStateImpl<?> currentContext() {
+        ActiveStack stack = activeStack.get();
+        return stack != null ? stack.currentContext() : emptyContext;
+    }
+
+    @Override
+    public boolean activate(TraceStateImpl<?> context, List<ActivationListener> activationListeners) {
+        return getOrCreateActiveStack().activate(context, activationListeners);
+    }
+
+    @Override
+    public boolean deactivate(TraceStateImpl<?> context, List<ActivationListener> activationListeners, boolean assertionsEnabled) {
+        return getOrCreateActiveStack().deactivate(context, activationListeners, assertionsEnabled);
+    }
+
+    @Override
+    public <T extends TraceStateImpl<T>> T wrapActiveContextIfRequired(Class<T> wrapperClass, Callable<T> wrapFunction, int approximateContextSize) {
+        return getOrCreateActiveStack().wrapActiveContextIfRequired(wrapperClass, wrapFunction, approximateContextSize);
+    }
+
+    private ActiveStack getOrCreateActiveStack() {
+        ActiveStack stack = activeStack.get();
+        if (stack == null) {
+            stack = new ActiveStack(stackMaxDepth, emptyContext);
+            activeStack.set(stack);
+        }
+        return stack;
+    }
+}
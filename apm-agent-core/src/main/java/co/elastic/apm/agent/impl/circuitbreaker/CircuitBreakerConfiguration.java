@@ -117,6 +117,26 @@ public class CircuitBreakerConfiguration extends ConfigurationOptionProvider {
         .addValidator(isInRange(0d, 1d))
         .buildWithDefault(0.80);
 
+    private final ConfigurationOption<Double> agentCpuOverheadBudget = ConfigurationOption.doubleOption()
+        .key("agent_cpu_overhead_budget")
+        .configurationCategory(CIRCUIT_BREAKER_CATEGORY)
+        .tags("experimental")
+        .description("The share of the process CPU time the agent may use, for example `0.05` for 5%. 0 disables this limit. \n" +
+            "As opposed to the circuit breaker, the agent does not become inactive but gradually sheds load to stay within the budget. \n" +
+            "Every `stress_monitoring_interval`, the agent compares the CPU time of its background tasks and the estimated time \n" +
+            "spent in instrumented methods with the CPU time of the process. The time spent in instrumented methods is only \n" +
+            "estimated when `instrumentation_overhead_sample_interval` is set. \n" +
+            "As long as the budget is exceeded, the agent takes one step at a time: it lowers the sample rate down to an eighth \n" +
+            "of `transaction_sample_rate`, then raises `span_min_duration` up to 100ms, and finally disables the instrumentation \n" +
+            "groups which are the most expensive ones, as if they were added to `disable_instrumentations`. \n" +
+            "Once the overhead has stayed below half of the budget for three consecutive evaluations, the last step is reverted. \n" +
+            "After each step, the agent skips an evaluation and waits for the instrumentation to be re-initialized, \n" +
+            "so that the effect of the step can be measured. \n" +
+            "The configuration options themselves are not changed.")
+        .dynamic(true)
+        .addValidator(isInRange(0d, 1d))
+        .buildWithDefault(0d);
+
     public boolean isCircuitBreakerEnabled() {
         return circuitBreakerEnabled.get();
     }
@@ -144,4 +164,8 @@ public class CircuitBreakerConfiguration extends ConfigurationOptionProvider {
     public double getSystemCpuReliefThreshold() {
         return systemCpuReliefThreshold.get();
     }
+
+    public double getAgentCpuOverheadBudget() {
+        return agentCpuOverheadBudget.get();
+    }
 }
@@ -0,0 +1,343 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.circuitbreaker;
+
+import co.elastic.apm.agent.bci.AdviceTimer;
+import co.elastic.apm.agent.bci.ElasticApmAgent;
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.metrics.builtin.AgentOverheadMetrics;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.tracer.AbstractLifecycleListener;
+import co.elastic.apm.agent.tracer.Tracer;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the overhead of the agent within the {@code agent_cpu_overhead_budget} by gradually shedding load.
+ * <p>
+ * As opposed to the {@link CircuitBreaker}, which pauses the whole tracer, the governor takes one step at a time:
+ * it lowers the sample rate, raises the minimum span duration and suspends the most expensive instrumentation groups.
+ * Once there is headroom again, the steps are reverted in reverse order.
+ * After each step, the governor waits until the step has taken effect before it measures the overhead again.
+ * None of the steps change the configuration.
+ * </p>
+ * <p>
+ * The overhead is the CPU time of the agent background threads, as measured by {@link AgentOverheadMetrics},
+ * plus the time spent in advices, as extrapolated from the {@link AdviceTimer}s, relative to the CPU time of the process.
+ * As the advice timers measure wall-clock time, advices which block are over-estimated.
+ * </p>
+ */
+public class OverheadGovernor extends AbstractLifecycleListener implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(OverheadGovernor.class);
+
+    private static final long NO_VALUE = -1L;
+
+    /**
+     * A step is only reverted if the overhead is below this share of the budget, so that it does not immediately exceed it again
+     */
+    static final double RELIEF_RATIO = 0.5;
+
+    /**
+     * The number of consecutive evaluations below the relief threshold after which a step is reverted
+     */
+    static final int RELIEF_EVALUATIONS = 3;
+
+    /**
+     * Each step halves the sample rate
+     */
+    static final int MAX_SAMPLE_RATE_REDUCTIONS = 3;
+
+    static final long[] SPAN_MIN_DURATION_FLOORS_US = {0, 1000, 10000, 100000};
+
+    /**
+     * The number of evaluations which are skipped after each step, so that its effect shows in the measured overhead
+     */
+    static final int SETTLE_EVALUATIONS = 1;
+
+    private final ElasticApmTracer tracer;
+    private final CircuitBreakerConfiguration circuitBreakerConfiguration;
+    private final int adviceTimingSampleInterval;
+
+    @Nullable
+    private AgentOverheadMetrics agentOverheadMetrics;
+    @Nullable
+    private ScheduledFuture<?> evaluation;
+    private boolean cpuTimeMeasurementEnabled;
+
+    private long lastProcessCpuTime = NO_VALUE;
+    private long lastBackgroundCpuTime = NO_VALUE;
+    private final Map<AdviceTimer, Long> lastAdviceTimes = new IdentityHashMap<>();
+
+    private int sampleRateReductions;
+    private int spanMinDurationIncreases;
+    private final Deque<String> suspendedInstrumentationGroups = new ArrayDeque<>();
+    private int reliefEvaluations;
+    private int settleEvaluations;
+    /**
+     * The re-initialization of the instrumentation which applies the last suspended or resumed instrumentation group.
+     * It runs on agent threads, so its CPU time would be mistaken for overhead that needs to be shed.
+     */
+    @Nullable
+    private Future<?> pendingReInit;
+
+    public OverheadGovernor(ElasticApmTracer tracer) {
+        this.tracer = tracer;
+        circuitBreakerConfiguration = tracer.getConfig(CircuitBreakerConfiguration.class);
+        adviceTimingSampleInterval = tracer.getConfig(MetricsConfigurationImpl.class).getInstrumentationOverheadSampleInterval();
+    }
+
+    @Override
+    public void start(Tracer tracer) {
+        agentOverheadMetrics = this.tracer.getLifecycleListener(AgentOverheadMetrics.class);
+        long interval = circuitBreakerConfiguration.getStressMonitoringPollingIntervalMillis();
+        evaluation = this.tracer.getSharedSingleThreadedPool().scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void run() {
+        try {
+            double budget = circuitBreakerConfiguration.getAgentCpuOverheadBudget();
+            if (budget <= 0) {
+                // to support dynamic disablement while shedding load
+                if (isSheddingLoad()) {
+                    logger.info("The agent CPU overhead budget has been disabled, restoring the shed load");
+                    restoreAll(true);
+                }
+                lastProcessCpuTime = NO_VALUE;
+                return;
+            }
+            if (!cpuTimeMeasurementEnabled) {
+                if (agentOverheadMetrics == null || !agentOverheadMetrics.enableCpuTimeMeasurement()) {
+                    logger.debug("The agent CPU overhead can't be measured");
+                    return;
+                }
+                cpuTimeMeasurementEnabled = true;
+            }
+            Map<String, Long> adviceTimeByGroup = new HashMap<>();
+            if (isReInitPending()) {
+                // start measuring afresh once the re-initialization has completed
+                updateAdviceTimes(adviceTimeByGroup);
+                lastProcessCpuTime = NO_VALUE;
+                lastBackgroundCpuTime = NO_VALUE;
+                return;
+            }
+            long adviceTime = updateAdviceTimes(adviceTimeByGroup);
+            long processCpuTime = agentOverheadMetrics.getProcessCpuTime();
+            long backgroundCpuTime = agentOverheadMetrics.getBackgroundCpuTime();
+            long processCpuTimeDelta = NO_VALUE;
+            if (processCpuTime != NO_VALUE && lastProcessCpuTime != NO_VALUE) {
+                processCpuTimeDelta = processCpuTime - lastProcessCpuTime;
+            }
+            long backgroundCpuTimeDelta = 0;
+            if (backgroundCpuTime != NO_VALUE && lastBackgroundCpuTime != NO_VALUE) {
+                // threads which died since the last evaluation make this negative
+                backgroundCpuTimeDelta = Math.max(0, backgroundCpuTime - lastBackgroundCpuTime);
+            }
+            lastProcessCpuTime = processCpuTime;
+            lastBackgroundCpuTime = backgroundCpuTime;
+            if (processCpuTimeDelta > 0) {
+                evaluate((double) (backgroundCpuTimeDelta + adviceTime) / processCpuTimeDelta, budget, adviceTimeByGroup);
+            }
+        } catch (Throwable throwable) {
+            // Catch all errors, otherwise the evaluation won't be re-scheduled
+            logger.error("Error occurred while evaluating the agent overhead", throwable);
+        }
+    }
+
+    /**
+     * Computes the estimated time spent in the advices of each instrumentation group since the last evaluation.
+     *
+     * @param adviceTimeByGroup the map to add the estimated time in nanoseconds of each instrumentation group to
+     * @return the estimated time spent in all advices in nanoseconds
+     */
+    private long updateAdviceTimes(Map<String, Long> adviceTimeByGroup) {
+        long totalAdviceTime = 0;
+        for (AdviceTimer adviceTimer : ElasticApmAgent.getInstrumentationStats().getAdviceTimers()) {
+            long adviceTime = adviceTimer.getSampledDuration() * adviceTimingSampleInterval;
+            Long lastAdviceTime = lastAdviceTimes.put(adviceTimer, adviceTime);
+            long adviceTimeDelta = adviceTime - (lastAdviceTime != null ? lastAdviceTime : 0);
+            if (adviceTimeDelta > 0) {
+                adviceTimeByGroup.put(adviceTimer.getInstrumentationGroup(), adviceTimeDelta);
+                totalAdviceTime += adviceTimeDelta;
+            }
+        }
+        return totalAdviceTime;
+    }
+
+    /**
+     * Sheds load if the overhead exceeds the budget and restores it if there has been headroom for a while.
+     *
+     * @param overhead          the share of the process CPU time used by the agent since the last evaluation
+     * @param budget            the share of the process CPU time the agent may use
+     * @param adviceTimeByGroup the time spent in the advices of each instrumentation group since the last evaluation
+     */
+    synchronized void evaluate(double overhead, double budget, Map<String, Long> adviceTimeByGroup) {
+        if (isReInitPending()) {
+            return;
+        }
+        if (settleEvaluations > 0) {
+            settleEvaluations--;
+            return;
+        }
+        if (overhead > budget) {
+            reliefEvaluations = 0;
+            shedLoad(overhead, adviceTimeByGroup);
+        } else if (overhead < budget * RELIEF_RATIO && isSheddingLoad()) {
+            if (++reliefEvaluations >= RELIEF_EVALUATIONS) {
+                reliefEvaluations = 0;
+                restoreLoad(overhead);
+            }
+        } else {
+            reliefEvaluations = 0;
+        }
+    }
+
+    private void shedLoad(double overhead, Map<String, Long> adviceTimeByGroup) {
+        if (sampleRateReductions < MAX_SAMPLE_RATE_REDUCTIONS) {
+            settleEvaluations = SETTLE_EVALUATIONS;
+            sampleRateReductions++;
+            tracer.setSampleRateFactor(getSampleRateFactor());
+            logger.info("The agent CPU overhead of {} exceeds the budget, lowering the sample rate to {} of transaction_sample_rate",
+                overhead, getSampleRateFactor());
+        } else if (spanMinDurationIncreases < SPAN_MIN_DURATION_FLOORS_US.length - 1) {
+            settleEvaluations = SETTLE_EVALUATIONS;
+            spanMinDurationIncreases++;
+            tracer.setSpanMinDurationFloorUs(SPAN_MIN_DURATION_FLOORS_US[spanMinDurationIncreases]);
+            logger.info("The agent CPU overhead of {} exceeds the budget, raising span_min_duration to at least {}us",
+                overhead, SPAN_MIN_DURATION_FLOORS_US[spanMinDurationIncreases]);
+        } else {
+            String instrumentationGroup = getMostExpensiveInstrumentationGroup(adviceTimeByGroup);
+            if (instrumentationGroup != null && ElasticApmAgent.suspendInstrumentationGroup(instrumentationGroup)) {
+                settleEvaluations = SETTLE_EVALUATIONS;
+                suspendedInstrumentationGroups.push(instrumentationGroup);
+                logger.info("The agent CPU overhead of {} exceeds the budget, disabling the instrumentation group {}",
+                    overhead, instrumentationGroup);
+                pendingReInit = reInitInstrumentation();
+            } else {
+                logger.debug("The agent CPU overhead of {} exceeds the budget, but there is no load left to shed", overhead);
+            }
+        }
+    }
+
+    private void restoreLoad(double overhead) {
+        settleEvaluations = SETTLE_EVALUATIONS;
+        if (!suspendedInstrumentationGroups.isEmpty()) {
+            String instrumentationGroup = suspendedInstrumentationGroups.pop();
+            ElasticApmAgent.resumeInstrumentationGroup(instrumentationGroup);
+            logger.info("The agent CPU overhead of {} is well within the budget, re-enabling the instrumentation group {}",
+                overhead, instrumentationGroup);
+            pendingReInit = reInitInstrumentation();
+        } else if (spanMinDurationIncreases > 0) {
+            spanMinDurationIncreases--;
+            tracer.setSpanMinDurationFloorUs(SPAN_MIN_DURATION_FLOORS_US[spanMinDurationIncreases]);
+            logger.info("The agent CPU overhead of {} is well within the budget, lowering span_min_duration to at least {}us",
+                overhead, SPAN_MIN_DURATION_FLOORS_US[spanMinDurationIncreases]);
+        } else if (sampleRateReductions > 0) {
+            sampleRateReductions--;
+            tracer.setSampleRateFactor(getSampleRateFactor());
+            logger.info("The agent CPU overhead of {} is well within the budget, raising the sample rate to {} of transaction_sample_rate",
+                overhead, getSampleRateFactor());
+        }
+    }
+
+    private synchronized void restoreAll(boolean reInitInstrumentation) {
+        if (!suspendedInstrumentationGroups.isEmpty()) {
+            while (!suspendedInstrumentationGroups.isEmpty()) {
+                ElasticApmAgent.resumeInstrumentationGroup(suspendedInstrumentationGroups.pop());
+            }
+            if (reInitInstrumentation) {
+                pendingReInit = reInitInstrumentation();
+            }
+        }
+        spanMinDurationIncreases = 0;
+        tracer.setSpanMinDurationFloorUs(0);
+        sampleRateReductions = 0;
+        tracer.setSampleRateFactor(1);
+        reliefEvaluations = 0;
+        settleEvaluations = 0;
+    }
+
+    @Nullable
+    private static String getMostExpensiveInstrumentationGroup(Map<String, Long> adviceTimeByGroup) {
+        String mostExpensiveGroup = null;
+        long mostExpensiveAdviceTime = 0;
+        for (Map.Entry<String, Long> entry : adviceTimeByGroup.entrySet()) {
+            if (entry.getValue() > mostExpensiveAdviceTime && !ElasticApmAgent.getSuspendedInstrumentationGroups().contains(entry.getKey())) {
+                mostExpensiveGroup = entry.getKey();
+                mostExpensiveAdviceTime = entry.getValue();
+            }
+        }
+        return mostExpensiveGroup;
+    }
+
+    private double getSampleRateFactor() {
+        return 1.0 / (1 << sampleRateReductions);
+    }
+
+    boolean isSheddingLoad() {
+        return sampleRateReductions > 0 || spanMinDurationIncreases > 0 || !suspendedInstrumentationGroups.isEmpty();
+    }
+
+    private boolean isReInitPending() {
+        if (pendingReInit != null) {
+            if (!pendingReInit.isDone()) {
+                return true;
+            }
+            pendingReInit = null;
+        }
+        return false;
+    }
+
+    /**
+     * Applies suspended or resumed instrumentation groups
+     *
+     * @return the asynchronous re-initialization, or {@code null} if the instrumentation can't be re-initialized
+     */
+    @Nullable
+    Future<?> reInitInstrumentation() {
+        try {
+            return ElasticApmAgent.reInitInstrumentation();
+        } catch (IllegalStateException e) {
+            logger.debug("Instrumentation can't be re-initialized", e);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (evaluation != null) {
+            evaluation.cancel(false);
+        }
+        if (isSheddingLoad()) {
+            // there is no point in re-instrumenting when shutting down
+            restoreAll(false);
+        }
+    }
+}
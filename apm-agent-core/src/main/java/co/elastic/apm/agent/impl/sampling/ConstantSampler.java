@@ -49,7 +49,10 @@ public class ConstantSampler implements Sampler {
     }
 
     @Override
-    public boolean isSampled(IdImpl traceId) {
+    public boolean isSampled(IdImpl traceId, TraceState traceState) {
+        if (decision) {
+            traceState.set(rate, traceStateHeader);
+        }
         return decision;
     }
 
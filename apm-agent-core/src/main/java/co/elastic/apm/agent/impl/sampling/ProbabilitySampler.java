@@ -70,9 +70,13 @@ public class ProbabilitySampler implements Sampler {
     }
 
     @Override
-    public boolean isSampled(IdImpl traceId) {
+    public boolean isSampled(IdImpl traceId, TraceState traceState) {
         final long leastSignificantBits = traceId.getLeastSignificantBits();
-        return leastSignificantBits > lowerBound && leastSignificantBits < higherBound;
+        if (leastSignificantBits > lowerBound && leastSignificantBits < higherBound) {
+            traceState.set(sampleRate, traceStateHeader);
+            return true;
+        }
+        return false;
     }
 
     @Override
@@ -0,0 +1,176 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.impl.transaction.IdImpl;
+import co.elastic.apm.agent.impl.transaction.TraceState;
+import co.elastic.apm.agent.tracer.configuration.RoundedDoubleConverter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link Sampler} which aims for a target number of sampled traces per second.
+ * <p>
+ * The effective sample rate is re-computed once per second from a moving average of the observed
+ * number of root transactions, and is capped by the configured maximum sample rate. Within a window, the decision is
+ * made like in {@link ProbabilitySampler}, based on the trace id. In order to protect against spikes before the sample
+ * rate has adapted, the sample rate is lowered within a window whenever twice the target has been sampled since the last
+ * change. Sampling is never cut off otherwise, so that each trace is sampled with exactly the rate that is recorded for it
+ * and the APM Server can extrapolate the throughput without bias.
+ * </p>
+ * <p>
+ * Deciding is lock-free and does not allocate: the state is swapped once per window by the thread which wins the race
+ * to roll the window over, or when the sample rate is lowered within a window.
+ * The {@code tracestate} header is only re-created if the (rounded) sample rate changes.
+ * </p>
+ */
+public class RateLimitingSampler implements Sampler {
+
+    static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The weight of the last window in the moving average of the observed throughput
+     */
+    private static final double SMOOTHING_FACTOR = 0.5;
+
+    private static final RoundedDoubleConverter RATE_CONVERTER = RoundedDoubleConverter.withDefaultPrecision();
+
+    private static final double MIN_SAMPLE_RATE = 0.0001;
+
+    private final double targetPerSecond;
+    private final double maxSampleRate;
+    private final long maxSampledPerWindow;
+    private final AtomicLong windowStart;
+    private final AtomicLong seenInWindow = new AtomicLong();
+    private final AtomicLong sampledInWindow = new AtomicLong();
+
+    /**
+     * Only accessed by the thread rolling over the window
+     */
+    private double throughputEstimate = Double.NaN;
+
+    private final AtomicReference<State> state;
+
+    RateLimitingSampler(double targetPerSecond, double maxSampleRate) {
+        this.targetPerSecond = targetPerSecond;
+        this.maxSampleRate = maxSampleRate;
+        this.maxSampledPerWindow = Math.max(1, (long) Math.ceil(2 * targetPerSecond));
+        this.windowStart = new AtomicLong(nanoTime());
+        this.state = new AtomicReference<>(new State(maxSampleRate));
+    }
+
+    /**
+     * @param targetPerSecond the number of sampled traces per second to aim for, {@code 0} disables rate limiting
+     * @param maxSampleRate   the upper bound of the effective sample rate
+     * @return a rate limiting sampler, or a {@link ProbabilitySampler} if rate limiting is disabled or could never sample
+     */
+    public static Sampler of(double targetPerSecond, double maxSampleRate) {
+        if (targetPerSecond <= 0 || maxSampleRate == 0) {
+            return ProbabilitySampler.of(maxSampleRate);
+        }
+        return new RateLimitingSampler(targetPerSecond, maxSampleRate);
+    }
+
+    @Override
+    public boolean isSampled(IdImpl traceId, TraceState traceState) {
+        long now = nanoTime();
+        long start = windowStart.get();
+        if (now - start >= WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+            rollOver(now - start);
+        }
+        long seen = seenInWindow.incrementAndGet();
+        State current = state.get();
+        long leastSignificantBits = traceId.getLeastSignificantBits();
+        if (leastSignificantBits < current.lowerBound || leastSignificantBits > current.higherBound) {
+            return false;
+        }
+        if (sampledInWindow.incrementAndGet() == maxSampledPerWindow) {
+            lowerSampleRate(current, seen, now - windowStart.get());
+        }
+        traceState.set(current.sampleRate, current.traceStateHeader);
+        return true;
+    }
+
+    /**
+     * Lowers the sample rate for the rest of the window, based on the throughput observed within the window so far.
+     * The rate is at least halved, so that it converges quickly even if the spike keeps growing within the window.
+     */
+    private void lowerSampleRate(State current, long seen, long elapsedNanos) {
+        double throughput = seen * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(1, elapsedNanos);
+        double sampleRate = Math.min(current.sampleRate / 2, targetPerSecond / throughput);
+        sampleRate = Math.max(MIN_SAMPLE_RATE, RATE_CONVERTER.round(sampleRate));
+        if (sampleRate < current.sampleRate && state.compareAndSet(current, new State(sampleRate))) {
+            sampledInWindow.set(0);
+        }
+    }
+
+    private void rollOver(long elapsedNanos) {
+        long seen = seenInWindow.getAndSet(0);
+        sampledInWindow.set(0);
+        double throughput = seen * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        if (Double.isNaN(throughputEstimate)) {
+            throughputEstimate = throughput;
+        } else {
+            throughputEstimate = SMOOTHING_FACTOR * throughput + (1 - SMOOTHING_FACTOR) * throughputEstimate;
+        }
+        double sampleRate = maxSampleRate;
+        if (throughputEstimate > targetPerSecond) {
+            sampleRate = Math.min(maxSampleRate, targetPerSecond / throughputEstimate);
+        }
+        sampleRate = Math.max(MIN_SAMPLE_RATE, RATE_CONVERTER.round(sampleRate));
+        if (sampleRate != state.get().sampleRate) {
+            state.set(new State(sampleRate));
+        }
+    }
+
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public double getSampleRate() {
+        return state.get().sampleRate;
+    }
+
+    @Override
+    public String getTraceStateHeader() {
+        return state.get().traceStateHeader;
+    }
+
+    private static class State {
+        private final double sampleRate;
+        private final long lowerBound;
+        private final long higherBound;
+        private final String traceStateHeader;
+
+        private State(double sampleRate) {
+            this.sampleRate = sampleRate;
+            if (sampleRate >= 1) {
+                this.higherBound = Long.MAX_VALUE;
+                this.lowerBound = Long.MIN_VALUE;
+            } else {
+                this.higherBound = (long) (Long.MAX_VALUE * sampleRate);
+                this.lowerBound = -higherBound;
+            }
+            this.traceStateHeader = TraceState.getHeaderValue(sampleRate);
+        }
+    }
+}
@@ -20,6 +20,7 @@ package co.elastic.apm.agent.impl.sampling;
 
 import co.elastic.apm.agent.impl.transaction.IdImpl;
 import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TraceState;
 import co.elastic.apm.agent.impl.transaction.TransactionImpl;
 
 /**
@@ -40,11 +41,17 @@ public interface Sampler {
 
     /**
      * Determines whether the given transaction should be sampled.
+     * <p>
+     * If it should, the sample rate the decision has been made with and the corresponding {@code tracestate} header
+     * are {@linkplain TraceState#set(double, String) set} on the provided trace state.
+     * As the sample rate might change concurrently, this is not necessarily the current {@link #getSampleRate()}.
+     * </p>
      *
-     * @param traceId The id of the transaction.
+     * @param traceId    The id of the transaction.
+     * @param traceState The trace state of the transaction.
      * @return The sampling decision.
      */
-    boolean isSampled(IdImpl traceId);
+    boolean isSampled(IdImpl traceId, TraceState traceState);
 
     /**
      * @return current sample rate
@@ -20,9 +20,12 @@ package co.elastic.apm.agent.impl.transaction;
 
 import co.elastic.apm.agent.common.util.WildcardMatcher;
 import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
+import co.elastic.apm.agent.configuration.SpanConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.baggage.BaggageImpl;
 import co.elastic.apm.agent.impl.context.AbstractContextImpl;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfigurationImpl;
 import co.elastic.apm.agent.report.ReporterConfigurationImpl;
 import co.elastic.apm.agent.sdk.internal.collections.LongList;
 import co.elastic.apm.agent.sdk.internal.util.LoggerUtils;
@@ -37,6 +40,7 @@ import javax.annotation.Nullable;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -56,6 +60,15 @@ public abstract class AbstractSpanImpl<T extends AbstractSpanImpl<T>> extends Ab
      */
     protected final StringBuilder name = new StringBuilder();
     protected final boolean collectBreakdownMetrics;
+    protected final boolean collectDurationHistograms;
+    private final CoreConfigurationImpl coreConfiguration;
+    private final SpanConfiguration spanConfiguration;
+    private final StacktraceConfigurationImpl stacktraceConfiguration;
+    /**
+     * Captured when starting, not reset when recycling so that the next capture can reuse it if the configuration has not changed.
+     */
+    @Nullable
+    protected ConfigurationSnapshot configurationSnapshot;
     protected final AtomicLong timestamp = new AtomicLong();
     protected final AtomicLong endTimestamp = new AtomicLong();
 
@@ -195,8 +208,24 @@ public abstract class AbstractSpanImpl<T extends AbstractSpanImpl<T>> extends Ab
         super(tracer);
         traceContext = TraceContextImpl.with64BitId(this.tracer);
         boolean selfTimeCollectionEnabled = !WildcardMatcher.isAnyMatch(tracer.getConfig(ReporterConfigurationImpl.class).getDisableMetrics(), "span.self_time");
-        boolean breakdownMetricsEnabled = tracer.getConfig(CoreConfigurationImpl.class).isBreakdownMetricsEnabled();
+        coreConfiguration = tracer.getConfig(CoreConfigurationImpl.class);
+        spanConfiguration = tracer.getConfig(SpanConfiguration.class);
+        stacktraceConfiguration = tracer.getConfig(StacktraceConfigurationImpl.class);
+        boolean breakdownMetricsEnabled = coreConfiguration.isBreakdownMetricsEnabled();
         collectBreakdownMetrics = selfTimeCollectionEnabled && breakdownMetricsEnabled;
+        collectDurationHistograms = tracer.getConfig(MetricsConfigurationImpl.class).isDurationHistogramMetricsEnabled();
+    }
+
+    protected ConfigurationSnapshot captureConfigurationSnapshot() {
+        return ConfigurationSnapshot.capture(configurationSnapshot, coreConfiguration, spanConfiguration, stacktraceConfiguration,
+            tracer.getSpanMinDurationFloorUs());
+    }
+
+    /**
+     * @return the configuration this span has been started with
+     */
+    public ConfigurationSnapshot getConfigurationSnapshot() {
+        return Objects.requireNonNull(configurationSnapshot, "span has not been started");
     }
 
     @Override
@@ -540,10 +569,10 @@ public abstract class AbstractSpanImpl<T extends AbstractSpanImpl<T>> extends Ab
         // or even after its reported and the last child span is ended
         incrementReferences();
 
-        List<WildcardMatcher> baggageToAttach = tracer.getConfig(CoreConfigurationImpl.class).getBaggageToAttach();
-        baggage.storeBaggageInAttributes(this, baggageToAttach);
+        ConfigurationSnapshot configurationSnapshot = getConfigurationSnapshot();
+        baggage.storeBaggageInAttributes(this, configurationSnapshot.getBaggageToAttach());
 
-        if (tracer.getConfig(CoreConfigurationImpl.class).isCaptureThreadOnStart()) {
+        if (configurationSnapshot.isCaptureThreadOnStart()) {
             Thread currentThread = Thread.currentThread();
             this.addLabel("thread_id", currentThread.getId());
             this.addLabel("thread_name", currentThread.getName());
@@ -0,0 +1,88 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.util.ExecutorUtils;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link System#nanoTime()} source which is only updated by a background thread once per resolution tick.
+ * <p>
+ * Reading the cached value is a plain volatile read, which is cheaper than reading the system clock.
+ * The trade-off is accuracy: readings lag behind the actual time by up to one resolution tick,
+ * so {@link EpochTickClock}s backed by this clock produce timestamps and durations which are only accurate to the resolution.
+ * Durations are still derived from the monotonic {@link System#nanoTime()}, so they are not affected by wall clock adjustments.
+ * </p>
+ * <p>
+ * The cached values are written by a single thread and read by all application threads creating spans.
+ * They are padded to occupy a cache line of their own, so that updating them does not invalidate unrelated data.
+ * </p>
+ */
+public final class CoarseNanoClock extends CoarseNanoClockRhsPadding implements Runnable {
+
+    private final ScheduledThreadPoolExecutor ticker;
+
+    public CoarseNanoClock(long resolution, TimeUnit unit) {
+        run();
+        ticker = ExecutorUtils.createSingleThreadSchedulingDaemonPool("clock");
+        ticker.scheduleAtFixedRate(this, resolution, resolution, unit);
+    }
+
+    /**
+     * @return the value of {@link System#nanoTime()} as of the last tick
+     */
+    public long nanoTime() {
+        return nanoTime;
+    }
+
+    /**
+     * @return the offset between the wall clock and {@link System#nanoTime()} as of the last tick, see {@link EpochTickClock}
+     */
+    long getNanoTimeOffsetToEpoch() {
+        return nanoTimeOffsetToEpoch;
+    }
+
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        nanoTimeOffsetToEpoch = System.currentTimeMillis() * 1_000_000 - now;
+        nanoTime = now;
+    }
+
+    public void stop() {
+        ExecutorUtils.shutdownAndWaitTermination(ticker);
+    }
+}
+
+abstract class CoarseNanoClockLhsPadding {
+    long p00, p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16;
+}
+
+abstract class CoarseNanoClockFields extends CoarseNanoClockLhsPadding {
+    volatile long nanoTime;
+    volatile long nanoTimeOffsetToEpoch;
+}
+
+abstract class CoarseNanoClockRhsPadding extends CoarseNanoClockFields {
+    long q00, q01, q02, q03, q04, q05, q06, q07;
+    long q10, q11, q12, q13, q14, q15, q16;
+}
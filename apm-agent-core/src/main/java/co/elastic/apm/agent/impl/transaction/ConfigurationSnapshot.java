@@ -0,0 +1,163 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.common.util.WildcardMatcher;
+import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.configuration.SpanConfiguration;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfigurationImpl;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * An immutable snapshot of the configuration values which are read while starting and ending transactions and spans.
+ * <p>
+ * A snapshot is captured once when a transaction starts and is shared with all of its spans,
+ * so that they read plain final fields instead of repeatedly reading the configuration options.
+ * This also makes sure that all spans of a transaction see the same configuration, even if it is changed concurrently.
+ * </p>
+ * <p>
+ * Capturing a snapshot reuses the previous one as long as the configuration has not changed,
+ * so it only allocates after configuration changes.
+ * </p>
+ */
+public final class ConfigurationSnapshot {
+
+    private final CoreConfigurationImpl.TraceContinuationStrategy traceContinuationStrategy;
+    private final int transactionMaxSpans;
+    private final List<WildcardMatcher> baggageToAttach;
+    private final boolean captureThreadOnStart;
+    private final long spanMinDurationUs;
+    private final long exitSpanMinDurationUs;
+    private final boolean exitSpanAggregationEnabled;
+    private final boolean spanCompressionEnabled;
+    private final long spanCompressionExactMatchMaxDurationUs;
+    private final long spanCompressionSameKindMaxDurationUs;
+    private final long spanStackTraceMinDurationMs;
+
+    private ConfigurationSnapshot(CoreConfigurationImpl.TraceContinuationStrategy traceContinuationStrategy, int transactionMaxSpans,
+                                  List<WildcardMatcher> baggageToAttach,
+                                  boolean captureThreadOnStart, long spanMinDurationUs, long exitSpanMinDurationUs,
+                                  boolean exitSpanAggregationEnabled, boolean spanCompressionEnabled, long spanCompressionExactMatchMaxDurationUs,
+                                  long spanCompressionSameKindMaxDurationUs, long spanStackTraceMinDurationMs) {
+        this.traceContinuationStrategy = traceContinuationStrategy;
+        this.transactionMaxSpans = transactionMaxSpans;
+        this.baggageToAttach = baggageToAttach;
+        this.captureThreadOnStart = captureThreadOnStart;
+        this.spanMinDurationUs = spanMinDurationUs;
+        this.exitSpanMinDurationUs = exitSpanMinDurationUs;
+        this.exitSpanAggregationEnabled = exitSpanAggregationEnabled;
+        this.spanCompressionEnabled = spanCompressionEnabled;
+        this.spanCompressionExactMatchMaxDurationUs = spanCompressionExactMatchMaxDurationUs;
+        this.spanCompressionSameKindMaxDurationUs = spanCompressionSameKindMaxDurationUs;
+        this.spanStackTraceMinDurationMs = spanStackTraceMinDurationMs;
+    }
+
+    /**
+     * Captures the current configuration values.
+     *
+     * @param previous               the previously captured snapshot, which is returned if the configuration has not changed since
+     * @param spanMinDurationFloorUs a lower bound for {@code span_min_duration} which applies regardless of the configuration
+     * @return a snapshot of the current configuration values
+     */
+    static ConfigurationSnapshot capture(@Nullable ConfigurationSnapshot previous,
+                                         CoreConfigurationImpl coreConfiguration,
+                                         SpanConfiguration spanConfiguration,
+                                         StacktraceConfigurationImpl stacktraceConfiguration,
+                                         long spanMinDurationFloorUs) {
+        CoreConfigurationImpl.TraceContinuationStrategy traceContinuationStrategy = coreConfiguration.getTraceContinuationStrategy();
+        int transactionMaxSpans = coreConfiguration.getTransactionMaxSpans();
+        List<WildcardMatcher> baggageToAttach = coreConfiguration.getBaggageToAttach();
+        boolean captureThreadOnStart = coreConfiguration.isCaptureThreadOnStart();
+        long spanMinDurationUs = Math.max(coreConfiguration.getSpanMinDuration().getMicros(), spanMinDurationFloorUs);
+        long exitSpanMinDurationUs = spanConfiguration.getExitSpanMinDuration().getMicros();
+        boolean exitSpanAggregationEnabled = spanConfiguration.isExitSpanAggregationEnabled();
+        boolean spanCompressionEnabled = spanConfiguration.isSpanCompressionEnabled();
+        long spanCompressionExactMatchMaxDurationUs = spanConfiguration.getSpanCompressionExactMatchMaxDuration().getMicros();
+        long spanCompressionSameKindMaxDurationUs = spanConfiguration.getSpanCompressionSameKindMaxDuration().getMicros();
+        long spanStackTraceMinDurationMs = stacktraceConfiguration.getSpanStackTraceMinDurationMs();
+
+        if (previous != null
+            && previous.traceContinuationStrategy == traceContinuationStrategy
+            && previous.transactionMaxSpans == transactionMaxSpans
+            // the values of list options are replaced rather than mutated when the configuration changes
+            && previous.baggageToAttach == baggageToAttach
+            && previous.captureThreadOnStart == captureThreadOnStart
+            && previous.spanMinDurationUs == spanMinDurationUs
+            && previous.exitSpanMinDurationUs == exitSpanMinDurationUs
+            && previous.exitSpanAggregationEnabled == exitSpanAggregationEnabled
+            && previous.spanCompressionEnabled == spanCompressionEnabled
+            && previous.spanCompressionExactMatchMaxDurationUs == spanCompressionExactMatchMaxDurationUs
+            && previous.spanCompressionSameKindMaxDurationUs == spanCompressionSameKindMaxDurationUs
+            && previous.spanStackTraceMinDurationMs == spanStackTraceMinDurationMs) {
+            return previous;
+        }
+        return new ConfigurationSnapshot(traceContinuationStrategy, transactionMaxSpans, baggageToAttach,
+            captureThreadOnStart, spanMinDurationUs, exitSpanMinDurationUs, exitSpanAggregationEnabled, spanCompressionEnabled,
+            spanCompressionExactMatchMaxDurationUs, spanCompressionSameKindMaxDurationUs, spanStackTraceMinDurationMs);
+    }
+
+    public CoreConfigurationImpl.TraceContinuationStrategy getTraceContinuationStrategy() {
+        return traceContinuationStrategy;
+    }
+
+    public int getTransactionMaxSpans() {
+        return transactionMaxSpans;
+    }
+
+    public List<WildcardMatcher> getBaggageToAttach() {
+        return baggageToAttach;
+    }
+
+    public boolean isCaptureThreadOnStart() {
+        return captureThreadOnStart;
+    }
+
+    public long getSpanMinDurationUs() {
+        return spanMinDurationUs;
+    }
+
+    public long getExitSpanMinDurationUs() {
+        return exitSpanMinDurationUs;
+    }
+
+    public boolean isExitSpanAggregationEnabled() {
+        return exitSpanAggregationEnabled;
+    }
+
+    public boolean isSpanCompressionEnabled() {
+        return spanCompressionEnabled;
+    }
+
+    public long getSpanCompressionExactMatchMaxDurationUs() {
+        return spanCompressionExactMatchMaxDurationUs;
+    }
+
+    public long getSpanCompressionSameKindMaxDurationUs() {
+        return spanCompressionSameKindMaxDurationUs;
+    }
+
+    /**
+     * @see StacktraceConfigurationImpl#getSpanStackTraceMinDurationMs()
+     */
+    public long getSpanStackTraceMinDurationMs() {
+        return spanStackTraceMinDurationMs;
+    }
+}
@@ -20,6 +20,8 @@ package co.elastic.apm.agent.impl.transaction;
 
 import co.elastic.apm.agent.tracer.pooling.Recyclable;
 
+import javax.annotation.Nullable;
+
 /**
  * This clock makes sure that each {@link SpanImpl} and {@link TransactionImpl} uses a consistent clock
  * which does not drift in case of NTP updates or leap seconds.
@@ -29,11 +31,29 @@ import co.elastic.apm.agent.tracer.pooling.Recyclable;
  * {@link System#currentTimeMillis()}, which uses wall clock time is not suitable for measuring durations because of the aforementioned
  * possibility of clock drifts.
  * </p>
+ * <p>
+ * When backed by a {@link CoarseNanoClock}, the clock reads the coarse clock's cached values instead of the system clock,
+ * trading accuracy for a lower cost of taking timestamps.
+ * </p>
  */
 public class EpochTickClock implements Recyclable {
 
+    @Nullable
+    private final CoarseNanoClock coarseNanoClock;
+
     private long nanoTimeOffsetToEpoch;
 
+    public EpochTickClock() {
+        this(null);
+    }
+
+    /**
+     * @param coarseNanoClock the clock to read instead of the system clock, {@code null} to read the system clock
+     */
+    public EpochTickClock(@Nullable CoarseNanoClock coarseNanoClock) {
+        this.coarseNanoClock = coarseNanoClock;
+    }
+
     /**
      * Initializes the clock by aligning the {@link #nanoTimeOffsetToEpoch offset} with the offset of another clock.
      *
@@ -49,6 +69,10 @@ public class EpochTickClock implements Recyclable {
      * @return the epoch microsecond timestamp at initialization time
      */
     public long init() {
+        if (coarseNanoClock != null) {
+            nanoTimeOffsetToEpoch = coarseNanoClock.getNanoTimeOffsetToEpoch();
+            return getEpochMicros();
+        }
         return init(System.currentTimeMillis() * 1000, System.nanoTime());
     }
 
@@ -69,7 +93,7 @@ public class EpochTickClock implements Recyclable {
     }
 
     public long getEpochMicros() {
-        return getEpochMicros(System.nanoTime());
+        return getEpochMicros(coarseNanoClock != null ? coarseNanoClock.nanoTime() : System.nanoTime());
     }
 
     public long getEpochMicros(final long nanoTime) {
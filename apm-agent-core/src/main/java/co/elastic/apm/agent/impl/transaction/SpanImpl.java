@@ -18,7 +18,6 @@
  */
 package co.elastic.apm.agent.impl.transaction;
 
-import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.baggage.BaggageImpl;
 import co.elastic.apm.agent.impl.context.DbImpl;
@@ -26,12 +25,13 @@ import co.elastic.apm.agent.impl.context.MessageImpl;
 import co.elastic.apm.agent.impl.context.ServiceTargetImpl;
 import co.elastic.apm.agent.impl.context.SpanContextImpl;
 import co.elastic.apm.agent.impl.context.UrlImpl;
-import co.elastic.apm.agent.impl.stacktrace.StacktraceConfigurationImpl;
+import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import co.elastic.apm.agent.tracer.Outcome;
 import co.elastic.apm.agent.tracer.Span;
 import co.elastic.apm.agent.tracer.SpanEndListener;
+import co.elastic.apm.agent.tracer.metrics.Labels;
 import co.elastic.apm.agent.tracer.pooling.Recyclable;
 import co.elastic.apm.agent.tracer.util.ResultUtil;
 import co.elastic.apm.agent.util.CharSequenceUtils;
@@ -53,8 +53,9 @@ public class SpanImpl extends AbstractSpanImpl<SpanImpl> implements Recyclable,
     static final int MAX_END_LISTENERS = 100;
     private static final Logger logger = LoggerFactory.getLogger(SpanImpl.class);
     public static final long MAX_LOG_INTERVAL_MICRO_SECS = TimeUnit.MINUTES.toMicros(5);
+    public static final String DESTINATION_HISTOGRAM_METRIC = "span.destination.service.response_time.histogram";
+    public static final String DURATION_HISTOGRAM_METRIC = "span.duration.histogram";
     private static long lastSpanMaxWarningTimestamp;
-    private final StacktraceConfigurationImpl stacktraceConfiguration;
 
     /**
      * A subtype describing this span (eg 'mysql', 'elasticsearch', 'jsf' etc)
@@ -83,6 +84,12 @@ public class SpanImpl extends AbstractSpanImpl<SpanImpl> implements Recyclable,
     private TransactionImpl transaction;
     @Nullable
     private List<StackFrame> stackFrames;
+    /**
+     * Reused to look up the metric sets when recording the duration of this span in histograms.
+     * Only created when histograms are recorded so that pooled spans don't carry it otherwise.
+     */
+    @Nullable
+    private Labels.Mutable metricLabels;
 
     private final Set<SpanEndListener<? super SpanImpl>> endListeners =
         Collections.newSetFromMap(new ConcurrentHashMap<SpanEndListener<? super SpanImpl>, Boolean>());
@@ -101,7 +108,6 @@ public class SpanImpl extends AbstractSpanImpl<SpanImpl> implements Recyclable,
 
     public SpanImpl(ElasticApmTracer tracer) {
         super(tracer);
-        this.stacktraceConfiguration = tracer.getConfig(StacktraceConfigurationImpl.class);
     }
 
     public <T> SpanImpl start(TraceContextImpl.ChildContextCreator<T> childContextCreator, T parentContext, BaggageImpl parentBaggage, long epochMicros) {
@@ -115,6 +121,8 @@ public class SpanImpl extends AbstractSpanImpl<SpanImpl> implements Recyclable,
             this.parent = parentSpan;
             this.transaction = parentSpan.transaction;
         }
+        // spans share the configuration their transaction has been started with
+        configurationSnapshot = transaction != null ? transaction.getConfigurationSnapshot() : captureConfigurationSnapshot();
         return start(epochMicros);
     }
 
@@ -125,7 +133,7 @@ public class SpanImpl extends AbstractSpanImpl<SpanImpl> implements Recyclable,
                 if (epochMicros - lastSpanMaxWarningTimestamp > MAX_LOG_INTERVAL_MICRO_SECS) {
                     lastSpanMaxWarningTimestamp = epochMicros;
                     logger.warn("Max spans ({}) for transaction {} has been reached. For this transaction and possibly others, further spans will be dropped. See config param 'transaction_max_spans'.",
-                        tracer.getConfig(CoreConfigurationImpl.class).getTransactionMaxSpans(), transaction);
+                        transaction.getConfigurationSnapshot().getTransactionMaxSpans(), transaction);
                 }
                 logger.debug("Span exceeds transaction_max_spans {}", this);
                 traceContext.setRecorded(false);
@@ -302,7 +310,7 @@ public class SpanImpl extends AbstractSpanImpl<SpanImpl> implements Recyclable,
     @Override
     protected void afterEnd() {
         // capture stack trace when the span ends, relies on this method being called synchronously from the instrumentation
-        long spanStackTraceMinDurationMs = stacktraceConfiguration.getSpanStackTraceMinDurationMs();
+        long spanStackTraceMinDurationMs = getConfigurationSnapshot().getSpanStackTraceMinDurationMs();
         if (spanStackTraceMinDurationMs >= 0 && isSampled() && stackFrames == null) {
             if (getDurationMs() >= spanStackTraceMinDurationMs) {
                 this.stacktrace = new Throwable();
@@ -523,6 +531,71 @@ public class SpanImpl extends AbstractSpanImpl<SpanImpl> implements Recyclable,
         stackFrames = null;
     }
 
+    /**
+     * Records the duration of this exit span in a latency histogram for its service target and outcome.
+     * <p>
+     * Other than {@link DroppedSpanStats}, which are reported with the transaction,
+     * the histogram aggregates the spans of all transactions and is reported every {@code metrics_interval}.
+     * </p>
+     */
+    public void aggregateDestinationDuration() {
+        ServiceTargetImpl serviceTarget = context.getServiceTarget();
+        if (!isExit() || !serviceTarget.hasContent()) {
+            return;
+        }
+        Labels.Mutable labels = resetMetricLabels();
+        labels.spanType(type).spanSubType(subtype)
+            .add("service_target_type", Objects.requireNonNull(serviceTarget.getType()));
+        CharSequence serviceTargetName = serviceTarget.getName();
+        if (serviceTargetName != null) {
+            labels.add("service_target_name", serviceTargetName);
+        }
+        labels.add("outcome", getOutcome().toString());
+        updateHistogram(DESTINATION_HISTOGRAM_METRIC, labels);
+    }
+
+    /**
+     * Records the duration of this span in a histogram for the name and type of its transaction and the type and subtype of this span.
+     * <p>
+     * Other than the breakdown metrics, this is done when the span ends, so the histogram uses the transaction name at this point in time.
+     * </p>
+     */
+    public void updateDurationHistogram() {
+        TransactionImpl transaction = this.transaction;
+        if (!collectDurationHistograms || transaction == null || transaction.getType() == null) {
+            return;
+        }
+        Labels.Mutable labels = resetMetricLabels();
+        labels.serviceName(traceContext.getServiceName())
+            .serviceVersion(traceContext.getServiceVersion())
+            .transactionName(transaction.name)
+            .transactionType(transaction.getType())
+            .spanType(type)
+            .spanSubType(subtype);
+        updateHistogram(DURATION_HISTOGRAM_METRIC, labels);
+    }
+
+    private Labels.Mutable resetMetricLabels() {
+        Labels.Mutable labels = metricLabels;
+        if (labels == null) {
+            labels = metricLabels = Labels.Mutable.of();
+        } else {
+            labels.resetState();
+        }
+        return labels;
+    }
+
+    private void updateHistogram(String histogramName, Labels labels) {
+        MetricRegistry metricRegistry = tracer.getMetricRegistry();
+        if (isComposite()) {
+            // the individual durations of compressed spans are not known, their average is the best approximation
+            int count = composite.getCount();
+            metricRegistry.updateHistogram(histogramName, labels, getDuration() / count, count);
+        } else {
+            metricRegistry.updateHistogram(histogramName, labels, getDuration());
+        }
+    }
+
     @Override
     public String toString() {
         return String.format("'%s' %s (%s)", name, traceContext, Integer.toHexString(System.identityHashCode(this)));
@@ -22,6 +22,7 @@ import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.baggage.BaggageImpl;
 import co.elastic.apm.agent.impl.sampling.Sampler;
+import co.elastic.apm.agent.report.ReporterConfigurationImpl;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import co.elastic.apm.agent.tracer.TraceContext;
@@ -189,6 +190,17 @@ public class TraceContextImpl implements Recyclable, TraceContext {
     // ???????1 -> maybe recorded
     // ???????0 -> not recorded
     private static final byte FLAG_RECORDED = 0b0000_0001;
+    /**
+     * Internal flag for traces which are recorded locally although the sampler did not sample them,
+     * so that the reporter can decide whether to report them when the local root transaction ends.
+     * It is never propagated to downstream services, which consider these traces as not sampled.
+     */
+    private static final byte FLAG_TAIL_SAMPLING = (byte) 0b1000_0000;
+    /**
+     * Traces which are reported based on a tail sampling decision have a sample rate of 0 so that they are not
+     * taken into account when extrapolating metrics from the head-sampled traces.
+     */
+    private static final String TAIL_SAMPLING_TRACESTATE_HEADER = TraceState.getHeaderValue(0);
     private final IdImpl traceId = IdImpl.new128BitId();
     private final ElasticApmTracer tracer;
     private final IdImpl id;
@@ -197,6 +209,7 @@ public class TraceContextImpl implements Recyclable, TraceContext {
     private final StringBuilder outgoingTextHeader = new StringBuilder(TEXT_HEADER_EXPECTED_LENGTH);
     private byte flags;
     private boolean discardable = true;
+    private final boolean tailSampling;
 
     private final TraceState traceState;
 
@@ -207,7 +220,7 @@ public class TraceContextImpl implements Recyclable, TraceContext {
      *
      * @see EpochTickClock
      */
-    private final EpochTickClock clock = new EpochTickClock();
+    private final EpochTickClock clock;
 
     @Nullable
     private String serviceName;
@@ -219,8 +232,10 @@ public class TraceContextImpl implements Recyclable, TraceContext {
         coreConfiguration = tracer.getConfig(CoreConfigurationImpl.class);
         traceState = new TraceState();
         traceState.setSizeLimit(coreConfiguration.getTracestateSizeLimit());
+        tailSampling = tracer.getConfig(ReporterConfigurationImpl.class).isTailSampling();
         this.tracer = tracer;
         this.id = id;
+        clock = new EpochTickClock(tracer.getCoarseNanoClock());
     }
 
     /**
@@ -316,7 +331,7 @@ public class TraceContextImpl implements Recyclable, TraceContext {
             // TODO don't blindly trust the flags from the caller
             // consider implement rate limiting and/or having a list of trusted sources
             // trace the request if it's either requested or if the parent has recorded it
-            flags = charAccessor.readHexByte(traceParentHeader, TEXT_HEADER_FLAGS_OFFSET + leadingWs);
+            flags = (byte) (charAccessor.readHexByte(traceParentHeader, TEXT_HEADER_FLAGS_OFFSET + leadingWs) & ~FLAG_TAIL_SAMPLING);
             clock.init();
             return true;
         } catch (IllegalArgumentException e) {
@@ -341,9 +356,11 @@ public class TraceContextImpl implements Recyclable, TraceContext {
         traceId.setToRandomValue();
         id.setToRandomValue();
         transactionId.copyFrom(id);
-        if (sampler.isSampled(traceId)) {
+        if (sampler.isSampled(traceId, traceState)) {
             flags = FLAG_RECORDED;
-            traceState.set(sampler.getSampleRate(), sampler.getTraceStateHeader());
+        } else if (tailSampling) {
+            flags = FLAG_RECORDED | FLAG_TAIL_SAMPLING;
+            traceState.set(0, TAIL_SAMPLING_TRACESTATE_HEADER);
         }
         clock.init();
         onMutation();
@@ -433,6 +450,16 @@ public class TraceContextImpl implements Recyclable, TraceContext {
         return (flags & FLAG_RECORDED) == FLAG_RECORDED;
     }
 
+    /**
+     * Returns {@code true} if this trace is recorded although it has not been sampled, so that the reporter can decide
+     * whether to report it when the local root transaction ends.
+     *
+     * @return {@code true} if the reporting of this trace depends on a tail sampling decision
+     */
+    public boolean isRecordedForTailSampling() {
+        return (flags & FLAG_TAIL_SAMPLING) == FLAG_TAIL_SAMPLING;
+    }
+
     void setRecorded(boolean recorded) {
         if (recorded) {
             flags |= FLAG_RECORDED;
@@ -531,7 +558,7 @@ public class TraceContextImpl implements Recyclable, TraceContext {
                     // for unsampled traces, propagate the ID of the transaction in calls to downstream services
                     // such that the parentID of those transactions point to a transaction that exists
                     // remember that we do report unsampled transactions
-                    fillTraceParentHeader(outgoingTextHeader, isSampled() ? id : transactionId);
+                    fillTraceParentHeader(outgoingTextHeader, isSampled() && !isRecordedForTailSampling() ? id : transactionId);
                 }
             }
         }
@@ -544,7 +571,7 @@ public class TraceContextImpl implements Recyclable, TraceContext {
         sb.append('-');
         spanId.writeAsHex(sb);
         sb.append('-');
-        HexUtils.writeByteAsHex(flags, sb);
+        HexUtils.writeByteAsHex(getFlags(), sb);
     }
 
     public boolean isChildOf(TraceContextImpl other) {
@@ -690,7 +717,13 @@ public class TraceContextImpl implements Recyclable, TraceContext {
         return id.dataEquals(serialized, traceId.getLength()) && traceId.dataEquals(serialized, 0);
     }
 
+    /**
+     * @return the W3C trace flags, as propagated to downstream services
+     */
     public byte getFlags() {
+        if (isRecordedForTailSampling()) {
+            return (byte) (flags & ~(FLAG_RECORDED | FLAG_TAIL_SAMPLING));
+        }
         return flags;
     }
 
@@ -20,7 +20,6 @@ package co.elastic.apm.agent.impl.transaction;
 
 import co.elastic.apm.agent.common.util.WildcardMatcher;
 import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
-import co.elastic.apm.agent.configuration.SpanConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.baggage.BaggageImpl;
 import co.elastic.apm.agent.impl.baggage.W3CBaggagePropagation;
@@ -50,6 +49,8 @@ import static co.elastic.apm.agent.configuration.CoreConfigurationImpl.TraceCont
  */
 public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implements Transaction<TransactionImpl> {
 
+    public static final String DURATION_HISTOGRAM_METRIC = "transaction.duration.histogram";
+
     /**
      * Mutable labels instance used when reporting transaction metrics.
      * This is a field to prevent allocations.
@@ -76,7 +77,6 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
     private final KeyListConcurrentHashMap<String, KeyListConcurrentHashMap<String, Timer>> timerBySpanTypeAndSubtype = new KeyListConcurrentHashMap<>();
     private final WriterReaderPhaser phaser = new WriterReaderPhaser();
     private final CoreConfigurationImpl coreConfig;
-    private final SpanConfiguration spanConfig;
 
     /**
      * The result of the transaction. HTTP status code for HTTP-related
@@ -90,14 +90,6 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
      */
     private boolean noop;
 
-    private int maxSpans;
-
-    private boolean spanCompressionEnabled;
-
-    private long spanCompressionExactMatchMaxDurationUs;
-
-    private long spanCompressionSameKindMaxDurationUs;
-
     @Nullable
     private String frameworkName;
 
@@ -128,10 +120,10 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
     public TransactionImpl(ElasticApmTracer tracer) {
         super(tracer);
         coreConfig = tracer.getConfig(CoreConfigurationImpl.class);
-        spanConfig = tracer.getConfig(SpanConfiguration.class);
     }
 
     public <T> TransactionImpl startRoot(long epochMicros, Sampler sampler, BaggageImpl baggage) {
+        configurationSnapshot = captureConfigurationSnapshot();
         this.baggage = baggage;
         traceContext.asRootSpan(sampler);
         onTransactionStart(epochMicros);
@@ -148,10 +140,11 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
         if (parent == null) {
             return startRoot(epochMicros, sampler, baseBaggage);
         }
+        configurationSnapshot = captureConfigurationSnapshot();
         BaggageImpl.Builder baggageBuilder = baseBaggage.toBuilder();
         W3CBaggagePropagation.parse(parent, headerGetter, baggageBuilder);
         this.baggage = baggageBuilder.build();
-        CoreConfigurationImpl.TraceContinuationStrategy traceContinuationStrategy = coreConfig.getTraceContinuationStrategy();
+        CoreConfigurationImpl.TraceContinuationStrategy traceContinuationStrategy = getConfigurationSnapshot().getTraceContinuationStrategy();
         boolean restartTrace = false;
         if (traceContinuationStrategy.equals(RESTART)) {
             restartTrace = true;
@@ -174,11 +167,6 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
     }
 
     private void onTransactionStart(long epochMicros) {
-        maxSpans = coreConfig.getTransactionMaxSpans();
-        spanCompressionEnabled = spanConfig.isSpanCompressionEnabled();
-        spanCompressionExactMatchMaxDurationUs = spanConfig.getSpanCompressionExactMatchMaxDuration().getMicros();
-        spanCompressionSameKindMaxDurationUs = spanConfig.getSpanCompressionSameKindMaxDuration().getMicros();
-
         if (epochMicros >= 0) {
             setStartTimestamp(epochMicros);
         } else {
@@ -188,6 +176,7 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
     }
 
     public TransactionImpl startNoop() {
+        configurationSnapshot = captureConfigurationSnapshot();
         this.name.append("noop");
         this.noop = true;
         onAfterStart();
@@ -309,7 +298,7 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
 
 
     public boolean checkSkipChildSpanCreation() {
-        boolean drop = spanCount.isSpanLimitReached(maxSpans);
+        boolean drop = spanCount.isSpanLimitReached(getConfigurationSnapshot().getTransactionMaxSpans());
         if (drop) {
             // when dropping, the caller is expected to optimize and avoid span creation. As a consequence we have
             // to artificially increase those counters to make it as if the span was actually created and dropped
@@ -321,7 +310,7 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
     }
 
      boolean isSpanLimitReached() {
-        return getSpanCount().isSpanLimitReached(maxSpans);
+        return getSpanCount().isSpanLimitReached(getConfigurationSnapshot().getTransactionMaxSpans());
     }
 
     public KeyListConcurrentHashMap<String, KeyListConcurrentHashMap<String, Timer>> getTimerBySpanTypeAndSubtype() {
@@ -336,10 +325,6 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
         spanCount.resetState();
         droppedSpanStats.resetState();
         noop = false;
-        maxSpans = 0;
-        spanCompressionEnabled = false;
-        spanCompressionExactMatchMaxDurationUs = 0L;
-        spanCompressionSameKindMaxDurationUs = 0L;
         frameworkName = null;
         frameworkVersion = null;
         faas.resetState();
@@ -447,15 +432,15 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
     }
 
     public boolean isSpanCompressionEnabled() {
-        return spanCompressionEnabled;
+        return getConfigurationSnapshot().isSpanCompressionEnabled();
     }
 
     public long getSpanCompressionExactMatchMaxDurationUs() {
-        return spanCompressionExactMatchMaxDurationUs;
+        return getConfigurationSnapshot().getSpanCompressionExactMatchMaxDurationUs();
     }
 
     public long getSpanCompressionSameKindMaxDurationUs() {
-        return spanCompressionSameKindMaxDurationUs;
+        return getConfigurationSnapshot().getSpanCompressionSameKindMaxDurationUs();
     }
 
     @Override
@@ -530,6 +515,9 @@ public class TransactionImpl extends AbstractSpanImpl<TransactionImpl> implement
             final MetricRegistry metricRegistry = tracer.getMetricRegistry();
             long criticalValueAtEnter = metricRegistry.writerCriticalSectionEnter();
             try {
+                if (collectDurationHistograms) {
+                    metricRegistry.updateHistogram(DURATION_HISTOGRAM_METRIC, labelsMutable, getDuration());
+                }
                 if (collectBreakdownMetrics) {
                     List<String> types = timerBySpanTypeAndSubtype.keyList();
                     for (int i = 0; i < types.size(); i++) {
@@ -0,0 +1,124 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import co.elastic.apm.agent.tracer.pooling.Recyclable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of microsecond durations with a fixed memory footprint.
+ * <p>
+ * Values are counted in log-linear buckets:
+ * each power of two is split into {@link #SUB_BUCKET_COUNT} equally wide buckets,
+ * which bounds the relative error of a recorded value to {@code 1 / SUB_BUCKET_COUNT} (12.5%).
+ * Values below {@link #SUB_BUCKET_COUNT} are counted exactly and values larger than {@link #MAX_TRACKABLE_VALUE}
+ * are counted in the highest bucket.
+ * </p>
+ * <p>
+ * Updates are a single atomic increment so that recording is cheap enough to be done for every span.
+ * </p>
+ */
+public class Histogram implements Recyclable {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    /**
+     * About 12.7 days when recording microseconds
+     */
+    static final long MAX_TRACKABLE_VALUE = (1L << MAX_EXPONENT) - 1;
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    public void update(long durationUs) {
+        update(durationUs, 1);
+    }
+
+    public void update(long durationUs, long count) {
+        counts.addAndGet(getBucketIndex(durationUs), count);
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return value < 0 ? 0 : (int) value;
+        }
+        if (value > MAX_TRACKABLE_VALUE) {
+            return BUCKET_COUNT - 1;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * @param index the bucket index, between {@code 0} and {@link #getNumberOfBuckets()} (exclusive)
+     * @return the smallest value that is counted in the bucket
+     */
+    static long getBucketLowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        return (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+    }
+
+    /**
+     * @param index the bucket index, between {@code 0} and {@link #getNumberOfBuckets()} (exclusive)
+     * @return the value that represents the bucket when reporting, which is the middle of the bucket's range
+     */
+    public double getBucketValue(int index) {
+        long lowerBound = getBucketLowerBound(index);
+        long upperBound = index + 1 < BUCKET_COUNT ? getBucketLowerBound(index + 1) - 1 : MAX_TRACKABLE_VALUE;
+        return (lowerBound + upperBound) / 2.0;
+    }
+
+    public long getBucketCount(int index) {
+        return counts.get(index);
+    }
+
+    public int getNumberOfBuckets() {
+        return BUCKET_COUNT;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public boolean hasContent() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (counts.get(i) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void resetState() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+    }
+}
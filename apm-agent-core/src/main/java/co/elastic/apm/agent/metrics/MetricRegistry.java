@@ -38,8 +38,7 @@ import java.util.concurrent.ConcurrentMap;
 /**
  * A registry for metrics.
  * <p>
- * Currently only holds gauges.
- * There are plans to add support for histogram-based timers.
+ * Holds gauges, timers, counters and histograms.
  * </p>
  */
 public class MetricRegistry {
@@ -226,6 +225,29 @@ public class MetricRegistry {
         }
     }
 
+    /**
+     * Records a duration in a {@link Histogram} so that percentiles can be computed from the reported buckets.
+     *
+     * @param histogramName the name of the metric
+     * @param labels        labels for the metric
+     * @param durationUs    the duration to record, in microseconds
+     */
+    public void updateHistogram(String histogramName, Labels labels, long durationUs) {
+        updateHistogram(histogramName, labels, durationUs, 1);
+    }
+
+    public void updateHistogram(String histogramName, Labels labels, long durationUs, long count) {
+        long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
+        try {
+            final MetricSet metricSet = getOrCreateMetricSet(labels);
+            if (metricSet != null) {
+                metricSet.histogram(histogramName).update(durationUs, count);
+            }
+        } finally {
+            phaser.writerCriticalSectionExit(criticalValueAtEnter);
+        }
+    }
+
     /*
      * Must always be executed in context of a critical section so that the
      * activeMetricSets and inactiveMetricSets reference can't swap while this method runs
@@ -244,7 +266,7 @@ public class MetricRegistry {
 
     @Nonnull
     private MetricSet createMetricSet(Labels.Immutable labelsCopy) {
-        // Gauges are the only metric types which are not reset after each report (as opposed to counters and timers)
+        // Gauges are the only metric types which are not reset after each report (as opposed to counters, timers and histograms)
         // that's why both metric sets have to contain the exact same gauges.
         // we can't access inactiveMetricSets as it might be swapped as this method is executed
         // inactiveMetricSets is only stable after flipping the phase (phaser.flipPhase)
@@ -0,0 +1,101 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.metrics.MetricCollector;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.metrics.MetricsProvider;
+import co.elastic.apm.agent.objectpool.ObjectPoolSizer;
+import co.elastic.apm.agent.tracer.AbstractLifecycleListener;
+import co.elastic.apm.agent.tracer.Tracer;
+import co.elastic.apm.agent.tracer.metrics.Labels;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Reports the occupancy and the allocations of the object pools sized by the {@link ObjectPoolSizer}.
+ */
+public class AgentObjectPoolMetrics extends AbstractLifecycleListener implements MetricsProvider {
+
+    private static final String POOLED_OBJECTS_METRIC = "agent.objectpool.objects.pooled";
+    private static final String DEMANDED_OBJECTS_METRIC = "agent.objectpool.objects.demand";
+    private static final String ALLOCATED_OBJECTS_METRIC = "agent.objectpool.objects.allocated";
+
+    private boolean pooledObjectsMetricEnabled;
+    private boolean demandedObjectsMetricEnabled;
+    private boolean allocatedObjectsMetricEnabled;
+
+    private ObjectPoolSizer objectPoolSizer;
+
+    /**
+     * Only accessed by the metrics reporter
+     */
+    private final Map<ObjectPoolSizer.SizedPool, PoolState> poolStates = new IdentityHashMap<>();
+
+    private static class PoolState {
+        final Labels labels;
+        long lastReportedObjectsAllocated;
+
+        private PoolState(Labels labels) {
+            this.labels = labels;
+        }
+    }
+
+    @Override
+    public void start(Tracer tracer) {
+        ElasticApmTracer apmTracer = tracer.require(ElasticApmTracer.class);
+        bindTo(apmTracer.getMetricRegistry(), tracer.getConfig(MetricsConfigurationImpl.class), apmTracer.getObjectPoolSizer());
+    }
+
+    void bindTo(MetricRegistry metricRegistry, MetricsConfigurationImpl config, ObjectPoolSizer objectPoolSizer) {
+        boolean overheadMetricsEnabled = config.isOverheadMetricsEnabled();
+        this.objectPoolSizer = objectPoolSizer;
+        pooledObjectsMetricEnabled = overheadMetricsEnabled && !metricRegistry.isDisabled(POOLED_OBJECTS_METRIC);
+        demandedObjectsMetricEnabled = overheadMetricsEnabled && !metricRegistry.isDisabled(DEMANDED_OBJECTS_METRIC);
+        allocatedObjectsMetricEnabled = overheadMetricsEnabled && !metricRegistry.isDisabled(ALLOCATED_OBJECTS_METRIC);
+        if (pooledObjectsMetricEnabled || demandedObjectsMetricEnabled || allocatedObjectsMetricEnabled) {
+            metricRegistry.addMetricsProvider(this);
+        }
+    }
+
+    @Override
+    public void collectAndReset(MetricCollector collector) {
+        for (ObjectPoolSizer.SizedPool pool : objectPoolSizer.getPools()) {
+            PoolState state = poolStates.get(pool);
+            if (state == null) {
+                state = new PoolState(Labels.Mutable.of("pool_name", pool.getName()).immutableCopy());
+                poolStates.put(pool, state);
+            }
+            if (pooledObjectsMetricEnabled) {
+                collector.addMetricValue(POOLED_OBJECTS_METRIC, state.labels, pool.getPool().getObjectsInPool());
+            }
+            if (demandedObjectsMetricEnabled) {
+                collector.addMetricValue(DEMANDED_OBJECTS_METRIC, state.labels, Math.ceil(pool.getDemand()));
+            }
+            if (allocatedObjectsMetricEnabled) {
+                long objectsAllocated = pool.getPool().getObjectsAllocated();
+                collector.addMetricValue(ALLOCATED_OBJECTS_METRIC, state.labels, objectsAllocated - state.lastReportedObjectsAllocated);
+                state.lastReportedObjectsAllocated = objectsAllocated;
+            }
+        }
+    }
+}
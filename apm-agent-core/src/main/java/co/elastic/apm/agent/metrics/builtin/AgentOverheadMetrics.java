@@ -414,7 +414,44 @@ public class AgentOverheadMetrics extends AbstractLifecycleListener implements E
         return time;
     }
 
-    private long getProcessCpuTime() {
+    /**
+     * Enables the measurement of the CPU time of agent background threads,
+     * independently of whether the {@code agent.background.cpu.*} metrics are enabled.
+     *
+     * @return {@code true} if the CPU time of the process and of the agent background threads can be measured
+     */
+    public boolean enableCpuTimeMeasurement() {
+        return getProcessCpuTime() != NO_VALUE && enableThreadCpuTimeMeasurement();
+    }
+
+    /**
+     * Returns the CPU time consumed by the agent background threads which are currently alive.
+     * As opposed to the metrics, this does not reset any state, so that it can be used concurrently.
+     *
+     * @return the CPU time in nanoseconds, or {@code -1} if it can't be measured
+     * @see #enableCpuTimeMeasurement()
+     */
+    public long getBackgroundCpuTime() {
+        if (!threadBean.isThreadCpuTimeSupported() || !threadBean.isThreadCpuTimeEnabled()) {
+            return NO_VALUE;
+        }
+        long cpuTime = 0;
+        for (Map.Entry<Thread, String> threadWithPurpose : ExecutorUtils.getStartedThreads()) {
+            Thread thread = threadWithPurpose.getKey();
+            if (thread.isAlive()) {
+                long threadCpuTime = getThreadCpuTime(thread);
+                if (threadCpuTime != NO_VALUE) {
+                    cpuTime += threadCpuTime;
+                }
+            }
+        }
+        return cpuTime;
+    }
+
+    /**
+     * @return the CPU time in nanoseconds consumed by the whole process, or {@code -1} if it can't be measured
+     */
+    public long getProcessCpuTime() {
         if (getProcessCpuTime == null) {
             return NO_VALUE;
         }
@@ -31,6 +31,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class AgentReporterMetrics implements ReporterMonitor {
 
@@ -40,23 +42,35 @@ public class AgentReporterMetrics implements ReporterMonitor {
 
     private static final String TOTAL_EVENTS_METRIC = "agent.events.total";
     private static final String DROPPED_EVENTS_METRIC = "agent.events.dropped";
+    private static final String SPOOLED_EVENTS_METRIC = "agent.events.spooled";
 
     private static final String MAX_QUEUE_SIZE_METRIC = "agent.events.queue.max_size.pct";
     private static final String MIN_QUEUE_SIZE_METRIC = "agent.events.queue.min_size.pct";
+    private static final String OVERFLOWED_QUEUE_EVENTS_METRIC = "agent.events.queue.overflowed";
+    private static final String DROPPED_QUEUE_EVENTS_METRIC = "agent.events.queue.dropped";
 
     private static final String REQUEST_COUNT_METRIC = "agent.events.requests.count";
     private static final String REQUEST_BYTES_METRIC = "agent.events.requests.bytes";
+    private static final String COMPRESSION_LEVEL_METRIC = "agent.events.requests.compression.level";
+    private static final String TAIL_SAMPLING_METRIC = "agent.events.tail_sampling.traces";
 
     private final boolean totalEventsMetricEnabled;
     private final boolean droppedEventsMetricEnabled;
+    private final boolean spooledEventsMetricEnabled;
 
     private final boolean minQueueSizeMetricEnabled;
 
     private final boolean maxQueueSizeMetricEnabled;
+    private final boolean overflowedQueueEventsMetricEnabled;
+    private final boolean droppedQueueEventsMetricEnabled;
     private final boolean requestCountMetricEnabled;
 
     private final boolean requestBytesMetricEnabled;
 
+    private final boolean compressionLevelMetricEnabled;
+
+    private final boolean tailSamplingMetricEnabled;
+
 
     private static final Labels QUEUE_REASON_LABEL = Labels.Mutable.of("reason", "queue").immutableCopy();
     private static final Labels ERROR_REASON_LABEL = Labels.Mutable.of("reason", "error").immutableCopy();
@@ -73,33 +87,54 @@ public class AgentReporterMetrics implements ReporterMonitor {
     private static final Labels GENERIC_QUEUE_LABEL = Labels.Mutable.of("queue_name", "generic").immutableCopy();
 
 
-    private volatile double currentQueueUtilization = 0;
-    private final AtomicDouble maxQueueSize = new AtomicDouble(0.0);
-    private final AtomicDouble minQueueSize = new AtomicDouble(0.0);
+    private final QueueUtilization queueUtilization = new QueueUtilization(GENERIC_QUEUE_LABEL);
+    /**
+     * The utilization of each lane, if the queue is split into priority lanes
+     */
+    private final ConcurrentMap<String, QueueUtilization> laneUtilizations = new ConcurrentHashMap<>();
+    /**
+     * The deflate level of intake requests, or {@code -1} if adaptive compression did not change the level yet
+     */
+    private volatile int compressionLevel = -1;
+    /**
+     * The labels for each tail sampling decision
+     */
+    private final ConcurrentMap<String, Labels> tailSamplingDecisionLabels = new ConcurrentHashMap<>();
 
     public AgentReporterMetrics(final MetricRegistry registry, MetricsConfigurationImpl configuration) {
         this.metricRegistry = registry;
         boolean allEnabled = configuration.isReporterHealthMetricsEnabled();
         this.totalEventsMetricEnabled = allEnabled && !registry.isDisabled(TOTAL_EVENTS_METRIC);
         this.droppedEventsMetricEnabled = allEnabled && !registry.isDisabled(DROPPED_EVENTS_METRIC);
+        this.spooledEventsMetricEnabled = allEnabled && !registry.isDisabled(SPOOLED_EVENTS_METRIC);
         this.minQueueSizeMetricEnabled = allEnabled && !registry.isDisabled(MIN_QUEUE_SIZE_METRIC);
         this.maxQueueSizeMetricEnabled = allEnabled && !registry.isDisabled(MAX_QUEUE_SIZE_METRIC);
+        this.overflowedQueueEventsMetricEnabled = allEnabled && !registry.isDisabled(OVERFLOWED_QUEUE_EVENTS_METRIC);
+        this.droppedQueueEventsMetricEnabled = allEnabled && !registry.isDisabled(DROPPED_QUEUE_EVENTS_METRIC);
         this.requestCountMetricEnabled = allEnabled && !registry.isDisabled(REQUEST_COUNT_METRIC);
         this.requestBytesMetricEnabled = allEnabled && !registry.isDisabled(REQUEST_BYTES_METRIC);
+        this.compressionLevelMetricEnabled = allEnabled && !registry.isDisabled(COMPRESSION_LEVEL_METRIC);
+        this.tailSamplingMetricEnabled = allEnabled && !registry.isDisabled(TAIL_SAMPLING_METRIC);
 
         if (anyQueueSizeMetricEnabled()) {
             registry.addMetricsProvider(new MetricsProvider() {
                 @Override
                 public void collectAndReset(MetricCollector collector) {
-                    if (minQueueSizeMetricEnabled) {
-                        collector.addMetricValue(MIN_QUEUE_SIZE_METRIC, GENERIC_QUEUE_LABEL, minQueueSize.get());
+                    queueUtilization.collectAndReset(collector);
+                    for (QueueUtilization laneUtilization : laneUtilizations.values()) {
+                        laneUtilization.collectAndReset(collector);
                     }
-                    if (maxQueueSizeMetricEnabled) {
-                        collector.addMetricValue(MAX_QUEUE_SIZE_METRIC, GENERIC_QUEUE_LABEL, maxQueueSize.get());
+                }
+            });
+        }
+        if (compressionLevelMetricEnabled) {
+            registry.addMetricsProvider(new MetricsProvider() {
+                @Override
+                public void collectAndReset(MetricCollector collector) {
+                    int level = compressionLevel;
+                    if (level >= 0) {
+                        collector.addMetricValue(COMPRESSION_LEVEL_METRIC, Labels.EMPTY, level);
                     }
-                    double currentUtilization = currentQueueUtilization;
-                    minQueueSize.set(currentUtilization);
-                    maxQueueSize.set(currentUtilization);
                 }
             });
         }
@@ -118,10 +153,7 @@ public class AgentReporterMetrics implements ReporterMonitor {
 
     private void updateQueueMetric(long queueCapacity, long queueSize) {
         if (anyQueueSizeMetricEnabled()) {
-            double queueUtilization = ((double) queueSize) / queueCapacity;
-            currentQueueUtilization = queueUtilization;
-            maxQueueSize.setWeakMax(queueUtilization);
-            minQueueSize.setWeakMin(queueUtilization);
+            queueUtilization.update(queueCapacity, queueSize);
         }
     }
 
@@ -151,6 +183,15 @@ public class AgentReporterMetrics implements ReporterMonitor {
         }
     }
 
+    @Override
+    public void eventSpooled(ReportingEvent.ReportingEventType eventType) {
+        if (spooledEventsMetricEnabled) {
+            Labels label = getLabelFor(eventType);
+            if (label != null) {
+                metricRegistry.incrementCounter(SPOOLED_EVENTS_METRIC, label);
+            }
+        }
+    }
 
     @Override
     public void requestFinished(ReportingEventCounter requestContent, long acceptedEventCount, long bytesWritten, boolean success) {
@@ -171,6 +212,53 @@ public class AgentReporterMetrics implements ReporterMonitor {
         }
     }
 
+    @Override
+    public void laneUtilizationChanged(String laneName, long laneCapacity, long laneSize) {
+        if (anyQueueSizeMetricEnabled()) {
+            getLaneUtilization(laneName).update(laneCapacity, laneSize);
+        }
+    }
+
+    private QueueUtilization getLaneUtilization(String laneName) {
+        QueueUtilization laneUtilization = laneUtilizations.get(laneName);
+        if (laneUtilization == null) {
+            laneUtilizations.putIfAbsent(laneName, new QueueUtilization(Labels.Mutable.of("queue_name", laneName).immutableCopy()));
+            laneUtilization = laneUtilizations.get(laneName);
+        }
+        return laneUtilization;
+    }
+
+    @Override
+    public void eventOverflowedLane(String laneName, ReportingEvent.ReportingEventType eventType) {
+        if (overflowedQueueEventsMetricEnabled) {
+            metricRegistry.incrementCounter(OVERFLOWED_QUEUE_EVENTS_METRIC, getLaneUtilization(laneName).labels);
+        }
+    }
+
+    @Override
+    public void eventDroppedFromLane(String laneName, ReportingEvent.ReportingEventType eventType) {
+        if (droppedQueueEventsMetricEnabled) {
+            metricRegistry.incrementCounter(DROPPED_QUEUE_EVENTS_METRIC, getLaneUtilization(laneName).labels);
+        }
+    }
+
+    @Override
+    public void compressionLevelChanged(int level) {
+        compressionLevel = level;
+    }
+
+    @Override
+    public void tailSamplingDecision(String decision) {
+        if (tailSamplingMetricEnabled) {
+            Labels labels = tailSamplingDecisionLabels.get(decision);
+            if (labels == null) {
+                tailSamplingDecisionLabels.putIfAbsent(decision, Labels.Mutable.of("decision", decision).immutableCopy());
+                labels = tailSamplingDecisionLabels.get(decision);
+            }
+            metricRegistry.incrementCounter(TAIL_SAMPLING_METRIC, labels);
+        }
+    }
+
     // package-protected for tests
     @Nullable
     static Labels getLabelFor(ReportingEvent.ReportingEventType type) {
@@ -198,5 +286,39 @@ public class AgentReporterMetrics implements ReporterMonitor {
     private boolean anyQueueSizeMetricEnabled() {
         return maxQueueSizeMetricEnabled || minQueueSizeMetricEnabled;
     }
+
+    /**
+     * Tracks the minimum and maximum utilization of a queue between two metric reports.
+     */
+    private class QueueUtilization {
+
+        private final Labels labels;
+        private volatile double currentUtilization = 0;
+        private final AtomicDouble maxUtilization = new AtomicDouble(0.0);
+        private final AtomicDouble minUtilization = new AtomicDouble(0.0);
+
+        private QueueUtilization(Labels labels) {
+            this.labels = labels;
+        }
+
+        void update(long queueCapacity, long queueSize) {
+            double utilization = ((double) queueSize) / queueCapacity;
+            currentUtilization = utilization;
+            maxUtilization.setWeakMax(utilization);
+            minUtilization.setWeakMin(utilization);
+        }
+
+        void collectAndReset(MetricCollector collector) {
+            if (minQueueSizeMetricEnabled) {
+                collector.addMetricValue(MIN_QUEUE_SIZE_METRIC, labels, minUtilization.get());
+            }
+            if (maxQueueSizeMetricEnabled) {
+                collector.addMetricValue(MAX_QUEUE_SIZE_METRIC, labels, maxUtilization.get());
+            }
+            double utilization = currentUtilization;
+            minUtilization.set(utilization);
+            maxUtilization.set(utilization);
+        }
+    }
 }
 
@@ -0,0 +1,105 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.bci.AdviceTimer;
+import co.elastic.apm.agent.bci.ElasticApmAgent;
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.metrics.MetricCollector;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.metrics.MetricsProvider;
+import co.elastic.apm.agent.tracer.AbstractLifecycleListener;
+import co.elastic.apm.agent.tracer.Tracer;
+import co.elastic.apm.agent.tracer.metrics.Labels;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Reports the time spent in the advices of each instrumentation group, as measured by the {@link AdviceTimer}s.
+ * As only every n-th invocation is timed, the reported values are extrapolated from the timed invocations.
+ */
+public class InstrumentationOverheadMetrics extends AbstractLifecycleListener implements MetricsProvider {
+
+    private static final String INVOCATIONS_METRIC = "agent.instrumentation.overhead.count";
+    private static final String DURATION_METRIC = "agent.instrumentation.overhead.sum.us";
+
+    private boolean invocationsMetricEnabled;
+    private boolean durationMetricEnabled;
+    private int sampleInterval;
+
+    /**
+     * Only accessed by the metrics reporter
+     */
+    private final Map<AdviceTimer, TimerState> timerStates = new IdentityHashMap<>();
+
+    private static class TimerState {
+        final Labels labels;
+        long lastReportedInvocations;
+        long lastReportedDuration;
+
+        private TimerState(Labels labels) {
+            this.labels = labels;
+        }
+    }
+
+    @Override
+    public void start(Tracer tracer) {
+        bindTo(tracer.require(ElasticApmTracer.class).getMetricRegistry(), tracer.getConfig(MetricsConfigurationImpl.class));
+    }
+
+    void bindTo(MetricRegistry metricRegistry, MetricsConfigurationImpl config) {
+        sampleInterval = config.getInstrumentationOverheadSampleInterval();
+        invocationsMetricEnabled = sampleInterval > 0 && !metricRegistry.isDisabled(INVOCATIONS_METRIC);
+        durationMetricEnabled = sampleInterval > 0 && !metricRegistry.isDisabled(DURATION_METRIC);
+        if (invocationsMetricEnabled || durationMetricEnabled) {
+            metricRegistry.addMetricsProvider(this);
+        }
+    }
+
+    @Override
+    public void collectAndReset(MetricCollector collector) {
+        collect(ElasticApmAgent.getInstrumentationStats().getAdviceTimers(), collector);
+    }
+
+    void collect(Collection<AdviceTimer> adviceTimers, MetricCollector collector) {
+        for (AdviceTimer timer : adviceTimers) {
+            TimerState state = timerStates.get(timer);
+            if (state == null) {
+                state = new TimerState(Labels.Mutable.of("instrumentation_group", timer.getInstrumentationGroup()).immutableCopy());
+                timerStates.put(timer, state);
+            }
+            long invocations = timer.getSampledInvocations();
+            long duration = timer.getSampledDuration();
+            long newInvocations = invocations - state.lastReportedInvocations;
+            if (newInvocations > 0) {
+                if (invocationsMetricEnabled) {
+                    collector.addMetricValue(INVOCATIONS_METRIC, state.labels, newInvocations * sampleInterval);
+                }
+                if (durationMetricEnabled) {
+                    collector.addMetricValue(DURATION_METRIC, state.labels, (duration - state.lastReportedDuration) * sampleInterval / 1000);
+                }
+            }
+            state.lastReportedInvocations = invocations;
+            state.lastReportedDuration = duration;
+        }
+    }
+}
@@ -24,6 +24,7 @@ import co.elastic.apm.agent.impl.transaction.SpanImpl;
 import co.elastic.apm.agent.impl.transaction.TraceContextImpl;
 import co.elastic.apm.agent.impl.transaction.TransactionImpl;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
+import co.elastic.apm.agent.objectpool.impl.ThreadLocalCachingObjectPool;
 import co.elastic.apm.agent.sdk.internal.pooling.ObjectPooling;
 import co.elastic.apm.agent.tracer.pooling.Allocator;
 import co.elastic.apm.agent.tracer.pooling.Recyclable;
@@ -43,6 +44,13 @@ public class ObjectPoolFactoryImpl implements co.elastic.apm.agent.tracer.poolin
         return QueueBasedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<T>((maxCapacity)), false, allocator);
     }
 
+    /**
+     * Creates a pool with a per-thread caching tier for the objects which are created and recycled the most by the tracer
+     */
+    protected <T extends Recyclable> ObservableObjectPool<T> createThreadLocalCachingObjectPool(int maxCapacity, Allocator<T> allocator) {
+        return ThreadLocalCachingObjectPool.ofRecyclable(maxCapacity, allocator);
+    }
+
     @Override
     public <T> ObservableObjectPool<ObjectHandleImpl<T>> createHandlePool(Allocator<T> allocator) {
         ObjectHandleImpl.Allocator<T> handleAlloc = new ObjectHandleImpl.Allocator<T>(allocator);
@@ -66,7 +74,7 @@ public class ObjectPoolFactoryImpl implements co.elastic.apm.agent.tracer.poolin
     }
 
     public ObservableObjectPool<TransactionImpl> createTransactionPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<TransactionImpl>() {
+        return createThreadLocalCachingObjectPool(maxCapacity, new Allocator<TransactionImpl>() {
             @Override
             public TransactionImpl createInstance() {
                 return new TransactionImpl(tracer);
@@ -75,7 +83,7 @@ public class ObjectPoolFactoryImpl implements co.elastic.apm.agent.tracer.poolin
     }
 
     public ObservableObjectPool<SpanImpl> createSpanPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<SpanImpl>() {
+        return createThreadLocalCachingObjectPool(maxCapacity, new Allocator<SpanImpl>() {
             @Override
             public SpanImpl createInstance() {
                 return new SpanImpl(tracer);
@@ -84,7 +92,7 @@ public class ObjectPoolFactoryImpl implements co.elastic.apm.agent.tracer.poolin
     }
 
     public ObservableObjectPool<ErrorCaptureImpl> createErrorPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<ErrorCaptureImpl>() {
+        return createThreadLocalCachingObjectPool(maxCapacity, new Allocator<ErrorCaptureImpl>() {
             @Override
             public ErrorCaptureImpl createInstance() {
                 return new ErrorCaptureImpl(tracer);
@@ -93,7 +101,7 @@ public class ObjectPoolFactoryImpl implements co.elastic.apm.agent.tracer.poolin
     }
 
     public ObservableObjectPool<TraceContextImpl> createSpanLinkPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<TraceContextImpl>() {
+        return createThreadLocalCachingObjectPool(maxCapacity, new Allocator<TraceContextImpl>() {
             @Override
             public TraceContextImpl createInstance() {
                 return TraceContextImpl.with64BitId(tracer);
@@ -0,0 +1,135 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.tracer.pooling.ObjectPool;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Adjusts the size of {@link TrimmableObjectPool}s to the observed demand.
+ * <p>
+ * On each tick, the number of concurrently live objects is sampled for each pool.
+ * If the pool ran empty since the last tick, all objects which have been allocated by the pool and have not been
+ * discarded since were live at the same time, so that this number is used instead.
+ * The demand is the high-water mark of these samples, decaying with a half-life of {@link #DEFAULT_HALF_LIFE_TICKS} ticks.
+ * </p>
+ * <p>
+ * Pools grow on their own, by retaining recycled objects up to their capacity.
+ * Each tick trims the pools so that the number of live and pooled objects does not exceed the demand.
+ * This releases the heap held by idle pools, while bursts which reoccur within a few half-lives are served from the pool.
+ * </p>
+ */
+public class ObjectPoolSizer implements Runnable {
+
+    public static final long TICK_INTERVAL_SECONDS = 10;
+    static final int DEFAULT_HALF_LIFE_TICKS = 30;
+
+    private static final Logger logger = LoggerFactory.getLogger(ObjectPoolSizer.class);
+
+    private final List<SizedPool> pools = new CopyOnWriteArrayList<>();
+    private final double decay;
+
+    public ObjectPoolSizer() {
+        this(DEFAULT_HALF_LIFE_TICKS);
+    }
+
+    ObjectPoolSizer(int halfLifeTicks) {
+        this.decay = Math.pow(0.5, 1.0 / halfLifeTicks);
+    }
+
+    /**
+     * Registers a pool to be sized by this sizer, pools which are not {@link TrimmableObjectPool}s are ignored.
+     *
+     * @param name the name of the pool, used as the {@code pool_name} label of the object pool metrics
+     * @param pool the pool
+     */
+    public void register(String name, ObjectPool<?> pool) {
+        if (pool instanceof TrimmableObjectPool) {
+            pools.add(new SizedPool(name, (TrimmableObjectPool<?>) pool));
+        }
+    }
+
+    public List<SizedPool> getPools() {
+        return pools;
+    }
+
+    @Override
+    public void run() {
+        for (SizedPool pool : pools) {
+            try {
+                pool.resize(decay);
+            } catch (Exception e) {
+                logger.warn("Failed to resize object pool " + pool.getName(), e);
+            }
+        }
+    }
+
+    public static class SizedPool {
+
+        private final String name;
+        private final TrimmableObjectPool<?> pool;
+        /**
+         * Only written by the thread executing the ticks, but read by the metrics reporter
+         */
+        private volatile double demand;
+        private long lastObjectsAllocated;
+
+        private SizedPool(String name, TrimmableObjectPool<?> pool) {
+            this.name = name;
+            this.pool = pool;
+        }
+
+        void resize(double decay) {
+            int objectsInPool = pool.getObjectsInPool();
+            long objectsAllocated = pool.getObjectsAllocated();
+            long existingObjects = objectsAllocated - pool.getObjectsDiscarded();
+            long liveObjects = Math.max(0, existingObjects - objectsInPool);
+            // when the pool had to allocate, all existing objects have been live at the same time
+            long observedDemand = objectsAllocated > lastObjectsAllocated ? existingObjects : liveObjects;
+            lastObjectsAllocated = objectsAllocated;
+
+            double newDemand = Math.min(pool.getCapacity(), Math.max(observedDemand, demand * decay));
+            demand = newDemand;
+            int maxObjectsInPool = (int) Math.max(0, Math.ceil(newDemand) - liveObjects);
+            if (objectsInPool > maxObjectsInPool) {
+                int released = pool.trim(maxObjectsInPool);
+                logger.debug("Released {} objects from pool {}, demand is {} objects", released, name, newDemand);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public TrimmableObjectPool<?> getPool() {
+            return pool;
+        }
+
+        /**
+         * @return the decayed high-water mark of concurrently live objects
+         */
+        public double getDemand() {
+            return demand;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool;
+
+/**
+ * An object pool which allows to release pooled objects, so that its size can follow the demand.
+ *
+ * @param <T> pooled object type
+ * @see ObjectPoolSizer
+ */
+public interface TrimmableObjectPool<T> extends ObservableObjectPool<T> {
+
+    /**
+     * @return the maximum number of objects the pool is able to hold
+     */
+    int getCapacity();
+
+    /**
+     * @return number of objects which had to be allocated because the pool was empty
+     */
+    long getObjectsAllocated();
+
+    /**
+     * @return number of objects the pool has released, because it was full, trimmed or cleared
+     */
+    long getObjectsDiscarded();
+
+    /**
+     * Releases pooled objects until the pool holds at most {@code maxObjectsInPool} objects.
+     * Implementations may not be able to release all objects, for example when they are cached by other threads.
+     *
+     * @param maxObjectsInPool the number of objects to retain
+     * @return the number of released objects
+     */
+    int trim(int maxObjectsInPool);
+}
@@ -0,0 +1,380 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.Resetter;
+import co.elastic.apm.agent.objectpool.TrimmableObjectPool;
+import co.elastic.apm.agent.tracer.pooling.Allocator;
+import co.elastic.apm.agent.tracer.pooling.Recyclable;
+import org.jctools.queues.MessagePassingQueue;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+
+import javax.annotation.Nullable;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A two-level object pool which puts a small per-thread magazine in front of a shared {@link MessagePassingQueue}.
+ * <p>
+ * Most of the time, objects are taken from and returned to the magazine of the current thread, which does not involve
+ * any contended atomic operation. Only when the magazine runs empty, it is refilled with a batch of objects from the
+ * shared queue. When it runs full, half of it is spilled back to the shared queue in one batch.
+ * This is what makes objects flow from threads which mostly recycle (like the reporter thread) to threads which mostly
+ * allocate (like application threads).
+ * </p>
+ * <p>
+ * Half of the capacity of the pool is reserved for the magazines, which limits the number of magazines.
+ * Threads which can't get a magazine use the shared queue directly.
+ * A magazine is only refilled in batches after its first miss, so that short-lived threads don't hold on to a batch of objects.
+ * The objects in the magazines of terminated threads are moved to the shared queue when the pool is observed,
+ * and periodically when magazines are registered.
+ * </p>
+ *
+ * @param <T> pooled object type
+ */
+public class ThreadLocalCachingObjectPool<T> extends AbstractObjectPool<T> implements TrimmableObjectPool<T> {
+
+    public static final int DEFAULT_MAGAZINE_SIZE = 16;
+
+    /**
+     * The number of magazine registrations after which the magazines of terminated threads are reclaimed
+     */
+    static final int REAP_INTERVAL = 32;
+
+    private final MessagePassingQueue<T> sharedQueue;
+    private final int magazineSize;
+    private final int batchSize;
+    private final int maxMagazines;
+    private final AtomicInteger registeredMagazineCount;
+    private final AtomicInteger registrations;
+    /**
+     * Used by threads which could not get a magazine of their own, it never holds any objects
+     */
+    private final Magazine<T> noMagazine;
+    private final ThreadLocal<Magazine<T>> magazines;
+    /**
+     * All magazines of live threads, used to observe the pool state and collect the hit counts of the magazines
+     */
+    private final Queue<Magazine<T>> registeredMagazines;
+    private final AtomicLong misses;
+    private final AtomicLong hitsOfTerminatedThreads;
+    private final AtomicLong objectsAllocated;
+    /**
+     * Objects released by {@link #trim(int)} and {@link #clear()}, objects which could not be returned to the pool are
+     * counted by {@link #getGarbageCreated()}
+     */
+    private final AtomicLong objectsReleased;
+    /**
+     * Incremented on {@link #clear()} in order to invalidate the magazines of all threads
+     */
+    private final AtomicInteger generation;
+
+    public static <T extends Recyclable> ThreadLocalCachingObjectPool<T> ofRecyclable(int maxCapacity, Allocator<T> allocator) {
+        return of(maxCapacity, DEFAULT_MAGAZINE_SIZE, allocator, Resetter.ForRecyclable.<T>get());
+    }
+
+    /**
+     * @param maxCapacity  the maximum number of objects held by the shared queue and all magazines together
+     * @param magazineSize the maximum number of objects held by the magazine of a thread
+     */
+    public static <T> ThreadLocalCachingObjectPool<T> of(int maxCapacity, int magazineSize, Allocator<? extends T> allocator, Resetter<? super T> resetter) {
+        if (magazineSize < 2) {
+            throw new IllegalArgumentException("magazineSize must be at least 2, was " + magazineSize);
+        }
+        int maxMagazines = Math.max(1, maxCapacity / 2 / magazineSize);
+        MessagePassingQueue<T> sharedQueue = new MpmcAtomicArrayQueue<>(Math.max(2, maxCapacity - maxMagazines * magazineSize));
+        return new ThreadLocalCachingObjectPool<>(sharedQueue, magazineSize, maxMagazines, allocator, resetter);
+    }
+
+    private ThreadLocalCachingObjectPool(MessagePassingQueue<T> sharedQueue, int magazineSize, int maxMagazines, Allocator<? extends T> allocator, Resetter<? super T> resetter) {
+        super(allocator, resetter);
+        this.sharedQueue = sharedQueue;
+        this.magazineSize = magazineSize;
+        this.batchSize = magazineSize / 2;
+        this.maxMagazines = maxMagazines;
+        this.registeredMagazineCount = new AtomicInteger();
+        this.registrations = new AtomicInteger();
+        this.noMagazine = new Magazine<>(null, 0, 0);
+        this.registeredMagazines = new ConcurrentLinkedQueue<>();
+        this.misses = new AtomicLong();
+        this.hitsOfTerminatedThreads = new AtomicLong();
+        this.objectsAllocated = new AtomicLong();
+        this.objectsReleased = new AtomicLong();
+        this.generation = new AtomicInteger();
+        this.magazines = new ThreadLocal<Magazine<T>>() {
+            @Override
+            protected Magazine<T> initialValue() {
+                return registerMagazine();
+            }
+        };
+    }
+
+    private Magazine<T> registerMagazine() {
+        // reclaiming magazines requires iterating over all of them, so it's not done for every new thread
+        if (registrations.incrementAndGet() % REAP_INTERVAL == 0) {
+            removeMagazinesOfTerminatedThreads();
+        }
+        if (registeredMagazineCount.incrementAndGet() > maxMagazines) {
+            registeredMagazineCount.decrementAndGet();
+            return noMagazine;
+        }
+        Magazine<T> magazine = new Magazine<>(Thread.currentThread(), magazineSize, generation.get());
+        registeredMagazines.add(magazine);
+        return magazine;
+    }
+
+    private void removeMagazinesOfTerminatedThreads() {
+        for (Iterator<Magazine<T>> iterator = registeredMagazines.iterator(); iterator.hasNext(); ) {
+            Magazine<T> magazine = iterator.next();
+            if (!magazine.isOwnerAlive() && registeredMagazines.remove(magazine)) {
+                registeredMagazineCount.decrementAndGet();
+                hitsOfTerminatedThreads.addAndGet(magazine.hits);
+                // the owning thread has terminated, so we're now the only one accessing the magazine
+                if (magazine.generation == generation.get() && magazine.size > 0) {
+                    sharedQueue.fill(magazine, magazine.size);
+                }
+                objectsReleased.addAndGet(magazine.discard(magazine.generation));
+            }
+        }
+    }
+
+    private Magazine<T> getMagazine() {
+        Magazine<T> magazine = magazines.get();
+        int currentGeneration = generation.get();
+        if (magazine != noMagazine && magazine.generation != currentGeneration) {
+            objectsReleased.addAndGet(magazine.discard(currentGeneration));
+        }
+        return magazine;
+    }
+
+    @Nullable
+    @Override
+    protected T tryCreateInstance() {
+        Magazine<T> magazine = getMagazine();
+        if (magazine.size > 0) {
+            magazine.recordHit();
+            return magazine.pop();
+        }
+        misses.incrementAndGet();
+        T obj;
+        if (magazine == noMagazine) {
+            obj = sharedQueue.poll();
+        } else if (!magazine.missed) {
+            // the thread may be short-lived, so a batch is only taken from the shared queue from the second miss on
+            magazine.missed = true;
+            obj = sharedQueue.poll();
+        } else {
+            sharedQueue.drain(magazine, batchSize);
+            obj = magazine.size > 0 ? magazine.pop() : null;
+        }
+        if (obj == null) {
+            objectsAllocated.incrementAndGet();
+        }
+        return obj;
+    }
+
+    @Override
+    protected boolean returnToPool(T obj) {
+        Magazine<T> magazine = getMagazine();
+        if (magazine == noMagazine) {
+            return sharedQueue.offer(obj);
+        }
+        if (magazine.size == magazineSize && sharedQueue.fill(magazine, batchSize) == 0) {
+            // both the magazine and the shared queue are full
+            return false;
+        }
+        magazine.push(obj);
+        return true;
+    }
+
+    @Override
+    public int getObjectsInPool() {
+        removeMagazinesOfTerminatedThreads();
+        int objectsInPool = sharedQueue.size();
+        int currentGeneration = generation.get();
+        for (Magazine<T> magazine : registeredMagazines) {
+            if (magazine.generation == currentGeneration) {
+                objectsInPool += magazine.size;
+            }
+        }
+        return objectsInPool;
+    }
+
+    /**
+     * Clears the shared queue and invalidates the magazines of all threads.
+     * The magazines are lazily emptied on their next use by the owning thread.
+     */
+    @Override
+    public void clear() {
+        generation.incrementAndGet();
+        releaseFromSharedQueue(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Releases objects from the shared queue. The magazines are left untouched as they may only be modified by their
+     * owning thread, so this method may not be able to trim the pool down to {@code maxObjectsInPool}.
+     */
+    @Override
+    public int trim(int maxObjectsInPool) {
+        return releaseFromSharedQueue(getObjectsInPool() - maxObjectsInPool);
+    }
+
+    private int releaseFromSharedQueue(int maxObjects) {
+        int released = 0;
+        while (released < maxObjects && sharedQueue.poll() != null) {
+            released++;
+        }
+        objectsReleased.addAndGet(released);
+        return released;
+    }
+
+    @Override
+    public int getCapacity() {
+        return sharedQueue.capacity() + maxMagazines * magazineSize;
+    }
+
+    @Override
+    public long getObjectsAllocated() {
+        return objectsAllocated.get();
+    }
+
+    @Override
+    public long getObjectsDiscarded() {
+        return getGarbageCreated() + objectsReleased.get();
+    }
+
+    /**
+     * @return the number of times an object could be taken from the magazine of the requesting thread
+     */
+    public long getHits() {
+        removeMagazinesOfTerminatedThreads();
+        long hits = hitsOfTerminatedThreads.get();
+        for (Magazine<T> magazine : registeredMagazines) {
+            hits += magazine.hits;
+        }
+        return hits;
+    }
+
+    /**
+     * @return the number of times the magazine of the requesting thread was empty so that the shared queue had to be used
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getMagazineSize() {
+        return magazineSize;
+    }
+
+    public int getMaxMagazines() {
+        return maxMagazines;
+    }
+
+    /**
+     * A fixed size stack of objects which is only ever modified by the owning thread.
+     * The size and the hit count are published with {@code lazySet} so that other threads can observe them
+     * without adding a memory barrier to the fast path.
+     */
+    private static final class Magazine<T> implements MessagePassingQueue.Consumer<T>, MessagePassingQueue.Supplier<T> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Magazine> SIZE = AtomicIntegerFieldUpdater.newUpdater(Magazine.class, "size");
+        @SuppressWarnings("rawtypes")
+        private static final AtomicLongFieldUpdater<Magazine> HITS = AtomicLongFieldUpdater.newUpdater(Magazine.class, "hits");
+
+        @Nullable
+        private final WeakReference<Thread> owner;
+        private final Object[] objects;
+        private volatile int size;
+        private volatile long hits;
+        private volatile int generation;
+        /**
+         * Whether the shared queue has been used because the magazine was empty, only accessed by the owning thread
+         */
+        private boolean missed;
+
+        private Magazine(@Nullable Thread owner, int capacity, int generation) {
+            this.owner = owner != null ? new WeakReference<>(owner) : null;
+            this.objects = new Object[capacity];
+            this.generation = generation;
+        }
+
+        private boolean isOwnerAlive() {
+            if (owner == null) {
+                return true;
+            }
+            Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+
+        private void recordHit() {
+            HITS.lazySet(this, hits + 1);
+        }
+
+        private void push(T obj) {
+            int currentSize = size;
+            objects[currentSize] = obj;
+            SIZE.lazySet(this, currentSize + 1);
+        }
+
+        @SuppressWarnings("unchecked")
+        private T pop() {
+            int newSize = size - 1;
+            T obj = (T) objects[newSize];
+            objects[newSize] = null;
+            SIZE.lazySet(this, newSize);
+            return obj;
+        }
+
+        /**
+         * @return the number of discarded objects
+         */
+        private int discard(int newGeneration) {
+            int discarded = size;
+            for (int i = 0; i < discarded; i++) {
+                objects[i] = null;
+            }
+            SIZE.lazySet(this, 0);
+            generation = newGeneration;
+            return discarded;
+        }
+
+        /**
+         * Called by {@link MessagePassingQueue#drain(MessagePassingQueue.Consumer, int)} when refilling the magazine
+         */
+        @Override
+        public void accept(T obj) {
+            push(obj);
+        }
+
+        /**
+         * Called by {@link MessagePassingQueue#fill(MessagePassingQueue.Supplier, int)} when spilling the magazine
+         */
+        @Override
+        public T get() {
+            return pop();
+        }
+    }
+}
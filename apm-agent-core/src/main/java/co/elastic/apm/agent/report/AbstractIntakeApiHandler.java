@@ -19,20 +19,17 @@
 package co.elastic.apm.agent.report;
 
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
-import co.elastic.apm.agent.report.serialize.SerializationConstants;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
-import co.elastic.apm.agent.util.UrlConnectionUtils;
-import org.stagemonitor.util.IOUtils;
 
 import javax.annotation.Nullable;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.util.Arrays;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
@@ -44,9 +41,14 @@ public class AbstractIntakeApiHandler {
     protected final ReporterConfigurationImpl reporterConfiguration;
     protected final DslJsonSerializer.Writer payloadSerializer;
     protected final ApmServerClient apmServerClient;
+    /**
+     * Only used to measure the CPU time of requests for adaptive compression
+     */
+    @Nullable
+    private final ThreadMXBean threadMXBean;
     protected Deflater deflater;
     @Nullable
-    protected HttpURLConnection connection;
+    protected IntakeConnection connection;
     @Nullable
     protected OutputStream os;
     @Nullable
@@ -54,12 +56,19 @@ public class AbstractIntakeApiHandler {
     protected int errorCount;
     protected volatile boolean shutDown;
     private volatile boolean healthy = true;
+    private volatile long backoffUntilNanos = System.nanoTime();
     private long requestStartedNanos;
+    private long requestStartedCpuNanos;
+    private long requestBlockedNanos;
+    @Nullable
+    private URL serverUrl;
+    private boolean compressed;
 
     protected AbstractIntakeApiHandler(ReporterConfigurationImpl reporterConfiguration, DslJsonSerializer payloadSerializer, ApmServerClient apmServerClient) {
         this.reporterConfiguration = reporterConfiguration;
         this.payloadSerializer = payloadSerializer.newWriter();
         this.apmServerClient = apmServerClient;
+        this.threadMXBean = reporterConfiguration.isAdaptiveCompression() ? getThreadMXBeanIfCpuTimeSupported() : null;
         this.deflater = new Deflater(Deflater.BEST_SPEED);
     }
 
@@ -91,27 +100,31 @@ public class AbstractIntakeApiHandler {
     }
 
     @Nullable
-    protected HttpURLConnection startRequest(String endpoint) throws Exception {
+    protected IntakeConnection startRequest(String endpoint) throws Exception {
         payloadSerializer.blockUntilReady();
-        final HttpURLConnection connection = apmServerClient.startRequest(endpoint);
-        if (connection == null) {
+        serverUrl = apmServerClient.getIntakeServerUrl();
+        if (serverUrl == null) {
             return null;
         }
-        try (UrlConnectionUtils.ContextClassloaderScope clScope = UrlConnectionUtils.withContextClassloaderOf(connection)){
-            if (logger.isDebugEnabled()) {
-                logger.debug("Starting new request to {}", connection.getURL());
-            }
-            boolean useCompression = !isLocalhost(connection);
-            connection.setRequestMethod("POST");
-            connection.setDoOutput(true);
-            connection.setChunkedStreamingMode(SerializationConstants.BUFFER_SIZE);
-            if (useCompression) {
-                connection.setRequestProperty("Content-Encoding", "deflate");
-            }
-            connection.setRequestProperty("Content-Type", "application/x-ndjson");
-            connection.setUseCaches(false);
-            connection.connect();
-            countingOs = new CountingOutputStream(connection.getOutputStream()); // TODO : here
+        final URL url = apmServerClient.appendPath(serverUrl, endpoint);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Starting new request to {}", url);
+        }
+        int compressionLevel = getCompressionLevel();
+        boolean useCompression = !isLocalhost(url) && compressionLevel != Deflater.NO_COMPRESSION;
+        if (useCompression) {
+            deflater.setLevel(compressionLevel);
+        }
+        Map<String, String> requestHeaders = new LinkedHashMap<>();
+        if (useCompression) {
+            requestHeaders.put("Content-Encoding", "deflate");
+        }
+        requestHeaders.put("Content-Type", "application/x-ndjson");
+        long connectStart = System.nanoTime();
+        final IntakeConnection connection = apmServerClient.startIntakeRequest(url, requestHeaders);
+        requestBlockedNanos = System.nanoTime() - connectStart;
+        try {
+            countingOs = new CountingOutputStream(connection.getOutputStream());
             if (useCompression) {
                 os = new DeflaterOutputStream(countingOs, deflater, true);
             } else {
@@ -120,35 +133,9 @@ public class AbstractIntakeApiHandler {
             payloadSerializer.setOutputStream(os);
             payloadSerializer.appendMetaDataNdJsonToStream();
             payloadSerializer.flushToOutputStream();
+            compressed = useCompression;
             requestStartedNanos = System.nanoTime();
-        } catch (IOException e) {
-            try {
-                logger.error("Error trying to connect to APM Server at {}. Although not necessarily related to SSL, some related SSL " +
-                    "configurations corresponding the current connection are logged at INFO level.", connection.getURL());
-                if (logger.isInfoEnabled() && connection instanceof HttpsURLConnection) {
-                    HttpsURLConnection httpsURLConnection = (HttpsURLConnection) connection;
-                    try {
-                        logger.info("Cipher suite used for this connection: {}", httpsURLConnection.getCipherSuite());
-                    } catch (Exception e1) {
-                        SSLSocketFactory sslSocketFactory = httpsURLConnection.getSSLSocketFactory();
-                        logger.info("Default cipher suites: {}", Arrays.toString(sslSocketFactory.getDefaultCipherSuites()));
-                        logger.info("Supported cipher suites: {}", Arrays.toString(sslSocketFactory.getSupportedCipherSuites()));
-                    }
-                    try {
-                        logger.info("APM Server certificates: {}", Arrays.toString(httpsURLConnection.getServerCertificates()));
-                    } catch (Exception e1) {
-                        // ignore - invalid
-                    }
-                    try {
-                        logger.info("Local certificates: {}", Arrays.toString(httpsURLConnection.getLocalCertificates()));
-                    } catch (Exception e1) {
-                        // ignore - invalid
-                    }
-                }
-            } finally {
-                closeAndSuppressErrors(connection);
-            }
-            throw e;
+            requestStartedCpuNanos = getCurrentThreadCpuTime();
         } catch (Throwable t) {
             closeAndSuppressErrors(connection);
             throw t;
@@ -156,16 +143,16 @@ public class AbstractIntakeApiHandler {
         return connection;
     }
 
-    private void closeAndSuppressErrors(HttpURLConnection connection) {
+    private void closeAndSuppressErrors(IntakeConnection connection) {
         try {
-            connection.disconnect();
+            connection.abort();
         } catch (Throwable t) {
             logger.debug("Suppressed error on attempt to close connection", t);
         }
     }
 
-    private boolean isLocalhost(HttpURLConnection connection) {
-        switch (connection.getURL().getHost()) {
+    private boolean isLocalhost(URL url) {
+        switch (url.getHost()) {
             case "localhost":
             case "127.0.0.1":
             case "[::1]":
@@ -182,7 +169,7 @@ public class AbstractIntakeApiHandler {
 
     protected void endRequestExceptionally() {
         if (connection == null) {
-            //The HttpUrlConnection could not be established if connection == null
+            //The connection could not be established if connection == null
             onConnectionError(null, null, 0L);
         } else {
             endRequest(true);
@@ -193,64 +180,119 @@ public class AbstractIntakeApiHandler {
         if (connection == null) {
             return;
         }
-        try (UrlConnectionUtils.ContextClassloaderScope clScope = UrlConnectionUtils.withContextClassloaderOf(connection)) {
-            long writtenBytes = countingOs != null ? countingOs.getCount() : 0L;
-            try {
-                payloadSerializer.fullFlush();
-                if (os != null) {
-                    os.close();
-                }
-                writtenBytes = countingOs != null ? countingOs.getCount() : 0L;
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Flushing {} uncompressed {} compressed bytes", deflater.getBytesRead(), writtenBytes);
-                }
-                InputStream inputStream = connection.getInputStream();
-                final int responseCode = connection.getResponseCode();
-                if (isFailed || responseCode >= 400) {
-                    onRequestError(responseCode, writtenBytes, inputStream, null);
-                } else {
-                    onRequestSuccess(writtenBytes);
-                }
-            } catch (IOException e) {
-                try {
-                    onRequestError(connection.getResponseCode(), writtenBytes, connection.getErrorStream(), e);
-                } catch (IOException e1) {
-                    onRequestError(-1, writtenBytes, connection.getErrorStream(), e);
+        long writtenBytes = countingOs != null ? countingOs.getCount() : 0L;
+        long endRequestStartedNanos = System.nanoTime();
+        try {
+            payloadSerializer.fullFlush();
+            if (os != null) {
+                os.close();
+            }
+            writtenBytes = countingOs != null ? countingOs.getCount() : 0L;
+            long uncompressedBytes = compressed ? deflater.getBytesRead() : writtenBytes;
+            if (logger.isDebugEnabled()) {
+                logger.debug("Flushing {} uncompressed {} compressed bytes", uncompressedBytes, writtenBytes);
+            }
+            long cpuTimeNanos = requestStartedCpuNanos >= 0 ? getCurrentThreadCpuTime() - requestStartedCpuNanos : -1L;
+            onRequestCompleted(uncompressedBytes, System.nanoTime() - requestStartedNanos, cpuTimeNanos);
+            final int responseCode = connection.getResponseCode();
+            if (isFailed || responseCode >= 400) {
+                onRequestError(responseCode, writtenBytes, connection.getResponseBody(), null);
+            } else {
+                if (serverUrl != null) {
+                    long latencyNanos = requestBlockedNanos + System.nanoTime() - endRequestStartedNanos;
+                    apmServerClient.onIntakeRequestFinished(serverUrl, getRequestEventCount(), latencyNanos);
                 }
-            } finally {
-                HttpUtils.consumeAndClose(connection);
-                connection = null;
-                os = null;
-                countingOs = null;
-                deflater.reset();
+                onRequestSuccess(writtenBytes);
+            }
+        } catch (IOException e) {
+            int responseCode;
+            String responseBody = null;
+            try {
+                responseCode = connection.getResponseCode();
+                responseBody = connection.getResponseBody();
+            } catch (IOException e1) {
+                responseCode = -1;
             }
+            onRequestError(responseCode, writtenBytes, responseBody, e);
+        } finally {
+            connection.close();
+            connection = null;
+            os = null;
+            countingOs = null;
+            deflater.reset();
         }
     }
 
+    private long getCurrentThreadCpuTime() {
+        return threadMXBean != null ? threadMXBean.getCurrentThreadCpuTime() : -1L;
+    }
+
+    @Nullable
+    private static ThreadMXBean getThreadMXBeanIfCpuTimeSupported() {
+        try {
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            return threadMXBean.isCurrentThreadCpuTimeSupported() ? threadMXBean : null;
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the deflate level to use for the next request,
+     * {@link Deflater#NO_COMPRESSION} to send the next request uncompressed
+     */
+    protected int getCompressionLevel() {
+        return Deflater.BEST_SPEED;
+    }
+
+    /**
+     * Called on the reporter thread after the payload of a request has been written.
+     *
+     * @param uncompressedBytes the number of bytes that have been written before compression
+     * @param durationNanos     the time since the request has been started
+     * @param cpuTimeNanos      the CPU time the reporter thread consumed since the request has been started, or {@code -1} if unknown
+     */
+    protected void onRequestCompleted(long uncompressedBytes, long durationNanos, long cpuTimeNanos) {
+    }
+
+    /**
+     * @return the number of events which have been written within the current request
+     */
+    protected long getRequestEventCount() {
+        return 0;
+    }
+
     protected boolean isApiRequestTimeExpired() {
         return System.nanoTime() >= requestStartedNanos + TimeUnit.MILLISECONDS.toNanos(reporterConfiguration.getApiRequestTime().getMillis());
     }
 
-    private void onRequestError(Integer responseCode, long bytesWritten, InputStream inputStream, @Nullable IOException e) {
-        String responseBody = null;
-        try {
-            responseBody = IOUtils.toString(inputStream);
+    private void onRequestError(Integer responseCode, long bytesWritten, @Nullable String responseBody, @Nullable IOException e) {
+        if (responseBody != null) {
             logger.warn("Response body: {}", responseBody);
-        } catch (IOException e1) {
-            logger.warn(e1.getMessage(), e1);
         }
         onConnectionError(responseCode, responseBody, bytesWritten);
         if (e != null) {
             logger.error("Error sending data to APM server: {}, response code is {}", e.getMessage(), responseCode);
             logger.debug("Sending payload to APM server failed", e);
+        } else {
+            logger.error("Error sending data to APM server, response code is {}", responseCode);
         }
     }
 
     protected void onConnectionError(@Nullable Integer responseCode, @Nullable String responseBody, long bytesWritten) {
         // if the response code is null, the server did not even send a response
-        if (responseCode == null || responseCode > 429) {
+        // if the response code is negative, the response could not be read, for example due to a timeout
+        if (responseCode == null || responseCode < 0 || responseCode > 429) {
             // this server seems to have connection or capacity issues, try next
-            apmServerClient.onConnectionError();
+            if (serverUrl != null) {
+                apmServerClient.onIntakeConnectionError(serverUrl);
+            } else {
+                apmServerClient.onConnectionError();
+            }
+            if (apmServerClient.isIntakeServerAvailable()) {
+                // keep on sending to the other servers while this one is backing off
+                return;
+            }
         } else if (responseCode == 404) {
             logger.warn("It seems like you are using a version of the APM Server which is not compatible with this agent. " +
                 "Please use APM Server 6.5.0 or newer.");
@@ -263,7 +305,9 @@ public class AbstractIntakeApiHandler {
         long backoffTimeSeconds = getBackoffTimeSeconds(errorCount++);
         logger.info("Backing off for {} seconds (+/-10%)", backoffTimeSeconds);
         final long backoffTimeMillis = TimeUnit.SECONDS.toMillis(backoffTimeSeconds);
-        if (backoffTimeMillis > 0) {
+        if (backoffTimeMillis > 0 && isBackoffWithoutBlocking()) {
+            backoffUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffTimeMillis + getRandomJitter(backoffTimeMillis));
+        } else if (backoffTimeMillis > 0) {
             // back off because there are connection issues with the apm server
             try {
                 healthy = false;
@@ -278,12 +322,28 @@ public class AbstractIntakeApiHandler {
         }
     }
 
+    /**
+     * By default, the reporter thread blocks while backing off, which means that new events queue up or get dropped.
+     * Subclasses which are able to store events elsewhere can return {@code true} so that they keep receiving events,
+     * in which case they have to check {@link #isInBackoff()} before sending events.
+     *
+     * @return whether to back off without blocking the reporter thread
+     */
+    protected boolean isBackoffWithoutBlocking() {
+        return false;
+    }
+
+    protected boolean isInBackoff() {
+        return System.nanoTime() - backoffUntilNanos < 0;
+    }
+
     public boolean isHealthy() {
-        return healthy;
+        return healthy && !isInBackoff();
     }
 
     public void close() {
         shutDown = true;
+        apmServerClient.getIntakeTransport().close();
         synchronized (WAIT_LOCK) {
             WAIT_LOCK.notifyAll();
         }
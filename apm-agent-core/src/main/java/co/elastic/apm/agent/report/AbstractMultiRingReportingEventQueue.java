@@ -0,0 +1,336 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.util.ExecutorUtils;
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslator;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.Sequence;
+import com.lmax.disruptor.TimeoutException;
+import com.lmax.disruptor.dsl.ProducerType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A queue consisting of multiple ring buffers, which are all drained by the {@link ReportingEventHandler} on a single
+ * {@code server-reporter} thread.
+ * Subclasses decide which ring buffer an event is published to.
+ * The {@link ReportingEventHandler#getPreprocessingHandlers() preprocessing handlers} each run on their own thread,
+ * and also process all ring buffers.
+ * <p>
+ * Control events are always published to the first ring buffer.
+ * Before a control event is processed, the other ring buffers are drained up to the events which had been published at this point.
+ * That makes sure a flush request is only processed after all events that have been reported before the flush.
+ * </p>
+ */
+abstract class AbstractMultiRingReportingEventQueue implements ReportingEventQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(AbstractMultiRingReportingEventQueue.class);
+
+    static final int CONTROL_RING = 0;
+    private static final int SLEEP_TIME_NS_START = 100_000;
+    private static final int SLEEP_TIME_NS_MAX = 10_000_000;
+
+    private final RingBuffer<ReportingEvent>[] rings;
+    /**
+     * The sequences of the events which have been processed by the {@link ReportingEventHandler}, per ring buffer
+     */
+    private final Sequence[] processed;
+    /**
+     * The sequences of the events which have been processed by each preprocessing handler, per preprocessing handler and ring buffer
+     */
+    private final Sequence[][] preprocessed;
+    private final ReportingEventHandler reportingEventHandler;
+    private final List<EventHandler<ReportingEvent>> preprocessingHandlers;
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running;
+
+    /**
+     * @param capacities the capacity of each ring buffer, which must be a power of 2
+     */
+    @SuppressWarnings("unchecked")
+    AbstractMultiRingReportingEventQueue(int[] capacities, ReportingEventHandler reportingEventHandler) {
+        this.reportingEventHandler = reportingEventHandler;
+        this.preprocessingHandlers = reportingEventHandler.getPreprocessingHandlers();
+        rings = new RingBuffer[capacities.length];
+        processed = new Sequence[capacities.length];
+        preprocessed = new Sequence[preprocessingHandlers.size()][capacities.length];
+        for (int i = 0; i < capacities.length; i++) {
+            // the wait strategy is not used, as the ring buffers are polled
+            rings[i] = RingBuffer.create(ProducerType.MULTI, new ApmServerReporter.TransactionEventFactory(), capacities[i],
+                new BlockingWaitStrategy());
+            processed[i] = new Sequence();
+            rings[i].addGatingSequences(processed[i]);
+            for (int j = 0; j < preprocessed.length; j++) {
+                preprocessed[j][i] = new Sequence();
+            }
+        }
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        ThreadFactory threadFactory = preprocessingHandlers.isEmpty()
+            ? new ExecutorUtils.SingleNamedThreadFactory("server-reporter")
+            : new ExecutorUtils.NamedThreadFactory("server-reporter");
+        for (int i = 0; i < preprocessingHandlers.size(); i++) {
+            threads.add(threadFactory.newThread(new PreprocessingLoop(preprocessingHandlers.get(i), preprocessed[i])));
+        }
+        threads.add(threadFactory.newThread(new ProcessingLoop()));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * @return the index of the ring buffer a non-control event of the given type should be published to
+     */
+    abstract int getRingIndex(ReportingEvent.ReportingEventType type);
+
+    /**
+     * @return the maximum number of events that are processed from the given ring buffer
+     * before the other ring buffers get their turn
+     */
+    int getMaxBatchSize(int ring) {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Called on the {@code server-reporter} thread after events of the given ring buffer have been processed.
+     */
+    void afterBatchProcessed(int ring) {
+    }
+
+    RingBuffer<ReportingEvent> getRing(int ring) {
+        return rings[ring];
+    }
+
+    int getRingCount() {
+        return rings.length;
+    }
+
+    @Override
+    public <E> boolean tryPublish(ReportingEvent.ReportingEventType type, EventTranslatorOneArg<ReportingEvent, E> translator, E arg) {
+        return rings[getRingIndex(type)].tryPublishEvent(translator, arg);
+    }
+
+    @Override
+    public <E> void publish(ReportingEvent.ReportingEventType type, EventTranslatorOneArg<ReportingEvent, E> translator, E arg) {
+        rings[getRingIndex(type)].publishEvent(translator, arg);
+    }
+
+    @Override
+    public boolean tryPublishControlEvent(EventTranslator<ReportingEvent> translator) {
+        return rings[CONTROL_RING].tryPublishEvent(translator);
+    }
+
+    @Override
+    public long tryPublishControlEvent(EventTranslatorOneArg<ReportingEvent, Thread> translator, Thread thread) throws InsufficientCapacityException {
+        RingBuffer<ReportingEvent> ringBuffer = rings[CONTROL_RING];
+        long sequence = ringBuffer.tryNext();
+        try {
+            translator.translateTo(ringBuffer.get(sequence), sequence, thread);
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+        return sequence;
+    }
+
+    @Override
+    public boolean isProcessed(long ticket) {
+        return processed[CONTROL_RING].get() >= ticket;
+    }
+
+    @Override
+    public long getCapacity() {
+        long capacity = 0;
+        for (RingBuffer<ReportingEvent> ring : rings) {
+            capacity += ring.getBufferSize();
+        }
+        return capacity;
+    }
+
+    @Override
+    public long getElementCount() {
+        long elementCount = 0;
+        for (RingBuffer<ReportingEvent> ring : rings) {
+            elementCount += getElementCount(ring);
+        }
+        return elementCount;
+    }
+
+    static long getElementCount(RingBuffer<ReportingEvent> ring) {
+        return ring.getBufferSize() - ring.remainingCapacity();
+    }
+
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) throws TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isDrained()) {
+            if (System.nanoTime() - deadline > 0) {
+                running = false;
+                throw TimeoutException.INSTANCE;
+            }
+            LockSupport.parkNanos(SLEEP_TIME_NS_START);
+        }
+        running = false;
+    }
+
+    private boolean isDrained() {
+        for (int i = 0; i < rings.length; i++) {
+            if (processed[i].get() < rings[i].getCursor()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Processes the available events of a ring buffer with the {@link ReportingEventHandler}.
+     *
+     * @return {@code true} if at least one event has been processed
+     */
+    private boolean process(int ring, int maxBatchSize) {
+        RingBuffer<ReportingEvent> ringBuffer = rings[ring];
+        Sequence sequence = processed[ring];
+        long start = sequence.get() + 1;
+        long next = start;
+        long available = Math.min(getAvailableSequence(ring), start + maxBatchSize - 1);
+        while (next <= available && ringBuffer.isPublished(next)) {
+            ReportingEvent event = ringBuffer.get(next);
+            if (ring == CONTROL_RING && event.getType().isControl()) {
+                processOtherRingsUpToCursor();
+            }
+            try {
+                reportingEventHandler.onEvent(event, next, next == available);
+            } catch (Exception e) {
+                logger.warn("Exception while processing event {}: {}", event, e.getMessage());
+                logger.debug("Event processing failure", e);
+            }
+            sequence.set(next);
+            next++;
+        }
+        if (next > start) {
+            afterBatchProcessed(ring);
+            return true;
+        }
+        return false;
+    }
+
+    private long getAvailableSequence(int ring) {
+        long available = rings[ring].getCursor();
+        for (Sequence[] preprocessedByRing : preprocessed) {
+            available = Math.min(available, preprocessedByRing[ring].get());
+        }
+        return available;
+    }
+
+    private void processOtherRingsUpToCursor() {
+        for (int i = 0; i < rings.length; i++) {
+            if (i == CONTROL_RING) {
+                continue;
+            }
+            long cursor = rings[i].getCursor();
+            // an event might be claimed but not yet published or not yet preprocessed
+            while (processed[i].get() < cursor && running) {
+                if (!process(i, Integer.MAX_VALUE)) {
+                    LockSupport.parkNanos(1_000);
+                }
+            }
+        }
+    }
+
+    private class ProcessingLoop implements Runnable {
+
+        @Override
+        public void run() {
+            int sleepTimeNs = SLEEP_TIME_NS_START;
+            while (running) {
+                boolean processedAny = false;
+                for (int i = 0; i < rings.length; i++) {
+                    processedAny |= process(i, getMaxBatchSize(i));
+                }
+                sleepTimeNs = processedAny ? SLEEP_TIME_NS_START : sleep(sleepTimeNs);
+            }
+        }
+    }
+
+    private class PreprocessingLoop implements Runnable {
+
+        private final EventHandler<ReportingEvent> handler;
+        private final Sequence[] preprocessedByRing;
+
+        private PreprocessingLoop(EventHandler<ReportingEvent> handler, Sequence[] preprocessedByRing) {
+            this.handler = handler;
+            this.preprocessedByRing = preprocessedByRing;
+        }
+
+        @Override
+        public void run() {
+            int sleepTimeNs = SLEEP_TIME_NS_START;
+            while (running) {
+                boolean processedAny = false;
+                for (int i = 0; i < rings.length; i++) {
+                    processedAny |= preprocess(i);
+                }
+                sleepTimeNs = processedAny ? SLEEP_TIME_NS_START : sleep(sleepTimeNs);
+            }
+        }
+
+        private boolean preprocess(int ring) {
+            RingBuffer<ReportingEvent> ringBuffer = rings[ring];
+            Sequence sequence = preprocessedByRing[ring];
+            long start = sequence.get() + 1;
+            long next = start;
+            long cursor = ringBuffer.getCursor();
+            while (next <= cursor && ringBuffer.isPublished(next)) {
+                try {
+                    handler.onEvent(ringBuffer.get(next), next, next == cursor);
+                } catch (Exception e) {
+                    logger.warn("Exception while preprocessing event: {}", e.getMessage());
+                    logger.debug("Event preprocessing failure", e);
+                }
+                sequence.set(next);
+                next++;
+            }
+            return next > start;
+        }
+    }
+
+    /**
+     * Sleeps for an exponentially increasing time while there are no events,
+     * like {@link co.elastic.apm.agent.report.disruptor.ExponentionallyIncreasingSleepingWaitStrategy}.
+     *
+     * @return the time to sleep next time
+     */
+    private static int sleep(int sleepTimeNs) {
+        LockSupport.parkNanos(sleepTimeNs);
+        return Math.min(sleepTimeNs * 2, SLEEP_TIME_NS_MAX);
+    }
+}
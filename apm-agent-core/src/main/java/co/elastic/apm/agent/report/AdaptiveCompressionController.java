@@ -0,0 +1,97 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import java.util.zip.Deflater;
+
+/**
+ * Adapts the deflate level of intake requests to the load of the reporter.
+ * <p>
+ * After each request, the level is
+ * </p>
+ * <ul>
+ *     <li>
+ *         decreased if the reporter is saturated,
+ *         which means that the reporter thread was busy for a large share of the request's duration or that the queue fills up.
+ *         This saves CPU when the reporter can't keep up.
+ *         The lowest level, {@link Deflater#NO_COMPRESSION}, means that requests are sent uncompressed.
+ *     </li>
+ *     <li>
+ *         capped at {@link Deflater#BEST_SPEED} while the circuit breaker reports stress.
+ *     </li>
+ *     <li>
+ *         increased if the reporter is idle and the throughput is low,
+ *         which saves bandwidth at a negligible CPU cost.
+ *     </li>
+ * </ul>
+ */
+class AdaptiveCompressionController {
+
+    /**
+     * Higher levels only marginally improve the compression ratio of ND-JSON while being considerably slower
+     */
+    static final int MAX_LEVEL = 6;
+
+    private static final double SATURATED_CPU_UTILIZATION = 0.5;
+    private static final double IDLE_CPU_UTILIZATION = 0.1;
+    private static final double SATURATED_QUEUE_UTILIZATION = 0.5;
+    private static final double IDLE_QUEUE_UTILIZATION = 0.1;
+    private static final long IDLE_BYTES_PER_SECOND = 256 * 1024;
+
+    private int level;
+
+    AdaptiveCompressionController(int initialLevel) {
+        this.level = initialLevel;
+    }
+
+    /**
+     * @return the deflate level for the next request, {@link Deflater#NO_COMPRESSION} if the next request should not be compressed
+     */
+    int getLevel() {
+        return level;
+    }
+
+    /**
+     * Adapts the level based on the load observed during a request.
+     *
+     * @param uncompressedBytes the number of bytes that have been sent before compression
+     * @param durationNanos     the duration of the request
+     * @param cpuTimeNanos      the CPU time the reporter thread consumed during the request, or {@code -1} if unknown
+     * @param queueUtilization  the share of the queue capacity which is currently used
+     * @param underStress       whether the circuit breaker currently reports stress
+     * @return whether the level has changed
+     */
+    boolean onRequestCompleted(long uncompressedBytes, long durationNanos, long cpuTimeNanos, double queueUtilization, boolean underStress) {
+        int previousLevel = level;
+        if (durationNanos <= 0) {
+            return false;
+        }
+        double cpuUtilization = cpuTimeNanos >= 0 ? ((double) cpuTimeNanos) / durationNanos : 0;
+        double bytesPerSecond = uncompressedBytes * 1_000_000_000d / durationNanos;
+        if (cpuUtilization >= SATURATED_CPU_UTILIZATION || queueUtilization >= SATURATED_QUEUE_UTILIZATION) {
+            level = Math.max(level - 1, Deflater.NO_COMPRESSION);
+        } else if (cpuUtilization < IDLE_CPU_UTILIZATION && queueUtilization < IDLE_QUEUE_UTILIZATION && bytesPerSecond < IDLE_BYTES_PER_SECOND) {
+            level = Math.min(level + 1, MAX_LEVEL);
+        }
+        if (underStress) {
+            level = Math.min(level, Deflater.BEST_SPEED);
+        }
+        return level != previousLevel;
+    }
+}
@@ -42,6 +42,7 @@ import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -64,6 +65,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  * That's because of the random order the APM Servers will be in the shuffled list.
  * The assumption is that we only need to multiple APM Servers if lots of agents are in use and therefore one server does not scale anymore.
  * </p>
+ * <p>
+ * Alternatively, intake requests can be balanced across all servers via {@link ReporterConfigurationImpl#getIntakeLoadBalancing()},
+ * see {@link IntakeLoadBalancer}.
+ * </p>
  */
 public class ApmServerClient {
 
@@ -85,6 +90,9 @@ public class ApmServerClient {
     private volatile Future<Version> apmServerVersion;
     private final AtomicInteger errorCount = new AtomicInteger();
     private final ApmServerHealthChecker healthChecker;
+    private final IntakeTransport intakeTransport;
+    @Nullable
+    private final IntakeLoadBalancer intakeLoadBalancer;
 
     private final String userAgent;
 
@@ -93,6 +101,22 @@ public class ApmServerClient {
         this.healthChecker = new ApmServerHealthChecker(this);
         this.serverlessConfiguration = configs.getConfig(ServerlessConfigurationImpl.class);
         this.userAgent = getUserAgent(configs.getConfig(CoreConfigurationImpl.class));
+        this.intakeTransport = createIntakeTransport(reporterConfiguration.getIntakeTransport());
+        ReporterConfigurationImpl.IntakeLoadBalancing intakeLoadBalancing = reporterConfiguration.getIntakeLoadBalancing();
+        this.intakeLoadBalancer = intakeLoadBalancing != ReporterConfigurationImpl.IntakeLoadBalancing.FAILOVER
+            ? new IntakeLoadBalancer(intakeLoadBalancing)
+            : null;
+    }
+
+    private IntakeTransport createIntakeTransport(ReporterConfigurationImpl.IntakeTransportType type) {
+        IntakeTransport urlConnectionTransport = new UrlConnectionIntakeTransport(this);
+        switch (type) {
+            case NIO_KEEP_ALIVE:
+                return new NioKeepAliveIntakeTransport(this, reporterConfiguration, urlConnectionTransport);
+            case URL_CONNECTION:
+            default:
+                return urlConnectionTransport;
+        }
     }
 
     public void start() {
@@ -126,6 +150,10 @@ public class ApmServerClient {
 
     private void setServerUrls(List<URL> serverUrls) {
         this.serverUrls = serverUrls;
+        if (intakeLoadBalancer != null) {
+            intakeLoadBalancer.setServerUrls(serverUrls);
+        }
+        this.intakeTransport.close();
         this.apmServerVersion = healthChecker.checkHealthAndGetMinVersion();
         this.errorCount.set(0);
     }
@@ -152,8 +180,74 @@ public class ApmServerClient {
         return startRequestToUrl(url);
     }
 
+    /**
+     * Starts a streaming intake request via the configured {@link IntakeTransport}.
+     *
+     * @param url            the full URL, usually obtained via {@link #appendPathToCurrentUrl(String)}
+     * @param requestHeaders request specific headers
+     * @return the started request
+     * @throws IOException if the connection could not be established
+     */
+    IntakeConnection startIntakeRequest(URL url, Map<String, String> requestHeaders) throws IOException {
+        return intakeTransport.startRequest(url, requestHeaders);
+    }
+
+    /**
+     * Returns the APM Server the next intake request should be sent to.
+     * Unless {@link ReporterConfigurationImpl#getIntakeLoadBalancing() intake load balancing} is enabled,
+     * this is the {@link #getCurrentUrl() current URL}.
+     *
+     * @return the base URL of the APM Server, or {@code null} if there is none
+     */
+    @Nullable
+    URL getIntakeServerUrl() {
+        if (intakeLoadBalancer != null) {
+            return intakeLoadBalancer.select();
+        }
+        return getCurrentUrl();
+    }
+
+    /**
+     * Records a successful intake request for the purpose of load balancing.
+     *
+     * @param serverUrl    the URL as returned by {@link #getIntakeServerUrl()}
+     * @param eventCount   the number of events which have been sent within the request
+     * @param latencyNanos the time the reporter thread has been blocked by establishing the connection and waiting for the response
+     */
+    void onIntakeRequestFinished(URL serverUrl, long eventCount, long latencyNanos) {
+        if (intakeLoadBalancer != null) {
+            intakeLoadBalancer.onRequestFinished(serverUrl, eventCount, latencyNanos);
+        }
+    }
+
+    /**
+     * Records a connection error or a server side error of an intake request.
+     * When balancing intake requests, the server is excluded while it's backing off.
+     * Otherwise, this fails over to the next server.
+     *
+     * @param serverUrl the URL as returned by {@link #getIntakeServerUrl()}
+     */
+    void onIntakeConnectionError(URL serverUrl) {
+        if (intakeLoadBalancer != null) {
+            intakeLoadBalancer.onError(serverUrl);
+        } else {
+            onConnectionError();
+        }
+    }
+
+    /**
+     * @return {@code true} if intake requests are balanced across servers and at least one of them is not backing off
+     */
+    boolean isIntakeServerAvailable() {
+        return intakeLoadBalancer != null && intakeLoadBalancer.isAnyServerAvailable();
+    }
+
+    IntakeTransport getIntakeTransport() {
+        return intakeTransport;
+    }
+
     @Nonnull
-    private HttpURLConnection startRequestToUrl(URL url) throws IOException {
+    HttpURLConnection startRequestToUrl(URL url) throws IOException {
         final URLConnection connection = UrlConnectionUtils.openUrlConnectionThreadSafely(url, true);
 
         // change SSL socket factory to support both TLS fallback and disabling certificate validation
@@ -170,16 +264,7 @@ public class ApmServerClient {
             }
         }
 
-        String secretToken = reporterConfiguration.getSecretToken();
-        String apiKey = reporterConfiguration.getApiKey();
-        String authHeaderValue = null;
-
-        if (apiKey != null) {
-            authHeaderValue = String.format("ApiKey %s", apiKey);
-        } else if (secretToken != null) {
-            authHeaderValue = String.format("Bearer %s", secretToken);
-        }
-
+        String authHeaderValue = getAuthorizationHeader();
         if (authHeaderValue != null) {
             connection.setRequestProperty("Authorization", authHeaderValue);
         }
@@ -190,6 +275,22 @@ public class ApmServerClient {
         return (HttpURLConnection) connection;
     }
 
+    @Nullable
+    String getAuthorizationHeader() {
+        String secretToken = reporterConfiguration.getSecretToken();
+        String apiKey = reporterConfiguration.getApiKey();
+        if (apiKey != null) {
+            return String.format("ApiKey %s", apiKey);
+        } else if (secretToken != null) {
+            return String.format("Bearer %s", secretToken);
+        }
+        return null;
+    }
+
+    String getUserAgentHeader() {
+        return userAgent;
+    }
+
     @Nullable
     URL appendPathToCurrentUrl(String apmServerPath) throws MalformedURLException {
         URL currentUrl = getCurrentUrl();
@@ -200,7 +301,7 @@ public class ApmServerClient {
     }
 
     @Nonnull
-    private URL appendPath(URL serverUrl, String apmServerPath) throws MalformedURLException {
+    URL appendPath(URL serverUrl, String apmServerPath) throws MalformedURLException {
         String path = serverUrl.getPath();
         if (path.endsWith("/")) {
             path = path.substring(0, path.length() - 1);
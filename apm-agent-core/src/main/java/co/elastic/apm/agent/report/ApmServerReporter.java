@@ -23,20 +23,15 @@ import co.elastic.apm.agent.impl.error.ErrorCaptureImpl;
 import co.elastic.apm.agent.impl.transaction.SpanImpl;
 import co.elastic.apm.agent.impl.transaction.TransactionImpl;
 import co.elastic.apm.agent.objectpool.ObjectPoolFactoryImpl;
-import co.elastic.apm.agent.report.disruptor.ExponentionallyIncreasingSleepingWaitStrategy;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
-import co.elastic.apm.agent.util.ExecutorUtils;
 import co.elastic.apm.agent.util.MathUtils;
 import com.dslplatform.json.JsonWriter;
 import com.lmax.disruptor.EventFactory;
 import com.lmax.disruptor.EventTranslator;
 import com.lmax.disruptor.EventTranslatorOneArg;
-import com.lmax.disruptor.IgnoreExceptionHandler;
 import com.lmax.disruptor.InsufficientCapacityException;
-import com.lmax.disruptor.dsl.Disruptor;
-import com.lmax.disruptor.dsl.ProducerType;
 
 import javax.annotation.Nullable;
 import java.util.concurrent.TimeUnit;
@@ -46,12 +41,16 @@ import java.util.concurrent.locks.LockSupport;
 /**
  * This reporter asynchronously reports {@link TransactionImpl}s to the APM server
  * <p>
- * It uses a Disruptor/ring buffer to decouple the {@link TransactionImpl} producing threads from the thread that actually sends the payload
+ * It uses a {@link ReportingEventQueue} (ring buffers) to decouple the {@link TransactionImpl} producing threads from the thread that actually sends the payload
  * </p>
  */
 public class ApmServerReporter implements Reporter {
 
     private static final Logger logger = LoggerFactory.getLogger(ApmServerReporter.class);
+    /**
+     * The default of {@code server_timeout}, used to bound the wait for partial transaction registrations if the server timeout is disabled
+     */
+    private static final long DEFAULT_PARTIAL_TRANSACTION_FLUSH_TIMEOUT_MILLIS = 5000;
 
     private static final EventTranslatorOneArg<ReportingEvent, TransactionImpl> TRANSACTION_EVENT_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, TransactionImpl>() {
         @Override
@@ -122,18 +121,38 @@ public class ApmServerReporter implements Reporter {
             event.setBytesLog(bytes, true);
         }
     };
+    private static final EventTranslatorOneArg<ReportingEvent, EagerEventSerializer.SerializedEvent> SERIALIZED_EVENT_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, EagerEventSerializer.SerializedEvent>() {
+        @Override
+        public void translateTo(ReportingEvent event, long sequence, EagerEventSerializer.SerializedEvent serializedEvent) {
+            serializedEvent.copyTo(event);
+        }
+    };
+
+    private static final EventTranslatorOneArg<ReportingEvent, BufferedEvent> BUFFERED_EVENT_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, BufferedEvent>() {
+        @Override
+        public void translateTo(ReportingEvent event, long sequence, BufferedEvent bufferedEvent) {
+            event.setSerializedEvent(bufferedEvent.type, bufferedEvent.bytes, bufferedEvent.length);
+        }
+    };
 
-    private final Disruptor<ReportingEvent> disruptor;
+    private final ReportingEventQueue queue;
     private final AtomicLong dropped = new AtomicLong();
     private final boolean dropTransactionIfQueueFull;
     private final ReportingEventHandler reportingEventHandler;
+    @Nullable
+    private final EagerEventSerializer eagerEventSerializer;
+    private final boolean serializeOnReport;
+    @Nullable
+    private final TailSampler tailSampler;
     private final boolean syncReport;
 
     private final ReporterMonitor monitor;
+    private volatile boolean underStress;
 
     private final PartialTransactionReporter partialTransactionReporter;
 
     private final CoreConfigurationImpl coreConfiguration;
+    private final ReporterConfigurationImpl reporterConfiguration;
 
     public ApmServerReporter(boolean dropTransactionIfQueueFull,
                              ReporterConfigurationImpl reporterConfiguration,
@@ -149,21 +168,41 @@ public class ApmServerReporter implements Reporter {
         this.syncReport = reporterConfiguration.isReportSynchronously();
         this.monitor = monitor;
         this.coreConfiguration = coreConfiguration;
-        disruptor = new Disruptor<>(
-            new TransactionEventFactory(),
-            MathUtils.getNextPowerOf2(reporterConfiguration.getMaxQueueSize()),
-            new ExecutorUtils.SingleNamedThreadFactory("server-reporter"),
-            ProducerType.MULTI,
-            new ExponentionallyIncreasingSleepingWaitStrategy(100_000, 10_000_000));
+        this.reporterConfiguration = reporterConfiguration;
         this.reportingEventHandler = reportingEventHandler;
-        disruptor.setDefaultExceptionHandler(new IgnoreExceptionHandler());
-        disruptor.handleEventsWith(this.reportingEventHandler);
+        this.eagerEventSerializer = reportingEventHandler.getEagerEventSerializer();
+        this.serializeOnReport = reporterConfiguration.isSerializeOnReport();
+        if (reporterConfiguration.isTailSampling() && eagerEventSerializer != null) {
+            this.tailSampler = new TailSampler(reporterConfiguration, eagerEventSerializer, monitor);
+        } else {
+            if (reporterConfiguration.isTailSampling()) {
+                logger.warn("Tail sampling is not supported by {}, traces recorded for tail sampling are reported as a whole", reportingEventHandler.getClass().getSimpleName());
+            }
+            this.tailSampler = null;
+        }
+        int stripes = reporterConfiguration.getQueueStripes();
+        if (reporterConfiguration.isQueuePriorityLanes()) {
+            if (stripes > 1) {
+                logger.warn("queue_stripes={} is ignored as queue_priority_lanes is enabled", stripes);
+            }
+            queue = new PriorityLaneReportingEventQueue(
+                MathUtils.getNextPowerOf2(reporterConfiguration.getQueuePriorityLaneSize()),
+                MathUtils.getNextPowerOf2(reporterConfiguration.getMaxQueueSize()),
+                reportingEventHandler,
+                monitor);
+        } else if (stripes > 1) {
+            queue = new StripedReportingEventQueue(stripes,
+                MathUtils.getNextPowerOf2(Math.max(reporterConfiguration.getMaxQueueSize() / stripes, 1)),
+                reportingEventHandler);
+        } else {
+            queue = new DisruptorReportingEventQueue(MathUtils.getNextPowerOf2(reporterConfiguration.getMaxQueueSize()), reportingEventHandler);
+        }
         partialTransactionReporter = new PartialTransactionReporter(apmServer, serializer, poolFactory);
     }
 
     @Override
     public void start() {
-        disruptor.start();
+        queue.start();
         reportingEventHandler.init(this);
     }
 
@@ -176,7 +215,16 @@ public class ApmServerReporter implements Reporter {
 
     @Override
     public void report(TransactionImpl transaction) {
-        if (!tryAddEventToRingBuffer(transaction, TRANSACTION_EVENT_TRANSLATOR, ReportingEvent.ReportingEventType.TRANSACTION)) {
+        if (tailSampler != null && transaction.getTraceContext().isRecordedForTailSampling()
+            && !coreConfiguration.isContextPropagationOnly() && !tailSampler.onTransactionEnd(transaction, this)) {
+            transaction.decrementReferences();
+            return;
+        }
+        EagerEventSerializer.SerializedEvent serializedEvent = isSerializeEagerly() ? eagerEventSerializer.serialize(transaction) : null;
+        if (serializedEvent != null) {
+            transaction.decrementReferences();
+            reportSerializedEvent(serializedEvent);
+        } else if (!tryAddEventToRingBuffer(transaction, TRANSACTION_EVENT_TRANSLATOR, ReportingEvent.ReportingEventType.TRANSACTION)) {
             transaction.decrementReferences();
         }
         if (syncReport) {
@@ -186,7 +234,16 @@ public class ApmServerReporter implements Reporter {
 
     @Override
     public void report(SpanImpl span) {
-        if (!tryAddEventToRingBuffer(span, SPAN_EVENT_TRANSLATOR, ReportingEvent.ReportingEventType.SPAN)) {
+        if (tailSampler != null && span.getTraceContext().isRecordedForTailSampling() && !coreConfiguration.isContextPropagationOnly()) {
+            tailSampler.buffer(span);
+            span.decrementReferences();
+            return;
+        }
+        EagerEventSerializer.SerializedEvent serializedEvent = isSerializeEagerly() ? eagerEventSerializer.serialize(span) : null;
+        if (serializedEvent != null) {
+            span.decrementReferences();
+            reportSerializedEvent(serializedEvent);
+        } else if (!tryAddEventToRingBuffer(span, SPAN_EVENT_TRANSLATOR, ReportingEvent.ReportingEventType.SPAN)) {
             span.decrementReferences();
         }
         if (syncReport) {
@@ -209,22 +266,65 @@ public class ApmServerReporter implements Reporter {
         return reportingEventHandler.getReported();
     }
 
+    @Override
+    public void onStressDetected() {
+        underStress = true;
+    }
+
+    @Override
+    public void onStressRelieved() {
+        underStress = false;
+    }
+
+    public boolean isUnderStress() {
+        return underStress;
+    }
+
     public ReporterMonitor getReporterMonitor() {
         return monitor;
     }
 
     public void scheduleWakeupEvent() {
-        disruptor.getRingBuffer().tryPublishEvent(WAKEUP_EVENT_TRANSLATOR);
+        queue.tryPublishControlEvent(WAKEUP_EVENT_TRANSLATOR);
     }
 
     @Override
     public boolean flush(long timeout, TimeUnit unit, boolean followupWithFlushRequest) {
+        if (timeout >= 0) {
+            // partial transactions have to be registered before the transactions themselves are sent
+            long startNs = System.nanoTime();
+            if (!flushPartialTransactions(timeout, unit)) {
+                return false;
+            }
+            timeout = Math.max(0, unit.toNanos(timeout) - (System.nanoTime() - startNs));
+            unit = TimeUnit.NANOSECONDS;
+        } else if (!flushPartialTransactions(getPartialTransactionFlushTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+            return false;
+        }
         if (followupWithFlushRequest) {
             return publishAndWaitForEvent(timeout, unit, MAKE_FLUSH_REQUEST_EVENT_TRANSLATOR);
         }
         return publishAndWaitForEvent(timeout, unit, END_REQUEST_EVENT_TRANSLATOR);
     }
 
+    /**
+     * Even when flushing without a timeout, the wait for pending partial transaction registrations is bounded,
+     * so that an unresponsive extension can't block the caller indefinitely.
+     */
+    private long getPartialTransactionFlushTimeoutMillis() {
+        long serverTimeoutMillis = reporterConfiguration.getServerTimeout().getMillis();
+        return serverTimeoutMillis > 0 ? serverTimeoutMillis : DEFAULT_PARTIAL_TRANSACTION_FLUSH_TIMEOUT_MILLIS;
+    }
+
+    private boolean flushPartialTransactions(long timeout, TimeUnit unit) {
+        try {
+            return partialTransactionReporter.flush(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
     private boolean publishAndWaitForEvent(long timeout, TimeUnit unit, EventTranslatorOneArg<ReportingEvent, Thread> eventTranslator) {
         if (!reportingEventHandler.isHealthy()) {
             return false;
@@ -239,12 +339,7 @@ public class ApmServerReporter implements Reporter {
         }
         do {
             try {
-                long sequence = disruptor.getRingBuffer().tryNext();
-                try {
-                    eventTranslator.translateTo(disruptor.get(sequence), sequence, Thread.currentThread());
-                } finally {
-                    disruptor.getRingBuffer().publish(sequence);
-                }
+                long sequence = queue.tryPublishControlEvent(eventTranslator, Thread.currentThread());
                 return waitForEventProcessed(sequence, thresholdNs);
             } catch (InsufficientCapacityException e) {
                 LockSupport.parkNanos(100_000);
@@ -259,7 +354,7 @@ public class ApmServerReporter implements Reporter {
     private boolean waitForEventProcessed(long sequence, long thresholdNs) {
         ReportingEventHandler reportingEventHandler = this.reportingEventHandler;
         for (long nowNs = System.nanoTime();
-             nowNs < thresholdNs && reportingEventHandler.isHealthy() && !reportingEventHandler.isProcessed(sequence);
+             nowNs < thresholdNs && reportingEventHandler.isHealthy() && !queue.isProcessed(sequence);
              nowNs = System.nanoTime()) {
 
             // periodically waking up to check if the connection turned unhealthy
@@ -271,7 +366,7 @@ public class ApmServerReporter implements Reporter {
                 break;
             }
         }
-        return reportingEventHandler.isProcessed(sequence);
+        return queue.isProcessed(sequence);
     }
 
     @Override
@@ -279,8 +374,9 @@ public class ApmServerReporter implements Reporter {
         logger.info("dropped events because of full queue: {}", dropped.get());
         publishAndWaitForEvent(5, TimeUnit.SECONDS, SHUTDOWN_EVENT_TRANSLATOR);
         reportingEventHandler.close();
+        partialTransactionReporter.close();
         try {
-            disruptor.shutdown(1, TimeUnit.SECONDS);
+            queue.shutdown(1, TimeUnit.SECONDS);
         } catch (com.lmax.disruptor.TimeoutException e) {
             logger.warn("Timeout while shutting down disruptor");
         }
@@ -288,7 +384,14 @@ public class ApmServerReporter implements Reporter {
 
     @Override
     public void report(ErrorCaptureImpl error) {
-        if (!tryAddEventToRingBuffer(error, ERROR_EVENT_TRANSLATOR, ReportingEvent.ReportingEventType.ERROR)) {
+        if (tailSampler != null && error.getTraceContext().isRecordedForTailSampling()) {
+            tailSampler.onError(error);
+        }
+        EagerEventSerializer.SerializedEvent serializedEvent = isSerializeEagerly() ? eagerEventSerializer.serialize(error) : null;
+        if (serializedEvent != null) {
+            error.recycle();
+            reportSerializedEvent(serializedEvent);
+        } else if (!tryAddEventToRingBuffer(error, ERROR_EVENT_TRANSLATOR, ReportingEvent.ReportingEventType.ERROR)) {
             error.recycle();
         }
         if (syncReport) {
@@ -296,6 +399,39 @@ public class ApmServerReporter implements Reporter {
         }
     }
 
+    private boolean isSerializeEagerly() {
+        return serializeOnReport && eagerEventSerializer != null && !coreConfiguration.isContextPropagationOnly();
+    }
+
+    /**
+     * Reports the events of a trace which has been buffered for tail sampling
+     */
+    void reportBufferedEvents(TailSamplingBuffer.BufferedTrace trace) {
+        final BufferedEvent bufferedEvent = new BufferedEvent();
+        trace.forEachEvent(new TailSamplingBuffer.EventConsumer() {
+            @Override
+            public void accept(ReportingEvent.ReportingEventType type, byte[] bytes, int length) {
+                bufferedEvent.type = type;
+                bufferedEvent.bytes = bytes;
+                bufferedEvent.length = length;
+                tryAddEventToRingBuffer(bufferedEvent, BUFFERED_EVENT_TRANSLATOR, type);
+            }
+        });
+    }
+
+    @Nullable
+    TailSampler getTailSampler() {
+        return tailSampler;
+    }
+
+    private void reportSerializedEvent(EagerEventSerializer.SerializedEvent serializedEvent) {
+        try {
+            tryAddEventToRingBuffer(serializedEvent, SERIALIZED_EVENT_TRANSLATOR, serializedEvent.getType());
+        } finally {
+            serializedEvent.resetState();
+        }
+    }
+
     @Override
     public void reportMetrics(JsonWriter jsonWriter) {
         if (jsonWriter.size() == 0) {
@@ -339,11 +475,11 @@ public class ApmServerReporter implements Reporter {
     }
 
     long getQueueCapacity() {
-        return disruptor.getRingBuffer().getBufferSize();
+        return queue.getCapacity();
     }
 
     long getQueueElementCount() {
-        return disruptor.getRingBuffer().getBufferSize() - disruptor.getRingBuffer().remainingCapacity();
+        return queue.getElementCount();
     }
 
     private <E> boolean tryAddEventToRingBuffer(E event, EventTranslatorOneArg<ReportingEvent, E> eventTranslator, ReportingEvent.ReportingEventType targetType) {
@@ -354,7 +490,7 @@ public class ApmServerReporter implements Reporter {
         long capacity = getQueueCapacity();
         monitor.eventCreated(targetType, capacity, getQueueElementCount());
         if (dropTransactionIfQueueFull) {
-            boolean queueFull = !disruptor.getRingBuffer().tryPublishEvent(eventTranslator, event);
+            boolean queueFull = !queue.tryPublish(targetType, eventTranslator, event);
             if (queueFull) {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Could not add {} {} to ring buffer as no slots are available", event.getClass().getSimpleName(), event);
@@ -364,11 +500,19 @@ public class ApmServerReporter implements Reporter {
                 return false;
             }
         } else {
-            disruptor.getRingBuffer().publishEvent(eventTranslator, event);
+            queue.publish(targetType, eventTranslator, event);
         }
         return true;
     }
 
+    private static class BufferedEvent {
+        @Nullable
+        private ReportingEvent.ReportingEventType type;
+        @Nullable
+        private byte[] bytes;
+        private int length;
+    }
+
     static class TransactionEventFactory implements EventFactory<ReportingEvent> {
         @Override
         public ReportingEvent newInstance() {
@@ -0,0 +1,119 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.report.disruptor.ExponentionallyIncreasingSleepingWaitStrategy;
+import co.elastic.apm.agent.util.ExecutorUtils;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslator;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.IgnoreExceptionHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.TimeoutException;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single multi-producer ring buffer, processed by the {@link ReportingEventHandler} on the {@code server-reporter} thread.
+ */
+class DisruptorReportingEventQueue implements ReportingEventQueue {
+
+    private final Disruptor<ReportingEvent> disruptor;
+    private final ReportingEventHandler reportingEventHandler;
+
+    DisruptorReportingEventQueue(int capacity, ReportingEventHandler reportingEventHandler) {
+        this.reportingEventHandler = reportingEventHandler;
+        List<EventHandler<ReportingEvent>> preprocessingHandlers = reportingEventHandler.getPreprocessingHandlers();
+        disruptor = new Disruptor<>(
+            new ApmServerReporter.TransactionEventFactory(),
+            capacity,
+            preprocessingHandlers.isEmpty()
+                ? new ExecutorUtils.SingleNamedThreadFactory("server-reporter")
+                : new ExecutorUtils.NamedThreadFactory("server-reporter"),
+            ProducerType.MULTI,
+            new ExponentionallyIncreasingSleepingWaitStrategy(100_000, 10_000_000));
+        disruptor.setDefaultExceptionHandler(new IgnoreExceptionHandler());
+        if (preprocessingHandlers.isEmpty()) {
+            disruptor.handleEventsWith(reportingEventHandler);
+        } else {
+            disruptor.handleEventsWith(toArray(preprocessingHandlers)).then(reportingEventHandler);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static EventHandler<ReportingEvent>[] toArray(List<EventHandler<ReportingEvent>> handlers) {
+        return handlers.toArray(new EventHandler[0]);
+    }
+
+    @Override
+    public void start() {
+        disruptor.start();
+    }
+
+    @Override
+    public <E> boolean tryPublish(ReportingEvent.ReportingEventType type, EventTranslatorOneArg<ReportingEvent, E> translator, E arg) {
+        return disruptor.getRingBuffer().tryPublishEvent(translator, arg);
+    }
+
+    @Override
+    public <E> void publish(ReportingEvent.ReportingEventType type, EventTranslatorOneArg<ReportingEvent, E> translator, E arg) {
+        disruptor.getRingBuffer().publishEvent(translator, arg);
+    }
+
+    @Override
+    public boolean tryPublishControlEvent(EventTranslator<ReportingEvent> translator) {
+        return disruptor.getRingBuffer().tryPublishEvent(translator);
+    }
+
+    @Override
+    public long tryPublishControlEvent(EventTranslatorOneArg<ReportingEvent, Thread> translator, Thread thread) throws InsufficientCapacityException {
+        RingBuffer<ReportingEvent> ringBuffer = disruptor.getRingBuffer();
+        long sequence = ringBuffer.tryNext();
+        try {
+            translator.translateTo(ringBuffer.get(sequence), sequence, thread);
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+        return sequence;
+    }
+
+    @Override
+    public boolean isProcessed(long ticket) {
+        return reportingEventHandler.isProcessed(ticket);
+    }
+
+    @Override
+    public long getCapacity() {
+        return disruptor.getRingBuffer().getBufferSize();
+    }
+
+    @Override
+    public long getElementCount() {
+        return disruptor.getRingBuffer().getBufferSize() - disruptor.getRingBuffer().remainingCapacity();
+    }
+
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) throws TimeoutException {
+        disruptor.shutdown(timeout, unit);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.impl.error.ErrorCaptureImpl;
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import com.dslplatform.json.JsonWriter;
+
+import javax.annotation.Nullable;
+
+/**
+ * Applies the {@link co.elastic.apm.agent.report.processor.Processor}s and serializes transactions, spans and errors
+ * on the thread which reports them.
+ * <p>
+ * This allows to recycle the reported objects right away, instead of keeping them until the reporter thread has serialized them.
+ * Only the serialized bytes are added to the queue, where they are copied into the buffer of the {@link ReportingEvent}.
+ * Each thread serializes into its own buffer, which is re-used for all events the thread reports.
+ * </p>
+ */
+class EagerEventSerializer {
+
+    private static final Logger logger = LoggerFactory.getLogger(EagerEventSerializer.class);
+
+    /**
+     * Buffers larger than this are not kept for re-use so that a few outliers don't increase the memory footprint of each thread
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private final ProcessorEventHandler processorEventHandler;
+    private final DslJsonSerializer payloadSerializer;
+    private final ThreadLocal<SerializedEvent> serializedEvent = new ThreadLocal<SerializedEvent>() {
+        @Override
+        protected SerializedEvent initialValue() {
+            return new SerializedEvent(payloadSerializer.newWriter());
+        }
+    };
+
+    EagerEventSerializer(ProcessorEventHandler processorEventHandler, DslJsonSerializer payloadSerializer) {
+        this.processorEventHandler = processorEventHandler;
+        this.payloadSerializer = payloadSerializer;
+    }
+
+    /**
+     * Serializes a transaction. The caller has to call {@link SerializedEvent#resetState()} when done with the result.
+     *
+     * @return the serialized transaction, or {@code null} if serialization failed
+     */
+    @Nullable
+    SerializedEvent serialize(TransactionImpl transaction) {
+        SerializedEvent event = serializedEvent.get();
+        event.processed.setTransaction(transaction);
+        return serialize(event);
+    }
+
+    @Nullable
+    SerializedEvent serialize(SpanImpl span) {
+        SerializedEvent event = serializedEvent.get();
+        event.processed.setSpan(span);
+        return serialize(event);
+    }
+
+    @Nullable
+    SerializedEvent serialize(ErrorCaptureImpl error) {
+        SerializedEvent event = serializedEvent.get();
+        event.processed.setError(error);
+        return serialize(event);
+    }
+
+    @Nullable
+    private SerializedEvent serialize(SerializedEvent event) {
+        ReportingEvent processed = event.processed;
+        try {
+            processorEventHandler.onEvent(processed, -1, true);
+            TransactionImpl transaction = processed.getTransaction();
+            SpanImpl span = processed.getSpan();
+            ErrorCaptureImpl error = processed.getError();
+            if (transaction != null) {
+                event.writer.serializeTransactionNdJson(transaction);
+            } else if (span != null) {
+                event.writer.serializeSpanNdJson(span);
+            } else if (error != null) {
+                event.writer.serializeErrorNdJson(error);
+            }
+            return event;
+        } catch (Exception e) {
+            // the reporter thread serializes the event if it can't be serialized here
+            logger.debug("Failed to serialize event of type {}", processed.getType(), e);
+            event.resetState();
+            return null;
+        }
+    }
+
+    class SerializedEvent {
+
+        /**
+         * Holds the event while the {@link co.elastic.apm.agent.report.processor.Processor}s are applied
+         */
+        private final ReportingEvent processed = new ReportingEvent();
+        private DslJsonSerializer.Writer writer;
+
+        private SerializedEvent(DslJsonSerializer.Writer writer) {
+            this.writer = writer;
+        }
+
+        ReportingEvent.ReportingEventType getType() {
+            return processed.getType();
+        }
+
+        void copyTo(ReportingEvent event) {
+            JsonWriter jw = writer.getJsonWriter();
+            event.setSerializedEvent(processed.getType(), jw.getByteBuffer(), jw.size());
+        }
+
+        /**
+         * @return the buffer holding the serialized event, which is only valid until {@link #resetState()}
+         */
+        byte[] getBytes() {
+            return writer.getJsonWriter().getByteBuffer();
+        }
+
+        int getLength() {
+            return writer.getJsonWriter().size();
+        }
+
+        void resetState() {
+            processed.resetState();
+            if (writer.getJsonWriter().getByteBuffer().length > MAX_RETAINED_BUFFER_SIZE) {
+                writer = payloadSerializer.newWriter();
+            } else {
+                writer.resetState();
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.report.file.SegmentFileWriter;
+import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.util.ExecutorUtils;
+import com.lmax.disruptor.EventHandler;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes the events to local segment files in the ND-JSON format of the intake API, instead of sending them to the APM Server.
+ * <p>
+ * Each segment corresponds to the body of one intake request, starting with the metadata,
+ * so that a shipper can forward the segments to the APM Server as they are.
+ * A segment is finished when it exceeds the configured size, after {@link ReporterConfigurationImpl#getApiRequestTime()}
+ * and on each flush, so that {@link Reporter#flush()} and {@link Reporter#close()} have the same semantics as when sending to the APM Server:
+ * the events that have been reported before are in finished segments when they return.
+ * </p>
+ */
+public class FileReportingEventHandler implements ReportingEventHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileReportingEventHandler.class);
+
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final int DEFLATER_BUFFER_SIZE = 64 * 1024;
+
+    private final ReporterConfigurationImpl reporterConfiguration;
+    private final ProcessorEventHandler processorEventHandler;
+    private final DslJsonSerializer.Writer payloadSerializer;
+    private final SegmentFileWriter segmentWriter;
+    @Nullable
+    private final Deflater deflater;
+    private final ScheduledExecutorService timeoutTimer;
+    private final List<EventHandler<ReportingEvent>> serializingEventHandlers;
+    @Nullable
+    private final EagerEventSerializer eagerEventSerializer;
+    private final AtomicLong processed = new AtomicLong();
+    private final ReportingEventCounter segmentEvents = new ReportingEventCounter();
+
+    @Nullable
+    private ApmServerReporter reporter;
+    @Nullable
+    private Runnable timeoutTask;
+    @Nullable
+    private OutputStream os;
+    private long segmentStartedNanos;
+    private volatile boolean healthy = true;
+    private volatile boolean shutDown;
+    private long reported;
+    private long dropped;
+
+    public FileReportingEventHandler(ReporterConfigurationImpl reporterConfiguration, ProcessorEventHandler processorEventHandler,
+                                     DslJsonSerializer payloadSerializer, File directory) {
+        this.reporterConfiguration = reporterConfiguration;
+        this.processorEventHandler = processorEventHandler;
+        this.payloadSerializer = payloadSerializer.newWriter();
+        boolean compression = reporterConfiguration.isIntakeFileCompression();
+        this.deflater = compression ? new Deflater(Deflater.BEST_SPEED) : null;
+        this.segmentWriter = new SegmentFileWriter(directory, compression ? ".ndjson.deflate" : ".ndjson", WRITE_BUFFER_SIZE);
+        this.timeoutTimer = ExecutorUtils.createSingleThreadSchedulingDaemonPool("intake-file-timeout-timer");
+        this.serializingEventHandlers = ReportingEventHandlers.createSerializingEventHandlers(reporterConfiguration, processorEventHandler, payloadSerializer);
+        this.eagerEventSerializer = ReportingEventHandlers.createEagerEventSerializer(reporterConfiguration, processorEventHandler, payloadSerializer);
+    }
+
+    @Override
+    public void init(final ApmServerReporter reporter) {
+        this.reporter = reporter;
+        this.timeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                // makes sure the segment is finished after api_request_time, even if no further events are reported
+                reporter.scheduleWakeupEvent();
+            }
+        };
+    }
+
+    @Override
+    public List<EventHandler<ReportingEvent>> getPreprocessingHandlers() {
+        return serializingEventHandlers;
+    }
+
+    @Nullable
+    @Override
+    public EagerEventSerializer getEagerEventSerializer() {
+        return eagerEventSerializer;
+    }
+
+    @Override
+    public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
+        try {
+            if (reporter != null) {
+                reporter.getReporterMonitor().eventDequeued(event.getType(), reporter.getQueueCapacity(), reporter.getQueueElementCount());
+            }
+            if (!shutDown) {
+                if (os != null && isSegmentTimeExpired()) {
+                    finishSegment();
+                }
+                dispatchEvent(event, sequence, endOfBatch);
+            }
+        } finally {
+            processed.set(sequence);
+            event.end();
+            event.resetState();
+        }
+    }
+
+    private void dispatchEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
+        switch (event.getType()) {
+            case WAKEUP:
+                break;
+            case MAKE_FLUSH_REQUEST:
+            case END_REQUEST:
+                finishSegment();
+                break;
+            case SHUTDOWN:
+                shutDown = true;
+                finishSegment();
+                break;
+            case SPAN:
+            case ERROR:
+            case TRANSACTION:
+            case BYTES_LOG:
+            case STRING_LOG:
+            case METRICSET_JSON_WRITER:
+                handleIntakeEvent(event, sequence, endOfBatch);
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported event type " + event.getType());
+        }
+    }
+
+    private void handleIntakeEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
+        if (!event.isPreProcessed()) {
+            processorEventHandler.onEvent(event, sequence, endOfBatch);
+        }
+        segmentEvents.increment(event.getType());
+        try {
+            if (os == null) {
+                startSegment();
+            }
+            ReportingEventHandlers.writeEvent(payloadSerializer, event);
+        } catch (Exception e) {
+            logger.error("Failed to write event of type {} to {}: {}", event.getType(), reporterConfiguration.getIntakeFileDir(), e.getMessage());
+            logger.debug("Event writing failure", e);
+            abortSegment();
+            return;
+        }
+        if (segmentWriter.getSegmentSize() + payloadSerializer.getBufferSize() >= reporterConfiguration.getIntakeFileMaxSize()) {
+            finishSegment();
+        }
+    }
+
+    private void startSegment() throws Exception {
+        payloadSerializer.blockUntilReady();
+        OutputStream segmentStream = segmentWriter.startSegment();
+        os = deflater != null ? new DeflaterOutputStream(segmentStream, deflater, DEFLATER_BUFFER_SIZE) : segmentStream;
+        payloadSerializer.setOutputStream(os);
+        payloadSerializer.appendMetaDataNdJsonToStream();
+        segmentStartedNanos = System.nanoTime();
+        healthy = true;
+        if (timeoutTask != null) {
+            timeoutTimer.schedule(timeoutTask, reporterConfiguration.getApiRequestTime().getMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private boolean isSegmentTimeExpired() {
+        return System.nanoTime() - segmentStartedNanos >= TimeUnit.MILLISECONDS.toNanos(reporterConfiguration.getApiRequestTime().getMillis());
+    }
+
+    private void finishSegment() {
+        if (os == null) {
+            return;
+        }
+        try {
+            payloadSerializer.fullFlush();
+            os.close();
+            long size = segmentWriter.getSegmentSize();
+            File segment = segmentWriter.finishSegment();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Finished segment {} with {} events", segment, segmentEvents.getTotalCount());
+            }
+            long eventCount = segmentEvents.getTotalCount();
+            reported += eventCount;
+            if (reporter != null) {
+                reporter.getReporterMonitor().requestFinished(new ReportingEventCounter(segmentEvents), eventCount, size, true);
+            }
+        } catch (Exception e) {
+            logger.error("Failed to finish segment in {}: {}", reporterConfiguration.getIntakeFileDir(), e.getMessage());
+            logger.debug("Segment finishing failure", e);
+            abortSegment();
+        } finally {
+            resetSegmentState();
+        }
+    }
+
+    private void abortSegment() {
+        segmentWriter.abortSegment();
+        long eventCount = segmentEvents.getTotalCount();
+        dropped += eventCount;
+        if (reporter != null) {
+            reporter.getReporterMonitor().requestFinished(new ReportingEventCounter(segmentEvents), 0, 0, false);
+        }
+        // makes flushes fail fast until a segment could be written again
+        healthy = false;
+        payloadSerializer.resetState();
+        resetSegmentState();
+    }
+
+    private void resetSegmentState() {
+        os = null;
+        segmentEvents.reset();
+        if (deflater != null) {
+            deflater.reset();
+        }
+    }
+
+    @Override
+    public boolean isProcessed(long sequence) {
+        return processed.get() >= sequence;
+    }
+
+    @Override
+    public long getReported() {
+        return reported;
+    }
+
+    @Override
+    public long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    @Override
+    public void close() {
+        shutDown = true;
+        logger.info("Reported events: {}", reported);
+        logger.info("Dropped events: {}", dropped);
+        timeoutTimer.shutdownNow();
+    }
+}
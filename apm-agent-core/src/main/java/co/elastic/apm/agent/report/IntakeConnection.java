@@ -0,0 +1,76 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+
+/**
+ * A single streaming request to the APM Server, as started by {@link IntakeTransport#startRequest}.
+ * <p>
+ * The request body is written to {@link #getOutputStream()}.
+ * Closing that stream completes the request body, after which the response can be read.
+ * </p>
+ * <p>
+ * Implementations are not thread safe.
+ * </p>
+ */
+public interface IntakeConnection {
+
+    URL getUrl();
+
+    /**
+     * Returns the stream the request body is written to.
+     * Implementations are free to apply their own buffering and chunking.
+     *
+     * @return the stream the request body is written to
+     * @throws IOException if an I/O error occurs while opening the stream
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Completes the request, if the request body has not been closed yet, and blocks until the response status is available.
+     *
+     * @return the HTTP status code of the response
+     * @throws IOException if an I/O error occurs while completing the request or reading the response
+     */
+    int getResponseCode() throws IOException;
+
+    /**
+     * Returns the response body, for both successful and erroneous responses.
+     *
+     * @return the response body or {@code null} if there is none
+     * @throws IOException if an I/O error occurs while reading the response
+     */
+    @Nullable
+    String getResponseBody() throws IOException;
+
+    /**
+     * Ends this request and releases its resources.
+     * Transports that support connection re-use may keep the underlying connection open for subsequent requests.
+     */
+    void close();
+
+    /**
+     * Ends this request and closes the underlying connection without trying to re-use it.
+     */
+    void abort();
+}
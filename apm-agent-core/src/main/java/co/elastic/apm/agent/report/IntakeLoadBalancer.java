@@ -0,0 +1,236 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Balances intake requests across all configured APM Servers,
+ * as opposed to the default mode of {@link ApmServerClient} which sends all requests to one server and only fails over on errors.
+ * <p>
+ * Each server has its own health state.
+ * After a connection error or a server side error, a server is excluded from the selection while it's backing off,
+ * so that the reporter can keep on sending to the remaining servers.
+ * A server which is slow to accept requests is selected less often when balancing by {@link ReporterConfigurationImpl.IntakeLoadBalancing#LATENCY latency}
+ * and gets excluded when requests run into the {@code server_timeout}.
+ * </p>
+ * <p>
+ * The selection is only done on the reporter thread but the list of servers can be changed concurrently.
+ * </p>
+ */
+class IntakeLoadBalancer {
+
+    private static final Logger logger = LoggerFactory.getLogger(IntakeLoadBalancer.class);
+
+    /**
+     * The weight of the latest sample in the exponentially weighted moving average of the latency
+     */
+    private static final double LATENCY_EWMA_ALPHA = 0.3;
+
+    private final ReporterConfigurationImpl.IntakeLoadBalancing strategy;
+    private volatile List<Server> servers = Collections.emptyList();
+
+    IntakeLoadBalancer(ReporterConfigurationImpl.IntakeLoadBalancing strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * Sets the servers to balance across.
+     * Servers which have been configured before keep their state.
+     */
+    void setServerUrls(List<URL> serverUrls) {
+        List<Server> previousServers = servers;
+        List<Server> newServers = new ArrayList<>(serverUrls.size());
+        for (URL serverUrl : serverUrls) {
+            Server server = find(previousServers, serverUrl);
+            newServers.add(server != null ? server : new Server(serverUrl));
+        }
+        servers = Collections.unmodifiableList(newServers);
+    }
+
+    /**
+     * Selects the server for the next intake request.
+     * If all servers are backing off, the server which is available again the soonest is returned.
+     *
+     * @return the URL of the selected server, or {@code null} if there are no servers
+     */
+    @Nullable
+    URL select() {
+        List<Server> servers = this.servers;
+        if (servers.isEmpty()) {
+            return null;
+        }
+        long now = System.nanoTime();
+        Server selected;
+        if (strategy == ReporterConfigurationImpl.IntakeLoadBalancing.LATENCY) {
+            selected = selectByLatency(servers, now);
+        } else {
+            selected = selectByEventCount(servers, now);
+        }
+        if (selected == null) {
+            selected = getSoonestAvailable(servers);
+        }
+        return selected.url;
+    }
+
+    /**
+     * Picks a random server, weighted by the inverse of its latency.
+     * Servers without latency samples are picked first so that every server gets measured.
+     */
+    @Nullable
+    private static Server selectByLatency(List<Server> servers, long now) {
+        double totalWeight = 0;
+        for (int i = 0; i < servers.size(); i++) {
+            Server server = servers.get(i);
+            if (server.isAvailable(now)) {
+                if (server.latencyNanos < 0) {
+                    return server;
+                }
+                totalWeight += server.getWeight();
+            }
+        }
+        double random = ThreadLocalRandom.current().nextDouble() * totalWeight;
+        Server lastAvailable = null;
+        for (int i = 0; i < servers.size(); i++) {
+            Server server = servers.get(i);
+            if (server.isAvailable(now)) {
+                lastAvailable = server;
+                random -= server.getWeight();
+                if (random < 0) {
+                    return server;
+                }
+            }
+        }
+        return lastAvailable;
+    }
+
+    @Nullable
+    private static Server selectByEventCount(List<Server> servers, long now) {
+        Server selected = null;
+        for (int i = 0; i < servers.size(); i++) {
+            Server server = servers.get(i);
+            if (server.isAvailable(now) && (selected == null || server.eventCount < selected.eventCount)) {
+                selected = server;
+            }
+        }
+        return selected;
+    }
+
+    private static Server getSoonestAvailable(List<Server> servers) {
+        Server selected = servers.get(0);
+        for (int i = 1; i < servers.size(); i++) {
+            Server server = servers.get(i);
+            if (server.availableAtNanos - selected.availableAtNanos < 0) {
+                selected = server;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @param serverUrl    the URL of the server, as returned by {@link #select()}
+     * @param eventCount   the number of events which have been sent within the request
+     * @param latencyNanos the time the reporter thread has been blocked by establishing the connection and waiting for the response
+     */
+    void onRequestFinished(URL serverUrl, long eventCount, long latencyNanos) {
+        Server server = find(servers, serverUrl);
+        if (server == null) {
+            return;
+        }
+        server.errorCount = 0;
+        server.eventCount += eventCount;
+        long previousLatency = server.latencyNanos;
+        server.latencyNanos = previousLatency < 0
+            ? latencyNanos
+            : (long) (LATENCY_EWMA_ALPHA * latencyNanos + (1 - LATENCY_EWMA_ALPHA) * previousLatency);
+    }
+
+    /**
+     * Excludes the server from the selection while it's backing off.
+     *
+     * @param serverUrl the URL of the server, as returned by {@link #select()}
+     */
+    void onError(URL serverUrl) {
+        Server server = find(servers, serverUrl);
+        if (server == null) {
+            return;
+        }
+        long backoffTimeSeconds = AbstractIntakeApiHandler.getBackoffTimeSeconds(server.errorCount++);
+        logger.info("Excluding APM Server {} from load balancing for {} seconds", serverUrl, backoffTimeSeconds);
+        server.availableAtNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(backoffTimeSeconds);
+    }
+
+    /**
+     * @return whether any server is currently not backing off
+     */
+    boolean isAnyServerAvailable() {
+        long now = System.nanoTime();
+        List<Server> servers = this.servers;
+        for (int i = 0; i < servers.size(); i++) {
+            if (servers.get(i).isAvailable(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Nullable
+    private static Server find(List<Server> servers, URL serverUrl) {
+        for (int i = 0; i < servers.size(); i++) {
+            Server server = servers.get(i);
+            // not using URL#equals as that resolves the host names
+            if (server.url == serverUrl || server.url.toExternalForm().equals(serverUrl.toExternalForm())) {
+                return server;
+            }
+        }
+        return null;
+    }
+
+    private static class Server {
+        private final URL url;
+        private volatile long availableAtNanos = System.nanoTime();
+        private volatile int errorCount;
+        /**
+         * Exponentially weighted moving average, {@code -1} until the first request has finished
+         */
+        private volatile long latencyNanos = -1;
+        private volatile long eventCount;
+
+        private Server(URL url) {
+            this.url = url;
+        }
+
+        private boolean isAvailable(long now) {
+            return now - availableAtNanos >= 0;
+        }
+
+        private double getWeight() {
+            return 1d / Math.max(latencyNanos, 1);
+        }
+    }
+}
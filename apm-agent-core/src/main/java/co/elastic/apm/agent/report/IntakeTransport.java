@@ -0,0 +1,50 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Opens the streaming requests the intake API handlers use to send events to the APM Server.
+ * <p>
+ * The transport is selected via {@link ReporterConfigurationImpl#getIntakeTransport()} and is owned by the {@link ApmServerClient}.
+ * Implementations have to be thread safe.
+ * </p>
+ */
+public interface IntakeTransport {
+
+    /**
+     * Starts a streaming {@code POST} request.
+     * Implementations add the authorization and user agent headers.
+     *
+     * @param url            the full URL, including the APM Server path
+     * @param requestHeaders request specific headers, such as {@code Content-Type}
+     * @return the started request
+     * @throws IOException if the connection could not be established
+     */
+    IntakeConnection startRequest(URL url, Map<String, String> requestHeaders) throws IOException;
+
+    /**
+     * Closes all connections that are kept open for re-use.
+     * The transport can still be used afterwards.
+     */
+    void close();
+}
@@ -20,18 +20,25 @@ package co.elastic.apm.agent.report;
 
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.spool.DiskSpool;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import co.elastic.apm.agent.util.ExecutorUtils;
 import co.elastic.apm.agent.sdk.internal.util.LoggerUtils;
 import com.dslplatform.json.DslJson;
+import com.dslplatform.json.JsonWriter;
+import com.lmax.disruptor.EventHandler;
 
 import javax.annotation.Nullable;
-import java.net.HttpURLConnection;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 /**
  * This reporter supports the nd-json HTTP streaming based intake v2 protocol
@@ -56,6 +63,23 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     private final ReportingEventCounter inflightEvents = new ReportingEventCounter();
 
     private final DslJson<Object> dslJson;
+    private final List<EventHandler<ReportingEvent>> serializingEventHandlers;
+    @Nullable
+    private final EagerEventSerializer eagerEventSerializer;
+    @Nullable
+    private final AdaptiveCompressionController compressionController;
+    @Nullable
+    private final DiskSpool spool;
+    /**
+     * Makes sure the spool is only closed once, either by the reporter thread on shutdown or by {@link #close()}
+     */
+    private final AtomicBoolean spoolClosed = new AtomicBoolean();
+    @Nullable
+    private final DslJsonSerializer.Writer spoolSerializer;
+    private final byte[] replayBuffer = new byte[8192];
+    private boolean replayingSpool;
+    private boolean replaySucceeded;
+    private boolean replayRejected;
 
     private long reported;
     private long dropped;
@@ -66,6 +90,36 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         this.processorEventHandler = processorEventHandler;
         this.dslJson = new DslJson<>(new DslJson.Settings<>());
         this.timeoutTimer = ExecutorUtils.createSingleThreadSchedulingDaemonPool("request-timeout-timer");
+        this.serializingEventHandlers = ReportingEventHandlers.createSerializingEventHandlers(reporterConfiguration, processorEventHandler, payloadSerializer);
+        this.eagerEventSerializer = ReportingEventHandlers.createEagerEventSerializer(reporterConfiguration, processorEventHandler, payloadSerializer);
+        this.compressionController = reporterConfiguration.isAdaptiveCompression()
+            ? new AdaptiveCompressionController(Deflater.BEST_SPEED)
+            : null;
+        String spoolDir = reporterConfiguration.getSpoolDir();
+        if (spoolDir != null && !spoolDir.isEmpty()) {
+            this.spool = DiskSpool.open(new File(spoolDir), reporterConfiguration.getSpoolMaxSize(),
+                reporterConfiguration.getSpoolMaxAge().getMillis(), (int) Math.min(reporterConfiguration.getApiRequestSize(), Integer.MAX_VALUE),
+                new DiskSpool.EvictionListener() {
+                    @Override
+                    public void onEvicted(ReportingEventCounter eventCounts) {
+                        onSpooledEventsDropped(eventCounts);
+                    }
+                });
+        } else {
+            this.spool = null;
+        }
+        this.spoolSerializer = spool != null ? payloadSerializer.newWriter() : null;
+    }
+
+    @Override
+    public List<EventHandler<ReportingEvent>> getPreprocessingHandlers() {
+        return serializingEventHandlers;
+    }
+
+    @Nullable
+    @Override
+    public EagerEventSerializer getEagerEventSerializer() {
+        return eagerEventSerializer;
     }
 
     @Override
@@ -110,7 +164,11 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
                 break;
             case MAKE_FLUSH_REQUEST:
                 endRequest();
-                connection = startRequest(INTAKE_V2_FLUSH_URL);
+                if (spool != null) {
+                    startRequestAfterReplayingSpool(spool, INTAKE_V2_FLUSH_URL);
+                } else {
+                    connection = startRequest(INTAKE_V2_FLUSH_URL);
+                }
                 // continuing to behave as END_REQUEST
             case END_REQUEST:
                 endRequest();
@@ -134,10 +192,23 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     private void handleShutdownEvent() {
         shutDown = true;
         endRequest();
+        // the segments are unmapped on the reporter thread, as accessing them afterwards would crash the JVM
+        if (spool != null && spoolClosed.compareAndSet(false, true)) {
+            if (!spool.isEmpty()) {
+                logger.info("Spooled events: {}", spool.getEventCount());
+            }
+            spool.close();
+        }
     }
 
     private void handleIntakeEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
-        processorEventHandler.onEvent(event, sequence, endOfBatch);
+        if (!event.isPreProcessed()) {
+            processorEventHandler.onEvent(event, sequence, endOfBatch);
+        }
+        if (spool != null && connection == null && !startRequestAfterReplayingSpool(spool, INTAKE_V2_URL)) {
+            spoolEvent(spool, event);
+            return;
+        }
         try {
             inflightEvents.increment(event.getType());
             if (connection == null) {
@@ -164,6 +235,124 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         }
     }
 
+    /**
+     * Sends the oldest spooled segment to the APM Server and starts a new request once all spooled events have been sent.
+     * <p>
+     * Only one segment is replayed per call, which means per event, so that a large spool doesn't block the reporter thread
+     * and the queue keeps being drained while the spool is replayed.
+     * Events are spooled until the spool is empty, so that they are still sent in order.
+     * </p>
+     *
+     * @param spool    the spool
+     * @param endpoint the endpoint of the request to start
+     * @return {@code true} if a new request has been started,
+     * {@code false} if there are still spooled events or if the APM Server is not available, in which case the current event should be spooled
+     */
+    private boolean startRequestAfterReplayingSpool(DiskSpool spool, String endpoint) {
+        if (isInBackoff() || !replayOldestSegment(spool)) {
+            return false;
+        }
+        try {
+            connection = startRequest(endpoint);
+        } catch (Exception e) {
+            logger.error("Failed to start request with this error: {}", e.getMessage());
+            logger.debug("Starting request failure", e);
+            endRequestExceptionally();
+        }
+        return connection != null;
+    }
+
+    /**
+     * @return {@code true} if all spooled events have been sent
+     */
+    private boolean replayOldestSegment(DiskSpool spool) {
+        DiskSpool.Segment segment = spool.getOldestSegment();
+        if (segment == null) {
+            return true;
+        }
+        if (shutDown) {
+            return false;
+        }
+        replayingSpool = true;
+        replaySucceeded = false;
+        replayRejected = false;
+        ReportingEventCounter eventCounts = segment.getEventCounts();
+        try {
+            connection = startRequest(INTAKE_V2_URL);
+            if (connection == null) {
+                return false;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Sending {} spooled events from {}", segment.getEventCount(), segment);
+            }
+            inflightEvents.addAll(eventCounts);
+            ByteBuffer data = segment.getData();
+            while (data.hasRemaining()) {
+                int length = Math.min(replayBuffer.length, data.remaining());
+                data.get(replayBuffer, 0, length);
+                payloadSerializer.writeBytes(replayBuffer, length);
+            }
+            endRequest();
+        } catch (Exception e) {
+            logger.error("Failed to send spooled events with this error: {}", e.getMessage());
+            logger.debug("Sending spooled events failure", e);
+            endRequestExceptionally();
+        } finally {
+            replayingSpool = false;
+        }
+        if (replayRejected) {
+            logger.warn("The APM Server rejected {} spooled events, dropping them", segment.getEventCount());
+            spool.remove(segment);
+            onSpooledEventsDropped(eventCounts);
+        } else if (replaySucceeded) {
+            spool.remove(segment);
+        } else {
+            return false;
+        }
+        return spool.isEmpty();
+    }
+
+    private void spoolEvent(DiskSpool spool, ReportingEvent event) {
+        boolean spooled;
+        byte[] serialized = event.getSerialized();
+        if (event.isSerialized() && serialized != null) {
+            spooled = spool.append(serialized, event.getSerializedLength(), event.getType());
+        } else if (spoolSerializer != null) {
+            writeEvent(spoolSerializer, event);
+            JsonWriter jw = spoolSerializer.getJsonWriter();
+            spooled = jw.size() == 0 || spool.append(jw.getByteBuffer(), jw.size(), event.getType());
+            spoolSerializer.resetState();
+        } else {
+            spooled = false;
+        }
+        if (reporter != null) {
+            if (spooled) {
+                reporter.getReporterMonitor().eventSpooled(event.getType());
+            } else {
+                reporter.getReporterMonitor().eventDroppedAfterDequeue(event.getType());
+            }
+        }
+        if (!spooled) {
+            dropped++;
+        }
+    }
+
+    private void onSpooledEventsDropped(ReportingEventCounter eventCounts) {
+        dropped += eventCounts.getTotalCount();
+        if (reporter != null) {
+            for (ReportingEvent.ReportingEventType type : ReportingEvent.ReportingEventType.values()) {
+                for (long i = eventCounts.getCount(type); i > 0; i--) {
+                    reporter.getReporterMonitor().eventDroppedAfterDequeue(type);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected boolean isBackoffWithoutBlocking() {
+        return spool != null;
+    }
+
     private void handleConnectionError(ReportingEvent event, Exception e) {
         logger.error("Failed to handle event of type {} with this error: {}", event.getType(), e.getMessage());
         logger.debug("Event handling failure", e);
@@ -180,19 +369,14 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     }
 
     private void writeEvent(ReportingEvent event) {
-        if (event.getTransaction() != null) {
-            payloadSerializer.serializeTransactionNdJson(event.getTransaction());
-        } else if (event.getSpan() != null) {
-            payloadSerializer.serializeSpanNdJson(event.getSpan());
-        } else if (event.getError() != null) {
-            payloadSerializer.serializeErrorNdJson(event.getError());
-        } else if (event.getJsonWriter() != null) {
-            payloadSerializer.writeBytes(event.getJsonWriter().getByteBuffer(), event.getJsonWriter().size());
-        } else if (event.getBytesLog() != null && logsSupported()) {
-            payloadSerializer.serializeLogNdJson(event.getBytesLog());
-        } else if (event.getStringLog() != null && logsSupported()) {
-            payloadSerializer.serializeLogNdJson(event.getStringLog());
+        writeEvent(payloadSerializer, event);
+    }
+
+    private void writeEvent(DslJsonSerializer.Writer payloadSerializer, ReportingEvent event) {
+        if ((event.getBytesLog() != null || event.getStringLog() != null) && !logsSupported()) {
+            return;
         }
+        ReportingEventHandlers.writeEvent(payloadSerializer, event);
     }
 
     private boolean logsSupported() {
@@ -206,8 +390,8 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
 
     @Override
     @Nullable
-    protected HttpURLConnection startRequest(String endpoint) throws Exception {
-        HttpURLConnection connection = super.startRequest(endpoint);
+    protected IntakeConnection startRequest(String endpoint) throws Exception {
+        IntakeConnection connection = super.startRequest(endpoint);
         if (connection != null) {
             if (timeoutTask != null) {
                 long requestTimeoutMillis = reporterConfiguration.getApiRequestTime().getMillis();
@@ -220,8 +404,35 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         return connection;
     }
 
+    @Override
+    protected int getCompressionLevel() {
+        if (compressionController == null) {
+            return super.getCompressionLevel();
+        }
+        return compressionController.getLevel();
+    }
+
+    @Override
+    protected void onRequestCompleted(long uncompressedBytes, long durationNanos, long cpuTimeNanos) {
+        if (compressionController == null || reporter == null) {
+            return;
+        }
+        double queueUtilization = ((double) reporter.getQueueElementCount()) / reporter.getQueueCapacity();
+        if (compressionController.onRequestCompleted(uncompressedBytes, durationNanos, cpuTimeNanos, queueUtilization, reporter.isUnderStress())) {
+            int level = compressionController.getLevel();
+            logger.debug("Changing the compression level of intake requests to {}", level);
+            reporter.getReporterMonitor().compressionLevelChanged(level);
+        }
+    }
+
+    @Override
+    protected long getRequestEventCount() {
+        return inflightEvents.getTotalCount();
+    }
+
     @Override
     protected void onRequestSuccess(long bytesWritten) {
+        replaySucceeded = replayingSpool;
         long totalCount = inflightEvents.getTotalCount();
         reported += totalCount;
         if (reporter != null) {
@@ -233,6 +444,16 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
 
     @Override
     protected void onConnectionError(@Nullable Integer responseCode, @Nullable String responseBody, long bytesWritten) {
+        if (replayingSpool) {
+            // spooled events stay in the spool to be retried later, unless the APM Server rejected them
+            replayRejected = responseCode != null && responseCode >= 400 && responseCode < 500 && responseCode != 408 && responseCode != 429;
+            if (reporter != null) {
+                reporter.getReporterMonitor().requestFinished(new ReportingEventCounter(), 0, bytesWritten, false);
+            }
+            inflightEvents.reset();
+            super.onConnectionError(responseCode, responseBody, bytesWritten);
+            return;
+        }
         long accepted = readAccepted(responseBody);
         dropped += inflightEvents.getTotalCount() - accepted;
         if (reporter != null) {
@@ -271,6 +492,10 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         logger.info("Reported events: {}", reported);
         logger.info("Dropped events: {}", dropped);
         timeoutTimer.shutdownNow();
+        if (spool != null && spoolClosed.compareAndSet(false, true)) {
+            // the shutdown event has not been processed, the reporter thread might still be using the spool
+            spool.abandon();
+        }
     }
 
     /**
@@ -0,0 +1,605 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.report.serialize.SerializationConstants;
+import co.elastic.apm.agent.sdk.internal.util.PrivilegedActionUtils;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link IntakeTransport} based on non-blocking {@link SocketChannel}s which keeps HTTP/1.1 connections alive across intake requests.
+ * <p>
+ * Rolling over to a new request when {@code api_request_time} or {@code api_request_size} is reached
+ * re-uses the connection of the previous request instead of doing a new TCP handshake.
+ * The request body is streamed with chunked transfer encoding straight from a direct buffer to the socket.
+ * All socket operations are bounded by {@code server_timeout}, so that a slow APM Server can't block the reporter thread indefinitely.
+ * </p>
+ * <p>
+ * TLS and proxies are not handled by this transport.
+ * Requests to {@code https} URLs and requests that would go through a proxy are delegated to the fallback transport.
+ * </p>
+ */
+class NioKeepAliveIntakeTransport implements IntakeTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioKeepAliveIntakeTransport.class);
+
+    /**
+     * Stays below the APM Server's default {@code idle_timeout} of 45s, so that we don't try to re-use connections
+     * the server has already closed.
+     */
+    static final long MAX_IDLE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * The chunk size is always written with this fixed amount of hex digits (leading zeros are allowed by RFC 7230),
+     * so that the body can be written into the buffer before its size is known.
+     */
+    private static final int CHUNK_SIZE_DIGITS = 4;
+    private static final int CHUNK_HEADER_LENGTH = CHUNK_SIZE_DIGITS + 2;
+    private static final int MAX_CHUNK_SIZE = SerializationConstants.BUFFER_SIZE;
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_RESPONSE_BODY_LENGTH = 64 * 1024;
+
+    private final ApmServerClient apmServerClient;
+    private final ReporterConfigurationImpl reporterConfiguration;
+    private final IntakeTransport fallback;
+    private final ConcurrentMap<String, Connection> idleConnections = new ConcurrentHashMap<>();
+    private final AtomicLong openedConnections = new AtomicLong();
+
+    NioKeepAliveIntakeTransport(ApmServerClient apmServerClient, ReporterConfigurationImpl reporterConfiguration, IntakeTransport fallback) {
+        this.apmServerClient = apmServerClient;
+        this.reporterConfiguration = reporterConfiguration;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public IntakeConnection startRequest(URL url, Map<String, String> requestHeaders) throws IOException {
+        if (!"http".equals(url.getProtocol()) || isProxied(url)) {
+            return fallback.startRequest(url, requestHeaders);
+        }
+        String hostAndPort = getHostAndPort(url);
+        Connection connection = idleConnections.remove(hostAndPort);
+        if (connection != null) {
+            if (connection.isReusable()) {
+                try {
+                    connection.startRequest(url, requestHeaders);
+                    return connection;
+                } catch (IOException e) {
+                    logger.debug("Failed to re-use connection to {}, opening a new one", hostAndPort);
+                }
+            }
+            connection.abort();
+        }
+        connection = openConnection(url, hostAndPort);
+        try {
+            connection.startRequest(url, requestHeaders);
+        } catch (IOException e) {
+            connection.abort();
+            throw e;
+        }
+        return connection;
+    }
+
+    private Connection openConnection(URL url, String hostAndPort) throws IOException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Opening new connection to {}", hostAndPort);
+        }
+        SocketChannel channel = SocketChannel.open();
+        Selector selector = null;
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            selector = Selector.open();
+            Connection connection = new Connection(hostAndPort, channel, selector);
+            if (!channel.connect(new InetSocketAddress(getHost(url), getPort(url)))) {
+                do {
+                    connection.await(SelectionKey.OP_CONNECT);
+                } while (!channel.finishConnect());
+            }
+            openedConnections.incrementAndGet();
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(channel, selector);
+            throw e;
+        }
+    }
+
+    private static boolean isProxied(URL url) {
+        ProxySelector proxySelector = PrivilegedActionUtils.getDefaultProxySelector();
+        if (proxySelector == null) {
+            return false;
+        }
+        try {
+            List<Proxy> proxies = proxySelector.select(url.toURI());
+            for (Proxy proxy : proxies) {
+                if (proxy.type() != Proxy.Type.DIRECT) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (URISyntaxException | RuntimeException e) {
+            return true;
+        }
+    }
+
+    private static String getHost(URL url) {
+        String host = url.getHost();
+        // IPv6 literals
+        if (host.startsWith("[") && host.endsWith("]")) {
+            return host.substring(1, host.length() - 1);
+        }
+        return host;
+    }
+
+    private static int getPort(URL url) {
+        return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    }
+
+    private static String getHostAndPort(URL url) {
+        return url.getHost() + ":" + getPort(url);
+    }
+
+    private void release(Connection connection) {
+        connection.idleSinceNanos = System.nanoTime();
+        if (idleConnections.putIfAbsent(connection.hostAndPort, connection) != null) {
+            // there's already an idle connection to that server
+            connection.abort();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Iterator<Connection> iterator = idleConnections.values().iterator(); iterator.hasNext(); ) {
+            Connection connection = iterator.next();
+            iterator.remove();
+            connection.abort();
+        }
+    }
+
+    /**
+     * Only for testing.
+     */
+    long getOpenedConnections() {
+        return openedConnections.get();
+    }
+
+    private static void closeQuietly(SocketChannel channel, @Nullable Selector selector) {
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+        } catch (IOException ignore) {
+            // silently ignored
+        }
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+            // silently ignored
+        }
+    }
+
+    private static void checkHeaderValue(String value) {
+        if (value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Illegal character in HTTP header value");
+        }
+    }
+
+    private class Connection implements IntakeConnection {
+
+        private final String hostAndPort;
+        private final SocketChannel channel;
+        private final Selector selector;
+        /**
+         * Holds the chunk that is currently written, including the space for the chunk header and the trailing CRLF.
+         */
+        private final ByteBuffer chunkBuffer = ByteBuffer.allocateDirect(CHUNK_HEADER_LENGTH + MAX_CHUNK_SIZE + 2);
+        private final ByteBuffer responseBuffer = ByteBuffer.allocate(4096);
+        private final ChunkedOutputStream outputStream = new ChunkedOutputStream();
+        private final StringBuilder lineBuilder = new StringBuilder();
+        @Nullable
+        private URL url;
+        private long idleSinceNanos;
+        private boolean requestBodyComplete;
+        private int responseCode;
+        @Nullable
+        private String responseBody;
+        private boolean responseComplete;
+        private boolean keepAlive;
+
+        private Connection(String hostAndPort, SocketChannel channel, Selector selector) {
+            this.hostAndPort = hostAndPort;
+            this.channel = channel;
+            this.selector = selector;
+            responseBuffer.limit(0);
+        }
+
+        private void startRequest(URL url, Map<String, String> requestHeaders) throws IOException {
+            this.url = url;
+            requestBodyComplete = false;
+            responseCode = -1;
+            responseBody = null;
+            responseComplete = false;
+            keepAlive = false;
+            resetChunk();
+
+            StringBuilder request = new StringBuilder(256);
+            request.append("POST ").append(url.getFile().isEmpty() ? "/" : url.getFile()).append(" HTTP/1.1\r\n");
+            appendHeader(request, "Host", hostAndPort);
+            appendHeader(request, "User-Agent", apmServerClient.getUserAgentHeader());
+            String authorization = apmServerClient.getAuthorizationHeader();
+            if (authorization != null) {
+                appendHeader(request, "Authorization", authorization);
+            }
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                appendHeader(request, header.getKey(), header.getValue());
+            }
+            appendHeader(request, "Transfer-Encoding", "chunked");
+            request.append("\r\n");
+            writeFully(ByteBuffer.wrap(request.toString().getBytes(StandardCharsets.ISO_8859_1)));
+        }
+
+        private void appendHeader(StringBuilder request, String name, String value) {
+            checkHeaderValue(value);
+            request.append(name).append(": ").append(value).append("\r\n");
+        }
+
+        private boolean isReusable() {
+            if (!channel.isOpen() || System.nanoTime() - idleSinceNanos > MAX_IDLE_NANOS) {
+                return false;
+            }
+            if (responseBuffer.hasRemaining()) {
+                // the server has sent more than the previous response
+                return false;
+            }
+            try {
+                // a non-blocking read returns -1 if the server has closed the connection in the meantime
+                // and any unexpected data also means we can't re-use the connection
+                responseBuffer.clear();
+                int read = channel.read(responseBuffer);
+                responseBuffer.flip();
+                return read == 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public URL getUrl() {
+            if (url == null) {
+                throw new IllegalStateException("Request has not been started");
+            }
+            return url;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            if (responseCode == -1) {
+                if (!requestBodyComplete) {
+                    outputStream.close();
+                }
+                readResponse();
+            }
+            return responseCode;
+        }
+
+        @Nullable
+        @Override
+        public String getResponseBody() throws IOException {
+            getResponseCode();
+            return responseBody;
+        }
+
+        @Override
+        public void close() {
+            if (responseComplete && keepAlive && channel.isOpen()) {
+                release(this);
+            } else {
+                abort();
+            }
+        }
+
+        @Override
+        public void abort() {
+            closeQuietly(channel, selector);
+        }
+
+        private void readResponse() throws IOException {
+            String statusLine;
+            do {
+                statusLine = readLine();
+                responseCode = parseStatusCode(statusLine);
+                if (responseCode / 100 == 1) {
+                    // skip informational responses like 100 Continue including their headers
+                    skipHeaders();
+                }
+            } while (responseCode / 100 == 1);
+
+            keepAlive = statusLine.startsWith("HTTP/1.1");
+            long contentLength = -1;
+            boolean chunked = false;
+            for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = line.substring(colon + 1).trim();
+                if (name.equals("content-length")) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid Content-Length " + value);
+                    }
+                } else if (name.equals("transfer-encoding")) {
+                    chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+                } else if (name.equals("connection")) {
+                    keepAlive = value.equalsIgnoreCase("keep-alive") || (keepAlive && !value.equalsIgnoreCase("close"));
+                }
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if (responseCode == 204 || responseCode == 304) {
+                // no body
+            } else if (chunked) {
+                for (long chunkSize = readChunkSize(); chunkSize > 0; chunkSize = readChunkSize()) {
+                    readBody(chunkSize, body);
+                    readLine();
+                }
+                skipHeaders();
+            } else if (contentLength >= 0) {
+                readBody(contentLength, body);
+            } else {
+                // the end of the body is signalled by closing the connection
+                keepAlive = false;
+                readBody(Long.MAX_VALUE, body);
+            }
+            responseBody = body.size() > 0 ? new String(body.toByteArray(), StandardCharsets.UTF_8) : null;
+            responseComplete = true;
+        }
+
+        /**
+         * Skips header lines (or the trailers of a chunked body) up to and including the terminating empty line.
+         */
+        private void skipHeaders() throws IOException {
+            String line;
+            do {
+                line = readLine();
+            } while (!line.isEmpty());
+        }
+
+        private int parseStatusCode(String statusLine) throws IOException {
+            int firstSpace = statusLine.indexOf(' ');
+            if (!statusLine.startsWith("HTTP/") || firstSpace < 0 || statusLine.length() < firstSpace + 4) {
+                throw new IOException("Invalid HTTP status line: " + statusLine);
+            }
+            try {
+                return Integer.parseInt(statusLine.substring(firstSpace + 1, firstSpace + 4));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid HTTP status line: " + statusLine);
+            }
+        }
+
+        private long readChunkSize() throws IOException {
+            String line = readLine();
+            int extension = line.indexOf(';');
+            if (extension >= 0) {
+                line = line.substring(0, extension);
+            }
+            try {
+                return Long.parseLong(line.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + line);
+            }
+        }
+
+        /**
+         * Reads {@code length} bytes of the response body, or until the end of the stream if {@code length} is {@link Long#MAX_VALUE}.
+         */
+        private void readBody(long length, ByteArrayOutputStream body) throws IOException {
+            long remaining = length;
+            while (remaining > 0) {
+                if (!responseBuffer.hasRemaining() && fill() == -1) {
+                    if (length == Long.MAX_VALUE) {
+                        return;
+                    }
+                    throw new EOFException("Unexpected end of response body");
+                }
+                int n = (int) Math.min(remaining, responseBuffer.remaining());
+                int keep = Math.min(n, MAX_RESPONSE_BODY_LENGTH - body.size());
+                if (keep > 0) {
+                    body.write(responseBuffer.array(), responseBuffer.arrayOffset() + responseBuffer.position(), keep);
+                }
+                responseBuffer.position(responseBuffer.position() + n);
+                remaining -= n;
+            }
+        }
+
+        private String readLine() throws IOException {
+            lineBuilder.setLength(0);
+            while (true) {
+                if (!responseBuffer.hasRemaining() && fill() == -1) {
+                    throw new EOFException("Unexpected end of response");
+                }
+                char c = (char) (responseBuffer.get() & 0xff);
+                if (c == '\n') {
+                    int length = lineBuilder.length();
+                    if (length > 0 && lineBuilder.charAt(length - 1) == '\r') {
+                        lineBuilder.setLength(length - 1);
+                    }
+                    return lineBuilder.toString();
+                }
+                if (lineBuilder.length() >= MAX_LINE_LENGTH) {
+                    throw new IOException("Response line too long");
+                }
+                lineBuilder.append(c);
+            }
+        }
+
+        /**
+         * Reads more data into {@link #responseBuffer}, waiting up to {@code server_timeout}.
+         *
+         * @return the number of bytes read or -1 if the end of the stream has been reached
+         */
+        private int fill() throws IOException {
+            responseBuffer.compact();
+            try {
+                while (true) {
+                    int read = channel.read(responseBuffer);
+                    if (read != 0) {
+                        return read;
+                    }
+                    await(SelectionKey.OP_READ);
+                }
+            } finally {
+                responseBuffer.flip();
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) == 0) {
+                    await(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        private void await(int operation) throws IOException {
+            channel.register(selector, operation);
+            long timeoutMillis = reporterConfiguration.getServerTimeout().getMillis();
+            int selected;
+            if (timeoutMillis > 0) {
+                selected = selector.select(timeoutMillis);
+            } else {
+                do {
+                    selected = selector.select();
+                } while (selected == 0);
+            }
+            selector.selectedKeys().clear();
+            if (selected == 0) {
+                throw new SocketTimeoutException("Timed out after " + timeoutMillis + "ms waiting for APM Server at " + hostAndPort);
+            }
+        }
+
+        private void resetChunk() {
+            chunkBuffer.clear();
+            chunkBuffer.position(CHUNK_HEADER_LENGTH);
+        }
+
+        private void writeChunk() throws IOException {
+            int size = chunkBuffer.position() - CHUNK_HEADER_LENGTH;
+            if (size == 0) {
+                return;
+            }
+            for (int i = CHUNK_SIZE_DIGITS - 1, value = size; i >= 0; i--, value >>>= 4) {
+                chunkBuffer.put(i, HEX_DIGITS[value & 0xf]);
+            }
+            chunkBuffer.put(CHUNK_SIZE_DIGITS, (byte) '\r');
+            chunkBuffer.put(CHUNK_SIZE_DIGITS + 1, (byte) '\n');
+            chunkBuffer.put((byte) '\r');
+            chunkBuffer.put((byte) '\n');
+            chunkBuffer.flip();
+            writeFully(chunkBuffer);
+            resetChunk();
+        }
+
+        private class ChunkedOutputStream extends OutputStream {
+
+            @Override
+            public void write(int b) throws IOException {
+                ensureOpen();
+                chunkBuffer.put((byte) b);
+                if (chunkBuffer.position() == CHUNK_HEADER_LENGTH + MAX_CHUNK_SIZE) {
+                    writeChunk();
+                }
+            }
+
+            @Override
+            public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+                ensureOpen();
+                while (len > 0) {
+                    int n = Math.min(len, CHUNK_HEADER_LENGTH + MAX_CHUNK_SIZE - chunkBuffer.position());
+                    chunkBuffer.put(b, off, n);
+                    off += n;
+                    len -= n;
+                    if (chunkBuffer.position() == CHUNK_HEADER_LENGTH + MAX_CHUNK_SIZE) {
+                        writeChunk();
+                    }
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (!requestBodyComplete) {
+                    writeChunk();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (requestBodyComplete) {
+                    return;
+                }
+                writeChunk();
+                writeFully(ByteBuffer.wrap(LAST_CHUNK));
+                requestBodyComplete = true;
+            }
+
+            private void ensureOpen() throws IOException {
+                if (requestBodyComplete) {
+                    throw new IOException("Request body already closed");
+                }
+            }
+        }
+    }
+}
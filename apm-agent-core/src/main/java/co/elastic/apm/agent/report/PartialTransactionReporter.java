@@ -22,17 +22,39 @@ import co.elastic.apm.agent.impl.transaction.TransactionImpl;
 import co.elastic.apm.agent.objectpool.ObservableObjectPool;
 import co.elastic.apm.agent.objectpool.ObjectPoolFactoryImpl;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
-import co.elastic.apm.agent.report.serialize.SerializationConstants;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import co.elastic.apm.agent.tracer.pooling.Allocator;
-import co.elastic.apm.agent.util.UrlConnectionUtils;
+import co.elastic.apm.agent.util.ExecutorUtils;
 
-import java.net.HttpURLConnection;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Registers transactions with the AWS Lambda extension when they are activated for the first time,
+ * so that the extension can report them even if the function times out or crashes.
+ * <p>
+ * The transaction is serialized on the invocation thread but the request is sent asynchronously by a single sender thread,
+ * which sends the registrations one after another via the {@link IntakeTransport}, re-using the connection to the local extension.
+ * This keeps the round trip to the extension off the invocation thread.
+ * {@link #flush(long, TimeUnit)} waits for pending registrations within a bounded time,
+ * so that they are sent before the transaction itself at the end of an invocation.
+ * </p>
+ */
 class PartialTransactionReporter {
 
     private static final int WRITER_POOL_SIZE = 8;
+    /**
+     * There's usually only one registration per invocation in flight,
+     * more pending registrations mean that the extension does not keep up and further registrations are dropped
+     */
+    private static final int MAX_PENDING_REGISTRATIONS = 16;
 
     private static final Logger logger = LoggerFactory.getLogger(PartialTransactionReporter.class);
 
@@ -40,6 +62,11 @@ class PartialTransactionReporter {
 
     private final ObservableObjectPool<DslJsonSerializer.Writer> writerPool;
 
+    private final ThreadPoolExecutor sender;
+
+    private final Object pendingLock = new Object();
+    private int pendingRegistrations;
+
     private volatile boolean extensionSupportsPartialTransactions = true;
 
     public PartialTransactionReporter(ApmServerClient apmServer, final DslJsonSerializer payloadSerializer, ObjectPoolFactoryImpl poolFactory) {
@@ -50,6 +77,8 @@ class PartialTransactionReporter {
                 return payloadSerializer.newWriter();
             }
         });
+        // the thread is only started when the first partial transaction is reported
+        sender = ExecutorUtils.createSingleThreadDaemonPool("partial-transaction-reporter", MAX_PENDING_REGISTRATIONS);
     }
 
     public void reportPartialTransaction(TransactionImpl transaction) {
@@ -63,42 +92,93 @@ class PartialTransactionReporter {
         }
         try {
             logger.debug("Reporting partial transaction {}", transaction);
-            HttpURLConnection connection = apmServer.startRequest("/register/transaction");
-            if (connection == null) {
-                logger.debug("Cannot report partial transaction because server url is not configured");
-                return;
+            byte[] payload = serialize(transaction);
+            synchronized (pendingLock) {
+                pendingRegistrations++;
             }
+            try {
+                sender.execute(new Registration(requestId, payload));
+            } catch (RejectedExecutionException e) {
+                onRegistrationDone();
+                logger.debug("Dropping partial transaction {} as there are too many pending registrations", transaction);
+            }
+        } catch (Exception e) {
+            logger.error("Failed to report partial transaction {}", transaction, e);
+        }
+    }
 
-            try (UrlConnectionUtils.ContextClassloaderScope clScope = UrlConnectionUtils.withContextClassloaderOf(connection)) {
-                connection.setRequestMethod("POST");
-                connection.setDoOutput(true);
-                connection.setChunkedStreamingMode(SerializationConstants.BUFFER_SIZE);
-                connection.setRequestProperty("Content-Type", "application/vnd.elastic.apm.transaction+ndjson");
-                connection.setRequestProperty("x-elastic-aws-request-id", requestId);
-                connection.setUseCaches(false);
-                connection.connect();
-
-                DslJsonSerializer.Writer writer = writerPool.createInstance();
-                try {
-                    writer.setOutputStream(connection.getOutputStream());
-                    writer.blockUntilReady(); //should actually not block on AWS Lambda, as metadata is available immediately
-                    writer.appendMetaDataNdJsonToStream();
-                    writer.serializeTransactionNdJson(transaction);
-                    writer.fullFlush();
-                } finally {
-                    writerPool.recycle(writer);
-                }
+    private byte[] serialize(TransactionImpl transaction) throws Exception {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DslJsonSerializer.Writer writer = writerPool.createInstance();
+        try {
+            writer.setOutputStream(payload);
+            writer.blockUntilReady(); //should actually not block on AWS Lambda, as metadata is available immediately
+            writer.appendMetaDataNdJsonToStream();
+            writer.serializeTransactionNdJson(transaction);
+            writer.fullFlush();
+        } finally {
+            writerPool.recycle(writer);
+        }
+        return payload.toByteArray();
+    }
 
-                handleResponse(connection);
-                connection.disconnect();
+    /**
+     * Waits until all pending registrations have been sent.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the time unit of the timeout argument
+     * @return {@code true} if there are no pending registrations
+     * @throws InterruptedException if the current thread has been interrupted while waiting
+     */
+    boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (pendingLock) {
+            while (pendingRegistrations > 0) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    return false;
+                }
+                pendingLock.wait(remainingMillis);
             }
+        }
+        return true;
+    }
+
+    void close() {
+        sender.shutdownNow();
+    }
 
+    private void onRegistrationDone() {
+        synchronized (pendingLock) {
+            pendingRegistrations--;
+            pendingLock.notifyAll();
+        }
+    }
+
+    private void send(String requestId, byte[] payload) throws Exception {
+        URL url = apmServer.appendPathToCurrentUrl("/register/transaction");
+        if (url == null) {
+            logger.debug("Cannot report partial transaction because server url is not configured");
+            return;
+        }
+        Map<String, String> requestHeaders = new LinkedHashMap<>();
+        requestHeaders.put("Content-Type", "application/vnd.elastic.apm.transaction+ndjson");
+        requestHeaders.put("x-elastic-aws-request-id", requestId);
+        IntakeConnection connection = apmServer.startIntakeRequest(url, requestHeaders);
+        try {
+            OutputStream os = connection.getOutputStream();
+            os.write(payload);
+            os.close();
+            handleResponse(connection);
         } catch (Exception e) {
-            logger.error("Failed to report partial transaction {}", transaction, e);
+            connection.abort();
+            throw e;
         }
+        // keeps the connection to the extension alive for the next registration
+        connection.close();
     }
 
-    private void handleResponse(HttpURLConnection connection) throws Exception {
+    private void handleResponse(IntakeConnection connection) throws Exception {
         int responseCode = connection.getResponseCode();
         if (responseCode >= 400 && responseCode <= 499) {
             extensionSupportsPartialTransactions = false;
@@ -109,4 +189,28 @@ class PartialTransactionReporter {
             logger.error("Request for registering partial transaction returned response code {}", responseCode);
         }
     }
+
+    private class Registration implements Runnable {
+
+        private final String requestId;
+        private final byte[] payload;
+
+        private Registration(String requestId, byte[] payload) {
+            this.requestId = requestId;
+            this.payload = payload;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (extensionSupportsPartialTransactions) {
+                    send(requestId, payload);
+                }
+            } catch (Exception e) {
+                logger.error("Failed to register partial transaction for request {}", requestId, e);
+            } finally {
+                onRegistrationDone();
+            }
+        }
+    }
 }
@@ -0,0 +1,139 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.RingBuffer;
+
+/**
+ * Splits the queue into lanes of different priority, so that a burst of spans can't crowd out errors, metrics and transactions.
+ * <p>
+ * Each lane has its own capacity and drop policy:
+ * </p>
+ * <ul>
+ *     <li>{@link Lane#PRIORITY}: control events, errors and metric sets. Overflows into the {@link Lane#TRANSACTION} lane when full.</li>
+ *     <li>{@link Lane#TRANSACTION}: transactions. Overflows into the {@link Lane#SPAN} lane when full.</li>
+ *     <li>{@link Lane#SPAN}: spans and logs. Events are dropped when this lane is full.</li>
+ * </ul>
+ * <p>
+ * The lanes are processed in the order of their priority.
+ * Only a limited batch of spans is processed before the higher priority lanes are checked again.
+ * </p>
+ */
+class PriorityLaneReportingEventQueue extends AbstractMultiRingReportingEventQueue {
+
+    private static final int SPAN_LANE_MAX_BATCH_SIZE = 256;
+
+    enum Lane {
+        PRIORITY("priority"),
+        TRANSACTION("transaction"),
+        SPAN("span");
+
+        private final String laneName;
+
+        Lane(String laneName) {
+            this.laneName = laneName;
+        }
+
+        String getLaneName() {
+            return laneName;
+        }
+
+        static Lane of(ReportingEvent.ReportingEventType type) {
+            switch (type) {
+                case ERROR:
+                case METRICSET_JSON_WRITER:
+                    return PRIORITY;
+                case TRANSACTION:
+                    return TRANSACTION;
+                case SPAN:
+                case STRING_LOG:
+                case BYTES_LOG:
+                    return SPAN;
+                default:
+                    // control events
+                    return PRIORITY;
+            }
+        }
+
+        boolean isOverflowToNextLane() {
+            return this != SPAN;
+        }
+    }
+
+    private static final Lane[] LANES = Lane.values();
+
+    private final ReporterMonitor monitor;
+
+    /**
+     * @param priorityLaneCapacity the capacity of the {@link Lane#PRIORITY} and {@link Lane#TRANSACTION} lane, must be a power of 2
+     * @param spanLaneCapacity     the capacity of the {@link Lane#SPAN} lane, must be a power of 2
+     */
+    PriorityLaneReportingEventQueue(int priorityLaneCapacity, int spanLaneCapacity, ReportingEventHandler reportingEventHandler, ReporterMonitor monitor) {
+        super(new int[]{priorityLaneCapacity, priorityLaneCapacity, spanLaneCapacity}, reportingEventHandler);
+        this.monitor = monitor;
+    }
+
+    @Override
+    int getRingIndex(ReportingEvent.ReportingEventType type) {
+        return Lane.of(type).ordinal();
+    }
+
+    @Override
+    int getMaxBatchSize(int ring) {
+        return LANES[ring] == Lane.SPAN ? SPAN_LANE_MAX_BATCH_SIZE : Integer.MAX_VALUE;
+    }
+
+    /**
+     * The utilization of the lanes is sampled on the {@code server-reporter} thread rather than on each publish,
+     * so that reporting threads don't pay for the metric.
+     * All lanes are sampled, so that the utilization of lanes which are not processed in the meantime is still updated.
+     */
+    @Override
+    void afterBatchProcessed(int ring) {
+        for (Lane lane : LANES) {
+            updateLaneUtilization(lane);
+        }
+    }
+
+    @Override
+    public <E> boolean tryPublish(ReportingEvent.ReportingEventType type, EventTranslatorOneArg<ReportingEvent, E> translator, E arg) {
+        Lane originalLane = Lane.of(type);
+        for (Lane lane = originalLane; ; lane = LANES[lane.ordinal() + 1]) {
+            if (getRing(lane.ordinal()).tryPublishEvent(translator, arg)) {
+                return true;
+            }
+            if (!lane.isOverflowToNextLane()) {
+                monitor.eventDroppedFromLane(originalLane.getLaneName(), type);
+                return false;
+            }
+            monitor.eventOverflowedLane(lane.getLaneName(), type);
+        }
+    }
+
+    @Override
+    public <E> void publish(ReportingEvent.ReportingEventType type, EventTranslatorOneArg<ReportingEvent, E> translator, E arg) {
+        getRing(Lane.of(type).ordinal()).publishEvent(translator, arg);
+    }
+
+    private void updateLaneUtilization(Lane lane) {
+        RingBuffer<ReportingEvent> ring = getRing(lane.ordinal());
+        monitor.laneUtilizationChanged(lane.getLaneName(), ring.getBufferSize(), getElementCount(ring));
+    }
+}
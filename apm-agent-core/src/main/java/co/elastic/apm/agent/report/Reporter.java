@@ -65,6 +65,16 @@ public interface Reporter extends Closeable {
 
     long getReported();
 
+    /**
+     * Called when the circuit breaker detects stress, so that the reporter can reduce its own overhead
+     */
+    void onStressDetected();
+
+    /**
+     * Called when the circuit breaker detects that the stress has been relieved
+     */
+    void onStressRelieved();
+
     /**
      * Flushes pending events and ends the HTTP request to APM server.
      * <p>
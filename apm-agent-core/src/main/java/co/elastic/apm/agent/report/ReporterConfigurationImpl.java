@@ -24,6 +24,8 @@ import co.elastic.apm.agent.tracer.configuration.ReporterConfiguration;
 import co.elastic.apm.agent.tracer.configuration.TimeDuration;
 import co.elastic.apm.agent.tracer.configuration.TimeDurationValueConverter;
 import co.elastic.apm.agent.common.util.WildcardMatcher;
+import co.elastic.apm.agent.common.util.WildcardMatcherSet;
+import co.elastic.apm.agent.tracer.configuration.WildcardMatcherSetValueConverter;
 import co.elastic.apm.agent.tracer.configuration.WildcardMatcherValueConverter;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import org.stagemonitor.configuration.ConfigurationOption;
@@ -203,7 +205,7 @@ public class ReporterConfigurationImpl extends ConfigurationOptionProvider imple
         .buildWithDefault(TimeDuration.of("30s"));
 
     private final ConfigurationOption<List<WildcardMatcher>> disableMetrics = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("disable_metrics")
         .tags("added[1.3.0]")
         .configurationCategory(REPORTER_CATEGORY)
@@ -213,8 +215,233 @@ public class ReporterConfigurationImpl extends ConfigurationOptionProvider imple
             "\n" +
             WildcardMatcher.DOCUMENTATION)
         .dynamic(false)
+        .buildWithDefault(WildcardMatcherSet.of(Collections.<WildcardMatcher>emptyList()));
+
+    private final ConfigurationOption<IntakeTransportType> intakeTransport = ConfigurationOption.enumOption(IntakeTransportType.class)
+        .key("intake_transport")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The transport used to stream events to the APM Server intake API.\n" +
+            "\n" +
+            "* 'url_connection': The default. Opens a chunked `HttpURLConnection` for each intake request.\n" +
+            "* 'nio_keep_alive': Uses non-blocking sockets and keeps the HTTP/1.1 connection open across intake requests,\n" +
+            "avoiding a TCP handshake whenever <<config-api-request-time>> or <<config-api-request-size>> is reached.\n" +
+            "Requests to `https` URLs or through a proxy fall back to 'url_connection'.")
+        .dynamic(false)
+        .buildWithDefault(IntakeTransportType.URL_CONNECTION);
+
+    private final ConfigurationOption<IntakeLoadBalancing> intakeLoadBalancing = ConfigurationOption.enumOption(IntakeLoadBalancing.class)
+        .key("intake_load_balancing")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("How intake requests are distributed across the APM Servers configured via <<config-server-urls>>.\n" +
+            "\n" +
+            "* 'failover': The default. Sends all requests to one server and only moves on to the next one on connection errors.\n" +
+            "* 'latency': Sends each request to a random server, weighted by how fast the servers accepted and answered previous requests.\n" +
+            "* 'event_count': Sends each request to the server which has received the fewest events so far.\n" +
+            "\n" +
+            "When balancing across servers, a server which fails or times out is excluded while it is backing off,\n" +
+            "and the reporter keeps on sending to the remaining servers.\n" +
+            "The reporter only backs off when none of the servers is available.")
+        .dynamic(false)
+        .buildWithDefault(IntakeLoadBalancing.FAILOVER);
+
+    private final ConfigurationOption<Integer> serializerThreads = ConfigurationOption.integerOption()
+        .key("serializer_threads")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The number of threads which serialize transactions, spans and errors to JSON before they are handed over to the\n" +
+            "thread which sends them to the APM Server.\n" +
+            "\n" +
+            "With the default value of 0, serialization happens on the reporter thread itself.\n" +
+            "Setting a value greater than 0 may help when the reporter thread can't keep up with a high event throughput,\n" +
+            "at the expense of additional threads and memory for the serialized events that are waiting in the queue.")
+        .dynamic(false)
+        .buildWithDefault(0);
+
+    private final ConfigurationOption<Boolean> serializeOnReport = ConfigurationOption.booleanOption()
+        .key("serialize_on_report")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("Whether transactions, spans and errors are serialized to JSON by the application thread which ends them.\n" +
+            "\n" +
+            "This releases the transaction and span objects right away, instead of keeping them until the reporter thread has sent them,\n" +
+            "which reduces the number of pooled objects and the heap usage when the agent can't keep up with sending events.\n" +
+            "The reporter thread then only compresses and sends the serialized events.\n" +
+            "This adds the serialization overhead to the application threads.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<Boolean> adaptiveCompression = ConfigurationOption.booleanOption()
+        .key("adaptive_compression")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("Whether the deflate level of requests to the APM Server adapts to the load of the reporter.\n" +
+            "\n" +
+            "By default, requests are compressed with the fastest deflate level.\n" +
+            "When enabled, the level is lowered down to sending requests uncompressed while the reporter thread is busy,\n" +
+            "the queue fills up or the circuit breaker reports stress, and it is raised up to level 6 while the reporter is idle.\n" +
+            "Requests to an APM Server on localhost are never compressed.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<Integer> queueStripes = ConfigurationOption.integerOption()
+        .key("queue_stripes")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The number of ring buffers the event queue is split into.\n" +
+            "\n" +
+            "Each application thread always reports to the same ring buffer, which reduces the contention between threads\n" +
+            "when many of them report events concurrently.\n" +
+            "The <<config-max-queue-size>> is split evenly between the ring buffers.\n" +
+            "With the default value of 1, a single ring buffer is used.")
+        .dynamic(false)
+        .buildWithDefault(1);
+
+    private final ConfigurationOption<Boolean> queuePriorityLanes = ConfigurationOption.booleanOption()
+        .key("queue_priority_lanes")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("Whether to split the event queue into lanes of different priority.\n" +
+            "\n" +
+            "Errors, metric sets and transactions each get their own lane with a capacity of <<config-queue-priority-lane-size>>\n" +
+            "and are processed before spans and logs, which are shed first when the agent can't keep up.\n" +
+            "The capacity of the lane for spans and logs is <<config-max-queue-size>>.\n" +
+            "When enabled, <<config-queue-stripes>> is ignored, and a warning is logged if it is set.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<Integer> queuePriorityLaneSize = ConfigurationOption.integerOption()
+        .key("queue_priority_lane_size")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The capacity of the lanes for errors and metric sets, and for transactions, if <<config-queue-priority-lanes>> is enabled.\n" +
+            "When a lane is full, its events overflow into the lane with the next lower priority.")
+        .dynamic(false)
+        .buildWithDefault(512);
+
+    private final ConfigurationOption<String> spoolDir = ConfigurationOption.stringOption()
+        .key("spool_dir")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("A directory where events are stored while the APM Server can't be reached.\n" +
+            "\n" +
+            "When set, events are written to memory-mapped segment files in this directory instead of being dropped,\n" +
+            "when the agent fails to connect to the APM Server or while it backs off after errors.\n" +
+            "The spooled events are sent to the APM Server in order as soon as it is available again,\n" +
+            "which includes events that have been spooled before a restart of the application.\n" +
+            "Only one agent can use a spool directory at a time.\n" +
+            "\n" +
+            "Spooling is disabled when this option is not set.")
+        .dynamic(false)
+        .build();
+
+    private final ConfigurationOption<ByteValue> spoolMaxSize = ByteValueConverter.byteOption()
+        .key("spool_max_size")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The maximum disk space used by the spool (see `spool_dir`).\n" +
+            "When the spool is full, the oldest events are dropped.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("64mb"));
+
+    private final ConfigurationOption<TimeDuration> spoolMaxAge = TimeDurationValueConverter.durationOption("m")
+        .key("spool_max_age")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The maximum time spooled events (see `spool_dir`) are kept. Older events are dropped.")
+        .dynamic(false)
+        .buildWithDefault(TimeDuration.of("60m"));
+
+    private final ConfigurationOption<String> intakeFileDir = ConfigurationOption.stringOption()
+        .key("intake_file_dir")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("A directory where events are written to instead of sending them to the APM Server.\n" +
+            "\n" +
+            "The events are written in the ND-JSON format of the intake API to segment files,\n" +
+            "which a separate shipper can forward to the APM Server, for example in air-gapped environments.\n" +
+            "Each segment starts with the metadata and corresponds to the body of one intake request.\n" +
+            "A segment is finished when it reaches `intake_file_max_size`, after <<config-api-request-time>> and when the agent flushes.\n" +
+            "Segments are written to a file with a `.tmp` suffix which is renamed once the segment is finished.\n" +
+            "The agent does not delete any segment files.\n" +
+            "\n" +
+            "Writing to files is disabled when this option is not set.")
+        .dynamic(false)
+        .build();
+
+    private final ConfigurationOption<ByteValue> intakeFileMaxSize = ByteValueConverter.byteOption()
+        .key("intake_file_max_size")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The size after which a segment file (see `intake_file_dir`) is finished and a new one is started.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("16mb"));
+
+    private final ConfigurationOption<Boolean> intakeFileCompression = ConfigurationOption.booleanOption()
+        .key("intake_file_compression")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("Whether segment files (see `intake_file_dir`) are deflate compressed.\n" +
+            "Compressed segments have the `.ndjson.deflate` suffix and can be sent to the APM Server with a `Content-Encoding: deflate` header.")
+        .dynamic(false)
+        .buildWithDefault(true);
+
+    private final ConfigurationOption<Boolean> tailSampling = ConfigurationOption.booleanOption()
+        .key("tail_sampling")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("Whether to record traces which are not sampled by `transaction_sample_rate` locally, and to decide when the local root transaction ends whether to report them.\n" +
+            "A trace is reported if the local root transaction failed, if an error has been captured for it, " +
+            "if it took longer than `tail_sampling_duration_threshold` or if it has a label matching `tail_sampling_labels`.\n" +
+            "Until then, its serialized spans are buffered off-heap, see `tail_sampling_buffer_size` and `tail_sampling_max_wait`.\n" +
+            "Downstream services see these traces as not sampled. Reported traces have a sample rate of 0, so that they don't skew extrapolated metrics.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<TimeDuration> tailSamplingDurationThreshold = TimeDurationValueConverter.durationOption("ms")
+        .key("tail_sampling_duration_threshold")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("Traces recorded for tail sampling are reported if their local root transaction took at least this long.")
+        .dynamic(false)
+        .buildWithDefault(TimeDuration.of("1s"));
+
+    private final ConfigurationOption<List<WildcardMatcher>> tailSamplingLabels = ConfigurationOption
+        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .key("tail_sampling_labels")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("Traces recorded for tail sampling are reported if their local root transaction has a label matching any of these expressions.\n" +
+            "The expressions are matched against `key=value`, for example `customer_tier=gold` or `debug=*`.\n" +
+            "\n" +
+            WildcardMatcher.DOCUMENTATION)
+        .dynamic(false)
         .buildWithDefault(Collections.<WildcardMatcher>emptyList());
 
+    private final ConfigurationOption<ByteValue> tailSamplingBufferSize = ByteValueConverter.byteOption()
+        .key("tail_sampling_buffer_size")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The off-heap memory used to buffer the serialized spans of traces recorded for tail sampling.\n" +
+            "Traces which don't fit into the buffer are dropped, unless they failed or an error has been captured for them.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("8mb"));
+
+    private final ConfigurationOption<TimeDuration> tailSamplingMaxWait = TimeDurationValueConverter.durationOption("s")
+        .key("tail_sampling_max_wait")
+        .tags("internal")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The maximum time the spans of a trace recorded for tail sampling are buffered.\n" +
+            "Traces whose local root transaction did not end within this time are dropped, " +
+            "as well as spans which end after the local root transaction.")
+        .dynamic(false)
+        .buildWithDefault(TimeDuration.of("30s"));
+
     @Nullable
     public String getSecretToken() {
         return secretToken.get();
@@ -307,6 +534,84 @@ public class ReporterConfigurationImpl extends ConfigurationOptionProvider imple
         return disableMetrics.get();
     }
 
+    public IntakeTransportType getIntakeTransport() {
+        return intakeTransport.get();
+    }
+
+    public IntakeLoadBalancing getIntakeLoadBalancing() {
+        return intakeLoadBalancing.get();
+    }
+
+    public int getSerializerThreads() {
+        return serializerThreads.get();
+    }
+
+    public boolean isSerializeOnReport() {
+        return serializeOnReport.get();
+    }
+
+    public boolean isAdaptiveCompression() {
+        return adaptiveCompression.get();
+    }
+
+    public int getQueueStripes() {
+        return queueStripes.get();
+    }
+
+    public boolean isQueuePriorityLanes() {
+        return queuePriorityLanes.get();
+    }
+
+    public int getQueuePriorityLaneSize() {
+        return queuePriorityLaneSize.get();
+    }
+
+    @Nullable
+    public String getSpoolDir() {
+        return spoolDir.get();
+    }
+
+    @Nullable
+    public String getIntakeFileDir() {
+        return intakeFileDir.get();
+    }
+
+    public long getIntakeFileMaxSize() {
+        return intakeFileMaxSize.get().getBytes();
+    }
+
+    public boolean isIntakeFileCompression() {
+        return intakeFileCompression.get();
+    }
+
+    public boolean isTailSampling() {
+        return tailSampling.get();
+    }
+
+    public TimeDuration getTailSamplingDurationThreshold() {
+        return tailSamplingDurationThreshold.get();
+    }
+
+    public List<WildcardMatcher> getTailSamplingLabels() {
+        return tailSamplingLabels.get();
+    }
+
+    public long getTailSamplingBufferSize() {
+        return tailSamplingBufferSize.get().getBytes();
+    }
+
+    public TimeDuration getTailSamplingMaxWait() {
+        return tailSamplingMaxWait.get();
+    }
+
+    public long getSpoolMaxSize() {
+        return spoolMaxSize.get().getBytes();
+    }
+
+    public TimeDuration getSpoolMaxAge() {
+        return spoolMaxAge.get();
+    }
+
     public ConfigurationOption<URL> getServerUrlOption() {
         return this.serverUrl;
     }
@@ -314,4 +619,25 @@ public class ReporterConfigurationImpl extends ConfigurationOptionProvider imple
     public ConfigurationOption<List<URL>> getServerUrlsOption() {
         return this.serverUrls;
     }
+
+    public enum IntakeTransportType {
+        URL_CONNECTION,
+        NIO_KEEP_ALIVE;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    public enum IntakeLoadBalancing {
+        FAILOVER,
+        LATENCY,
+        EVENT_COUNT;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
 }
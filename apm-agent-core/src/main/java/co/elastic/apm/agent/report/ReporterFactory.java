@@ -25,6 +25,7 @@ import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nonnull;
+import java.io.File;
 
 public class ReporterFactory {
 
@@ -46,6 +47,10 @@ public class ReporterFactory {
                                                            DslJsonSerializer payloadSerializer,
                                                            ApmServerClient apmServerClient) {
         ProcessorEventHandler processorEventHandler = ProcessorEventHandler.loadProcessors(configurationRegistry);
+        String intakeFileDir = reporterConfiguration.getIntakeFileDir();
+        if (intakeFileDir != null && !intakeFileDir.isEmpty()) {
+            return new FileReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, new File(intakeFileDir));
+        }
         return new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient);
     }
 
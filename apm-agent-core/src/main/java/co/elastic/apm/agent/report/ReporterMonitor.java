@@ -28,8 +28,38 @@ public interface ReporterMonitor {
 
     void eventDroppedAfterDequeue(ReportingEvent.ReportingEventType eventType);
 
+    void eventSpooled(ReportingEvent.ReportingEventType eventType);
+
     void requestFinished(ReportingEventCounter requestContent, long acceptedEventCount, long bytesWritten, boolean success);
 
+    /**
+     * Called when the number of events in a lane of the queue has changed, if the queue is split into priority lanes.
+     */
+    void laneUtilizationChanged(String laneName, long laneCapacity, long laneSize);
+
+    /**
+     * Called when an event did not fit into a full lane and has been published to the next lane with a lower priority.
+     */
+    void eventOverflowedLane(String laneName, ReportingEvent.ReportingEventType eventType);
+
+    /**
+     * Called when an event has been dropped because its lane, and all lanes it could overflow to, are full.
+     */
+    void eventDroppedFromLane(String laneName, ReportingEvent.ReportingEventType eventType);
+
+    /**
+     * Called when the adaptive compression changed the deflate level of intake requests.
+     * A level of {@code 0} means that requests are sent uncompressed.
+     */
+    void compressionLevelChanged(int level);
+
+    /**
+     * Called when the reporter decided whether to report a trace recorded for tail sampling.
+     *
+     * @param decision the reason why the trace has been reported or dropped, for example {@code error} or {@code dropped}
+     */
+    void tailSamplingDecision(String decision);
+
 
     ReporterMonitor NOOP = new ReporterMonitor() {
 
@@ -53,9 +83,39 @@ public interface ReporterMonitor {
 
         }
 
+        @Override
+        public void eventSpooled(ReportingEvent.ReportingEventType eventType) {
+
+        }
+
         @Override
         public void requestFinished(ReportingEventCounter contents, long acceptedEventCount, long bytesWritten, boolean success) {
 
         }
+
+        @Override
+        public void laneUtilizationChanged(String laneName, long laneCapacity, long laneSize) {
+
+        }
+
+        @Override
+        public void eventOverflowedLane(String laneName, ReportingEvent.ReportingEventType eventType) {
+
+        }
+
+        @Override
+        public void eventDroppedFromLane(String laneName, ReportingEvent.ReportingEventType eventType) {
+
+        }
+
+        @Override
+        public void compressionLevelChanged(int level) {
+
+        }
+
+        @Override
+        public void tailSamplingDecision(String decision) {
+
+        }
     };
 }
@@ -38,6 +38,12 @@ import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.TRAN
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.WAKEUP;
 
 public class ReportingEvent {
+
+    /**
+     * Buffers larger than this are not kept for re-use so that a few outliers don't increase the memory footprint of the whole ring buffer
+     */
+    private static final int MAX_RETAINED_SERIALIZED_BUFFER_SIZE = 64 * 1024;
+
     @Nullable
     private TransactionImpl transaction;
     @Nullable
@@ -58,6 +64,15 @@ public class ReportingEvent {
     private byte[] bytesLog;
     private boolean agentLog;
 
+    /**
+     * Buffer for the ND-JSON representation of this event, as created by a {@link SerializingEventHandler}.
+     * Kept when resetting the state so that the buffer of this ring buffer slot can be re-used.
+     */
+    @Nullable
+    private byte[] serialized;
+    private int serializedLength = -1;
+    private boolean preProcessed;
+
     public void resetState() {
         this.transaction = null;
         this.type = null;
@@ -68,6 +83,11 @@ public class ReportingEvent {
         this.agentLog = false;
         this.bytesLog = null;
         this.stringLog = null;
+        this.serializedLength = -1;
+        this.preProcessed = false;
+        if (serialized != null && serialized.length > MAX_RETAINED_SERIALIZED_BUFFER_SIZE) {
+            serialized = null;
+        }
     }
 
     @Nullable
@@ -167,6 +187,61 @@ public class ReportingEvent {
         this.type = METRICSET_JSON_WRITER;
     }
 
+    /**
+     * Marks that the {@link co.elastic.apm.agent.report.processor.Processor}s have already been applied to this event.
+     */
+    public void setPreProcessed() {
+        this.preProcessed = true;
+    }
+
+    public boolean isPreProcessed() {
+        return preProcessed;
+    }
+
+    /**
+     * Stores a copy of the serialized ND-JSON representation of this event.
+     *
+     * @param bytes  the buffer containing the serialized event
+     * @param length the number of bytes to copy from {@code bytes}
+     */
+    public void setSerialized(byte[] bytes, int length) {
+        if (serialized == null || serialized.length < length) {
+            serialized = new byte[Math.max(length, 1024)];
+        }
+        System.arraycopy(bytes, 0, serialized, 0, length);
+        serializedLength = length;
+    }
+
+    /**
+     * Initializes this event with an event that has already been processed and serialized,
+     * without holding on to the object it has been serialized from.
+     *
+     * @param type   the type of the serialized event
+     * @param bytes  the buffer containing the serialized event
+     * @param length the number of bytes to copy from {@code bytes}
+     */
+    public void setSerializedEvent(ReportingEventType type, byte[] bytes, int length) {
+        this.type = type;
+        this.preProcessed = true;
+        setSerialized(bytes, length);
+    }
+
+    public boolean isSerialized() {
+        return serializedLength >= 0;
+    }
+
+    /**
+     * @return the serialized ND-JSON representation of this event, only valid if {@link #isSerialized()} returns {@code true}
+     */
+    @Nullable
+    public byte[] getSerialized() {
+        return serialized;
+    }
+
+    public int getSerializedLength() {
+        return serializedLength;
+    }
+
     public void end() {
         if (transaction != null) {
             transaction.decrementReferences();
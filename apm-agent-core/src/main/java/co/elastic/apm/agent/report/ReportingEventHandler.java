@@ -20,6 +20,9 @@ package co.elastic.apm.agent.report;
 
 import com.lmax.disruptor.EventHandler;
 
+import javax.annotation.Nullable;
+import java.util.List;
+
 public interface ReportingEventHandler extends EventHandler<ReportingEvent> {
 
     void init(ApmServerReporter reporter);
@@ -33,4 +36,22 @@ public interface ReportingEventHandler extends EventHandler<ReportingEvent> {
     void close();
 
     boolean isHealthy();
+
+    /**
+     * Returns handlers which are executed on their own threads before this handler sees an event.
+     * They can be used to move work, like serialization, off the thread which runs this handler.
+     *
+     * @return the handlers to run in parallel before this handler, or an empty list if this handler processes events on its own
+     */
+    List<EventHandler<ReportingEvent>> getPreprocessingHandlers();
+
+    /**
+     * Returns a serializer which is used on the threads that report transactions, spans and errors,
+     * so that these objects can be recycled before they are added to the queue, or buffered for tail sampling.
+     *
+     * @return the serializer, or {@code null} if neither {@code serialize_on_report} nor {@code tail_sampling} is enabled,
+     * or if this handler serializes events on its own
+     */
+    @Nullable
+    EagerEventSerializer getEagerEventSerializer();
 }
@@ -0,0 +1,91 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import com.lmax.disruptor.EventHandler;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parts of {@link ReportingEventHandler}s which don't depend on where the events are reported to.
+ */
+class ReportingEventHandlers {
+
+    private ReportingEventHandlers() {
+    }
+
+    /**
+     * @return the {@link SerializingEventHandler}s according to {@link ReporterConfigurationImpl#getSerializerThreads()}
+     */
+    static List<EventHandler<ReportingEvent>> createSerializingEventHandlers(ReporterConfigurationImpl reporterConfiguration,
+                                                                             ProcessorEventHandler processorEventHandler,
+                                                                             DslJsonSerializer payloadSerializer) {
+        int serializerThreads = reporterConfiguration.getSerializerThreads();
+        if (serializerThreads <= 0) {
+            return Collections.emptyList();
+        }
+        List<EventHandler<ReportingEvent>> serializingEventHandlers = new ArrayList<>(serializerThreads);
+        for (int i = 0; i < serializerThreads; i++) {
+            serializingEventHandlers.add(new SerializingEventHandler(i, serializerThreads, processorEventHandler, payloadSerializer));
+        }
+        return Collections.unmodifiableList(serializingEventHandlers);
+    }
+
+    /**
+     * @return the {@link EagerEventSerializer}, or {@code null} if events are not serialized on the reporting thread
+     */
+    @Nullable
+    static EagerEventSerializer createEagerEventSerializer(ReporterConfigurationImpl reporterConfiguration,
+                                                           ProcessorEventHandler processorEventHandler,
+                                                           DslJsonSerializer payloadSerializer) {
+        return reporterConfiguration.isSerializeOnReport() || reporterConfiguration.isTailSampling()
+            ? new EagerEventSerializer(processorEventHandler, payloadSerializer)
+            : null;
+    }
+
+    /**
+     * Writes an intake event as ND-JSON, copying the bytes if the event has already been serialized.
+     *
+     * @param payloadSerializer the serializer to write to
+     * @param event             the event to write
+     */
+    static void writeEvent(DslJsonSerializer.Writer payloadSerializer, ReportingEvent event) {
+        byte[] serialized = event.getSerialized();
+        if (event.isSerialized() && serialized != null) {
+            payloadSerializer.writeBytes(serialized, event.getSerializedLength());
+        } else if (event.getTransaction() != null) {
+            payloadSerializer.serializeTransactionNdJson(event.getTransaction());
+        } else if (event.getSpan() != null) {
+            payloadSerializer.serializeSpanNdJson(event.getSpan());
+        } else if (event.getError() != null) {
+            payloadSerializer.serializeErrorNdJson(event.getError());
+        } else if (event.getJsonWriter() != null) {
+            payloadSerializer.writeBytes(event.getJsonWriter().getByteBuffer(), event.getJsonWriter().size());
+        } else if (event.getBytesLog() != null) {
+            payloadSerializer.serializeLogNdJson(event.getBytesLog());
+        } else if (event.getStringLog() != null) {
+            payloadSerializer.serializeLogNdJson(event.getStringLog());
+        }
+    }
+}
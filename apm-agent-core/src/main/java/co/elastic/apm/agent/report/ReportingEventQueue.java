@@ -0,0 +1,78 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import com.lmax.disruptor.EventTranslator;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.TimeoutException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queue which decouples the threads that create {@link ReportingEvent}s from the {@link ReportingEventHandler}.
+ */
+interface ReportingEventQueue {
+
+    void start();
+
+    /**
+     * Publishes an event, unless the queue is full.
+     *
+     * @return {@code true} if the event has been published, {@code false} if the queue is full
+     */
+    <E> boolean tryPublish(ReportingEvent.ReportingEventType type, EventTranslatorOneArg<ReportingEvent, E> translator, E arg);
+
+    /**
+     * Publishes an event, waiting for free capacity if the queue is full.
+     */
+    <E> void publish(ReportingEvent.ReportingEventType type, EventTranslatorOneArg<ReportingEvent, E> translator, E arg);
+
+    /**
+     * Publishes a control event which does not need to be waited for, like {@link ReportingEvent.ReportingEventType#WAKEUP}.
+     *
+     * @return {@code true} if the event has been published, {@code false} if the queue is full
+     */
+    boolean tryPublishControlEvent(EventTranslator<ReportingEvent> translator);
+
+    /**
+     * Publishes a control event, like a flush request, which is only processed after all events that have been published before.
+     *
+     * @return a ticket that can be passed to {@link #isProcessed(long)}
+     * @throws InsufficientCapacityException if the queue is full
+     */
+    long tryPublishControlEvent(EventTranslatorOneArg<ReportingEvent, Thread> translator, Thread thread) throws InsufficientCapacityException;
+
+    /**
+     * @param ticket the ticket of a control event, as returned by {@link #tryPublishControlEvent(EventTranslatorOneArg, Thread)}
+     * @return whether the control event has been processed
+     */
+    boolean isProcessed(long ticket);
+
+    long getCapacity();
+
+    long getElementCount();
+
+    /**
+     * Waits until all published events have been processed and stops the threads of this queue.
+     *
+     * @throws TimeoutException if not all events could be processed within the timeout
+     */
+    void shutdown(long timeout, TimeUnit unit) throws TimeoutException;
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.impl.error.ErrorCaptureImpl;
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import com.dslplatform.json.JsonWriter;
+import com.lmax.disruptor.EventHandler;
+
+/**
+ * Applies the {@link co.elastic.apm.agent.report.processor.Processor}s and serializes transactions, spans and errors
+ * to ND-JSON before they reach the {@link IntakeV2ReportingEventHandler}.
+ * <p>
+ * Multiple instances run in parallel, each on its own thread.
+ * Every instance only handles the events whose sequence matches its ordinal, so that each event is serialized exactly once.
+ * The {@link IntakeV2ReportingEventHandler} then only has to copy the serialized bytes into the request body.
+ * </p>
+ */
+class SerializingEventHandler implements EventHandler<ReportingEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(SerializingEventHandler.class);
+
+    private final int ordinal;
+    private final int numberOfHandlers;
+    private final ProcessorEventHandler processorEventHandler;
+    private final DslJsonSerializer.Writer serializer;
+
+    SerializingEventHandler(int ordinal, int numberOfHandlers, ProcessorEventHandler processorEventHandler, DslJsonSerializer payloadSerializer) {
+        this.ordinal = ordinal;
+        this.numberOfHandlers = numberOfHandlers;
+        this.processorEventHandler = processorEventHandler;
+        // no output stream is set, which means the underlying buffer grows to fit any event
+        this.serializer = payloadSerializer.newWriter();
+    }
+
+    @Override
+    public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
+        if (sequence % numberOfHandlers != ordinal || event.isSerialized()) {
+            return;
+        }
+        switch (event.getType()) {
+            case TRANSACTION:
+            case SPAN:
+            case ERROR:
+                serialize(event, sequence, endOfBatch);
+                break;
+            default:
+                // control events, logs and metrics are handled by the reporter thread
+        }
+    }
+
+    private void serialize(ReportingEvent event, long sequence, boolean endOfBatch) {
+        processorEventHandler.onEvent(event, sequence, endOfBatch);
+        event.setPreProcessed();
+        try {
+            TransactionImpl transaction = event.getTransaction();
+            SpanImpl span = event.getSpan();
+            ErrorCaptureImpl error = event.getError();
+            if (transaction != null) {
+                serializer.serializeTransactionNdJson(transaction);
+            } else if (span != null) {
+                serializer.serializeSpanNdJson(span);
+            } else if (error != null) {
+                serializer.serializeErrorNdJson(error);
+            }
+            JsonWriter jw = serializer.getJsonWriter();
+            event.setSerialized(jw.getByteBuffer(), jw.size());
+        } catch (Exception e) {
+            // the reporter thread serializes the event if it hasn't been serialized here
+            logger.debug("Failed to serialize event of type {}", event.getType(), e);
+        } finally {
+            serializer.resetState();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import java.util.Arrays;
+
+/**
+ * Splits the queue into multiple ring buffers (stripes), to reduce the contention on the sequence of a single ring buffer
+ * when many threads report events at the same time.
+ * <p>
+ * A thread always publishes to the same stripe, which is derived from its id.
+ * </p>
+ */
+class StripedReportingEventQueue extends AbstractMultiRingReportingEventQueue {
+
+    StripedReportingEventQueue(int stripeCount, int capacityPerStripe, ReportingEventHandler reportingEventHandler) {
+        super(capacities(stripeCount, capacityPerStripe), reportingEventHandler);
+    }
+
+    private static int[] capacities(int stripeCount, int capacityPerStripe) {
+        int[] capacities = new int[stripeCount];
+        Arrays.fill(capacities, capacityPerStripe);
+        return capacities;
+    }
+
+    @Override
+    int getRingIndex(ReportingEvent.ReportingEventType type) {
+        long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 32)) & Integer.MAX_VALUE) % getRingCount();
+    }
+}
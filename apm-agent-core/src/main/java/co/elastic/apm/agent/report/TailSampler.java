@@ -0,0 +1,202 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.common.util.WildcardMatcher;
+import co.elastic.apm.agent.impl.error.ErrorCaptureImpl;
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TraceContextImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.tracer.Outcome;
+
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether to report traces which are {@linkplain TraceContextImpl#isRecordedForTailSampling() recorded for tail sampling}.
+ * <p>
+ * The spans and non-root transactions of such a trace are serialized on the thread which reports them and are stored in
+ * the {@link TailSamplingBuffer}. When the local root transaction ends, the trace is either reported as a whole or dropped.
+ * </p>
+ */
+class TailSampler {
+
+    private static final Logger logger = LoggerFactory.getLogger(TailSampler.class);
+
+    static final String DECISION_ERROR = "error";
+    static final String DECISION_DURATION = "duration";
+    static final String DECISION_LABEL = "label";
+    static final String DECISION_DROPPED = "dropped";
+    static final String DECISION_OVERFLOWED = "overflowed";
+    static final String DECISION_EXPIRED = "expired";
+
+    private static final long EXPIRY_CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final TailSamplingBuffer buffer;
+    private final EagerEventSerializer serializer;
+    private final ReporterMonitor monitor;
+    private final long durationThresholdMicros;
+    private final List<WildcardMatcher> labelMatchers;
+    private final long maxWaitNanos;
+    private final AtomicLong nextExpiryCheck;
+    private final ThreadLocal<StringBuilder> labelBuilder = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
+        }
+    };
+
+    TailSampler(ReporterConfigurationImpl reporterConfiguration, EagerEventSerializer serializer, ReporterMonitor monitor) {
+        this.buffer = new TailSamplingBuffer(reporterConfiguration.getTailSamplingBufferSize());
+        this.serializer = serializer;
+        this.monitor = monitor;
+        this.durationThresholdMicros = reporterConfiguration.getTailSamplingDurationThreshold().getMicros();
+        this.labelMatchers = reporterConfiguration.getTailSamplingLabels();
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(reporterConfiguration.getTailSamplingMaxWait().getMillis());
+        this.nextExpiryCheck = new AtomicLong(System.nanoTime() + EXPIRY_CHECK_INTERVAL_NANOS);
+    }
+
+    /**
+     * Buffers a span until the local root transaction of its trace ends.
+     * The span can be recycled when this method returns.
+     */
+    void buffer(SpanImpl span) {
+        long nanoTime = System.nanoTime();
+        expireIfNeeded(nanoTime);
+        EagerEventSerializer.SerializedEvent serializedEvent = serializer.serialize(span);
+        if (serializedEvent != null) {
+            append(span.getTraceContext(), nanoTime, serializedEvent);
+        }
+    }
+
+    /**
+     * Buffers a non-root transaction, or decides whether to report the trace if the transaction is the local root.
+     * In the latter case, all buffered events of the trace are reported before this method returns.
+     * <p>
+     * The caller reports the transaction itself if this method returns {@code true}.
+     * Otherwise, the transaction can be recycled.
+     * </p>
+     *
+     * @return whether the transaction should be reported
+     */
+    boolean onTransactionEnd(TransactionImpl transaction, ApmServerReporter reporter) {
+        long nanoTime = System.nanoTime();
+        expireIfNeeded(nanoTime);
+        TraceContextImpl traceContext = transaction.getTraceContext();
+        if (!traceContext.getParentId().isEmpty()) {
+            EagerEventSerializer.SerializedEvent serializedEvent = serializer.serialize(transaction);
+            if (serializedEvent != null) {
+                append(traceContext, nanoTime, serializedEvent);
+            }
+            return false;
+        }
+        TailSamplingBuffer.BufferedTrace trace = buffer.remove(getTraceKey(traceContext));
+        String decision = decide(transaction, trace);
+        monitor.tailSamplingDecision(decision);
+        boolean report = isReported(decision);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Tail sampling decision for {}: {}", transaction, decision);
+        }
+        if (trace != null) {
+            synchronized (trace) {
+                if (report) {
+                    reporter.reportBufferedEvents(trace);
+                }
+                trace.release();
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Records that an error has been captured for a trace, which makes sure the trace is reported.
+     */
+    void onError(ErrorCaptureImpl error) {
+        buffer.markError(getTraceKey(error.getTraceContext()), System.nanoTime());
+    }
+
+    private void append(TraceContextImpl traceContext, long nanoTime, EagerEventSerializer.SerializedEvent serializedEvent) {
+        try {
+            buffer.append(getTraceKey(traceContext), nanoTime, serializedEvent.getType(), serializedEvent.getBytes(), serializedEvent.getLength());
+        } finally {
+            serializedEvent.resetState();
+        }
+    }
+
+    private String decide(TransactionImpl transaction, @Nullable TailSamplingBuffer.BufferedTrace trace) {
+        // overflowed traces are still reported if they failed, with the events which have been buffered until the overflow
+        if (transaction.getOutcome() == Outcome.FAILURE || (trace != null && trace.hasError())) {
+            return DECISION_ERROR;
+        }
+        if (trace != null && trace.isOverflowed()) {
+            return DECISION_OVERFLOWED;
+        }
+        if (transaction.getDuration() >= durationThresholdMicros) {
+            return DECISION_DURATION;
+        }
+        if (!labelMatchers.isEmpty() && hasMatchingLabel(transaction)) {
+            return DECISION_LABEL;
+        }
+        return DECISION_DROPPED;
+    }
+
+    private boolean hasMatchingLabel(TransactionImpl transaction) {
+        StringBuilder label = labelBuilder.get();
+        for (Iterator<? extends Map.Entry<String, ?>> iterator = transaction.getContext().getLabelIterator(); iterator.hasNext(); ) {
+            Map.Entry<String, ?> entry = iterator.next();
+            label.setLength(0);
+            label.append(entry.getKey()).append('=').append(entry.getValue());
+            if (WildcardMatcher.isAnyMatch(labelMatchers, label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isReported(String decision) {
+        return decision.equals(DECISION_ERROR) || decision.equals(DECISION_DURATION) || decision.equals(DECISION_LABEL);
+    }
+
+    private void expireIfNeeded(long nanoTime) {
+        long next = nextExpiryCheck.get();
+        if (nanoTime - next >= 0 && nextExpiryCheck.compareAndSet(next, nanoTime + EXPIRY_CHECK_INTERVAL_NANOS)) {
+            int expired = buffer.expire(nanoTime, maxWaitNanos);
+            for (int i = 0; i < expired; i++) {
+                monitor.tailSamplingDecision(DECISION_EXPIRED);
+            }
+            if (expired > 0) {
+                logger.debug("Dropped {} traces which have been buffered for tail sampling for too long", expired);
+            }
+        }
+    }
+
+    private static long getTraceKey(TraceContextImpl traceContext) {
+        return traceContext.getTraceId().getLeastSignificantBits();
+    }
+
+    TailSamplingBuffer getBuffer() {
+        return buffer;
+    }
+}
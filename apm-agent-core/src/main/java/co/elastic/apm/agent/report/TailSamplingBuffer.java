@@ -0,0 +1,284 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Buffers the serialized events of traces which are recorded for tail sampling, until the local root transaction ends.
+ * <p>
+ * The events are stored off-heap, in a single direct buffer which is split into blocks of {@link #BLOCK_SIZE} bytes.
+ * A trace allocates blocks as it grows and releases all of them once it has been removed.
+ * If a trace can't allocate another block, it is marked as {@linkplain BufferedTrace#isOverflowed() overflowed}
+ * and its blocks are released right away, as an incomplete trace is not worth reporting.
+ * Traces for which an error has been captured keep the events buffered so far, so that they are reported as far as possible.
+ * </p>
+ */
+class TailSamplingBuffer {
+
+    static final int BLOCK_SIZE = 16 * 1024;
+
+    /**
+     * The type (1 byte) and the length (4 bytes) of each event
+     */
+    private static final int EVENT_HEADER_SIZE = 5;
+
+    private static final ReportingEvent.ReportingEventType[] EVENT_TYPES = ReportingEvent.ReportingEventType.values();
+
+    private final ByteBuffer arena;
+    private final int blockCount;
+    /**
+     * A stack of the indices of the blocks which are not in use, guarded by {@code this}
+     */
+    private final int[] freeBlocks;
+    private int freeBlockCount;
+    private final ConcurrentMap<Long, BufferedTrace> traces = new ConcurrentHashMap<>();
+
+    TailSamplingBuffer(long bufferSize) {
+        blockCount = (int) Math.max(1, Math.min(Integer.MAX_VALUE / BLOCK_SIZE, bufferSize / BLOCK_SIZE));
+        arena = ByteBuffer.allocateDirect(blockCount * BLOCK_SIZE);
+        freeBlocks = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            freeBlocks[i] = blockCount - 1 - i;
+        }
+        freeBlockCount = blockCount;
+    }
+
+    /**
+     * Appends a serialized event to the buffered events of a trace.
+     *
+     * @return {@code false} if the event could not be buffered because the trace overflowed the buffer, or has already been removed
+     */
+    boolean append(long traceKey, long nanoTime, ReportingEvent.ReportingEventType type, byte[] bytes, int length) {
+        BufferedTrace trace = getOrCreateTrace(traceKey, nanoTime);
+        synchronized (trace) {
+            return trace.append(type, bytes, length);
+        }
+    }
+
+    /**
+     * Records that an error has been captured for a trace.
+     */
+    void markError(long traceKey, long nanoTime) {
+        BufferedTrace trace = getOrCreateTrace(traceKey, nanoTime);
+        synchronized (trace) {
+            trace.error = true;
+        }
+    }
+
+    private BufferedTrace getOrCreateTrace(long traceKey, long nanoTime) {
+        BufferedTrace trace = traces.get(traceKey);
+        if (trace == null) {
+            BufferedTrace newTrace = new BufferedTrace(nanoTime);
+            trace = traces.putIfAbsent(traceKey, newTrace);
+            if (trace == null) {
+                trace = newTrace;
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Removes a trace from the buffer. Events which are appended to the trace afterwards are buffered as part of a new trace.
+     * The caller has to {@link BufferedTrace#release() release} the returned trace once it's done reading the events.
+     *
+     * @return the removed trace, or {@code null} if no events have been buffered for the trace
+     */
+    @Nullable
+    BufferedTrace remove(long traceKey) {
+        BufferedTrace trace = traces.remove(traceKey);
+        if (trace != null) {
+            synchronized (trace) {
+                trace.removed = true;
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Drops all traces which have been buffered for longer than {@code maxWaitNanos}.
+     *
+     * @return the number of dropped traces
+     */
+    int expire(long nanoTime, long maxWaitNanos) {
+        int expired = 0;
+        for (Iterator<BufferedTrace> iterator = traces.values().iterator(); iterator.hasNext(); ) {
+            BufferedTrace trace = iterator.next();
+            if (nanoTime - trace.createdNanos > maxWaitNanos) {
+                iterator.remove();
+                synchronized (trace) {
+                    trace.removed = true;
+                    trace.release();
+                }
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    int getTraceCount() {
+        return traces.size();
+    }
+
+    synchronized int getFreeBlockCount() {
+        return freeBlockCount;
+    }
+
+    int getBlockCount() {
+        return blockCount;
+    }
+
+    private synchronized int allocateBlock() {
+        if (freeBlockCount == 0) {
+            return -1;
+        }
+        return freeBlocks[--freeBlockCount];
+    }
+
+    private synchronized void releaseBlocks(int[] blocks, int count) {
+        System.arraycopy(blocks, 0, freeBlocks, freeBlockCount, count);
+        freeBlockCount += count;
+    }
+
+    interface EventConsumer {
+        void accept(ReportingEvent.ReportingEventType type, byte[] bytes, int length);
+    }
+
+    /**
+     * The events of a single trace. All methods have to be called while holding the lock of the instance.
+     */
+    class BufferedTrace {
+
+        private final long createdNanos;
+        /**
+         * A view of the shared {@link #arena} so that the position can be changed independently of other traces
+         */
+        private final ByteBuffer view = arena.duplicate();
+        private final byte[] header = new byte[EVENT_HEADER_SIZE];
+        private int[] blocks = new int[4];
+        private int usedBlocks;
+        private int size;
+        private boolean error;
+        private boolean overflowed;
+        private boolean removed;
+
+        private BufferedTrace(long createdNanos) {
+            this.createdNanos = createdNanos;
+        }
+
+        private boolean append(ReportingEvent.ReportingEventType type, byte[] bytes, int length) {
+            if (overflowed || removed) {
+                return false;
+            }
+            if (!ensureCapacity(size + EVENT_HEADER_SIZE + length)) {
+                overflowed = true;
+                if (!error) {
+                    release();
+                }
+                return false;
+            }
+            header[0] = (byte) type.ordinal();
+            header[1] = (byte) (length >>> 24);
+            header[2] = (byte) (length >>> 16);
+            header[3] = (byte) (length >>> 8);
+            header[4] = (byte) length;
+            write(header, EVENT_HEADER_SIZE);
+            write(bytes, length);
+            return true;
+        }
+
+        private boolean ensureCapacity(int capacity) {
+            while (usedBlocks * BLOCK_SIZE < capacity) {
+                int block = allocateBlock();
+                if (block < 0) {
+                    return false;
+                }
+                if (usedBlocks == blocks.length) {
+                    blocks = Arrays.copyOf(blocks, blocks.length * 2);
+                }
+                blocks[usedBlocks++] = block;
+            }
+            return true;
+        }
+
+        private void write(byte[] bytes, int length) {
+            int written = 0;
+            while (written < length) {
+                int offsetInBlock = size % BLOCK_SIZE;
+                int chunk = Math.min(length - written, BLOCK_SIZE - offsetInBlock);
+                view.position(blocks[size / BLOCK_SIZE] * BLOCK_SIZE + offsetInBlock);
+                view.put(bytes, written, chunk);
+                written += chunk;
+                size += chunk;
+            }
+        }
+
+        private int read(int position, byte[] bytes, int length) {
+            int read = 0;
+            while (read < length) {
+                int offsetInBlock = position % BLOCK_SIZE;
+                int chunk = Math.min(length - read, BLOCK_SIZE - offsetInBlock);
+                view.position(blocks[position / BLOCK_SIZE] * BLOCK_SIZE + offsetInBlock);
+                view.get(bytes, read, chunk);
+                read += chunk;
+                position += chunk;
+            }
+            return position;
+        }
+
+        /**
+         * Passes all buffered events to the consumer, in the order they have been appended
+         */
+        void forEachEvent(EventConsumer consumer) {
+            byte[] event = new byte[0];
+            int position = 0;
+            while (position < size) {
+                position = read(position, header, EVENT_HEADER_SIZE);
+                int length = (header[1] & 0xFF) << 24 | (header[2] & 0xFF) << 16 | (header[3] & 0xFF) << 8 | (header[4] & 0xFF);
+                if (event.length < length) {
+                    event = new byte[length];
+                }
+                position = read(position, event, length);
+                consumer.accept(EVENT_TYPES[header[0]], event, length);
+            }
+        }
+
+        /**
+         * Returns the blocks of this trace to the buffer
+         */
+        void release() {
+            releaseBlocks(blocks, usedBlocks);
+            usedBlocks = 0;
+            size = 0;
+        }
+
+        boolean hasError() {
+            return error;
+        }
+
+        boolean isOverflowed() {
+            return overflowed;
+        }
+    }
+}
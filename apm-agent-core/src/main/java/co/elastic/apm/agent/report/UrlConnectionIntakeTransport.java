@@ -0,0 +1,176 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.report.serialize.SerializationConstants;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.util.UrlConnectionUtils;
+import org.stagemonitor.util.IOUtils;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The default {@link IntakeTransport} which opens a chunked {@link HttpURLConnection} per request.
+ * <p>
+ * Connection re-use is up to the JDK's keep-alive cache, which only re-uses connections whose response has been fully consumed.
+ * This transport supports proxies and TLS, including the SSL settings applied by {@link ApmServerClient}.
+ * </p>
+ */
+class UrlConnectionIntakeTransport implements IntakeTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(UrlConnectionIntakeTransport.class);
+
+    private final ApmServerClient apmServerClient;
+
+    UrlConnectionIntakeTransport(ApmServerClient apmServerClient) {
+        this.apmServerClient = apmServerClient;
+    }
+
+    @Override
+    public IntakeConnection startRequest(URL url, Map<String, String> requestHeaders) throws IOException {
+        HttpURLConnection connection = apmServerClient.startRequestToUrl(url);
+        try (UrlConnectionUtils.ContextClassloaderScope clScope = UrlConnectionUtils.withContextClassloaderOf(connection)) {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(SerializationConstants.BUFFER_SIZE);
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            connection.setUseCaches(false);
+            connection.connect();
+            return new UrlIntakeConnection(connection, connection.getOutputStream());
+        } catch (IOException e) {
+            try {
+                logSslDetails(connection);
+            } finally {
+                closeAndSuppressErrors(connection);
+            }
+            throw e;
+        } catch (Throwable t) {
+            closeAndSuppressErrors(connection);
+            throw t;
+        }
+    }
+
+    private static void logSslDetails(HttpURLConnection connection) {
+        logger.error("Error trying to connect to APM Server at {}. Although not necessarily related to SSL, some related SSL " +
+            "configurations corresponding the current connection are logged at INFO level.", connection.getURL());
+        if (logger.isInfoEnabled() && connection instanceof HttpsURLConnection) {
+            HttpsURLConnection httpsURLConnection = (HttpsURLConnection) connection;
+            try {
+                logger.info("Cipher suite used for this connection: {}", httpsURLConnection.getCipherSuite());
+            } catch (Exception e1) {
+                SSLSocketFactory sslSocketFactory = httpsURLConnection.getSSLSocketFactory();
+                logger.info("Default cipher suites: {}", Arrays.toString(sslSocketFactory.getDefaultCipherSuites()));
+                logger.info("Supported cipher suites: {}", Arrays.toString(sslSocketFactory.getSupportedCipherSuites()));
+            }
+            try {
+                logger.info("APM Server certificates: {}", Arrays.toString(httpsURLConnection.getServerCertificates()));
+            } catch (Exception e1) {
+                // ignore - invalid
+            }
+            try {
+                logger.info("Local certificates: {}", Arrays.toString(httpsURLConnection.getLocalCertificates()));
+            } catch (Exception e1) {
+                // ignore - invalid
+            }
+        }
+    }
+
+    private static void closeAndSuppressErrors(HttpURLConnection connection) {
+        try {
+            connection.disconnect();
+        } catch (Throwable t) {
+            logger.debug("Suppressed error on attempt to close connection", t);
+        }
+    }
+
+    @Override
+    public void close() {
+        // idle connections are managed by the JDK's keep-alive cache
+    }
+
+    private static class UrlIntakeConnection implements IntakeConnection {
+
+        private final HttpURLConnection connection;
+        private final OutputStream outputStream;
+
+        private UrlIntakeConnection(HttpURLConnection connection, OutputStream outputStream) {
+            this.connection = connection;
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public URL getUrl() {
+            return connection.getURL();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            try (UrlConnectionUtils.ContextClassloaderScope clScope = UrlConnectionUtils.withContextClassloaderOf(connection)) {
+                return connection.getResponseCode();
+            }
+        }
+
+        @Nullable
+        @Override
+        public String getResponseBody() throws IOException {
+            try (UrlConnectionUtils.ContextClassloaderScope clScope = UrlConnectionUtils.withContextClassloaderOf(connection)) {
+                InputStream inputStream;
+                try {
+                    inputStream = connection.getInputStream();
+                } catch (IOException e) {
+                    // thrown for error status codes, the body is available via the error stream in that case
+                    inputStream = connection.getErrorStream();
+                }
+                if (inputStream == null) {
+                    return null;
+                }
+                return IOUtils.toString(inputStream);
+            }
+        }
+
+        @Override
+        public void close() {
+            try (UrlConnectionUtils.ContextClassloaderScope clScope = UrlConnectionUtils.withContextClassloaderOf(connection)) {
+                HttpUtils.consumeAndClose(connection);
+            }
+        }
+
+        @Override
+        public void abort() {
+            closeAndSuppressErrors(connection);
+        }
+    }
+}
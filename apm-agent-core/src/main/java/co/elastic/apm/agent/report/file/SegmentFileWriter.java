@@ -0,0 +1,209 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.file;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a stream of bytes to a sequence of segment files in a directory.
+ * <p>
+ * A segment is written to a temporary file which is renamed to its final name once the segment is {@linkplain #finishSegment() finished},
+ * so that other processes, like a shipper that forwards the segments, only ever see complete segments.
+ * The names of the finished segments sort in the order the segments have been written.
+ * </p>
+ * <p>
+ * Writes are collected in a direct buffer and written to the {@link FileChannel} when the buffer is full,
+ * which avoids copying the data into a temporary direct buffer for each write.
+ * </p>
+ * <p>
+ * This class is not thread safe and is meant to be used by the reporter thread only.
+ * </p>
+ */
+public class SegmentFileWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(SegmentFileWriter.class);
+
+    static final String SEGMENT_FILE_PREFIX = "intake-";
+    static final String IN_PROGRESS_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final String segmentFileSuffix;
+    private final ByteBuffer buffer;
+    private final SegmentOutputStream outputStream = new SegmentOutputStream();
+    @Nullable
+    private FileChannel channel;
+    @Nullable
+    private File inProgressFile;
+    @Nullable
+    private File segmentFile;
+    private long segmentSize;
+    private long lastSegmentMillis;
+    private int segmentsInSameMillisecond;
+
+    /**
+     * @param directory         the directory to write the segments to, created if it does not exist
+     * @param segmentFileSuffix the suffix of the segment file names, such as {@code .ndjson}
+     * @param bufferSize        the size of the direct buffer
+     */
+    public SegmentFileWriter(File directory, String segmentFileSuffix, int bufferSize) {
+        this.directory = directory;
+        this.segmentFileSuffix = segmentFileSuffix;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Starts a new segment.
+     *
+     * @return the stream to write the segment to, closing it has no effect
+     * @throws IOException if the segment file can't be created
+     */
+    public OutputStream startSegment() throws IOException {
+        if (channel != null) {
+            throw new IllegalStateException("The current segment has not been finished");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        String segmentName = nextSegmentName();
+        segmentFile = new File(directory, segmentName + segmentFileSuffix);
+        inProgressFile = new File(directory, segmentName + segmentFileSuffix + IN_PROGRESS_SUFFIX);
+        channel = FileChannel.open(inProgressFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        buffer.clear();
+        segmentSize = 0;
+        return outputStream;
+    }
+
+    private String nextSegmentName() {
+        long now = System.currentTimeMillis();
+        if (now == lastSegmentMillis) {
+            segmentsInSameMillisecond++;
+        } else {
+            lastSegmentMillis = now;
+            segmentsInSameMillisecond = 0;
+        }
+        return String.format("%s%013d-%04d", SEGMENT_FILE_PREFIX, now, segmentsInSameMillisecond);
+    }
+
+    public boolean isSegmentStarted() {
+        return channel != null;
+    }
+
+    /**
+     * @return the number of bytes written to the current segment
+     */
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Writes the remaining buffered bytes and moves the segment file to its final name.
+     *
+     * @return the finished segment file
+     * @throws IOException if writing or moving the segment fails, in which case the segment is discarded
+     */
+    public File finishSegment() throws IOException {
+        FileChannel channel = this.channel;
+        File inProgressFile = this.inProgressFile;
+        File segmentFile = this.segmentFile;
+        if (channel == null || inProgressFile == null || segmentFile == null) {
+            throw new IllegalStateException("No segment has been started");
+        }
+        try {
+            writeBuffer();
+            channel.close();
+            this.channel = null;
+            Files.move(inProgressFile.toPath(), segmentFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return segmentFile;
+        } catch (IOException e) {
+            abortSegment();
+            throw e;
+        }
+    }
+
+    /**
+     * Discards the current segment, if any.
+     */
+    public void abortSegment() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Suppressed error on attempt to close segment file", e);
+            }
+            channel = null;
+        }
+        if (inProgressFile != null && inProgressFile.exists() && !inProgressFile.delete()) {
+            logger.warn("Can't delete incomplete segment file {}", inProgressFile);
+        }
+        buffer.clear();
+    }
+
+    private void writeBuffer() throws IOException {
+        if (channel == null) {
+            throw new IOException("No segment has been started");
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private class SegmentOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                writeBuffer();
+            }
+            buffer.put((byte) b);
+            segmentSize++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    writeBuffer();
+                }
+                int length = Math.min(len, buffer.remaining());
+                buffer.put(b, off, length);
+                off += length;
+                len -= length;
+                segmentSize += length;
+            }
+        }
+
+        @Override
+        public void close() {
+            // the segment is completed via finishSegment
+        }
+    }
+}
@@ -20,6 +20,7 @@ package co.elastic.apm.agent.report.serialize;
 
 import co.elastic.apm.agent.tracer.service.ServiceInfo;
 import co.elastic.apm.agent.tracer.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.metrics.Timer;
 import co.elastic.apm.agent.tracer.metrics.DslJsonUtil;
@@ -93,6 +94,7 @@ public class MetricRegistrySerializer {
                 hasSamples = serializeGauges(metricSet.getGauges(), jw);
                 hasSamples |= serializeTimers(metricSet.getTimers(), hasSamples, jw);
                 hasSamples |= serializeCounters(metricSet.getCounters(), hasSamples, jw);
+                hasSamples |= serializeHistograms(metricSet.getHistograms(), hasSamples, jw);
                 hasSamples |= serializeRawMetrics(metricSet.getRawMetrics(), hasSamples, jw);
                 jw.writeByte(JsonWriter.OBJECT_END);
             }
@@ -198,6 +200,37 @@ public class MetricRegistrySerializer {
         return hasSamples;
     }
 
+    private static boolean serializeHistograms(Map<String, Histogram> histograms, boolean hasSamples, JsonWriter jw) {
+        final int size = histograms.size();
+        if (size > 0) {
+            final Iterator<Map.Entry<String, Histogram>> iterator = histograms.entrySet().iterator();
+
+            // serialize first valid value
+            Histogram value = null;
+            while (iterator.hasNext() && value == null) {
+                Map.Entry<String, Histogram> kv = iterator.next();
+                if (kv.getValue().hasContent()) {
+                    value = kv.getValue();
+                    if (hasSamples) {
+                        jw.writeByte(JsonWriter.COMMA);
+                    }
+                    serializeHistogram(kv.getKey(), value, jw);
+                    hasSamples = true;
+                }
+            }
+
+            // serialize rest
+            while (iterator.hasNext()) {
+                Map.Entry<String, Histogram> kv = iterator.next();
+                value = kv.getValue();
+                if (value.hasContent()) {
+                    jw.writeByte(JsonWriter.COMMA);
+                    serializeHistogram(kv.getKey(), value, jw);
+                }
+            }
+        }
+        return hasSamples;
+    }
 
     private static boolean serializeRawMetrics(Map<String, Double> rawValues, boolean hasSamples, JsonWriter jw) {
         //TODO: refactor this class?
@@ -244,6 +277,53 @@ public class MetricRegistrySerializer {
         serializeValue(key, ".sum.us", timer.getTotalTimeUs(), jw);
     }
 
+    /**
+     * Serializes the non-empty buckets of a histogram in the format expected by the APM Server:
+     * <pre>
+     * "key":{"type":"histogram","values":[1.0,10.5],"counts":[3,1]}
+     * </pre>
+     * The values are the (ascending) midpoints of the buckets.
+     */
+    private static void serializeHistogram(String key, Histogram histogram, JsonWriter jw) {
+        // the histograms of inactive metric sets are not updated concurrently,
+        // so reading the buckets twice yields the same number of values and counts
+        int numberOfBuckets = histogram.getNumberOfBuckets();
+        DslJsonUtil.writeFieldName(key, jw);
+        jw.writeByte(JsonWriter.OBJECT_START);
+        DslJsonUtil.writeFieldName("type", jw);
+        jw.writeAscii("\"histogram\"");
+        jw.writeByte(JsonWriter.COMMA);
+        DslJsonUtil.writeFieldName("values", jw);
+        jw.writeByte(JsonWriter.ARRAY_START);
+        boolean first = true;
+        for (int i = 0; i < numberOfBuckets; i++) {
+            if (histogram.getBucketCount(i) > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                NumberConverter.serialize(histogram.getBucketValue(i), jw);
+                first = false;
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeByte(JsonWriter.COMMA);
+        DslJsonUtil.writeFieldName("counts", jw);
+        jw.writeByte(JsonWriter.ARRAY_START);
+        first = true;
+        for (int i = 0; i < numberOfBuckets; i++) {
+            long count = histogram.getBucketCount(i);
+            if (count > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                NumberConverter.serialize(count, jw);
+                first = false;
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeByte(JsonWriter.OBJECT_END);
+    }
+
     private static void serializeValue(String key, double value, JsonWriter jw) {
         serializeValue(key, "", value, jw);
     }
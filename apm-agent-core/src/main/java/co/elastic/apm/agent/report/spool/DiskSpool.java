@@ -0,0 +1,565 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.spool;
+
+import co.elastic.apm.agent.report.ReportingEvent;
+import co.elastic.apm.agent.report.ReportingEventCounter;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+
+/**
+ * A bounded log of serialized ND-JSON events, stored in memory-mapped segment files.
+ * <p>
+ * The reporter appends events to the spool while the APM Server can't be reached,
+ * and replays the segments in order, one intake request per segment, once the APM Server is available again.
+ * The spool is bounded by a maximum total size, in which case the oldest segments are evicted,
+ * and by a maximum age of the segments.
+ * </p>
+ * <p>
+ * Each segment file starts with two header slots, which are written alternately and which are protected by a checksum.
+ * The data of an event is written before the header that includes it is committed,
+ * so that a crash while writing leaves at least one valid header which only covers complete events.
+ * Segments that are left over from a previous run are recovered when the spool is opened.
+ * </p>
+ * <p>
+ * This class is not thread safe and is meant to be used by the reporter thread only.
+ * A lock file makes sure only one process at a time uses a spool directory.
+ * </p>
+ */
+public class DiskSpool implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DiskSpool.class);
+
+    static final String SEGMENT_FILE_PREFIX = "spool-";
+    static final String SEGMENT_FILE_SUFFIX = ".ndjson";
+    private static final String LOCK_FILE_NAME = "spool.lock";
+
+    /**
+     * The event types which can be spooled, the index in this array is used to persist the event counts of a segment.
+     * Only append new types to keep segments of older versions readable.
+     */
+    private static final ReportingEvent.ReportingEventType[] SPOOLED_TYPES = {
+        ReportingEvent.ReportingEventType.TRANSACTION,
+        ReportingEvent.ReportingEventType.SPAN,
+        ReportingEvent.ReportingEventType.ERROR,
+        ReportingEvent.ReportingEventType.METRICSET_JSON_WRITER,
+        ReportingEvent.ReportingEventType.STRING_LOG,
+        ReportingEvent.ReportingEventType.BYTES_LOG
+    };
+
+    private static final int MAGIC = 0x41504d53; // "APMS"
+    private static final int VERSION = 1;
+    // magic, version, created, generation, data length, event counts, crc
+    private static final int HEADER_SLOT_LENGTH = 4 + 4 + 8 + 4 + 4 + 4 * SPOOLED_TYPES.length + 4;
+    private static final int HEADER_SLOT_SIZE = 64;
+    static final int HEADER_SIZE = 2 * HEADER_SLOT_SIZE;
+
+    private final File directory;
+    private final long maxSizeBytes;
+    private final long maxAgeMillis;
+    private final int segmentCapacity;
+    private final EvictionListener evictionListener;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    @Nullable
+    private Segment activeSegment;
+    private long nextSegmentId;
+    private long sizeBytes;
+
+    private DiskSpool(File directory, long maxSizeBytes, long maxAgeMillis, int segmentCapacity, EvictionListener evictionListener,
+                      FileChannel lockChannel, FileLock lock) {
+        this.directory = directory;
+        this.maxSizeBytes = maxSizeBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.segmentCapacity = segmentCapacity;
+        this.evictionListener = evictionListener;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+    }
+
+    /**
+     * Opens the spool in the provided directory and recovers the segments of a previous run.
+     *
+     * @param directory        the directory which contains the segment files, created if it does not exist
+     * @param maxSizeBytes     the maximum size of all segment files
+     * @param maxAgeMillis     segments which have been created before this amount of milliseconds are evicted
+     * @param segmentCapacity  the maximum number of event bytes in a single segment, which is also the maximum size of an event
+     * @param evictionListener gets notified about events which are evicted because of the size or age limit
+     * @return the spool, or {@code null} if the directory can't be used, for example because another process is using it
+     */
+    @Nullable
+    public static DiskSpool open(File directory, long maxSizeBytes, long maxAgeMillis, int segmentCapacity, EvictionListener evictionListener) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.warn("Can't create spool directory {}, events will not be spooled", directory);
+            return null;
+        }
+        FileChannel lockChannel = null;
+        try {
+            lockChannel = FileChannel.open(new File(directory, LOCK_FILE_NAME).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // locked by another spool within this JVM
+                lock = null;
+            }
+            if (lock == null) {
+                logger.warn("Spool directory {} is used by another process, events will not be spooled", directory);
+                lockChannel.close();
+                return null;
+            }
+            // a segment needs to fit into the size limit
+            segmentCapacity = (int) Math.min(segmentCapacity, maxSizeBytes - HEADER_SIZE);
+            if (segmentCapacity <= 0) {
+                logger.warn("The spool size limit of {} bytes is too small, events will not be spooled", maxSizeBytes);
+                lock.release();
+                lockChannel.close();
+                return null;
+            }
+            DiskSpool spool = new DiskSpool(directory, maxSizeBytes, maxAgeMillis, segmentCapacity, evictionListener, lockChannel, lock);
+            spool.recover();
+            return spool;
+        } catch (IOException e) {
+            logger.warn("Can't open spool directory {}, events will not be spooled: {}", directory, e.getMessage());
+            logger.debug("Opening spool failed", e);
+            if (lockChannel != null) {
+                try {
+                    lockChannel.close();
+                } catch (IOException ignore) {
+                }
+            }
+            return null;
+        }
+    }
+
+    private void recover() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_FILE_PREFIX) || !name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                continue;
+            }
+            long id;
+            try {
+                id = Long.parseLong(name.substring(SEGMENT_FILE_PREFIX.length(), name.length() - SEGMENT_FILE_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+            Segment segment = Segment.recover(file);
+            if (segment == null || segment.getEventCount() == 0) {
+                logger.debug("Deleting empty or corrupt spool segment {}", file);
+                if (segment != null) {
+                    segment.close();
+                }
+                delete(file);
+            } else {
+                segments.add(segment);
+                sizeBytes += segment.getFileSize();
+            }
+        }
+        if (!segments.isEmpty()) {
+            logger.info("Recovered {} spooled events from {}", getEventCount(), directory);
+        }
+        evictExpired();
+        evictUntilSizeAvailable(0);
+    }
+
+    /**
+     * Appends a serialized event to the spool.
+     *
+     * @param bytes  the buffer containing the serialized ND-JSON event, including the trailing new line
+     * @param length the length of the event
+     * @param type   the type of the event
+     * @return {@code true} if the event has been spooled,
+     * {@code false} if it is larger than a segment or if it could not be written
+     */
+    public boolean append(byte[] bytes, int length, ReportingEvent.ReportingEventType type) {
+        int typeIndex = indexOf(type);
+        if (length > segmentCapacity) {
+            return false;
+        }
+        evictExpired();
+        try {
+            if (activeSegment == null || !activeSegment.tryAppend(bytes, length, typeIndex)) {
+                sealActiveSegment();
+                evictUntilSizeAvailable(HEADER_SIZE + segmentCapacity);
+                Segment segment = Segment.create(new File(directory, getSegmentFileName(nextSegmentId++)), segmentCapacity);
+                segments.add(segment);
+                sizeBytes += segment.getFileSize();
+                activeSegment = segment;
+                segment.tryAppend(bytes, length, typeIndex);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.warn("Failed to spool event: {}", e.getMessage());
+            logger.debug("Spooling event failed", e);
+            return false;
+        }
+    }
+
+    private static int indexOf(ReportingEvent.ReportingEventType type) {
+        for (int i = 0; i < SPOOLED_TYPES.length; i++) {
+            if (SPOOLED_TYPES[i] == type) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Events of type " + type + " can't be spooled");
+    }
+
+    static String getSegmentFileName(long id) {
+        return String.format("%s%020d%s", SEGMENT_FILE_PREFIX, id, SEGMENT_FILE_SUFFIX);
+    }
+
+    /**
+     * Returns the oldest segment, which is the next one to replay.
+     * <p>
+     * If the replay fails, the segment stays in the spool and new events may still be appended to it.
+     * Call {@link #remove(Segment)} after a successful replay.
+     * </p>
+     *
+     * @return the oldest segment, or {@code null} if the spool is empty
+     */
+    @Nullable
+    public Segment getOldestSegment() {
+        evictExpired();
+        return segments.peekFirst();
+    }
+
+    /**
+     * Removes a segment after it has been replayed.
+     *
+     * @param segment the segment to remove
+     */
+    public void remove(Segment segment) {
+        if (segments.remove(segment)) {
+            if (segment == activeSegment) {
+                activeSegment = null;
+            }
+            sizeBytes -= segment.getFileSize();
+            segment.close();
+            delete(segment.file);
+        }
+    }
+
+    public boolean isEmpty() {
+        evictExpired();
+        return segments.isEmpty();
+    }
+
+    public long getEventCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            count += segment.getEventCount();
+        }
+        return count;
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    private void sealActiveSegment() {
+        if (activeSegment != null) {
+            activeSegment.force();
+            activeSegment = null;
+        }
+    }
+
+    private void evictExpired() {
+        long expiredBefore = System.currentTimeMillis() - maxAgeMillis;
+        for (Segment oldest = segments.peekFirst(); oldest != null && oldest.getCreatedMillis() < expiredBefore; oldest = segments.peekFirst()) {
+            logger.debug("Evicting expired spool segment {}", oldest.file);
+            evict(oldest);
+        }
+    }
+
+    private void evictUntilSizeAvailable(long requiredBytes) {
+        for (Segment oldest = segments.peekFirst(); oldest != null && sizeBytes + requiredBytes > maxSizeBytes; oldest = segments.peekFirst()) {
+            logger.debug("Evicting spool segment {} as the spool is full", oldest.file);
+            evict(oldest);
+        }
+    }
+
+    private void evict(Segment segment) {
+        ReportingEventCounter eventCounts = segment.getEventCounts();
+        remove(segment);
+        evictionListener.onEvicted(eventCounts);
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            logger.warn("Failed to delete spool segment {}", file);
+        }
+    }
+
+    /**
+     * Closes the spool and unmaps its segments.
+     * Must only be called by the thread which uses the spool, as accessing a segment after it has been unmapped crashes the JVM.
+     */
+    @Override
+    public void close() {
+        sealActiveSegment();
+        for (Iterator<Segment> iterator = segments.iterator(); iterator.hasNext(); ) {
+            iterator.next().close();
+            iterator.remove();
+        }
+        releaseLock();
+    }
+
+    /**
+     * Releases the spool directory without touching the segments, which are left to the garbage collector.
+     * Unlike {@link #close()}, this may be called while another thread is still using the spool.
+     */
+    public void abandon() {
+        releaseLock();
+    }
+
+    private void releaseLock() {
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            logger.debug("Failed to release spool lock", e);
+        }
+    }
+
+    public interface EvictionListener {
+
+        /**
+         * Called when a segment is evicted because of the size or age limit of the spool.
+         *
+         * @param eventCounts the number of events per type that have been contained in the evicted segment
+         */
+        void onEvicted(ReportingEventCounter eventCounts);
+    }
+
+    /**
+     * A segment file, which is replayed within a single intake request.
+     */
+    public static class Segment {
+
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final int[] eventCounts;
+        private final long createdMillis;
+        private int generation;
+        private int dataLength;
+        private final byte[] headerSlot = new byte[HEADER_SLOT_SIZE];
+
+        private Segment(File file, FileChannel channel, MappedByteBuffer buffer, long createdMillis, int generation, int dataLength, int[] eventCounts) {
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.createdMillis = createdMillis;
+            this.generation = generation;
+            this.dataLength = dataLength;
+            this.eventCounts = eventCounts;
+        }
+
+        static Segment create(File file, int capacity) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+                Segment segment = new Segment(file, channel, buffer, System.currentTimeMillis(), 0, 0, new int[SPOOLED_TYPES.length]);
+                segment.commitHeader();
+                return segment;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Reads a segment file of a previous run.
+         *
+         * @param file the segment file
+         * @return the recovered segment, or {@code null} if no valid header could be found
+         */
+        @Nullable
+        static Segment recover(File file) {
+            try {
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                try {
+                    long size = channel.size();
+                    if (size >= HEADER_SIZE && size <= Integer.MAX_VALUE) {
+                        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                        Segment segment = readHeader(file, channel, buffer, 0);
+                        Segment other = readHeader(file, channel, buffer, HEADER_SLOT_SIZE);
+                        if (segment == null || (other != null && other.generation > segment.generation)) {
+                            segment = other;
+                        }
+                        if (segment != null) {
+                            return segment;
+                        }
+                        MappedBufferUnmapper.unmap(buffer);
+                    }
+                } catch (IOException e) {
+                    logger.debug("Failed to read spool segment " + file, e);
+                }
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Failed to open spool segment " + file, e);
+            }
+            return null;
+        }
+
+        @Nullable
+        private static Segment readHeader(File file, FileChannel channel, MappedByteBuffer buffer, int offset) {
+            byte[] slot = new byte[HEADER_SLOT_LENGTH];
+            ByteBuffer slotBuffer = buffer.duplicate();
+            slotBuffer.position(offset);
+            slotBuffer.get(slot);
+            ByteBuffer header = ByteBuffer.wrap(slot);
+            CRC32 crc = new CRC32();
+            crc.update(slot, 0, HEADER_SLOT_LENGTH - 4);
+            if (header.getInt(HEADER_SLOT_LENGTH - 4) != (int) crc.getValue()
+                || header.getInt() != MAGIC
+                || header.getInt() != VERSION) {
+                return null;
+            }
+            long createdMillis = header.getLong();
+            int generation = header.getInt();
+            int dataLength = header.getInt();
+            if (dataLength < 0 || dataLength > buffer.capacity() - HEADER_SIZE) {
+                return null;
+            }
+            int[] eventCounts = new int[SPOOLED_TYPES.length];
+            for (int i = 0; i < eventCounts.length; i++) {
+                eventCounts[i] = header.getInt();
+            }
+            return new Segment(file, channel, buffer, createdMillis, generation, dataLength, eventCounts);
+        }
+
+        private boolean tryAppend(byte[] bytes, int length, int typeIndex) {
+            if (HEADER_SIZE + dataLength + length > buffer.capacity()) {
+                return false;
+            }
+            ByteBuffer data = buffer.duplicate();
+            data.position(HEADER_SIZE + dataLength);
+            data.put(bytes, 0, length);
+            dataLength += length;
+            eventCounts[typeIndex]++;
+            commitHeader();
+            return true;
+        }
+
+        /**
+         * Writes the header to the slot which does not contain the currently valid header,
+         * so that the previous header is still intact if the process crashes while writing.
+         */
+        private void commitHeader() {
+            generation++;
+            ByteBuffer header = ByteBuffer.wrap(headerSlot);
+            header.putInt(MAGIC)
+                .putInt(VERSION)
+                .putLong(createdMillis)
+                .putInt(generation)
+                .putInt(dataLength);
+            for (int eventCount : eventCounts) {
+                header.putInt(eventCount);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(headerSlot, 0, HEADER_SLOT_LENGTH - 4);
+            header.putInt((int) crc.getValue());
+            ByteBuffer slot = buffer.duplicate();
+            slot.position((generation % 2) * HEADER_SLOT_SIZE);
+            slot.put(headerSlot, 0, HEADER_SLOT_LENGTH);
+        }
+
+        private void force() {
+            if (!buffer.isReadOnly()) {
+                buffer.force();
+            }
+        }
+
+        private void close() {
+            try {
+                force();
+                // releases the mapping right away, so that the file can be deleted on Windows
+                MappedBufferUnmapper.unmap(buffer);
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close spool segment " + file, e);
+            }
+        }
+
+        /**
+         * @return a read-only view of the ND-JSON events in this segment,
+         * which must not be accessed after the segment has been removed from the spool
+         */
+        public ByteBuffer getData() {
+            ByteBuffer data = buffer.asReadOnlyBuffer();
+            data.position(HEADER_SIZE);
+            data.limit(HEADER_SIZE + dataLength);
+            return data.slice();
+        }
+
+        public ReportingEventCounter getEventCounts() {
+            ReportingEventCounter counter = new ReportingEventCounter();
+            for (int i = 0; i < SPOOLED_TYPES.length; i++) {
+                counter.add(SPOOLED_TYPES[i], eventCounts[i]);
+            }
+            return counter;
+        }
+
+        public long getEventCount() {
+            long count = 0;
+            for (int eventCount : eventCounts) {
+                count += eventCount;
+            }
+            return count;
+        }
+
+        long getCreatedMillis() {
+            return createdMillis;
+        }
+
+        long getFileSize() {
+            return buffer.capacity();
+        }
+
+        @Override
+        public String toString() {
+            return file.getName();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.spool;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Releases the memory mapping of a {@link MappedByteBuffer} eagerly.
+ * <p>
+ * A mapping is otherwise only released when the buffer is garbage collected.
+ * Until then, the mapped file can't be deleted on Windows and keeps occupying address space.
+ * There's no public API to unmap a buffer, so this relies on {@code sun.misc.Unsafe#invokeCleaner} on Java 9+
+ * and on the {@code sun.misc.Cleaner} of the buffer on older versions.
+ * If neither is available, the mapping is left to the garbage collector.
+ * </p>
+ * <p>
+ * The buffer, and any buffer derived from it, must not be accessed after it has been unmapped,
+ * as this would crash the JVM.
+ * </p>
+ */
+class MappedBufferUnmapper {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedBufferUnmapper.class);
+
+    @Nullable
+    private static final Object unsafe;
+    @Nullable
+    private static final Method invokeCleaner;
+    @Nullable
+    private static final Method cleaner;
+    @Nullable
+    private static final Method clean;
+
+    static {
+        Object theUnsafe = null;
+        Method invokeCleanerMethod = null;
+        Method cleanerMethod = null;
+        Method cleanMethod = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleanerMethod = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafeField = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafeField.setAccessible(true);
+            theUnsafe = theUnsafeField.get(null);
+        } catch (Exception e) {
+            // Java 8 and older
+            invokeCleanerMethod = null;
+            try {
+                cleanerMethod = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                cleanMethod = cleanerMethod.getReturnType().getMethod("clean");
+            } catch (Exception e2) {
+                logger.debug("Unmapping buffers is not supported, mappings are released on garbage collection", e2);
+                cleanerMethod = null;
+                cleanMethod = null;
+            }
+        }
+        unsafe = theUnsafe;
+        invokeCleaner = invokeCleanerMethod;
+        cleaner = cleanerMethod;
+        clean = cleanMethod;
+    }
+
+    private MappedBufferUnmapper() {
+    }
+
+    static void unmap(MappedByteBuffer buffer) {
+        try {
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(unsafe, buffer);
+            } else if (cleaner != null && clean != null) {
+                Object bufferCleaner = cleaner.invoke(buffer);
+                if (bufferCleaner != null) {
+                    clean.invoke(bufferCleaner);
+                }
+            }
+        } catch (Exception e) {
+            logger.debug("Failed to unmap buffer", e);
+        }
+    }
+}
@@ -606,6 +606,14 @@ public class MockReporter implements Reporter {
         return 0;
     }
 
+    @Override
+    public void onStressDetected() {
+    }
+
+    @Override
+    public void onStressRelieved() {
+    }
+
     @Override
     public boolean flush(long timeout, TimeUnit unit, boolean followupWithFlushRequest) {
         return true;
@@ -0,0 +1,84 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AdviceTimerTest {
+
+    private static int invocations;
+
+    private final AdviceTimer adviceTimer = new AdviceTimer("test");
+
+    @Test
+    void testEveryNthInvocationIsTimed() throws Throwable {
+        MethodHandle add = adviceTimer.time(MethodHandles.lookup().findStatic(AdviceTimerTest.class, "add",
+            MethodType.methodType(long.class, int.class, long.class)), 3);
+
+        for (int i = 0; i < 9; i++) {
+            assertThat((long) add.invokeExact(i, 1L)).isEqualTo(i + 1L);
+        }
+
+        assertThat(adviceTimer.getSampledInvocations()).isEqualTo(3);
+        assertThat(adviceTimer.getSampledDuration()).isPositive();
+    }
+
+    @Test
+    void testVoidAdviceWithoutArguments() throws Throwable {
+        invocations = 0;
+        MethodHandle increment = adviceTimer.time(MethodHandles.lookup().findStatic(AdviceTimerTest.class, "increment",
+            MethodType.methodType(void.class)), 1);
+
+        increment.invokeExact();
+        increment.invokeExact();
+
+        assertThat(invocations).isEqualTo(2);
+        assertThat(adviceTimer.getSampledInvocations()).isEqualTo(2);
+    }
+
+    @Test
+    void testExceptionIsPropagated() throws Throwable {
+        MethodHandle fail = adviceTimer.time(MethodHandles.lookup().findStatic(AdviceTimerTest.class, "fail",
+            MethodType.methodType(Object.class, String.class)), 1);
+
+        assertThatThrownBy(() -> {
+            Object ignore = (Object) fail.invokeExact("message");
+        }).isInstanceOf(IllegalStateException.class).hasMessage("message");
+        assertThat(adviceTimer.getSampledInvocations()).isEqualTo(1);
+    }
+
+    private static long add(int a, long b) {
+        return a + b;
+    }
+
+    private static void increment() {
+        invocations++;
+    }
+
+    private static Object fail(String message) {
+        throw new IllegalStateException(message);
+    }
+}
@@ -21,6 +21,7 @@ package co.elastic.apm.agent.bci;
 import co.elastic.apm.agent.MockTracer;
 import co.elastic.apm.agent.bci.bytebuddy.Instrumented;
 import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.transaction.AbstractSpanImpl;
 import co.elastic.apm.agent.impl.transaction.SpanImpl;
@@ -100,6 +101,21 @@ class InstrumentationTest {
         assertThat(interceptMe()).isEqualTo("intercepted");
     }
 
+    @Test
+    void testAdviceTiming() {
+        doReturn(1).when(configurationRegistry.getConfig(MetricsConfigurationImpl.class)).getInstrumentationOverheadSampleInterval();
+        init(List.of(new TestInstrumentation()));
+
+        assertThat(interceptMe()).isEqualTo("intercepted");
+        assertThat(ElasticApmAgent.getInstrumentationStats().getAdviceTimers())
+            .filteredOn(timer -> timer.getInstrumentationGroup().equals("test"))
+            .singleElement()
+            .satisfies(timer -> {
+                assertThat(timer.getSampledInvocations()).isPositive();
+                assertThat(timer.getSampledDuration()).isPositive();
+            });
+    }
+
     @Test
     void testFieldAccess() {
         init(List.of(new FieldAccessInstrumentation()));
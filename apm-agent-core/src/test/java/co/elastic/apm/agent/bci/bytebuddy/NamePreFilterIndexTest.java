@@ -0,0 +1,118 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.BooleanMatcher;
+import net.bytebuddy.matcher.ElementMatcher;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static net.bytebuddy.matcher.ElementMatchers.any;
+import static net.bytebuddy.matcher.ElementMatchers.nameContains;
+import static net.bytebuddy.matcher.ElementMatchers.nameContainsIgnoreCase;
+import static net.bytebuddy.matcher.ElementMatchers.nameEndsWith;
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.none;
+import static net.bytebuddy.matcher.ElementMatchers.not;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class NamePreFilterIndexTest {
+
+    private static final List<ElementMatcher<? super NamedElement>> PRE_FILTERS = List.of(
+        nameContains("Servlet").or(nameContainsIgnoreCase("jsp")),
+        nameStartsWith("io.grpc").and(nameContains("Channel")),
+        nameEndsWith("ApplicationContext"),
+        nameContains("Filter").or(nameContains("Servlet")).or(nameContains("Listener")),
+        not(nameStartsWith("org.springframework.")),
+        named("java.lang.Thread"),
+        nameContains("Statement").or(nameStartsWith("com.ibm.db2.jcc")),
+        new BooleanMatcher<>(false).and(nameContains("HttpClient")),
+        new BooleanMatcher<>(true).and(nameContains("HttpClient")),
+        any(),
+        none(),
+        nameStartsWith("org.apache.http").or(nameStartsWith("org.apache.hc")).and(nameContains("Client")),
+        nameContains("ab").or(nameContains("bab")).or(nameContains("abc")),
+        nameContains("URLConnection").or(nameContains("UrlConnection")),
+        nameStartsWith("java.util.logging."),
+        nameContainsIgnoreCase("jsp").and(nameEndsWith("Servlet")),
+        nameContainsIgnoreCase("ab")
+    );
+
+    private static final String[] FRAGMENTS = {
+        "io.grpc", "org.springframework.", "org.apache.http", "org.apache.hc", "com.ibm.db2.jcc", "java.lang.", "java.util.logging.",
+        "Thread", "Servlet", "JSP", "Jsp", "Filter", "Listener", "Statement", "Channel", "Client", "HttpClient", "ApplicationContext",
+        "ab", "ba", "c", "AB", "aB", "URLConnection", "Url", "Connection", "Impl", "$1", ".", "jSp", "\u00e4", "\u0130"
+    };
+
+    @Test
+    void testIndexMatchesLikePreFilters() {
+        List<ElementMatcher<? super NamedElement>> indexed = NamePreFilterIndex.of(PRE_FILTERS).getPreFilters();
+        Random random = new Random(42);
+        List<String> names = new ArrayList<>(List.of("java.lang.Thread", "java.lang.Threads", "", "a", "io.grpc.ManagedChannel"));
+        for (int i = 0; i < 10_000; i++) {
+            StringBuilder name = new StringBuilder();
+            int fragments = 1 + random.nextInt(5);
+            for (int j = 0; j < fragments; j++) {
+                name.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+            names.add(name.toString());
+        }
+        for (String name : names) {
+            TypeDescription type = new TypeDescription.Latent(name, 0, TypeDescription.Generic.OfNonGenericType.ForLoadedType.of(Object.class));
+            for (int i = 0; i < PRE_FILTERS.size(); i++) {
+                assertThat(indexed.get(i).matches(type))
+                    .describedAs("%s with %s", name, PRE_FILTERS.get(i))
+                    .isEqualTo(PRE_FILTERS.get(i).matches(type));
+            }
+        }
+    }
+
+    @Test
+    void testNecessaryCondition() {
+        assertDecomposed(nameContains("Filter").or(nameEndsWith("Servlet")), 2, true);
+        assertDecomposed(nameStartsWith("io.grpc").and(nameContains("Channel")), 1, false);
+        assertDecomposed(nameStartsWith("org.apache.http").or(nameStartsWith("org.apache.hc")).and(nameContains("Client")), 1, false);
+        assertDecomposed(none(), 0, true);
+        assertDecomposed(any().and(named("java.lang.Thread")), 1, true);
+        assertNotDecomposed(not(nameStartsWith("org.springframework.")), false);
+        assertDecomposed(nameContainsIgnoreCase("jsp"), 1, false);
+        assertDecomposed(nameContains("Servlet").or(nameContainsIgnoreCase("jsp")), 2, false);
+        assertNotDecomposed(nameContainsIgnoreCase("\u00e4"), false);
+        assertNotDecomposed(any(), true);
+        assertNotDecomposed(nameContains("Servlet").or(any()), true);
+    }
+
+    private static void assertDecomposed(ElementMatcher<?> matcher, int atoms, boolean decidedByIndex) {
+        NamePreFilterIndex.Condition condition = NamePreFilterIndex.getNecessaryCondition(matcher);
+        assertThat(condition.atoms).hasSize(atoms);
+        assertThat(condition.decidedByIndex).isEqualTo(decidedByIndex);
+    }
+
+    private static void assertNotDecomposed(ElementMatcher<?> matcher, boolean decidedByIndex) {
+        NamePreFilterIndex.Condition condition = NamePreFilterIndex.getNecessaryCondition(matcher);
+        assertThat(condition.atoms).isNull();
+        assertThat(condition.decidedByIndex).isEqualTo(decidedByIndex);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import co.elastic.apm.agent.bci.InstrumentationStats;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.utility.JavaModule;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.bytebuddy.matcher.ElementMatchers.nameEndsWith;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+class ParallelDiscoveryStrategyTest {
+
+    private final Class<?>[] loadedClasses = {
+        String.class, int.class, Object[].class, List.class, ArrayList.class, ParallelDiscoveryStrategyTest.class,
+        Thread.class, Runnable.class, Integer.class, AgentBuilder.class
+    };
+    private Instrumentation instrumentation;
+    private InstrumentationStats instrumentationStats;
+
+    @BeforeEach
+    void setUp() {
+        instrumentation = mock(Instrumentation.class);
+        doReturn(loadedClasses).when(instrumentation).getAllLoadedClasses();
+        doReturn(true).when(instrumentation).isModifiableClass(any());
+        doReturn(false).when(instrumentation).isModifiableClass(Thread.class);
+        instrumentationStats = new InstrumentationStats();
+    }
+
+    @Test
+    void testOnlyCandidatesInOrderOfLoadedClasses() {
+        for (int parallelism : new int[]{1, 2, 4, 64}) {
+            ParallelDiscoveryStrategy discoveryStrategy = new ParallelDiscoveryStrategy(parallelism, instrumentationStats);
+            discoveryStrategy.addCandidateMatcher(new AgentBuilder.RawMatcher.ForElementMatchers(nameEndsWith("List").or(named(Integer.class.getName()))));
+            discoveryStrategy.addCandidateMatcher(new AgentBuilder.RawMatcher.ForElementMatchers(named(ParallelDiscoveryStrategyTest.class.getName())));
+            discoveryStrategy.addCandidateMatcher(new AgentBuilder.RawMatcher.ForElementMatchers(named(Thread.class.getName())));
+
+            assertThat(getCandidates(discoveryStrategy))
+                .describedAs("parallelism %d", parallelism)
+                .containsExactly(List.class, ArrayList.class, ParallelDiscoveryStrategyTest.class, Integer.class);
+        }
+    }
+
+    @Test
+    void testExceptionInMatcherMakesCandidate() {
+        ParallelDiscoveryStrategy discoveryStrategy = new ParallelDiscoveryStrategy(4, instrumentationStats);
+        discoveryStrategy.addCandidateMatcher(new AgentBuilder.RawMatcher() {
+            @Override
+            public boolean matches(TypeDescription typeDescription, ClassLoader classLoader, JavaModule module, Class<?> classBeingRedefined, ProtectionDomain protectionDomain) {
+                if (typeDescription.getName().equals(Runnable.class.getName())) {
+                    throw new IllegalStateException();
+                }
+                return false;
+            }
+        });
+
+        assertThat(getCandidates(discoveryStrategy)).containsExactly(Runnable.class);
+    }
+
+    @Test
+    void testNoMatchers() {
+        assertThat(getCandidates(new ParallelDiscoveryStrategy(4, instrumentationStats))).isEmpty();
+    }
+
+    @Test
+    void testStats() {
+        ParallelDiscoveryStrategy discoveryStrategy = new ParallelDiscoveryStrategy(4, instrumentationStats);
+        discoveryStrategy.addCandidateMatcher(new AgentBuilder.RawMatcher.ForElementMatchers(named(String.class.getName())));
+
+        getCandidates(discoveryStrategy);
+
+        assertThat(instrumentationStats.getLoadedClassesOnRetransformation()).isEqualTo(loadedClasses.length);
+        assertThat(instrumentationStats.getRetransformationCandidates()).isEqualTo(1);
+        assertThat(instrumentationStats.getRetransformationDiscoveryTime()).isPositive();
+    }
+
+    private List<Class<?>> getCandidates(ParallelDiscoveryStrategy discoveryStrategy) {
+        List<Class<?>> candidates = new ArrayList<>();
+        for (Iterable<Class<?>> batch : discoveryStrategy.resolve(instrumentation)) {
+            for (Class<?> type : batch) {
+                candidates.add(type);
+            }
+        }
+        return candidates;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.bci.bytebuddy;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.description.type.TypeDescription;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.security.ProtectionDomain;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TypeMatchCacheTest {
+
+    private static final TypeDescription TYPE = TypeDescription.ForLoadedType.of(ByteBuddy.class);
+    private static final ProtectionDomain PROTECTION_DOMAIN = ByteBuddy.class.getProtectionDomain();
+    /**
+     * Unlike the class loader of the tests, the class path of this class loader does not contain directories
+     */
+    private static final ClassLoader CLASS_LOADER = new URLClassLoader(new URL[]{PROTECTION_DOMAIN.getCodeSource().getLocation()}, null);
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testNegativeVerdictSurvivesRestart() {
+        TypeMatchCache cache = new TypeMatchCache(tempDir, "config");
+        assertThat(matches(cache)).isFalse();
+        cache.onIgnored(TYPE, CLASS_LOADER, null, false);
+        cache.onComplete(TYPE.getName(), CLASS_LOADER, null, false);
+        cache.save();
+
+        TypeMatchCache restarted = new TypeMatchCache(tempDir, "config");
+        assertThat(matches(restarted)).isTrue();
+        assertThat(restarted.getKeysToSave()).hasSize(1);
+    }
+
+    @Test
+    void testUnusedVerdictsAreNotSavedAgain() {
+        TypeMatchCache cache = new TypeMatchCache(tempDir, "config");
+        matches(cache);
+        cache.onIgnored(TYPE, CLASS_LOADER, null, false);
+        cache.onComplete(TYPE.getName(), CLASS_LOADER, null, false);
+        cache.save();
+
+        TypeMatchCache restarted = new TypeMatchCache(tempDir, "config");
+        assertThat(restarted.getKeysToSave()).isEmpty();
+    }
+
+    @Test
+    void testPositiveVerdictIsNotSaved() {
+        TypeMatchCache cache = new TypeMatchCache(tempDir, "config");
+        matches(cache);
+        cache.onTransformation(TYPE, CLASS_LOADER, null, false, null);
+        cache.onComplete(TYPE.getName(), CLASS_LOADER, null, false);
+        cache.save();
+
+        assertThat(matches(new TypeMatchCache(tempDir, "config"))).isFalse();
+    }
+
+    @Test
+    void testTypeMatchedOnceIsNeverSaved() {
+        TypeMatchCache cache = new TypeMatchCache(tempDir, "config");
+        matches(cache);
+        cache.onTransformation(TYPE, CLASS_LOADER, null, false, null);
+        cache.onComplete(TYPE.getName(), CLASS_LOADER, null, false);
+        matches(cache);
+        cache.onIgnored(TYPE, CLASS_LOADER, null, false);
+        cache.onComplete(TYPE.getName(), CLASS_LOADER, null, false);
+
+        assertThat(cache.getKeysToSave()).isEmpty();
+    }
+
+    @Test
+    void testVerdictOfOtherTypeIsNotRecorded() {
+        TypeMatchCache cache = new TypeMatchCache(tempDir, "config");
+        matches(cache);
+        cache.onIgnored(TypeDescription.ForLoadedType.of(TypeMatchCacheTest.class), CLASS_LOADER, null, false);
+
+        assertThat(cache.getKeysToSave()).isEmpty();
+    }
+
+    @Test
+    void testGeneratedTypesAreNotCacheable() {
+        TypeMatchCache cache = new TypeMatchCache(tempDir, "config");
+        assertThat(cache.getKey("com.example.Foo$$Lambda$1", CLASS_LOADER, PROTECTION_DOMAIN)).isEqualTo(TypeMatchCache.NOT_CACHEABLE);
+        assertThat(cache.getKey("com.sun.proxy.$Proxy12", CLASS_LOADER, PROTECTION_DOMAIN)).isEqualTo(TypeMatchCache.NOT_CACHEABLE);
+        assertThat(cache.getKey("com.example.Foo/0x0000000800c01000", CLASS_LOADER, PROTECTION_DOMAIN)).isEqualTo(TypeMatchCache.NOT_CACHEABLE);
+    }
+
+    @Test
+    void testTypesFromDirectoriesAreNotCacheable() {
+        TypeMatchCache cache = new TypeMatchCache(tempDir, "config");
+        // test classes are loaded from target/test-classes
+        ProtectionDomain protectionDomain = TypeMatchCacheTest.class.getProtectionDomain();
+        assertThat(cache.getKey(TypeMatchCacheTest.class.getName(), CLASS_LOADER, protectionDomain)).isEqualTo(TypeMatchCache.NOT_CACHEABLE);
+        assertThat(cache.getKey(TypeMatchCacheTest.class.getName(), CLASS_LOADER, null)).isEqualTo(TypeMatchCache.NOT_CACHEABLE);
+    }
+
+    @Test
+    void testKeyDependsOnClassLoader() throws Exception {
+        TypeMatchCache cache = new TypeMatchCache(tempDir, "config");
+        long key = cache.getKey(TYPE.getName(), CLASS_LOADER, PROTECTION_DOMAIN);
+        assertThat(key).isNotEqualTo(TypeMatchCache.NOT_CACHEABLE);
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[0], CLASS_LOADER)) {
+            long otherKey = cache.getKey(TYPE.getName(), classLoader, PROTECTION_DOMAIN);
+            assertThat(otherKey).isNotEqualTo(TypeMatchCache.NOT_CACHEABLE);
+            assertThat(otherKey).isNotEqualTo(key);
+        }
+        assertThat(cache.getKey("java.lang.String", null, null)).isNotEqualTo(TypeMatchCache.NOT_CACHEABLE);
+    }
+
+    @Test
+    void testKeyDependsOnClassPath() throws Exception {
+        File jar = new File(tempDir, "lib.jar");
+        Files.write(jar.toPath(), new byte[]{1});
+        long key;
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[]{jar.toURI().toURL()}, CLASS_LOADER)) {
+            key = new TypeMatchCache(tempDir, "config").getKey(TYPE.getName(), classLoader, PROTECTION_DOMAIN);
+            assertThat(key).isNotEqualTo(TypeMatchCache.NOT_CACHEABLE);
+        }
+
+        // a super type or a class a class loader matcher looks up may be contained in another jar on the class path
+        Files.write(jar.toPath(), new byte[]{1, 2});
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[]{jar.toURI().toURL()}, CLASS_LOADER)) {
+            assertThat(new TypeMatchCache(tempDir, "config").getKey(TYPE.getName(), classLoader, PROTECTION_DOMAIN)).isNotEqualTo(key);
+        }
+    }
+
+    @Test
+    void testKeyChangesWhenUrlIsAdded() throws Exception {
+        TypeMatchCache cache = new TypeMatchCache(tempDir, "config");
+        File jar = new File(tempDir, "lib.jar");
+        Files.write(jar.toPath(), new byte[]{1});
+        try (ExtensibleClassLoader classLoader = new ExtensibleClassLoader()) {
+            long key = cache.getKey(TYPE.getName(), classLoader, PROTECTION_DOMAIN);
+            classLoader.addURL(jar.toURI().toURL());
+            assertThat(cache.getKey(TYPE.getName(), classLoader, PROTECTION_DOMAIN)).isNotEqualTo(key);
+        }
+    }
+
+    @Test
+    void testClassLoadersWithUnknownClassPathAreNotCacheable() throws Exception {
+        TypeMatchCache cache = new TypeMatchCache(tempDir, "config");
+        assertThat(cache.getKey(TYPE.getName(), new ClassLoader(CLASS_LOADER) {
+        }, PROTECTION_DOMAIN)).isEqualTo(TypeMatchCache.NOT_CACHEABLE);
+        // classes in a directory may change without a change of the directory itself
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[]{tempDir.toURI().toURL()}, CLASS_LOADER)) {
+            assertThat(cache.getKey(TYPE.getName(), classLoader, PROTECTION_DOMAIN)).isEqualTo(TypeMatchCache.NOT_CACHEABLE);
+        }
+    }
+
+    @Test
+    void testOtherConfigurationStartsEmpty() {
+        TypeMatchCache cache = new TypeMatchCache(tempDir, "config");
+        matches(cache);
+        cache.onIgnored(TYPE, CLASS_LOADER, null, false);
+        cache.onComplete(TYPE.getName(), CLASS_LOADER, null, false);
+        cache.save();
+
+        TypeMatchCache otherConfig = new TypeMatchCache(tempDir, "other config");
+        assertThat(otherConfig.getFile()).isNotEqualTo(cache.getFile());
+        assertThat(matches(otherConfig)).isFalse();
+    }
+
+    @Test
+    void testCorruptFileStartsEmpty() throws Exception {
+        TypeMatchCache cache = new TypeMatchCache(tempDir, "config");
+        Files.write(cache.getFile().toPath(), new byte[]{1, 2, 3});
+
+        TypeMatchCache restarted = new TypeMatchCache(tempDir, "config");
+        assertThat(matches(restarted)).isFalse();
+        assertThat(restarted.getKeysToSave()).isEmpty();
+    }
+
+    private static boolean matches(TypeMatchCache cache) {
+        return cache.matches(TYPE, CLASS_LOADER, null, null, PROTECTION_DOMAIN);
+    }
+
+    private static class ExtensibleClassLoader extends URLClassLoader {
+
+        private ExtensibleClassLoader() {
+            super(new URL[0], CLASS_LOADER);
+        }
+
+        @Override
+        protected void addURL(URL url) {
+            super.addURL(url);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.common.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+import specs.TestJsonSpec;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks that a {@link WildcardMatcherSet} returns the same matcher as trying each matcher of the list one after another.
+ */
+class WildcardMatcherSetTest {
+
+    @Test
+    void testJsonSpec() {
+        List<WildcardMatcher> matchers = new ArrayList<>();
+        Set<String> strings = new LinkedHashSet<>();
+        JsonNode json = TestJsonSpec.getJson("wildcard_matcher_tests.json");
+        json.fieldNames().forEachRemaining(testName -> {
+            JsonNode testNode = json.get(testName);
+            String pattern = testNode.fieldNames().next();
+            matchers.add(WildcardMatcher.valueOf(pattern));
+            testNode.get(pattern).fieldNames().forEachRemaining(strings::add);
+        });
+
+        for (int i = 0; i < matchers.size(); i++) {
+            // every suffix of the matcher list, so that each matcher gets to be the first match
+            assertSameMatches(matchers.subList(i, matchers.size()), strings);
+            assertSameMatches(matchers.subList(i, i + 1), strings);
+        }
+    }
+
+    @Test
+    void testFirstMatchInListOrder() {
+        WildcardMatcherSet matchers = WildcardMatcherSet.of(List.of(
+            WildcardMatcher.valueOf("*bar"),
+            WildcardMatcher.valueOf("foo*"),
+            WildcardMatcher.valueOf("*oba*"),
+            WildcardMatcher.valueOf("foobar"),
+            WildcardMatcher.valueOf("f*r")));
+
+        assertThat(matchers.anyMatch("foobar")).isSameAs(matchers.get(0));
+        assertThat(matchers.anyMatch("foobaz")).isSameAs(matchers.get(1));
+        assertThat(matchers.anyMatch("xobaz")).isSameAs(matchers.get(2));
+        assertThat(matchers.anyMatch("fxr")).isSameAs(matchers.get(4));
+        assertThat(matchers.anyMatch("baz")).isNull();
+        assertThat(matchers.anyMatch(null)).isNull();
+        assertThat(WildcardMatcher.anyMatch(matchers, "foo", "baz")).isSameAs(matchers.get(1));
+    }
+
+    @Test
+    void testCaseSensitivity() {
+        WildcardMatcherSet matchers = WildcardMatcherSet.of(List.of(
+            WildcardMatcher.caseSensitiveMatcher("*Exception"),
+            WildcardMatcher.valueOf("*ERROR*")));
+
+        assertThat(matchers.anyMatch("IOException")).isSameAs(matchers.get(0));
+        assertThat(matchers.anyMatch("IOEXCEPTION")).isNull();
+        assertThat(matchers.anyMatch("some error")).isSameAs(matchers.get(1));
+    }
+
+    @Test
+    void testMatchAll() {
+        WildcardMatcherSet matchers = WildcardMatcherSet.of(List.of(WildcardMatcher.valueOf("foo"), WildcardMatcher.matchAll()));
+
+        assertThat(matchers.anyMatch("foo")).isSameAs(matchers.get(0));
+        assertThat(matchers.anyMatch("")).isSameAs(matchers.get(1));
+        assertThat(matchers).containsExactly(WildcardMatcher.valueOf("foo"), WildcardMatcher.matchAll());
+    }
+
+    @Test
+    void testRandomPatterns() {
+        Random random = new Random(42);
+        String alphabet = "abAB/.";
+        for (int run = 0; run < 200; run++) {
+            List<WildcardMatcher> matchers = new ArrayList<>();
+            int matcherCount = 1 + random.nextInt(20);
+            for (int i = 0; i < matcherCount; i++) {
+                String pattern = randomString(random, alphabet + "**", 6);
+                matchers.add(random.nextBoolean() ? WildcardMatcher.valueOf(pattern) : WildcardMatcher.caseSensitiveMatcher(pattern));
+            }
+            Set<String> strings = new LinkedHashSet<>();
+            for (int i = 0; i < 50; i++) {
+                strings.add(randomString(random, alphabet, 8));
+            }
+            assertSameMatches(matchers, strings);
+        }
+    }
+
+    private static String randomString(Random random, String alphabet, int maxLength) {
+        int length = random.nextInt(maxLength + 1);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+
+    private static void assertSameMatches(List<WildcardMatcher> matchers, Set<String> strings) {
+        WildcardMatcherSet matcherSet = WildcardMatcherSet.of(matchers);
+        for (String s : strings) {
+            assertThat(matcherSet.anyMatch(s))
+                .describedAs("matching '%s' against %s", s, matchers)
+                .isSameAs(WildcardMatcher.anyMatch(matchers, s));
+            for (int split = 0; split <= s.length(); split++) {
+                assertThat(matcherSet.anyMatch(s.substring(0, split), s.substring(split)))
+                    .describedAs("matching '%s' split at %d against %s", s, split, matchers)
+                    .isSameAs(WildcardMatcher.anyMatch(matchers, s.substring(0, split), s.substring(split)));
+            }
+        }
+    }
+}
@@ -19,6 +19,7 @@
 package co.elastic.apm.agent.configuration;
 
 import co.elastic.apm.agent.common.util.WildcardMatcher;
+import co.elastic.apm.agent.tracer.configuration.TimeDuration;
 import org.junit.jupiter.api.Test;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 import org.stagemonitor.configuration.source.SimpleSource;
@@ -110,6 +111,24 @@ class CoreConfigurationTest {
             .containsExactly(WildcardMatcher.valueOf("foo.bar.*"));
     }
 
+    @Test
+    void testClockResolutionBelowOneMillisecondIsRejected() {
+        assertThat(getClockResolution("0ms").getMicros()).isEqualTo(0);
+        assertThat(getClockResolution("5ms").getMillis()).isEqualTo(5);
+        // invalid values fall back to the default of 0ms, which disables the cached clock
+        assertThat(getClockResolution("1us").getMicros()).isEqualTo(0);
+        assertThat(getClockResolution("-1ms").getMicros()).isEqualTo(0);
+    }
+
+    private static TimeDuration getClockResolution(String clockResolution) {
+        return ConfigurationRegistry.builder()
+            .addOptionProvider(new CoreConfigurationImpl())
+            .addConfigSource(SimpleSource.forTest("clock_resolution", clockResolution))
+            .build()
+            .getConfig(CoreConfigurationImpl.class)
+            .getClockResolution();
+    }
+
     private static CoreConfigurationImpl getCoreConfiguration(String enabledInstrumentations, String disabledInstrumentations) {
         ConfigurationRegistry configurationRegistry = ConfigurationRegistry.builder()
             .addOptionProvider(new CoreConfigurationImpl())
@@ -0,0 +1,103 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompactContextStorageTest {
+
+    private ElasticApmTracer tracer;
+    private EmptyTraceState emptyContext;
+    private CompactContextStorage storage;
+
+    @BeforeEach
+    void setUp() {
+        tracer = MockTracer.createRealTracer(new MockReporter());
+        emptyContext = new EmptyTraceState(tracer);
+        storage = new CompactContextStorage(4, emptyContext);
+    }
+
+    @AfterEach
+    void tearDown() {
+        tracer.stop();
+    }
+
+    @Test
+    void testSingleActivation() {
+        TransactionImpl transaction = tracer.startRootTransaction(null);
+        assertThat(storage.currentContext()).isSameAs(emptyContext);
+
+        assertThat(storage.activate(transaction, List.of())).isTrue();
+        assertThat(storage.currentContext()).isSameAs(transaction);
+
+        assertThat(storage.deactivate(transaction, List.of(), true)).isTrue();
+        assertThat(storage.currentContext()).isSameAs(emptyContext);
+        transaction.end();
+    }
+
+    @Test
+    void testNestedActivation() {
+        TransactionImpl transaction = tracer.startRootTransaction(null);
+        SpanImpl span = transaction.createSpan();
+
+        storage.activate(transaction, List.of());
+        storage.activate(span, List.of());
+        assertThat(storage.currentContext()).isSameAs(span);
+
+        storage.deactivate(span, List.of(), true);
+        assertThat(storage.currentContext()).isSameAs(transaction);
+        span.end();
+
+        // the stack is discarded once nothing is active anymore, activating again starts from the compact representation
+        storage.deactivate(transaction, List.of(), true);
+        assertThat(storage.currentContext()).isSameAs(emptyContext);
+        storage.activate(transaction, List.of());
+        assertThat(storage.currentContext()).isSameAs(transaction);
+        storage.deactivate(transaction, List.of(), true);
+        assertThat(storage.currentContext()).isSameAs(emptyContext);
+        transaction.end();
+    }
+
+    @Test
+    void testStackOverflow() {
+        TransactionImpl transaction = tracer.startRootTransaction(null);
+
+        for (int i = 0; i < 4; i++) {
+            assertThat(storage.activate(transaction, List.of())).isTrue();
+        }
+        assertThat(storage.activate(transaction, List.of())).isFalse();
+        assertThat(storage.deactivate(transaction, List.of(), true)).isFalse();
+        for (int i = 0; i < 4; i++) {
+            assertThat(storage.currentContext()).isSameAs(transaction);
+            assertThat(storage.deactivate(transaction, List.of(), true)).isTrue();
+        }
+        assertThat(storage.currentContext()).isSameAs(emptyContext);
+        transaction.end();
+    }
+}
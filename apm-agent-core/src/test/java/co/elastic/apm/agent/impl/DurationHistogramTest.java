@@ -0,0 +1,127 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.sampling.ConstantSampler;
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.metrics.Histogram;
+import co.elastic.apm.agent.metrics.MetricSet;
+import co.elastic.apm.agent.tracer.metrics.Labels;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class DurationHistogramTest {
+
+    private final MockReporter reporter = new MockReporter();
+    @Nullable
+    private ElasticApmTracer tracer;
+
+    @AfterEach
+    void cleanup() {
+        if (tracer != null) {
+            tracer.stop();
+        }
+    }
+
+    @Test
+    void testDisabledByDefault() {
+        tracer = MockTracer.createRealTracer(reporter);
+        TransactionImpl transaction = createTransaction(true);
+        transaction.createSpan(10).withType("db").withSubtype("mysql").end(20);
+        transaction.end(30);
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            assertThat(getHistogram(metricSets, TransactionImpl.DURATION_HISTOGRAM_METRIC, null, null)).isNull();
+            assertThat(getHistogram(metricSets, SpanImpl.DURATION_HISTOGRAM_METRIC, "db", "mysql")).isNull();
+        });
+    }
+
+    @Test
+    void testSampledTransaction() {
+        tracer = createTracerWithDurationHistograms();
+        for (int i = 0; i < 2; i++) {
+            TransactionImpl transaction = createTransaction(true);
+            transaction.createSpan(10).withType("db").withSubtype("mysql").end(2_010);
+            transaction.end(30_000);
+        }
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            verifyHistogram(getHistogram(metricSets, TransactionImpl.DURATION_HISTOGRAM_METRIC, null, null), 2, 30_000);
+            verifyHistogram(getHistogram(metricSets, SpanImpl.DURATION_HISTOGRAM_METRIC, "db", "mysql"), 2, 2_000);
+        });
+    }
+
+    @Test
+    void testNonSampledTransaction() {
+        tracer = createTracerWithDurationHistograms();
+        TransactionImpl transaction = createTransaction(false);
+        transaction.createSpan(10).withType("db").withSubtype("mysql").end(2_010);
+        transaction.end(30_000);
+
+        assertThat(reporter.getSpans()).isEmpty();
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            verifyHistogram(getHistogram(metricSets, TransactionImpl.DURATION_HISTOGRAM_METRIC, null, null), 1, 30_000);
+            verifyHistogram(getHistogram(metricSets, SpanImpl.DURATION_HISTOGRAM_METRIC, "db", "mysql"), 1, 2_000);
+        });
+    }
+
+    private ElasticApmTracer createTracerWithDurationHistograms() {
+        return MockTracer.createRealTracer(reporter, SpyConfiguration.createSpyConfig(SimpleSource.forTest("duration_histogram_metrics", "true")));
+    }
+
+    private TransactionImpl createTransaction(boolean sampled) {
+        return tracer.startRootTransaction(ConstantSampler.of(sampled), 0, getClass().getClassLoader())
+            .withName("test")
+            .withType("request");
+    }
+
+    private static void verifyHistogram(@Nullable Histogram histogram, long expectedCount, long expectedDurationUs) {
+        assertThat(histogram).isNotNull();
+        assertThat(histogram.getCount()).isEqualTo(expectedCount);
+        for (int i = 0; i < histogram.getNumberOfBuckets(); i++) {
+            if (histogram.getBucketCount(i) > 0) {
+                assertThat(histogram.getBucketValue(i)).isCloseTo(expectedDurationUs, within(expectedDurationUs / 8.0));
+            }
+        }
+    }
+
+    @Nullable
+    private static Histogram getHistogram(Map<? extends Labels, MetricSet> metricSets, String histogramName, @Nullable String spanType, @Nullable String spanSubType) {
+        final MetricSet metricSet = metricSets.get(Labels.Mutable.of()
+            .transactionName("test")
+            .transactionType("request")
+            .spanType(spanType)
+            .spanSubType(spanSubType));
+        if (metricSet == null) {
+            return null;
+        }
+        return metricSet.getHistograms().get(histogramName);
+    }
+}
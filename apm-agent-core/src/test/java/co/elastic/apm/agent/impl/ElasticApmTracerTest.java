@@ -125,6 +125,15 @@ class ElasticApmTracerTest {
         assertThat(tracerImpl.currentTransaction()).isNull();
     }
 
+    @Test
+    void testNoopTransaction() {
+        TransactionImpl transaction = tracerImpl.noopTransaction();
+        assertThat(transaction.isNoop()).isTrue();
+        assertThat(transaction.getConfigurationSnapshot()).isNotNull();
+        transaction.end();
+        assertThat(reporter.getTransactions()).isEmpty();
+    }
+
     @Test
     void testNestedSpan() {
         TransactionImpl transaction = startTestRootTransaction();
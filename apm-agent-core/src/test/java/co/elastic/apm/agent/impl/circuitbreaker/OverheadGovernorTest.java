@@ -0,0 +1,228 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.circuitbreaker;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.bci.ElasticApmAgent;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OverheadGovernorTest {
+
+    private static final double BUDGET = 0.05;
+    private static final double OVER_BUDGET = 0.1;
+    private static final double WITHIN_BUDGET = 0.04;
+    private static final double WELL_WITHIN_BUDGET = 0.01;
+
+    private ElasticApmTracer tracer;
+    private OverheadGovernor governor;
+    private AtomicInteger reInits;
+    @Nullable
+    private CompletableFuture<Void> pendingReInit;
+
+    @BeforeEach
+    void setUp() {
+        tracer = MockTracer.createRealTracer(new MockReporter());
+        reInits = new AtomicInteger();
+        governor = new OverheadGovernor(tracer) {
+            @Override
+            Future<?> reInitInstrumentation() {
+                reInits.incrementAndGet();
+                return pendingReInit != null ? pendingReInit : CompletableFuture.completedFuture(null);
+            }
+        };
+    }
+
+    @AfterEach
+    void tearDown() {
+        governor.stop();
+        tracer.stop();
+    }
+
+    @Test
+    void testShedsAndRestoresLoadStepByStep() {
+        Map<String, Long> adviceTimeByGroup = new HashMap<>();
+        adviceTimeByGroup.put("governor-test-cheap", 10L);
+        adviceTimeByGroup.put("governor-test-expensive", 20L);
+
+        for (int i = 0; i < OverheadGovernor.MAX_SAMPLE_RATE_REDUCTIONS; i++) {
+            shedLoad(adviceTimeByGroup);
+        }
+        assertThat(tracer.getSampleRateFactor()).isEqualTo(0.125);
+        assertThat(tracer.getSpanMinDurationFloorUs()).isZero();
+
+        for (int i = 1; i < OverheadGovernor.SPAN_MIN_DURATION_FLOORS_US.length; i++) {
+            shedLoad(adviceTimeByGroup);
+        }
+        assertThat(tracer.getSpanMinDurationFloorUs()).isEqualTo(100_000);
+        assertThat(ElasticApmAgent.getSuspendedInstrumentationGroups()).isEmpty();
+
+        shedLoad(adviceTimeByGroup);
+        assertThat(ElasticApmAgent.getSuspendedInstrumentationGroups()).containsExactly("governor-test-expensive");
+        shedLoad(adviceTimeByGroup);
+        assertThat(ElasticApmAgent.getSuspendedInstrumentationGroups()).containsExactlyInAnyOrder("governor-test-expensive", "governor-test-cheap");
+        // nothing left to shed
+        shedLoad(adviceTimeByGroup);
+        assertThat(reInits).hasValue(2);
+
+        // the last step is reverted first
+        restoreLoad();
+        assertThat(ElasticApmAgent.getSuspendedInstrumentationGroups()).containsExactly("governor-test-expensive");
+        restoreLoad();
+        assertThat(ElasticApmAgent.getSuspendedInstrumentationGroups()).isEmpty();
+        assertThat(reInits).hasValue(4);
+
+        restoreLoad();
+        assertThat(tracer.getSpanMinDurationFloorUs()).isEqualTo(10_000);
+        restoreLoad();
+        restoreLoad();
+        assertThat(tracer.getSpanMinDurationFloorUs()).isZero();
+        assertThat(tracer.getSampleRateFactor()).isEqualTo(0.125);
+
+        for (int i = 0; i < OverheadGovernor.MAX_SAMPLE_RATE_REDUCTIONS; i++) {
+            restoreLoad();
+        }
+        assertThat(tracer.getSampleRateFactor()).isEqualTo(1);
+        assertThat(governor.isSheddingLoad()).isFalse();
+    }
+
+    @Test
+    void testSettlesAfterEachStep() {
+        governor.evaluate(OVER_BUDGET, BUDGET, Collections.<String, Long>emptyMap());
+        assertThat(tracer.getSampleRateFactor()).isEqualTo(0.5);
+
+        for (int i = 0; i < OverheadGovernor.SETTLE_EVALUATIONS; i++) {
+            governor.evaluate(OVER_BUDGET, BUDGET, Collections.<String, Long>emptyMap());
+        }
+        assertThat(tracer.getSampleRateFactor()).isEqualTo(0.5);
+
+        governor.evaluate(OVER_BUDGET, BUDGET, Collections.<String, Long>emptyMap());
+        assertThat(tracer.getSampleRateFactor()).isEqualTo(0.25);
+    }
+
+    @Test
+    void testWaitsForPendingReInit() {
+        Map<String, Long> adviceTimeByGroup = new HashMap<>();
+        adviceTimeByGroup.put("governor-test-cheap", 10L);
+        adviceTimeByGroup.put("governor-test-expensive", 20L);
+        for (int i = 0; i < OverheadGovernor.MAX_SAMPLE_RATE_REDUCTIONS + OverheadGovernor.SPAN_MIN_DURATION_FLOORS_US.length - 1; i++) {
+            shedLoad(adviceTimeByGroup);
+        }
+
+        pendingReInit = new CompletableFuture<>();
+        shedLoad(adviceTimeByGroup);
+        assertThat(ElasticApmAgent.getSuspendedInstrumentationGroups()).containsExactly("governor-test-expensive");
+
+        // the CPU time of the re-initialization must not lead to shedding even more load
+        for (int i = 0; i < 10; i++) {
+            governor.evaluate(OVER_BUDGET, BUDGET, adviceTimeByGroup);
+        }
+        assertThat(ElasticApmAgent.getSuspendedInstrumentationGroups()).containsExactly("governor-test-expensive");
+        assertThat(reInits).hasValue(1);
+
+        pendingReInit.complete(null);
+        pendingReInit = null;
+        // the step still settles after the re-initialization has completed
+        governor.evaluate(OVER_BUDGET, BUDGET, adviceTimeByGroup);
+        assertThat(ElasticApmAgent.getSuspendedInstrumentationGroups()).containsExactly("governor-test-expensive");
+        governor.evaluate(OVER_BUDGET, BUDGET, adviceTimeByGroup);
+        assertThat(ElasticApmAgent.getSuspendedInstrumentationGroups()).containsExactlyInAnyOrder("governor-test-expensive", "governor-test-cheap");
+    }
+
+    @Test
+    void testRestoresOnlyAfterConsecutiveEvaluationsWellWithinBudget() {
+        shedLoad(Collections.<String, Long>emptyMap());
+        assertThat(tracer.getSampleRateFactor()).isEqualTo(0.5);
+
+        for (int i = 1; i < OverheadGovernor.RELIEF_EVALUATIONS; i++) {
+            governor.evaluate(WELL_WITHIN_BUDGET, BUDGET, Collections.<String, Long>emptyMap());
+        }
+        governor.evaluate(WITHIN_BUDGET, BUDGET, Collections.<String, Long>emptyMap());
+        for (int i = 1; i < OverheadGovernor.RELIEF_EVALUATIONS; i++) {
+            governor.evaluate(WELL_WITHIN_BUDGET, BUDGET, Collections.<String, Long>emptyMap());
+        }
+        assertThat(tracer.getSampleRateFactor()).isEqualTo(0.5);
+
+        governor.evaluate(WELL_WITHIN_BUDGET, BUDGET, Collections.<String, Long>emptyMap());
+        assertThat(tracer.getSampleRateFactor()).isEqualTo(1);
+    }
+
+    @Test
+    void testShedLoadAppliesToNewTransactions() {
+        governor.evaluate(OVER_BUDGET, BUDGET, Collections.<String, Long>emptyMap());
+        assertThat(tracer.getSampler().getSampleRate()).isEqualTo(0.5);
+
+        tracer.setSpanMinDurationFloorUs(1000);
+        TransactionImpl transaction = Objects.requireNonNull(tracer.startRootTransaction(null));
+        assertThat(transaction.getConfigurationSnapshot().getSpanMinDurationUs()).isEqualTo(1000);
+        transaction.end();
+    }
+
+    @Test
+    void testRestoresLoadWhenBudgetIsDisabled() {
+        Map<String, Long> adviceTimeByGroup = Collections.singletonMap("governor-test", 10L);
+        for (int i = 0; i < OverheadGovernor.MAX_SAMPLE_RATE_REDUCTIONS + OverheadGovernor.SPAN_MIN_DURATION_FLOORS_US.length; i++) {
+            shedLoad(adviceTimeByGroup);
+        }
+        assertThat(ElasticApmAgent.getSuspendedInstrumentationGroups()).containsExactly("governor-test");
+
+        // the budget is disabled by default
+        governor.run();
+
+        assertThat(governor.isSheddingLoad()).isFalse();
+        assertThat(ElasticApmAgent.getSuspendedInstrumentationGroups()).isEmpty();
+        assertThat(tracer.getSampleRateFactor()).isEqualTo(1);
+        assertThat(tracer.getSpanMinDurationFloorUs()).isZero();
+        assertThat(reInits).hasValue(2);
+    }
+
+    /**
+     * Takes a step and lets it settle
+     */
+    private void shedLoad(Map<String, Long> adviceTimeByGroup) {
+        for (int i = 0; i < 1 + OverheadGovernor.SETTLE_EVALUATIONS; i++) {
+            governor.evaluate(OVER_BUDGET, BUDGET, adviceTimeByGroup);
+        }
+    }
+
+    /**
+     * Reverts a step and lets it settle
+     */
+    private void restoreLoad() {
+        for (int i = 0; i < OverheadGovernor.RELIEF_EVALUATIONS + OverheadGovernor.SETTLE_EVALUATIONS; i++) {
+            governor.evaluate(WELL_WITHIN_BUDGET, BUDGET, Collections.<String, Long>emptyMap());
+        }
+    }
+}
@@ -61,7 +61,7 @@ class ProbabilitySamplerTest {
         IdImpl id = IdImpl.new128BitId();
         for (int i = 0; i < ITERATIONS; i++) {
             id.setToRandomValue();
-            if (sampler.isSampled(id)) {
+            if (isSampled(sampler, id)) {
                 sampledTransactions++;
             }
         }
@@ -74,13 +74,13 @@ class ProbabilitySamplerTest {
         final IdImpl transactionId = IdImpl.new128BitId();
 
         transactionId.fromLongs((long) 0, upperBound - 1);
-        assertThat(ProbabilitySampler.of(0.5).isSampled(transactionId)).isTrue();
+        assertThat(isSampled(ProbabilitySampler.of(0.5), transactionId)).isTrue();
 
         transactionId.fromLongs((long) 0, upperBound);
-        assertThat(ProbabilitySampler.of(0.5).isSampled(transactionId)).isTrue();
+        assertThat(isSampled(ProbabilitySampler.of(0.5), transactionId)).isTrue();
 
         transactionId.fromLongs((long) 0, upperBound + 1);
-        assertThat(ProbabilitySampler.of(0.5).isSampled(transactionId)).isFalse();
+        assertThat(isSampled(ProbabilitySampler.of(0.5), transactionId)).isFalse();
     }
 
     @Test
@@ -89,13 +89,31 @@ class ProbabilitySamplerTest {
         final IdImpl transactionId = IdImpl.new128BitId();
 
         transactionId.fromLongs((long) 0, lowerBound + 1);
-        assertThat(ProbabilitySampler.of(0.5).isSampled(transactionId)).isTrue();
+        assertThat(isSampled(ProbabilitySampler.of(0.5), transactionId)).isTrue();
 
         transactionId.fromLongs((long) 0, lowerBound);
-        assertThat(ProbabilitySampler.of(0.5).isSampled(transactionId)).isTrue();
+        assertThat(isSampled(ProbabilitySampler.of(0.5), transactionId)).isTrue();
 
         transactionId.fromLongs((long) 0, lowerBound - 1);
-        assertThat(ProbabilitySampler.of(0.5).isSampled(transactionId)).isFalse();
+        assertThat(isSampled(ProbabilitySampler.of(0.5), transactionId)).isFalse();
     }
 
+    @Test
+    void testSampleRateSetOnTraceState() {
+        IdImpl traceId = IdImpl.new128BitId();
+        traceId.fromLongs(0, 0);
+        TraceState traceState = new TraceState();
+        assertThat(sampler.isSampled(traceId, traceState)).isTrue();
+        assertThat(traceState.getSampleRate()).isEqualTo(SAMPLING_RATE);
+        assertThat(traceState.toTextHeader()).isEqualTo(sampler.getTraceStateHeader());
+
+        traceId.fromLongs(0, Long.MAX_VALUE);
+        traceState = new TraceState();
+        assertThat(sampler.isSampled(traceId, traceState)).isFalse();
+        assertThat(traceState.getSampleRate()).isNaN();
+    }
+
+    private static boolean isSampled(Sampler sampler, IdImpl traceId) {
+        return sampler.isSampled(traceId, new TraceState());
+    }
 }
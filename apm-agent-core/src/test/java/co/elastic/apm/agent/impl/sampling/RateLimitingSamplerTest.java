@@ -0,0 +1,124 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.impl.transaction.IdImpl;
+import co.elastic.apm.agent.impl.transaction.TraceState;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.assertj.core.api.Assertions.withinPercentage;
+
+class RateLimitingSamplerTest {
+
+    private long nanoTime = 0;
+    private double extrapolatedInWindow;
+
+    @Test
+    void testDisabled() {
+        assertThat(RateLimitingSampler.of(0, 0.5)).isInstanceOf(ProbabilitySampler.class);
+        assertThat(RateLimitingSampler.of(10, 0)).isSameAs(ConstantSampler.of(false));
+        assertThat(RateLimitingSampler.of(10, 1)).isInstanceOf(RateLimitingSampler.class);
+    }
+
+    @Test
+    void testSampleAllBelowTarget() {
+        RateLimitingSampler sampler = createSampler(100, 1.0);
+        for (int window = 0; window < 5; window++) {
+            assertThat(sampleWindow(sampler, 50)).isEqualTo(50);
+        }
+        assertThat(sampler.getSampleRate()).isEqualTo(1.0);
+        assertThat(sampler.getTraceStateHeader()).isEqualTo(TraceState.getHeaderValue(1.0));
+    }
+
+    @Test
+    void testAdaptToSpike() {
+        RateLimitingSampler sampler = createSampler(100, 1.0);
+        sampleWindow(sampler, 100);
+
+        // once twice the target has been sampled in the first window of a spike, the sample rate is lowered for the rest of it
+        assertThat(sampleWindow(sampler, 10_000)).isBetween(200, 400);
+        // each trace is sampled with the rate recorded for it, so that the throughput can be extrapolated
+        assertThat(extrapolatedInWindow).isCloseTo(10_000, withinPercentage(30));
+
+        int sampled = 0;
+        for (int window = 0; window < 10; window++) {
+            sampled = sampleWindow(sampler, 10_000);
+        }
+        assertThat(sampler.getSampleRate()).isCloseTo(0.01, within(0.0001));
+        assertThat(sampled).isBetween(50, 150);
+        assertThat(sampler.getTraceStateHeader()).isEqualTo(TraceState.getHeaderValue(sampler.getSampleRate()));
+
+        // after the spike, the sample rate recovers
+        for (int window = 0; window < 20; window++) {
+            sampled = sampleWindow(sampler, 10);
+        }
+        assertThat(sampler.getSampleRate()).isEqualTo(1.0);
+        assertThat(sampled).isEqualTo(10);
+    }
+
+    @Test
+    void testMaxSampleRate() {
+        RateLimitingSampler sampler = createSampler(100, 0.5);
+        for (int window = 0; window < 5; window++) {
+            sampleWindow(sampler, 10);
+        }
+        assertThat(sampler.getSampleRate()).isEqualTo(0.5);
+    }
+
+    @Test
+    void testHeaderCaching() {
+        RateLimitingSampler sampler = createSampler(100, 1.0);
+        for (int window = 0; window < 20; window++) {
+            sampleWindow(sampler, 1000);
+        }
+        String header = sampler.getTraceStateHeader();
+        sampleWindow(sampler, 1000);
+        assertThat(sampler.getTraceStateHeader())
+            .describedAs("sample rate header should be re-used as long as the sample rate does not change")
+            .isSameAs(header);
+    }
+
+    private RateLimitingSampler createSampler(double targetPerSecond, double maxSampleRate) {
+        return new RateLimitingSampler(targetPerSecond, maxSampleRate) {
+            @Override
+            long nanoTime() {
+                return nanoTime;
+            }
+        };
+    }
+
+    private int sampleWindow(RateLimitingSampler sampler, int transactions) {
+        IdImpl traceId = IdImpl.new128BitId();
+        int sampled = 0;
+        extrapolatedInWindow = 0;
+        for (int i = 0; i < transactions; i++) {
+            traceId.setToRandomValue();
+            TraceState traceState = new TraceState();
+            if (sampler.isSampled(traceId, traceState)) {
+                sampled++;
+                extrapolatedInWindow += 1 / traceState.getSampleRate();
+            }
+            // spreads the transactions evenly over the window, the next call starts a new window
+            nanoTime += RateLimitingSampler.WINDOW_NANOS / transactions;
+        }
+        return sampled;
+    }
+}
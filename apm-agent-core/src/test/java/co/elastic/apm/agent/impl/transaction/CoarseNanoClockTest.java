@@ -0,0 +1,68 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class CoarseNanoClockTest {
+
+    private CoarseNanoClock coarseNanoClock;
+
+    @BeforeEach
+    void setUp() {
+        coarseNanoClock = new CoarseNanoClock(1, TimeUnit.MILLISECONDS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        coarseNanoClock.stop();
+    }
+
+    @Test
+    void testTicks() {
+        long start = coarseNanoClock.nanoTime();
+        assertThat(start).isLessThanOrEqualTo(System.nanoTime());
+
+        await().untilAsserted(() -> assertThat(coarseNanoClock.nanoTime()).isGreaterThan(start));
+        assertThat(coarseNanoClock.nanoTime()).isLessThanOrEqualTo(System.nanoTime());
+    }
+
+    @Test
+    void testEpochTickClock() {
+        EpochTickClock clock = new EpochTickClock(coarseNanoClock);
+        long before = System.currentTimeMillis() * 1000;
+        long start = clock.init();
+        long after = System.currentTimeMillis() * 1000;
+        // the coarse clock lags behind by at least one tick, more if the ticker thread is not scheduled in time
+        assertThat(start).isBetween(before - TimeUnit.MILLISECONDS.toMicros(100), after);
+
+        await().untilAsserted(() -> assertThat(clock.getEpochMicros()).isGreaterThan(start));
+
+        EpochTickClock child = new EpochTickClock(coarseNanoClock);
+        child.init(clock);
+        assertThat(child.getOffset()).isEqualTo(clock.getOffset());
+    }
+}
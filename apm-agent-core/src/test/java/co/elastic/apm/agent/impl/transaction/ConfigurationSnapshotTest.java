@@ -0,0 +1,91 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.configuration.SpanConfiguration;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfigurationImpl;
+import co.elastic.apm.agent.tracer.configuration.TimeDuration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.Objects;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class ConfigurationSnapshotTest {
+
+    private ConfigurationRegistry config;
+    private CoreConfigurationImpl coreConfiguration;
+    private SpanConfiguration spanConfiguration;
+    private StacktraceConfigurationImpl stacktraceConfiguration;
+
+    @BeforeEach
+    void setUp() {
+        config = SpyConfiguration.createSpyConfig();
+        coreConfiguration = config.getConfig(CoreConfigurationImpl.class);
+        spanConfiguration = config.getConfig(SpanConfiguration.class);
+        stacktraceConfiguration = config.getConfig(StacktraceConfigurationImpl.class);
+    }
+
+    @Test
+    void testReusedUntilConfigurationChanges() {
+        ConfigurationSnapshot snapshot = ConfigurationSnapshot.capture(null, coreConfiguration, spanConfiguration, stacktraceConfiguration, 0);
+        assertThat(ConfigurationSnapshot.capture(snapshot, coreConfiguration, spanConfiguration, stacktraceConfiguration, 0)).isSameAs(snapshot);
+
+        doReturn(TimeDuration.of("5ms")).when(spanConfiguration).getExitSpanMinDuration();
+        ConfigurationSnapshot changed = ConfigurationSnapshot.capture(snapshot, coreConfiguration, spanConfiguration, stacktraceConfiguration, 0);
+        assertThat(changed).isNotSameAs(snapshot);
+        assertThat(changed.getExitSpanMinDurationUs()).isEqualTo(5000);
+        assertThat(snapshot.getExitSpanMinDurationUs()).isEqualTo(0);
+    }
+
+    @Test
+    void testSpanMinDurationFloor() {
+        doReturn(TimeDuration.of("5ms")).when(coreConfiguration).getSpanMinDuration();
+        assertThat(ConfigurationSnapshot.capture(null, coreConfiguration, spanConfiguration, stacktraceConfiguration, 1000).getSpanMinDurationUs()).isEqualTo(5000);
+        assertThat(ConfigurationSnapshot.capture(null, coreConfiguration, spanConfiguration, stacktraceConfiguration, 10000).getSpanMinDurationUs()).isEqualTo(10000);
+    }
+
+    @Test
+    void testSpansShareTheSnapshotOfTheirTransaction() {
+        ElasticApmTracer tracer = MockTracer.createRealTracer(new MockReporter(), config);
+        TransactionImpl transaction = Objects.requireNonNull(tracer.startRootTransaction(null));
+        ConfigurationSnapshot snapshot = transaction.getConfigurationSnapshot();
+
+        // changes only apply to transactions started afterwards
+        doReturn(true).when(coreConfiguration).isCaptureThreadOnStart();
+        SpanImpl span = transaction.createSpan();
+        assertThat(span.getConfigurationSnapshot()).isSameAs(snapshot);
+        assertThat(span.getConfigurationSnapshot().isCaptureThreadOnStart()).isFalse();
+        span.end();
+        transaction.end();
+
+        TransactionImpl nextTransaction = Objects.requireNonNull(tracer.startRootTransaction(null));
+        assertThat(nextTransaction.getConfigurationSnapshot().isCaptureThreadOnStart()).isTrue();
+        nextTransaction.end();
+        tracer.stop();
+    }
+}
@@ -23,12 +23,17 @@ import co.elastic.apm.agent.MockTracer;
 import co.elastic.apm.agent.configuration.SpanConfiguration;
 import co.elastic.apm.agent.tracer.configuration.TimeDuration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.metrics.Histogram;
+import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.tracer.Outcome;
+import co.elastic.apm.agent.tracer.metrics.Labels;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.doReturn;
@@ -95,7 +100,54 @@ class FastExitSpanTest {
 
     }
 
+    @Test
+    void testExitSpanBelowDurationAggregatedInHistogram() {
+        SpanConfiguration spanConfiguration = tracer.getConfig(SpanConfiguration.class);
+        doReturn(true).when(spanConfiguration).isExitSpanAggregationEnabled();
+        try {
+            // the histograms are shared by all transactions
+            for (int i = 0; i < 2; i++) {
+                TransactionImpl transaction = startTransaction();
+                try {
+                    SpanImpl span = startExitSpan(transaction, 0L).withOutcome(Outcome.FAILURE);
+                    span.getContext().getDb().withInstance("db-name");
+                    span.end(1_000L);
+                    startExitSpan(transaction, 0L).end(50_001L);
+                } finally {
+                    transaction.end();
+                }
+            }
+        } finally {
+            doReturn(false).when(spanConfiguration).isExitSpanAggregationEnabled();
+        }
 
+        assertThat(reporter.getSpans()).hasSize(2);
+
+        Labels.Mutable labels = Labels.Mutable.of("service_target_type", "postgresql")
+            .spanType("db")
+            .spanSubType("postgresql");
+        labels.add("service_target_name", "db-name");
+        labels.add("outcome", "failure");
+        AtomicReference<Histogram> histogram = new AtomicReference<>();
+        AtomicInteger histogramCount = new AtomicInteger();
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            for (MetricSet metricSet : metricSets.values()) {
+                Histogram destinationHistogram = metricSet.getHistograms().get(SpanImpl.DESTINATION_HISTOGRAM_METRIC);
+                if (destinationHistogram != null && destinationHistogram.hasContent()) {
+                    histogramCount.incrementAndGet();
+                    if (metricSet.getLabels().equals(labels)) {
+                        histogram.set(destinationHistogram);
+                    }
+                }
+            }
+            // the metric sets are reset after reporting
+            if (histogram.get() != null) {
+                assertThat(histogram.get().getCount()).isEqualTo(2);
+            }
+        });
+        assertThat(histogramCount.get()).isEqualTo(1);
+        assertThat(histogram.get()).isNotNull();
+    }
 
     @Test
     void testCompositeExitSpanBelowDurationAndMoreThanOneDroppedSpanStatsEntry() {
@@ -45,6 +45,7 @@ import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 
@@ -419,10 +420,7 @@ class TraceContextTest {
     private TraceContextImpl createRootSpan(double sampleRate) {
         final TraceContextImpl traceContext = TraceContextImpl.with64BitId(tracer);
 
-        Sampler sampler = mock(Sampler.class);
-        doReturn(true).when(sampler).isSampled(any(IdImpl.class));
-        doReturn(sampleRate).when(sampler).getSampleRate();
-        doReturn(TraceState.getHeaderValue(sampleRate)).when(sampler).getTraceStateHeader();
+        Sampler sampler = mockSampler(true, sampleRate);
 
         traceContext.asRootSpan(sampler);
         return traceContext;
@@ -525,9 +523,7 @@ class TraceContextTest {
 
     @Test
     void testRootContextSampleRateFromSampler() {
-        Sampler sampler = mock(Sampler.class);
-        doReturn(true).when(sampler).isSampled(any(IdImpl.class));
-        doReturn(0.42d).when(sampler).getSampleRate();
+        Sampler sampler = mockSampler(true, 0.42d);
 
         final TraceContextImpl rootContext = TraceContextImpl.with64BitId(tracer);
         rootContext.asRootSpan(sampler);
@@ -647,4 +643,16 @@ class TraceContextTest {
         assertThat(traceContext.getServiceName()).isEqualTo("My Service");
         assertThat(traceContext.getServiceVersion()).isEqualTo("My Version");
     }
+
+    private static Sampler mockSampler(boolean sampled, double sampleRate) {
+        Sampler sampler = mock(Sampler.class);
+        doAnswer(invocation -> {
+            if (sampled) {
+                invocation.<TraceState>getArgument(1).set(sampleRate, TraceState.getHeaderValue(sampleRate));
+            }
+            return sampled;
+        }).when(sampler).isSampled(any(IdImpl.class), any(TraceState.class));
+        doReturn(sampleRate).when(sampler).getSampleRate();
+        return sampler;
+    }
 }
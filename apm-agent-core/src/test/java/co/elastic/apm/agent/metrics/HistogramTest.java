@@ -0,0 +1,82 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HistogramTest {
+
+    @Test
+    void testBucketsAreContiguous() {
+        assertThat(Histogram.getBucketLowerBound(0)).isEqualTo(0);
+        for (int i = 1; i < Histogram.BUCKET_COUNT; i++) {
+            long lowerBound = Histogram.getBucketLowerBound(i);
+            assertThat(lowerBound).isGreaterThan(Histogram.getBucketLowerBound(i - 1));
+            assertThat(Histogram.getBucketIndex(lowerBound)).isEqualTo(i);
+            assertThat(Histogram.getBucketIndex(lowerBound - 1)).isEqualTo(i - 1);
+        }
+        assertThat(Histogram.getBucketIndex(Histogram.MAX_TRACKABLE_VALUE)).isEqualTo(Histogram.BUCKET_COUNT - 1);
+    }
+
+    @Test
+    void testRelativeError() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 10_000; i++) {
+            long value = ThreadLocalRandom.current().nextLong(Histogram.MAX_TRACKABLE_VALUE);
+            double bucketValue = histogram.getBucketValue(Histogram.getBucketIndex(value));
+            assertThat(Math.abs(bucketValue - value)).isLessThanOrEqualTo(value / (double) Histogram.SUB_BUCKET_COUNT);
+        }
+    }
+
+    @Test
+    void testSmallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < Histogram.SUB_BUCKET_COUNT; i++) {
+            assertThat(histogram.getBucketValue(Histogram.getBucketIndex(i))).isEqualTo(i);
+        }
+    }
+
+    @Test
+    void testOutOfRangeValues() {
+        Histogram histogram = new Histogram();
+        histogram.update(-1);
+        histogram.update(Long.MAX_VALUE, 2);
+
+        assertThat(histogram.getBucketCount(0)).isEqualTo(1);
+        assertThat(histogram.getBucketCount(histogram.getNumberOfBuckets() - 1)).isEqualTo(2);
+        assertThat(histogram.getCount()).isEqualTo(3);
+    }
+
+    @Test
+    void testResetState() {
+        Histogram histogram = new Histogram();
+        assertThat(histogram.hasContent()).isFalse();
+        histogram.update(42);
+        assertThat(histogram.hasContent()).isTrue();
+
+        histogram.resetState();
+
+        assertThat(histogram.hasContent()).isFalse();
+        assertThat(histogram.getCount()).isZero();
+    }
+}
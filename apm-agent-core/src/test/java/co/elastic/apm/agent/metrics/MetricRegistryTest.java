@@ -134,6 +134,22 @@ class MetricRegistryTest {
         assertThat(metricSet.getCounters().get("counter").get()).isEqualTo(expectedCount);
     }
 
+    @Test
+    void testHistogramResetWithReporting() {
+        Labels.Mutable labels = Labels.Mutable.of("foo", "bar");
+        metricRegistry.updateHistogram("histogram", labels, 20);
+        metricRegistry.updateHistogram("histogram", labels, 22_000, 2);
+        metricRegistry.flipPhaseAndReport(metricSets -> verifyHistogram(metricSets.get(labels), 3));
+        metricRegistry.flipPhaseAndReport(null);
+        // Now we get the original buffer back
+        metricRegistry.flipPhaseAndReport(metricSets -> verifyHistogram(metricSets.get(labels), 0));
+    }
+
+    private void verifyHistogram(MetricSet metricSet, int expectedCount) {
+        assertThat(metricSet.hasContent()).isEqualTo(expectedCount > 0);
+        assertThat(metricSet.getHistograms().get("histogram").getCount()).isEqualTo(expectedCount);
+    }
+
     @Test
     void testLimitTimersWithDefaultValue() {
         IntStream.range(1, 505).forEach(i -> metricRegistry.updateTimer("timer" + i, Labels.Mutable.of("foo", Integer.toString(i)), 1));
@@ -0,0 +1,91 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.metrics.MetricSet;
+import co.elastic.apm.agent.objectpool.ObjectPoolSizer;
+import co.elastic.apm.agent.objectpool.TestRecyclable;
+import co.elastic.apm.agent.objectpool.impl.ThreadLocalCachingObjectPool;
+import co.elastic.apm.agent.report.ReporterConfigurationImpl;
+import co.elastic.apm.agent.tracer.metrics.Labels;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+
+class AgentObjectPoolMetricsTest {
+
+    private MetricRegistry metricRegistry;
+    private MetricsConfigurationImpl spyMetricsConfig;
+    private ObjectPoolSizer objectPoolSizer;
+    private ThreadLocalCachingObjectPool<TestRecyclable> objectPool;
+
+    @BeforeEach
+    void setUp() {
+        spyMetricsConfig = spy(MetricsConfigurationImpl.class);
+        metricRegistry = new MetricRegistry(mock(ReporterConfigurationImpl.class), spyMetricsConfig);
+        objectPool = ThreadLocalCachingObjectPool.ofRecyclable(64, TestRecyclable::new);
+        objectPoolSizer = new ObjectPoolSizer();
+        objectPoolSizer.register("span", objectPool);
+    }
+
+    @Test
+    void testObjectPoolMetrics() {
+        doReturn(true).when(spyMetricsConfig).isOverheadMetricsEnabled();
+        new AgentObjectPoolMetrics().bindTo(metricRegistry, spyMetricsConfig, objectPoolSizer);
+
+        TestRecyclable first = objectPool.createInstance();
+        TestRecyclable second = objectPool.createInstance();
+        objectPool.recycle(first);
+        objectPool.recycle(second);
+        objectPoolSizer.run();
+
+        reportAndCheckMetrics(metricSets -> assertThat(metricSets.get(Labels.Mutable.of("pool_name", "span")).getRawMetrics())
+            .containsEntry("agent.objectpool.objects.pooled", 2.0)
+            .containsEntry("agent.objectpool.objects.demand", 2.0)
+            .containsEntry("agent.objectpool.objects.allocated", 2.0));
+
+        objectPool.recycle(objectPool.createInstance());
+
+        reportAndCheckMetrics(metricSets -> assertThat(metricSets.get(Labels.Mutable.of("pool_name", "span")).getRawMetrics())
+            .containsEntry("agent.objectpool.objects.allocated", 0.0));
+    }
+
+    @Test
+    void testDisabledByDefault() {
+        new AgentObjectPoolMetrics().bindTo(metricRegistry, spyMetricsConfig, objectPoolSizer);
+
+        reportAndCheckMetrics(metricSets -> assertThat(metricSets).isEmpty());
+    }
+
+    private void reportAndCheckMetrics(Consumer<Map<Labels, MetricSet>> assertions) {
+        metricRegistry.flipPhaseAndReport((metrics) -> {
+            assertions.accept(new HashMap<>(metrics));
+        });
+    }
+}
@@ -237,6 +237,32 @@ public class AgentReporterMetricsTest {
 
     }
 
+    @Test
+    public void checkLaneMetrics() {
+        doReturn(true).when(mockMetricsConfig).isReporterHealthMetricsEnabled();
+        reporterMetrics = new AgentReporterMetrics(metricRegistry, mockMetricsConfig);
+
+        reporterMetrics.laneUtilizationChanged("priority", 10, 2);
+        reporterMetrics.laneUtilizationChanged("span", 100, 100);
+        reporterMetrics.eventOverflowedLane("priority", ReportingEvent.ReportingEventType.ERROR);
+        reporterMetrics.eventDroppedFromLane("span", ReportingEvent.ReportingEventType.SPAN);
+        reporterMetrics.eventDroppedFromLane("span", ReportingEvent.ReportingEventType.SPAN);
+
+        reportAndCheckMetrics(metricSets -> {
+            assertThat(metricSets.get(Labels.Mutable.of("queue_name", "priority")).getRawMetrics())
+                .containsEntry("agent.events.queue.min_size.pct", 0.0)
+                .containsEntry("agent.events.queue.max_size.pct", 0.2);
+            assertThat(metricSets.get(Labels.Mutable.of("queue_name", "priority")).getCounters())
+                .extractingByKey("agent.events.queue.overflowed")
+                .satisfies(counter -> assertThat(counter).hasValue(1));
+            assertThat(metricSets.get(Labels.Mutable.of("queue_name", "span")).getRawMetrics())
+                .containsEntry("agent.events.queue.max_size.pct", 1.0);
+            assertThat(metricSets.get(Labels.Mutable.of("queue_name", "span")).getCounters())
+                .extractingByKey("agent.events.queue.dropped")
+                .satisfies(counter -> assertThat(counter).hasValue(2));
+        });
+    }
+
     @ParameterizedTest
     @ValueSource(strings = {
         "agent.events.total",
@@ -0,0 +1,92 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics.builtin;
+
+import co.elastic.apm.agent.bci.AdviceTimer;
+import co.elastic.apm.agent.configuration.MetricsConfigurationImpl;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.report.ReporterConfigurationImpl;
+import co.elastic.apm.agent.tracer.metrics.Labels;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+
+class InstrumentationOverheadMetricsTest {
+
+    private MetricRegistry metricRegistry;
+    private MetricsConfigurationImpl spyMetricsConfig;
+    private final Map<String, Double> metrics = new HashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        spyMetricsConfig = spy(MetricsConfigurationImpl.class);
+        metricRegistry = new MetricRegistry(mock(ReporterConfigurationImpl.class), spyMetricsConfig);
+    }
+
+    @Test
+    void testExtrapolatedFromTimedInvocations() throws Throwable {
+        doReturn(2).when(spyMetricsConfig).getInstrumentationOverheadSampleInterval();
+        InstrumentationOverheadMetrics overheadMetrics = new InstrumentationOverheadMetrics();
+        overheadMetrics.bindTo(metricRegistry, spyMetricsConfig);
+        AdviceTimer adviceTimer = new AdviceTimer("jdbc");
+        MethodHandle advice = adviceTimer.time(MethodHandles.lookup().findStatic(InstrumentationOverheadMetricsTest.class, "sleep",
+            MethodType.methodType(void.class)), 2);
+
+        for (int i = 0; i < 4; i++) {
+            advice.invokeExact();
+        }
+        collect(overheadMetrics, adviceTimer);
+
+        assertThat(metrics).containsEntry("agent.instrumentation.overhead.count", 4.0);
+        assertThat(metrics.get("agent.instrumentation.overhead.sum.us")).isGreaterThanOrEqualTo(4000.0);
+
+        metrics.clear();
+        collect(overheadMetrics, adviceTimer);
+        assertThat(metrics).isEmpty();
+    }
+
+    @Test
+    void testDisabledByDefault() {
+        new InstrumentationOverheadMetrics().bindTo(metricRegistry, spyMetricsConfig);
+
+        metricRegistry.flipPhaseAndReport(metricSets -> assertThat(metricSets).isEmpty());
+    }
+
+    private void collect(InstrumentationOverheadMetrics overheadMetrics, AdviceTimer adviceTimer) {
+        overheadMetrics.collect(List.of(adviceTimer), (metric, labels, value) -> {
+            assertThat(labels).isEqualTo(Labels.Mutable.of("instrumentation_group", "jdbc"));
+            metrics.put(metric, value);
+        });
+    }
+
+    private static void sleep() throws InterruptedException {
+        Thread.sleep(1);
+    }
+}
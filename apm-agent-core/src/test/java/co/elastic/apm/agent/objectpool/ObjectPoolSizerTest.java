@@ -0,0 +1,108 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool;
+
+import co.elastic.apm.agent.objectpool.impl.ThreadLocalCachingObjectPool;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ObjectPoolSizerTest {
+
+    private ThreadLocalCachingObjectPool<TestRecyclable> objectPool;
+    private ObjectPoolSizer objectPoolSizer;
+    private ObjectPoolSizer.SizedPool sizedPool;
+
+    @BeforeEach
+    void setUp() {
+        objectPool = ThreadLocalCachingObjectPool.of(128, 2, TestRecyclable::new, Resetter.ForRecyclable.<TestRecyclable>get());
+        // the demand halves with each tick
+        objectPoolSizer = new ObjectPoolSizer(1);
+        objectPoolSizer.register("test", objectPool);
+        objectPoolSizer.register("not-trimmable", NoopObjectPool.ofRecyclable(TestRecyclable::new));
+        assertThat(objectPoolSizer.getPools()).hasSize(1);
+        sizedPool = objectPoolSizer.getPools().get(0);
+    }
+
+    @Test
+    void testTrimIdlePool() {
+        recycle(createInstances(40));
+        assertThat(objectPool.getObjectsAllocated()).isEqualTo(40);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(40);
+
+        objectPoolSizer.run();
+        assertThat(sizedPool.getDemand()).isEqualTo(40);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(40);
+
+        objectPoolSizer.run();
+        assertThat(sizedPool.getDemand()).isEqualTo(20);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(20);
+        assertThat(objectPool.getObjectsDiscarded()).isEqualTo(20);
+
+        objectPoolSizer.run();
+        assertThat(sizedPool.getDemand()).isEqualTo(10);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(10);
+    }
+
+    @Test
+    void testLiveObjectsAreAccountedForInDemand() {
+        recycle(createInstances(20));
+        objectPoolSizer.run();
+        assertThat(sizedPool.getDemand()).isEqualTo(20);
+
+        List<TestRecyclable> liveObjects = createInstances(15);
+        assertThat(objectPool.getObjectsAllocated()).isEqualTo(20);
+
+        objectPoolSizer.run();
+        assertThat(sizedPool.getDemand()).isEqualTo(15);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(0);
+
+        recycle(liveObjects);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(15);
+    }
+
+    @Test
+    void testDemandIsBoundByCapacity() {
+        List<TestRecyclable> liveObjects = createInstances(200);
+        objectPoolSizer.run();
+        assertThat(sizedPool.getDemand()).isEqualTo(128);
+
+        // a single thread can only fill its own magazine and the shared queue
+        recycle(liveObjects);
+        assertThat(objectPool.getGarbageCreated()).isEqualTo(200 - 64 - 2);
+    }
+
+    private List<TestRecyclable> createInstances(int count) {
+        List<TestRecyclable> instances = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            instances.add(objectPool.createInstance());
+        }
+        return instances;
+    }
+
+    private void recycle(List<TestRecyclable> instances) {
+        for (TestRecyclable instance : instances) {
+            objectPool.recycle(instance);
+        }
+    }
+}
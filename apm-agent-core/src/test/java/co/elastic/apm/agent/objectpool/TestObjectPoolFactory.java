@@ -46,7 +46,15 @@ public class TestObjectPoolFactory extends ObjectPoolFactoryImpl {
 
     @Override
     public <T extends Recyclable> ObservableObjectPool<T> createRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
-        ObservableObjectPool<T> pool = super.createRecyclableObjectPool(maxCapacity, allocator);
+        return track(super.createRecyclableObjectPool(maxCapacity, allocator));
+    }
+
+    @Override
+    protected <T extends Recyclable> ObservableObjectPool<T> createThreadLocalCachingObjectPool(int maxCapacity, Allocator<T> allocator) {
+        return track(super.createThreadLocalCachingObjectPool(maxCapacity, allocator));
+    }
+
+    private <T extends Recyclable> BookkeeperObjectPool<T> track(ObservableObjectPool<T> pool) {
         BookkeeperObjectPool<T> wrappedPool = new BookkeeperObjectPool<>(pool);
         createdPools.add(wrappedPool);
         return wrappedPool;
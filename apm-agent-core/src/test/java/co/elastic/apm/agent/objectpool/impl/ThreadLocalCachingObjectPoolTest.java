@@ -0,0 +1,166 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.Resetter;
+import co.elastic.apm.agent.objectpool.TestRecyclable;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ThreadLocalCachingObjectPoolTest {
+
+    private static final int MAGAZINE_SIZE = 4;
+
+    // the shared queue holds 8 objects and there are 2 magazines of 4 objects
+    private final ThreadLocalCachingObjectPool<TestRecyclable> objectPool = ThreadLocalCachingObjectPool.of(
+        16, MAGAZINE_SIZE, TestRecyclable::new, Resetter.ForRecyclable.<TestRecyclable>get());
+
+    @Test
+    void testHitsAndMisses() {
+        TestRecyclable instance = objectPool.createInstance();
+        assertThat(objectPool.getMisses()).isEqualTo(1);
+        assertThat(objectPool.getHits()).isEqualTo(0);
+
+        instance.setState(1);
+        objectPool.recycle(instance);
+        assertThat(instance.getState()).isEqualTo(0);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(1);
+
+        assertThat(objectPool.createInstance()).isSameAs(instance);
+        assertThat(objectPool.getMisses()).isEqualTo(1);
+        assertThat(objectPool.getHits()).isEqualTo(1);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(0);
+    }
+
+    @Test
+    void testSpillAndRefillInBatches() throws Exception {
+        List<TestRecyclable> instances = createInstances(MAGAZINE_SIZE + 1);
+        // recycling on a different thread, like the reporter thread does
+        Thread recycler = new Thread(() -> instances.forEach(objectPool::recycle));
+        recycler.start();
+        recycler.join();
+
+        // the magazine of the terminated thread has been moved to the shared queue
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(MAGAZINE_SIZE + 1);
+        assertThat(objectPool.getGarbageCreated()).isEqualTo(0);
+
+        long missesBefore = objectPool.getMisses();
+        objectPool.createInstance();
+        assertThat(objectPool.getMisses()).isEqualTo(missesBefore + 1);
+        // the second miss of this thread has refilled half of the magazine
+        objectPool.createInstance();
+        assertThat(objectPool.getMisses()).isEqualTo(missesBefore + 1);
+        assertThat(objectPool.getHits()).isEqualTo(1);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(MAGAZINE_SIZE - 1);
+    }
+
+    @Test
+    void testFirstMissTakesSingleObject() throws Exception {
+        List<TestRecyclable> instances = createInstances(MAGAZINE_SIZE);
+        instances.forEach(objectPool::recycle);
+        // moves the objects to the shared queue
+        objectPool.clear();
+        Thread recycler = new Thread(() -> createInstances(MAGAZINE_SIZE).forEach(objectPool::recycle));
+        recycler.start();
+        recycler.join();
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(MAGAZINE_SIZE);
+
+        Thread shortLived = new Thread(objectPool::createInstance);
+        shortLived.start();
+        shortLived.join();
+        // the short-lived thread has not taken a batch into its magazine
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(MAGAZINE_SIZE - 1);
+    }
+
+    @Test
+    void testNumberOfMagazinesIsBounded() throws Exception {
+        assertThat(objectPool.getMaxMagazines()).isEqualTo(2);
+        assertThat(objectPool.getCapacity()).isEqualTo(16);
+        CountDownLatch done = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < objectPool.getMaxMagazines(); i++) {
+            CountDownLatch registered = new CountDownLatch(1);
+            Thread thread = new Thread(() -> {
+                objectPool.recycle(objectPool.createInstance());
+                registered.countDown();
+                awaitUninterruptibly(done);
+            });
+            thread.start();
+            threads.add(thread);
+            registered.await();
+        }
+        long hitsBefore = objectPool.getHits();
+
+        // this thread can't get a magazine, so it always uses the shared queue
+        for (int i = 0; i < 3; i++) {
+            objectPool.recycle(objectPool.createInstance());
+        }
+        assertThat(objectPool.getHits()).isEqualTo(hitsBefore);
+
+        done.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    @Test
+    void testGarbageWhenMagazineAndSharedQueueAreFull() {
+        // the shared queue holds 8 objects, the magazine of the current thread 4
+        List<TestRecyclable> instances = createInstances(13);
+        instances.forEach(objectPool::recycle);
+
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(12);
+        assertThat(objectPool.getGarbageCreated()).isEqualTo(1);
+    }
+
+    @Test
+    void testClearInvalidatesMagazines() throws Exception {
+        TestRecyclable instance = objectPool.createInstance();
+        objectPool.recycle(instance);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(1);
+
+        Thread clearer = new Thread(objectPool::clear);
+        clearer.start();
+        clearer.join();
+
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(0);
+        assertThat(objectPool.createInstance()).isNotSameAs(instance);
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<TestRecyclable> createInstances(int count) {
+        List<TestRecyclable> instances = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            instances.add(objectPool.createInstance());
+        }
+        return instances;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveCompressionControllerTest {
+
+    private static final long DURATION = TimeUnit.SECONDS.toNanos(10);
+
+    @Test
+    void testIncreaseLevelWhenIdle() {
+        AdaptiveCompressionController controller = new AdaptiveCompressionController(Deflater.BEST_SPEED);
+        for (int i = 0; i < 10; i++) {
+            controller.onRequestCompleted(1024, DURATION, DURATION / 100, 0, false);
+        }
+        assertThat(controller.getLevel()).isEqualTo(AdaptiveCompressionController.MAX_LEVEL);
+    }
+
+    @Test
+    void testKeepLevelOnHighThroughput() {
+        AdaptiveCompressionController controller = new AdaptiveCompressionController(Deflater.BEST_SPEED);
+        assertThat(controller.onRequestCompleted(100 * 1024 * 1024, DURATION, DURATION / 100, 0, false)).isFalse();
+        assertThat(controller.getLevel()).isEqualTo(Deflater.BEST_SPEED);
+    }
+
+    @Test
+    void testDecreaseLevelWhenReporterThreadIsBusy() {
+        AdaptiveCompressionController controller = new AdaptiveCompressionController(3);
+        assertThat(controller.onRequestCompleted(1024, DURATION, DURATION * 3 / 4, 0, false)).isTrue();
+        assertThat(controller.getLevel()).isEqualTo(2);
+        for (int i = 0; i < 10; i++) {
+            controller.onRequestCompleted(1024, DURATION, DURATION * 3 / 4, 0, false);
+        }
+        assertThat(controller.getLevel()).isEqualTo(Deflater.NO_COMPRESSION);
+    }
+
+    @Test
+    void testDecreaseLevelWhenQueueFillsUp() {
+        AdaptiveCompressionController controller = new AdaptiveCompressionController(3);
+        controller.onRequestCompleted(1024, DURATION, -1, 0.8, false);
+        assertThat(controller.getLevel()).isEqualTo(2);
+    }
+
+    @Test
+    void testFastestLevelUnderStress() {
+        AdaptiveCompressionController controller = new AdaptiveCompressionController(AdaptiveCompressionController.MAX_LEVEL);
+        assertThat(controller.onRequestCompleted(1024, DURATION, 0, 0, true)).isTrue();
+        assertThat(controller.getLevel()).isEqualTo(Deflater.BEST_SPEED);
+        // stress alone does not disable compression
+        assertThat(controller.onRequestCompleted(1024, DURATION, 0, 0, true)).isFalse();
+        assertThat(controller.getLevel()).isEqualTo(Deflater.BEST_SPEED);
+    }
+
+    @Test
+    void testKeepLevelInBetween() {
+        AdaptiveCompressionController controller = new AdaptiveCompressionController(3);
+        assertThat(controller.onRequestCompleted(1024, DURATION, DURATION / 4, 0.2, false)).isFalse();
+        assertThat(controller.getLevel()).isEqualTo(3);
+    }
+}
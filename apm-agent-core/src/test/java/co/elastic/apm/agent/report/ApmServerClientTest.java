@@ -221,6 +221,33 @@ public class ApmServerClientTest {
         assertThat(apmServerClient.getErrorCount()).isEqualTo(1);
     }
 
+    @Test
+    public void testIntakeServerUrlFailsOverByDefault() {
+        assertThat(Objects.requireNonNull(apmServerClient.getIntakeServerUrl()).getPort()).isEqualTo(apmServer1.port());
+        apmServerClient.onIntakeConnectionError(Objects.requireNonNull(apmServerClient.getIntakeServerUrl()));
+        assertThat(Objects.requireNonNull(apmServerClient.getIntakeServerUrl()).getPort()).isEqualTo(apmServer2.port());
+        assertThat(apmServerClient.isIntakeServerAvailable()).isFalse();
+    }
+
+    @Test
+    public void testBalanceIntakeRequests() {
+        doReturn(ReporterConfigurationImpl.IntakeLoadBalancing.EVENT_COUNT).when(reporterConfiguration).getIntakeLoadBalancing();
+        ApmServerClient client = new ApmServerClient(config);
+        client.start(urlList);
+
+        URL first = Objects.requireNonNull(client.getIntakeServerUrl());
+        client.onIntakeRequestFinished(first, 10, 0);
+        URL second = Objects.requireNonNull(client.getIntakeServerUrl());
+        assertThat(second).isNotEqualTo(first);
+
+        // the first error does not exclude the server yet
+        client.onIntakeConnectionError(second);
+        client.onIntakeConnectionError(second);
+        assertThat(client.isIntakeServerAvailable()).isTrue();
+        assertThat(client.getIntakeServerUrl()).isEqualTo(first);
+        assertThat(client.getErrorCount()).isZero();
+    }
+
     @Test
     public void testWrapUrlsOnConsecutiveError() throws Exception {
         int expectedErrorCount = apmServerClient.incrementAndGetErrorCount(0);
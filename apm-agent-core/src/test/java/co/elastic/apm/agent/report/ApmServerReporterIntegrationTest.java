@@ -34,6 +34,7 @@ import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
 import co.elastic.apm.agent.report.serialize.SerializationConstants;
 import co.elastic.apm.agent.tracer.configuration.TimeDuration;
+import co.elastic.apm.agent.util.MathUtils;
 import io.undertow.Undertow;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.handlers.BlockingHandler;
@@ -90,6 +91,9 @@ class ApmServerReporterIntegrationTest {
     private ReporterMonitor mockMonitor;
 
     private IntakeV2ReportingEventHandler v2handler;
+    private ProcessorEventHandler processorEventHandler;
+    private ApmServerClient apmServerClient;
+    private DslJsonSerializer payloadSerializer;
 
     private final AtomicReference<String> token = new AtomicReference<>();
     private final AtomicReference<TimeDuration> timeout = new AtomicReference<>();
@@ -155,14 +159,18 @@ class ApmServerReporterIntegrationTest {
         SystemInfo system = new SystemInfo("x64", "localhost", null, "platform");
         final ServiceImpl service = new ServiceImpl();
         final ProcessInfo title = new ProcessInfo("title");
-        final ProcessorEventHandler processorEventHandler = ProcessorEventHandler.loadProcessors(config);
-        ApmServerClient apmServerClient = new ApmServerClient(config);
+        processorEventHandler = ProcessorEventHandler.loadProcessors(config);
+        apmServerClient = new ApmServerClient(config);
         apmServerClient.start();
-        DslJsonSerializer payloadSerializer = new DslJsonSerializer(
+        payloadSerializer = new DslJsonSerializer(
             SpyConfiguration.createSpyConfig(),
             apmServerClient,
             MetaDataMock.create(title, service, system, null, Collections.emptyMap(), null)
         );
+        startReporter();
+    }
+
+    private void startReporter() {
         v2handler = new IntakeV2ReportingEventHandler(
             reporterConfiguration,
             processorEventHandler,
@@ -201,6 +209,118 @@ class ApmServerReporterIntegrationTest {
     }
 
 
+    @Test
+    void testReportWithSerializerThreads() {
+        reporter.close();
+        doReturn(2).when(reporterConfiguration).getSerializerThreads();
+        startReporter();
+
+        for (int i = 0; i < 5; i++) {
+            reporter.report(new TransactionImpl(tracer));
+            reporter.report(new SpanImpl(tracer));
+        }
+        reporter.report(new ErrorCaptureImpl(tracer));
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+        assertThat(reporter.getDropped()).isEqualTo(0);
+        assertThat(reporter.getReported()).isEqualTo(11);
+        assertThat(receivedIntakeApiCalls.get()).isEqualTo(1);
+        // metadata + events
+        assertThat(receivedEvents.get()).isEqualTo(12);
+    }
+
+    @Test
+    void testReportWithQueueStripes() throws Exception {
+        reporter.close();
+        doReturn(4).when(reporterConfiguration).getQueueStripes();
+        doReturn(1).when(reporterConfiguration).getSerializerThreads();
+        startReporter();
+        assertThat(reporter.getQueueCapacity()).isEqualTo(MathUtils.getNextPowerOf2(reporterConfiguration.getMaxQueueSize() / 4) * 4L);
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 5; j++) {
+                        reporter.report(new TransactionImpl(tracer));
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+        assertThat(reporter.getDropped()).isEqualTo(0);
+        assertThat(reporter.getReported()).isEqualTo(20);
+        assertThat(receivedIntakeApiCalls.get()).isEqualTo(1);
+        // metadata + events
+        assertThat(receivedEvents.get()).isEqualTo(21);
+    }
+
+    @Test
+    void testReportWithPriorityLanes() {
+        reporter.close();
+        doReturn(true).when(reporterConfiguration).isQueuePriorityLanes();
+        doReturn(16).when(reporterConfiguration).getQueuePriorityLaneSize();
+        startReporter();
+        assertThat(reporter.getQueueCapacity()).isEqualTo(16 + 16 + MathUtils.getNextPowerOf2(reporterConfiguration.getMaxQueueSize()));
+
+        for (int i = 0; i < 5; i++) {
+            reporter.report(new TransactionImpl(tracer));
+            reporter.report(new SpanImpl(tracer));
+        }
+        reporter.report(new ErrorCaptureImpl(tracer));
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+        assertThat(reporter.getDropped()).isEqualTo(0);
+        assertThat(reporter.getReported()).isEqualTo(11);
+        assertThat(receivedIntakeApiCalls.get()).isEqualTo(1);
+        // metadata + events
+        assertThat(receivedEvents.get()).isEqualTo(12);
+    }
+
+    @Test
+    void testReportWithSerializeOnReport() {
+        reporter.close();
+        doReturn(true).when(reporterConfiguration).isSerializeOnReport();
+        startReporter();
+
+        TransactionImpl transaction = Mockito.spy(new TransactionImpl(tracer));
+        reporter.report(transaction);
+        // released before the event is handed over to the reporter thread
+        verify(transaction).decrementReferences();
+        for (int i = 0; i < 5; i++) {
+            reporter.report(new SpanImpl(tracer));
+        }
+        reporter.report(new ErrorCaptureImpl(tracer));
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+        assertThat(reporter.getDropped()).isEqualTo(0);
+        assertThat(reporter.getReported()).isEqualTo(7);
+        assertThat(receivedIntakeApiCalls.get()).isEqualTo(1);
+        // metadata + events
+        assertThat(receivedEvents.get()).isEqualTo(8);
+    }
+
+    @Test
+    void testReportWithAdaptiveCompressionUnderStress() {
+        reporter.close();
+        doReturn(true).when(reporterConfiguration).isAdaptiveCompression();
+        startReporter();
+
+        reporter.onStressDetected();
+        assertThat(reporter.isUnderStress()).isTrue();
+        for (int i = 0; i < 2; i++) {
+            reporter.report(new TransactionImpl(tracer));
+            assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+        }
+        reporter.onStressRelieved();
+        assertThat(reporter.isUnderStress()).isFalse();
+        assertThat(reporter.getDropped()).isEqualTo(0);
+        assertThat(reporter.getReported()).isEqualTo(2);
+        assertThat(receivedIntakeApiCalls.get()).isEqualTo(2);
+    }
+
     @Test
     void testContextPropagationOnlyRespected() {
         doReturn(true).when(coreConfiguration).isContextPropagationOnly();
@@ -0,0 +1,155 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.metadata.MetaDataMock;
+import co.elastic.apm.agent.impl.transaction.SpanImpl;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactoryImpl;
+import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.serialize.SerializationConstants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.InflaterInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class FileReportingEventHandlerTest {
+
+    private final ElasticApmTracer tracer = MockTracer.create();
+
+    @TempDir
+    File directory;
+
+    private ReporterConfigurationImpl reporterConfiguration;
+    private ApmServerReporter reporter;
+
+    @BeforeEach
+    void setUp() {
+        ConfigurationRegistry config = tracer.getConfigurationRegistry();
+        reporterConfiguration = config.getConfig(ReporterConfigurationImpl.class);
+        CoreConfigurationImpl coreConfiguration = config.getConfig(CoreConfigurationImpl.class);
+        SerializationConstants.init(coreConfiguration);
+        doReturn(64).when(reporterConfiguration).getMaxQueueSize();
+        doReturn(directory.getAbsolutePath()).when(reporterConfiguration).getIntakeFileDir();
+    }
+
+    private void startReporter() {
+        ConfigurationRegistry config = tracer.getConfigurationRegistry();
+        ApmServerClient apmServerClient = new ApmServerClient(config);
+        apmServerClient.start(Collections.emptyList());
+        DslJsonSerializer payloadSerializer = new DslJsonSerializer(SpyConfiguration.createSpyConfig(), apmServerClient, MetaDataMock.create());
+        FileReportingEventHandler handler = new FileReportingEventHandler(reporterConfiguration, ProcessorEventHandler.loadProcessors(config),
+            payloadSerializer, directory);
+        reporter = new ApmServerReporter(false, reporterConfiguration, config.getConfig(CoreConfigurationImpl.class), handler,
+            ReporterMonitor.NOOP, apmServerClient, payloadSerializer, new ObjectPoolFactoryImpl());
+        reporter.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        reporter.close();
+    }
+
+    @Test
+    void testWriteCompressedSegment() throws Exception {
+        startReporter();
+        reporter.report(new TransactionImpl(tracer));
+        reporter.report(new SpanImpl(tracer));
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+
+        assertThat(reporter.getReported()).isEqualTo(2);
+        File[] segments = getSegments();
+        assertThat(segments).hasSize(1);
+        assertThat(segments[0].getName()).endsWith(".ndjson.deflate");
+        List<String> lines = readLines(segments[0]);
+        assertThat(lines).hasSize(3);
+        assertThat(lines.get(0)).startsWith("{\"metadata\":");
+        assertThat(lines.get(1)).startsWith("{\"transaction\":");
+        assertThat(lines.get(2)).startsWith("{\"span\":");
+    }
+
+    @Test
+    void testRotateSegmentsBySize() throws Exception {
+        doReturn(false).when(reporterConfiguration).isIntakeFileCompression();
+        doReturn(1L).when(reporterConfiguration).getIntakeFileMaxSize();
+        startReporter();
+        for (int i = 0; i < 3; i++) {
+            reporter.report(new TransactionImpl(tracer));
+        }
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+
+        File[] segments = getSegments();
+        assertThat(segments).hasSize(3);
+        for (File segment : segments) {
+            assertThat(segment.getName()).endsWith(".ndjson");
+            List<String> lines = readLines(segment);
+            assertThat(lines).hasSize(2);
+            assertThat(lines.get(0)).startsWith("{\"metadata\":");
+            assertThat(lines.get(1)).startsWith("{\"transaction\":");
+        }
+    }
+
+    @Test
+    void testFinishSegmentOnClose() throws Exception {
+        startReporter();
+        reporter.report(new TransactionImpl(tracer));
+        reporter.close();
+
+        assertThat(reporter.getReported()).isEqualTo(1);
+        assertThat(getSegments()).hasSize(1);
+        assertThat(directory.list()).noneMatch(name -> name.endsWith(".tmp"));
+    }
+
+    private File[] getSegments() {
+        File[] segments = directory.listFiles((dir, name) -> name.startsWith("intake-") && !name.endsWith(".tmp"));
+        assertThat(segments).isNotNull();
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static List<String> readLines(File segment) throws Exception {
+        try (InputStream is = segment.getName().endsWith(".deflate")
+            ? new InflaterInputStream(new FileInputStream(segment))
+            : new FileInputStream(segment)) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            is.transferTo(content);
+            return Arrays.asList(content.toString(StandardCharsets.UTF_8).split("\n"));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IntakeLoadBalancerTest {
+
+    private URL server1;
+    private URL server2;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server1 = new URL("http://server1:8200");
+        server2 = new URL("http://server2:8200");
+    }
+
+    @Test
+    void testBalanceByEventCount() {
+        IntakeLoadBalancer loadBalancer = new IntakeLoadBalancer(ReporterConfigurationImpl.IntakeLoadBalancing.EVENT_COUNT);
+        loadBalancer.setServerUrls(List.of(server1, server2));
+
+        assertThat(loadBalancer.select()).isEqualTo(server1);
+        loadBalancer.onRequestFinished(server1, 100, 0);
+        assertThat(loadBalancer.select()).isEqualTo(server2);
+        loadBalancer.onRequestFinished(server2, 50, 0);
+        assertThat(loadBalancer.select()).isEqualTo(server2);
+        loadBalancer.onRequestFinished(server2, 60, 0);
+        assertThat(loadBalancer.select()).isEqualTo(server1);
+    }
+
+    @Test
+    void testBalanceByLatency() {
+        IntakeLoadBalancer loadBalancer = new IntakeLoadBalancer(ReporterConfigurationImpl.IntakeLoadBalancing.LATENCY);
+        loadBalancer.setServerUrls(List.of(server1, server2));
+
+        // servers without samples are selected first
+        assertThat(loadBalancer.select()).isEqualTo(server1);
+        loadBalancer.onRequestFinished(server1, 1, TimeUnit.MILLISECONDS.toNanos(1));
+        assertThat(loadBalancer.select()).isEqualTo(server2);
+        loadBalancer.onRequestFinished(server2, 1, TimeUnit.MILLISECONDS.toNanos(99));
+
+        Map<URL, Integer> selections = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            selections.merge(loadBalancer.select(), 1, Integer::sum);
+        }
+        assertThat(selections.get(server1)).isGreaterThan(900);
+        assertThat(selections.get(server2)).isPositive();
+    }
+
+    @Test
+    void testExcludeServerAfterError() {
+        IntakeLoadBalancer loadBalancer = new IntakeLoadBalancer(ReporterConfigurationImpl.IntakeLoadBalancing.EVENT_COUNT);
+        loadBalancer.setServerUrls(List.of(server1, server2));
+
+        // like the backoff of the reporter, the first error does not exclude a server
+        loadBalancer.onError(server1);
+        loadBalancer.onError(server2);
+        assertThat(loadBalancer.isAnyServerAvailable()).isTrue();
+
+        loadBalancer.onError(server1);
+        assertThat(loadBalancer.isAnyServerAvailable()).isTrue();
+        for (int i = 0; i < 10; i++) {
+            assertThat(loadBalancer.select()).isEqualTo(server2);
+            loadBalancer.onRequestFinished(server2, 100, 0);
+        }
+
+        loadBalancer.onError(server2);
+        loadBalancer.onError(server2);
+        assertThat(loadBalancer.isAnyServerAvailable()).isFalse();
+        // server1 has been excluded before server2
+        assertThat(loadBalancer.select()).isEqualTo(server1);
+    }
+
+    @Test
+    void testKeepStateWhenServerUrlsChange() throws Exception {
+        IntakeLoadBalancer loadBalancer = new IntakeLoadBalancer(ReporterConfigurationImpl.IntakeLoadBalancing.EVENT_COUNT);
+        loadBalancer.setServerUrls(List.of(server1, server2));
+        loadBalancer.onRequestFinished(server1, 100, 0);
+
+        URL server3 = new URL("http://server3:8200");
+        loadBalancer.setServerUrls(List.of(new URL(server1.toString()), server3));
+        assertThat(loadBalancer.select()).isEqualTo(server3);
+        loadBalancer.onRequestFinished(server3, 101, 0);
+        assertThat(loadBalancer.select()).isEqualTo(server1);
+    }
+
+    @Test
+    void testNoServers() {
+        IntakeLoadBalancer loadBalancer = new IntakeLoadBalancer(ReporterConfigurationImpl.IntakeLoadBalancing.LATENCY);
+        assertThat(loadBalancer.select()).isNull();
+        assertThat(loadBalancer.isAnyServerAvailable()).isFalse();
+    }
+}
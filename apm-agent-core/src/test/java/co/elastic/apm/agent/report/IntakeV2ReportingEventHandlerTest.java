@@ -31,6 +31,7 @@ import co.elastic.apm.agent.impl.transaction.SpanImpl;
 import co.elastic.apm.agent.impl.transaction.TransactionImpl;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.spool.DiskSpool;
 import com.dslplatform.json.DslJson;
 import com.dslplatform.json.JsonWriter;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -42,6 +43,7 @@ import org.junit.Rule;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nonnull;
@@ -51,6 +53,10 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -58,6 +64,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static co.elastic.apm.agent.report.IntakeV2ReportingEventHandler.INTAKE_V2_FLUSH_URL;
 import static co.elastic.apm.agent.report.IntakeV2ReportingEventHandler.INTAKE_V2_URL;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
 import static com.github.tomakehurst.wiremock.client.WireMock.ok;
@@ -66,7 +73,14 @@ import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.serviceUnavailable;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 class IntakeV2ReportingEventHandlerTest {
 
@@ -80,6 +94,8 @@ class IntakeV2ReportingEventHandlerTest {
     private IntakeV2ReportingEventHandler reportingEventHandler;
     private IntakeV2ReportingEventHandler nonConnectedReportingEventHandler;
     private ApmServerClient apmServerClient;
+    private ApmServerClient nonConnectedApmServerClient;
+    private ReporterConfigurationImpl reporterConfiguration;
 
     @Nonnull
     private static JsonNode getReadTree(String s) {
@@ -102,7 +118,7 @@ class IntakeV2ReportingEventHandlerTest {
         mockApmServer2.start();
 
         final ConfigurationRegistry configurationRegistry = SpyConfiguration.createSpyConfig();
-        final ReporterConfigurationImpl reporterConfiguration = configurationRegistry.getConfig(ReporterConfigurationImpl.class);
+        reporterConfiguration = configurationRegistry.getConfig(ReporterConfigurationImpl.class);
         final CoreConfigurationImpl coreConfiguration = configurationRegistry.getConfig(CoreConfigurationImpl.class);
         SystemInfo system = new SystemInfo("x64", "localhost", null, "platform");
         final ProcessInfo title = new ProcessInfo("title");
@@ -125,7 +141,7 @@ class IntakeV2ReportingEventHandlerTest {
 
         final ProcessInfo title1 = new ProcessInfo("title");
         final ServiceImpl service1 = new ServiceImpl();
-        ApmServerClient nonConnectedApmServerClient = new ApmServerClient(configurationRegistry);
+        nonConnectedApmServerClient = new ApmServerClient(configurationRegistry);
         nonConnectedApmServerClient.start(List.of(new URL("http://non.existing:8080")));
         nonConnectedReportingEventHandler = new IntakeV2ReportingEventHandler(
             reporterConfiguration,
@@ -185,6 +201,194 @@ class IntakeV2ReportingEventHandlerTest {
         assertThat(ndJsonNodes.get(5).get("metrics")).isNotNull();
     }
 
+    @Test
+    void testReportPreSerializedEvents() throws Exception {
+        ProcessorEventHandler processorEventHandler = mock(ProcessorEventHandler.class);
+        SerializingEventHandler serializingEventHandler = new SerializingEventHandler(0, 1, processorEventHandler, new DslJsonSerializer(
+            SpyConfiguration.createSpyConfig(),
+            apmServerClient,
+            MetaDataMock.create(new ProcessInfo("title"), new ServiceImpl(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null)
+        ));
+
+        final ReportingEvent transactionEvent = new ReportingEvent();
+        transactionEvent.setTransaction(new TransactionImpl(MockTracer.create()));
+        final ReportingEvent spanEvent = new ReportingEvent();
+        spanEvent.setSpan(new SpanImpl(MockTracer.create()));
+        for (ReportingEvent event : List.of(transactionEvent, spanEvent)) {
+            serializingEventHandler.onEvent(event, 0, true);
+            assertThat(event.isSerialized()).isTrue();
+            assertThat(event.isPreProcessed()).isTrue();
+            reportingEventHandler.onEvent(event, 0, true);
+            assertThat(event.isSerialized()).isFalse();
+        }
+        verify(processorEventHandler, times(2)).onEvent(any(), anyLong(), anyBoolean());
+        reportingEventHandler.endRequest();
+
+        final List<JsonNode> ndJsonNodes = getNdJsonNodes();
+        assertThat(ndJsonNodes).hasSize(3);
+        assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+        assertThat(ndJsonNodes.get(1).get("transaction")).isNotNull();
+        assertThat(ndJsonNodes.get(2).get("span")).isNotNull();
+    }
+
+    @Test
+    void testSerializingEventHandlerOnlyHandlesOwnSequences() {
+        SerializingEventHandler serializingEventHandler = new SerializingEventHandler(1, 2, mock(ProcessorEventHandler.class), new DslJsonSerializer(
+            SpyConfiguration.createSpyConfig(),
+            apmServerClient,
+            MetaDataMock.create(new ProcessInfo("title"), new ServiceImpl(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null)
+        ));
+        final ReportingEvent reportingEvent = new ReportingEvent();
+        reportingEvent.setTransaction(new TransactionImpl(MockTracer.create()));
+
+        serializingEventHandler.onEvent(reportingEvent, 2, true);
+        assertThat(reportingEvent.isSerialized()).isFalse();
+        serializingEventHandler.onEvent(reportingEvent, 3, true);
+        assertThat(reportingEvent.isSerialized()).isTrue();
+    }
+
+    @Test
+    void testSpoolWhileApmServerIsNotAvailable(@TempDir Path spoolDir) throws Exception {
+        doReturn(spoolDir.toString()).when(reporterConfiguration).getSpoolDir();
+
+        IntakeV2ReportingEventHandler spoolingHandler = createHandler(nonConnectedApmServerClient);
+        reportTransaction(spoolingHandler);
+        reportTransaction(spoolingHandler);
+        reportTransaction(spoolingHandler);
+        assertThat(spoolingHandler.getDropped()).isZero();
+        assertThat(spoolingHandler.getReported()).isZero();
+        assertThat(spoolingHandler.isHealthy()).isFalse();
+        spoolingHandler.close();
+
+        // the spooled events survive a restart and are sent before the new events
+        IntakeV2ReportingEventHandler replayingHandler = createHandler(apmServerClient);
+        final ReportingEvent spanEvent = new ReportingEvent();
+        spanEvent.setSpan(new SpanImpl(MockTracer.create()));
+        replayingHandler.onEvent(spanEvent, -1, true);
+        replayingHandler.endRequest();
+        replayingHandler.close();
+
+        assertThat(replayingHandler.getDropped()).isZero();
+        assertThat(replayingHandler.getReported()).isEqualTo(4);
+        List<List<JsonNode>> requests = getNdJsonRequests();
+        assertThat(requests).hasSize(2);
+        assertThat(requests.get(0)).hasSize(4);
+        assertThat(requests.get(0).get(0).get("metadata")).isNotNull();
+        for (JsonNode node : requests.get(0).subList(1, 4)) {
+            assertThat(node.get("transaction")).isNotNull();
+        }
+        assertThat(requests.get(1)).hasSize(2);
+        assertThat(requests.get(1).get(1).get("span")).isNotNull();
+    }
+
+    @Test
+    void testReplayOneSpooledSegmentPerEvent(@TempDir Path spoolDir) throws Exception {
+        doReturn(spoolDir.toString()).when(reporterConfiguration).getSpoolDir();
+
+        IntakeV2ReportingEventHandler spoolingHandler = createHandler(nonConnectedApmServerClient);
+        reportTransaction(spoolingHandler);
+        spoolingHandler.close();
+        // the next segments hold two transactions each
+        doReturn(2L * getOldestSpooledSegmentSize(spoolDir) + 1).when(reporterConfiguration).getApiRequestSize();
+        spoolingHandler = createHandler(nonConnectedApmServerClient);
+        reportTransaction(spoolingHandler);
+        reportTransaction(spoolingHandler);
+        spoolingHandler.close();
+
+        IntakeV2ReportingEventHandler replayingHandler = createHandler(apmServerClient);
+        reportTransaction(replayingHandler);
+        assertThat(getNdJsonRequests()).hasSize(1);
+        assertThat(replayingHandler.getReported()).isEqualTo(1);
+        reportTransaction(replayingHandler);
+        assertThat(getNdJsonRequests()).hasSize(2);
+        assertThat(replayingHandler.getReported()).isEqualTo(3);
+        // replays the two events which have been spooled in the meantime, then sends the current event
+        reportTransaction(replayingHandler);
+        replayingHandler.endRequest();
+        replayingHandler.close();
+
+        assertThat(replayingHandler.getDropped()).isZero();
+        assertThat(replayingHandler.getReported()).isEqualTo(6);
+        assertThat(getNdJsonRequests().stream().map(List::size)).containsExactly(2, 3, 3, 2);
+    }
+
+    private static int getOldestSpooledSegmentSize(Path spoolDir) {
+        DiskSpool spool = DiskSpool.open(spoolDir.toFile(), Long.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE, eventCounts -> {
+        });
+        assertThat(spool).isNotNull();
+        try {
+            DiskSpool.Segment segment = spool.getOldestSegment();
+            assertThat(segment).isNotNull();
+            return segment.getData().remaining();
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    void testNoFlushRequestWhileBackingOff(@TempDir Path spoolDir) throws Exception {
+        doReturn(spoolDir.toString()).when(reporterConfiguration).getSpoolDir();
+        mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(serviceUnavailable()));
+        mockApmServer2.stubFor(post(APM_SERVER_PATH + INTAKE_V2_URL).willReturn(serviceUnavailable()));
+
+        IntakeV2ReportingEventHandler spoolingHandler = createHandler(apmServerClient);
+        // the first error does not back off
+        reportTransaction(spoolingHandler);
+        spoolingHandler.endRequest();
+        reportTransaction(spoolingHandler);
+        spoolingHandler.endRequest();
+        assertThat(spoolingHandler.isHealthy()).isFalse();
+
+        ReportingEvent flushEvent = new ReportingEvent();
+        flushEvent.setMakeFlushRequestEvent();
+        spoolingHandler.onEvent(flushEvent, -1, true);
+        spoolingHandler.close();
+
+        mockApmServer1.verify(0, postRequestedFor(urlEqualTo(INTAKE_V2_FLUSH_URL)));
+        mockApmServer2.verify(0, postRequestedFor(urlEqualTo(APM_SERVER_PATH + INTAKE_V2_FLUSH_URL)));
+    }
+
+    @Test
+    void testSpoolIsOnlyUnmappedByReporterThread(@TempDir Path tempDir) throws Exception {
+        Path maps = Paths.get("/proc/self/maps");
+        assumeTrue(Files.isReadable(maps));
+
+        Path shutDownSpoolDir = tempDir.toRealPath().resolve("shut-down");
+        doReturn(shutDownSpoolDir.toString()).when(reporterConfiguration).getSpoolDir();
+        IntakeV2ReportingEventHandler shutDownHandler = createHandler(nonConnectedApmServerClient);
+        reportTransaction(shutDownHandler);
+        assertThat(readString(maps)).contains(shutDownSpoolDir.toString());
+        ReportingEvent shutdownEvent = new ReportingEvent();
+        shutdownEvent.shutdownEvent();
+        shutDownHandler.onEvent(shutdownEvent, -1, true);
+        assertThat(readString(maps)).doesNotContain(shutDownSpoolDir.toString());
+        shutDownHandler.close();
+
+        // without a processed shutdown event, the reporter thread might still access the segments
+        Path closedSpoolDir = tempDir.toRealPath().resolve("closed");
+        doReturn(closedSpoolDir.toString()).when(reporterConfiguration).getSpoolDir();
+        IntakeV2ReportingEventHandler closedHandler = createHandler(nonConnectedApmServerClient);
+        reportTransaction(closedHandler);
+        closedHandler.close();
+        assertThat(readString(maps)).contains(closedSpoolDir.toString());
+    }
+
+    private static String readString(Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+
+    private IntakeV2ReportingEventHandler createHandler(ApmServerClient apmServerClient) {
+        return new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(
+                SpyConfiguration.createSpyConfig(),
+                apmServerClient,
+                MetaDataMock.create(new ProcessInfo("title"), new ServiceImpl(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null)
+            ),
+            apmServerClient);
+    }
+
     @Test
     void testNoopWhenNotConnected() throws Exception {
         reportTransaction(nonConnectedReportingEventHandler);
@@ -282,6 +486,15 @@ class IntakeV2ReportingEventHandlerTest {
         reportingEventHandler.onEvent(reportingEvent, -1, true);
     }
 
+    private List<List<JsonNode>> getNdJsonRequests() {
+        return mockApmServer1.findAll(postRequestedFor(urlEqualTo(INTAKE_V2_URL))).stream()
+            .map(request -> new BufferedReader(new InputStreamReader(new ByteArrayInputStream(request.getBody())))
+                .lines()
+                .map(IntakeV2ReportingEventHandlerTest::getReadTree)
+                .collect(Collectors.toList()))
+            .collect(Collectors.toList());
+    }
+
     private List<JsonNode> getNdJsonNodes() {
         return Stream.of(mockApmServer1, mockApmServer2)
             .flatMap(apmServer -> apmServer.findAll(postRequestedFor(urlEqualTo(INTAKE_V2_URL))).stream())
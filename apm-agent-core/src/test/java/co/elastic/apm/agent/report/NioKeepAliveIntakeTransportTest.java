@@ -0,0 +1,160 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class NioKeepAliveIntakeTransportTest {
+
+    private static final String PATH = IntakeV2ReportingEventHandler.INTAKE_V2_URL;
+
+    private final WireMockRule mockApmServer = new WireMockRule(WireMockConfiguration.wireMockConfig().dynamicPort());
+    private NioKeepAliveIntakeTransport transport;
+    private URL url;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        mockApmServer.stubFor(post(PATH).willReturn(aResponse().withStatus(202)));
+        mockApmServer.start();
+
+        ConfigurationRegistry config = SpyConfiguration.createSpyConfig();
+        ReporterConfigurationImpl reporterConfiguration = config.getConfig(ReporterConfigurationImpl.class);
+        doReturn(ReporterConfigurationImpl.IntakeTransportType.NIO_KEEP_ALIVE).when(reporterConfiguration).getIntakeTransport();
+        doReturn("token").when(reporterConfiguration).getSecretToken();
+        ApmServerClient apmServerClient = new ApmServerClient(config);
+        assertThat(apmServerClient.getIntakeTransport()).isInstanceOf(NioKeepAliveIntakeTransport.class);
+        transport = (NioKeepAliveIntakeTransport) apmServerClient.getIntakeTransport();
+        url = new URL("http://localhost:" + mockApmServer.port() + PATH);
+    }
+
+    @AfterEach
+    void tearDown() {
+        transport.close();
+        mockApmServer.stop();
+    }
+
+    @Test
+    void testConnectionIsReusedAcrossRequests() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertThat(sendRequest("{\"request\":" + i + "}\n")).isEqualTo(202);
+        }
+
+        assertThat(transport.getOpenedConnections()).isEqualTo(1);
+        List<LoggedRequest> requests = mockApmServer.findAll(postRequestedFor(urlEqualTo(PATH)));
+        assertThat(requests).hasSize(3);
+        for (int i = 0; i < 3; i++) {
+            LoggedRequest request = requests.get(i);
+            assertThat(request.getBodyAsString()).isEqualTo("{\"request\":" + i + "}\n");
+            assertThat(request.getHeader("Content-Type")).isEqualTo("application/x-ndjson");
+            assertThat(request.getHeader("Authorization")).isEqualTo("Bearer token");
+            assertThat(request.getHeader("User-Agent")).startsWith("apm-agent-java/");
+        }
+    }
+
+    @Test
+    void testLargeChunkedBody() throws Exception {
+        byte[] line = new byte[100_000];
+        Arrays.fill(line, (byte) 'a');
+        line[line.length - 1] = '\n';
+
+        IntakeConnection connection = transport.startRequest(url, Map.of("Content-Type", "application/x-ndjson"));
+        try (OutputStream os = connection.getOutputStream()) {
+            // mix of single-byte and bulk writes, crossing multiple chunk boundaries
+            os.write(line[0]);
+            os.write(line, 1, line.length - 1);
+            os.flush();
+            os.write(line);
+        }
+        assertThat(connection.getResponseCode()).isEqualTo(202);
+        connection.close();
+
+        String body = mockApmServer.findAll(postRequestedFor(urlEqualTo(PATH))).get(0).getBodyAsString();
+        String expectedLine = new String(line, StandardCharsets.US_ASCII);
+        assertThat(body).isEqualTo(expectedLine + expectedLine);
+    }
+
+    @Test
+    void testErrorResponseBody() throws Exception {
+        mockApmServer.stubFor(post(PATH).willReturn(aResponse().withStatus(503).withBody("{\"accepted\":1}")));
+
+        IntakeConnection connection = transport.startRequest(url, Map.of("Content-Type", "application/x-ndjson"));
+        connection.getOutputStream().write("{}\n".getBytes(StandardCharsets.UTF_8));
+        assertThat(connection.getResponseCode()).isEqualTo(503);
+        assertThat(connection.getResponseBody()).isEqualTo("{\"accepted\":1}");
+        connection.close();
+
+        // the connection is still healthy after an error response and can be re-used
+        mockApmServer.stubFor(post(PATH).willReturn(aResponse().withStatus(202)));
+        assertThat(sendRequest("{}\n")).isEqualTo(202);
+        assertThat(transport.getOpenedConnections()).isEqualTo(1);
+    }
+
+    @Test
+    void testReconnectAfterAbort() throws Exception {
+        IntakeConnection connection = transport.startRequest(url, Map.of("Content-Type", "application/x-ndjson"));
+        connection.getOutputStream().write("{}\n".getBytes(StandardCharsets.UTF_8));
+        connection.abort();
+
+        assertThat(sendRequest("{}\n")).isEqualTo(202);
+        assertThat(transport.getOpenedConnections()).isEqualTo(2);
+    }
+
+    @Test
+    void testReconnectAfterClose() throws Exception {
+        assertThat(sendRequest("{}\n")).isEqualTo(202);
+        transport.close();
+        assertThat(sendRequest("{}\n")).isEqualTo(202);
+        assertThat(transport.getOpenedConnections()).isEqualTo(2);
+        mockApmServer.verify(2, postRequestedFor(urlEqualTo(PATH)).withHeader("Content-Type", equalTo("application/x-ndjson")));
+    }
+
+    private int sendRequest(String body) throws Exception {
+        IntakeConnection connection = transport.startRequest(url, Map.of("Content-Type", "application/x-ndjson"));
+        try {
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            return connection.getResponseCode();
+        } finally {
+            connection.close();
+        }
+    }
+}
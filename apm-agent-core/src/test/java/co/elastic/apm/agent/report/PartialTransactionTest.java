@@ -37,6 +37,7 @@ import org.stagemonitor.configuration.ConfigurationRegistry;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
@@ -59,6 +60,7 @@ public class PartialTransactionTest {
     private static MockReporter reporter;
     private static TestObjectPoolFactory objectPoolFactory;
     private static ConfigurationRegistry spyConfig;
+    private PartialTransactionReporter partialTransactionReporter;
 
     @BeforeAll
     public static void setupTracer() {
@@ -80,19 +82,20 @@ public class PartialTransactionTest {
 
         DslJsonSerializer serializer = new DslJsonSerializer(spyConfig, client, MetaDataMock.create());
 
-        PartialTransactionReporter partialTransactionReporter = new PartialTransactionReporter(client, serializer, objectPoolFactory);
+        partialTransactionReporter = new PartialTransactionReporter(client, serializer, objectPoolFactory);
         reporter.setPartialTransactionHandler(partialTransactionReporter::reportPartialTransaction);
     }
 
     @AfterEach
     public void cleanup() {
+        partialTransactionReporter.close();
         reporter.reset();
         objectPoolFactory.checkAllPooledObjectsHaveBeenRecycled();
         objectPoolFactory.reset();
     }
 
     @Test
-    public void testReportAwsLambdaTransaction() {
+    public void testReportAwsLambdaTransaction() throws Exception {
         apmServer.stubFor(post(urlEqualTo("/register/transaction")).willReturn(aResponse().withStatus(200)));
         ServerlessConfigurationImpl serverlessConfig = spyConfig.getConfig(ServerlessConfigurationImpl.class);
         doReturn(true).when(serverlessConfig).runsOnAwsLambda();
@@ -103,6 +106,7 @@ public class PartialTransactionTest {
         tx1.getFaas().withExecution("foo-bar-id");
 
         tx1.activate();
+        awaitRegistrations();
 
         assertThat(apmServer.findAll(postRequestedFor(urlEqualTo("/register/transaction"))))
             .hasSize(1)
@@ -130,6 +134,7 @@ public class PartialTransactionTest {
 
         //ensure reporting only happens after first activation
         tx1.activate();
+        awaitRegistrations();
         tx1.deactivate().end();
         apmServer.verify(1, postRequestedFor(urlEqualTo("/register/transaction")));
 
@@ -138,6 +143,7 @@ public class PartialTransactionTest {
             .withName("second-faas-transaction");
         tx2.getFaas().withExecution("baz-id");
         tx2.activate();
+        awaitRegistrations();
 
         assertThat(apmServer.findAll(postRequestedFor(urlEqualTo("/register/transaction"))))
             .hasSize(2)
@@ -166,7 +172,29 @@ public class PartialTransactionTest {
 
 
     @Test
-    public void testNoMoreReportingAfter4xx() {
+    public void testReportingDoesNotBlock() throws Exception {
+        apmServer.stubFor(post(urlEqualTo("/register/transaction")).willReturn(aResponse().withStatus(200).withFixedDelay(2000)));
+        ServerlessConfigurationImpl serverlessConfig = spyConfig.getConfig(ServerlessConfigurationImpl.class);
+        doReturn(true).when(serverlessConfig).runsOnAwsLambda();
+
+        TransactionImpl transaction = tracer
+            .startRootTransaction(null)
+            .withName("faas-transaction");
+        transaction.getFaas().withExecution("foo-bar-id");
+
+        long start = System.nanoTime();
+        transaction.activate();
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(1000);
+
+        // the wait for pending registrations is bounded
+        assertThat(partialTransactionReporter.flush(10, TimeUnit.MILLISECONDS)).isFalse();
+        awaitRegistrations();
+        apmServer.verify(1, postRequestedFor(urlEqualTo("/register/transaction")));
+        transaction.deactivate().end();
+    }
+
+    @Test
+    public void testNoMoreReportingAfter4xx() throws Exception {
         apmServer.stubFor(post(urlEqualTo("/register/transaction")).willReturn(aResponse().withStatus(404)));
         ServerlessConfigurationImpl serverlessConfig = spyConfig.getConfig(ServerlessConfigurationImpl.class);
         doReturn(true).when(serverlessConfig).runsOnAwsLambda();
@@ -176,6 +204,7 @@ public class PartialTransactionTest {
             .withName("faas-transaction");
         tx1.getFaas().withExecution("foo-bar-id");
         tx1.activate();
+        awaitRegistrations();
         apmServer.verify(1, postRequestedFor(urlEqualTo("/register/transaction")));
 
         tx1.deactivate().end();
@@ -185,6 +214,7 @@ public class PartialTransactionTest {
             .withName("faas-transaction");
         tx2.getFaas().withExecution("foo-bar-id");
         tx2.activate();
+        awaitRegistrations();
         tx2.deactivate().end();
         //There should be no more requests
         apmServer.verify(1, postRequestedFor(urlEqualTo("/register/transaction")));
@@ -192,17 +222,22 @@ public class PartialTransactionTest {
 
 
     @Test
-    public void testNonLambdaTransactionNotReported() {
+    public void testNonLambdaTransactionNotReported() throws Exception {
         apmServer.stubFor(post(urlEqualTo("/register/transaction")).willReturn(aResponse().withStatus(200)));
         ServerlessConfigurationImpl serverlessConfig = spyConfig.getConfig(ServerlessConfigurationImpl.class);
         doReturn(true).when(serverlessConfig).runsOnAwsLambda();
 
         TransactionImpl transaction = tracer.startRootTransaction(null).withName("nonfaas-transaction");
         transaction.activate();
+        awaitRegistrations();
 
         apmServer.verify(0, postRequestedFor(urlEqualTo("/register/transaction")));
 
         transaction.deactivate().end();
         apmServer.verify(0, postRequestedFor(urlEqualTo("/register/transaction")));
     }
+
+    private void awaitRegistrations() throws InterruptedException {
+        assertThat(partialTransactionReporter.flush(5, TimeUnit.SECONDS)).isTrue();
+    }
 }
@@ -0,0 +1,150 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import com.dslplatform.json.DslJson;
+import com.dslplatform.json.JsonWriter;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.METRICSET_JSON_WRITER;
+import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.STRING_LOG;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class PriorityLaneReportingEventQueueTest {
+
+    private static final EventTranslatorOneArg<ReportingEvent, String> LOG_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, String>() {
+        @Override
+        public void translateTo(ReportingEvent event, long sequence, String log) {
+            event.setStringLog(log);
+        }
+    };
+    private static final EventTranslatorOneArg<ReportingEvent, JsonWriter> METRICS_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, JsonWriter>() {
+        @Override
+        public void translateTo(ReportingEvent event, long sequence, JsonWriter jsonWriter) {
+            event.setMetricSet(jsonWriter);
+        }
+    };
+    private static final EventTranslatorOneArg<ReportingEvent, Thread> FLUSH_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, Thread>() {
+        @Override
+        public void translateTo(ReportingEvent event, long sequence, @Nullable Thread unparkAfterProcessed) {
+            event.setEndRequestEvent();
+            event.unparkAfterProcessed(unparkAfterProcessed);
+        }
+    };
+
+    private final RecordingReportingEventHandler handler = new RecordingReportingEventHandler();
+    private final ReporterMonitor monitor = mock(ReporterMonitor.class);
+    private final JsonWriter jsonWriter = new DslJson<>(new DslJson.Settings<>()).newWriter();
+    @Nullable
+    private PriorityLaneReportingEventQueue queue;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (queue != null) {
+            queue.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void testSpanLaneFullDoesNotDropMetrics() {
+        PriorityLaneReportingEventQueue queue = new PriorityLaneReportingEventQueue(4, 4, handler, monitor);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(queue.tryPublish(STRING_LOG, LOG_TRANSLATOR, "log-" + i)).isEqualTo(i < 4);
+        }
+        assertThat(queue.tryPublish(METRICSET_JSON_WRITER, METRICS_TRANSLATOR, jsonWriter)).isTrue();
+
+        verify(monitor, times(6)).eventDroppedFromLane("span", STRING_LOG);
+        // the lane utilization is only sampled by the reporter thread
+        verify(monitor, never()).laneUtilizationChanged(anyString(), anyLong(), anyLong());
+        assertThat(queue.getCapacity()).isEqualTo(12);
+        assertThat(queue.getElementCount()).isEqualTo(5);
+    }
+
+    @Test
+    void testPriorityLaneOverflowsIntoLowerLanes() {
+        PriorityLaneReportingEventQueue queue = new PriorityLaneReportingEventQueue(2, 2, handler, monitor);
+
+        for (int i = 0; i < 6; i++) {
+            assertThat(queue.tryPublish(METRICSET_JSON_WRITER, METRICS_TRANSLATOR, jsonWriter)).isTrue();
+        }
+        assertThat(queue.tryPublish(METRICSET_JSON_WRITER, METRICS_TRANSLATOR, jsonWriter)).isFalse();
+
+        verify(monitor, times(5)).eventOverflowedLane("priority", METRICSET_JSON_WRITER);
+        verify(monitor, times(3)).eventOverflowedLane("transaction", METRICSET_JSON_WRITER);
+        verify(monitor).eventDroppedFromLane("priority", METRICSET_JSON_WRITER);
+    }
+
+    @Test
+    void testHigherPriorityLanesAreProcessedFirst() {
+        queue = new PriorityLaneReportingEventQueue(4, 512, handler, monitor);
+        for (int i = 0; i < 300; i++) {
+            queue.publish(STRING_LOG, LOG_TRANSLATOR, "log-" + i);
+        }
+        queue.publish(METRICSET_JSON_WRITER, METRICS_TRANSLATOR, jsonWriter);
+        queue.start();
+
+        await().untilAsserted(() -> assertThat(handler.events).hasSize(301));
+        assertThat(handler.events.get(0)).isEqualTo(METRICSET_JSON_WRITER.name());
+        assertThat(handler.events.get(1)).isEqualTo("log-0");
+    }
+
+    @Test
+    void testLaneUtilizationIsSampledAfterProcessing() {
+        queue = new PriorityLaneReportingEventQueue(4, 512, handler, monitor);
+        for (int i = 0; i < 300; i++) {
+            queue.publish(STRING_LOG, LOG_TRANSLATOR, "log-" + i);
+        }
+        queue.publish(METRICSET_JSON_WRITER, METRICS_TRANSLATOR, jsonWriter);
+        queue.start();
+
+        await().untilAsserted(() -> assertThat(handler.events).hasSize(301));
+        // after processing the metric set, the span lane has not been processed yet
+        verify(monitor).laneUtilizationChanged("span", 512, 300);
+        await().untilAsserted(() -> verify(monitor, atLeastOnce()).laneUtilizationChanged("span", 512, 0));
+        verify(monitor, atLeastOnce()).laneUtilizationChanged("priority", 4, 0);
+    }
+
+    @Test
+    void testFlushIsProcessedAfterEventsOfAllLanes() throws Exception {
+        queue = new PriorityLaneReportingEventQueue(4, 512, handler, monitor);
+        for (int i = 0; i < 300; i++) {
+            queue.publish(STRING_LOG, LOG_TRANSLATOR, "log-" + i);
+        }
+        final long ticket = queue.tryPublishControlEvent(FLUSH_TRANSLATOR, Thread.currentThread());
+        queue.start();
+
+        await().until(() -> queue.isProcessed(ticket));
+        assertThat(handler.events).hasSize(301);
+        assertThat(handler.events.get(300)).isEqualTo(ReportingEvent.ReportingEventType.END_REQUEST.name());
+    }
+}
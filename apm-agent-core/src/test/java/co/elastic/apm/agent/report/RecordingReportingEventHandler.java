@@ -0,0 +1,84 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import com.lmax.disruptor.EventHandler;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records the events it receives: the log message for {@link ReportingEvent.ReportingEventType#STRING_LOG} events,
+ * and the name of the event type for all others.
+ */
+class RecordingReportingEventHandler implements ReportingEventHandler {
+
+    final List<String> events = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
+        try {
+            events.add(event.getType() == ReportingEvent.ReportingEventType.STRING_LOG ? event.getStringLog() : event.getType().name());
+        } finally {
+            event.end();
+            event.resetState();
+        }
+    }
+
+    @Override
+    public void init(ApmServerReporter reporter) {
+    }
+
+    @Override
+    public long getReported() {
+        return events.size();
+    }
+
+    @Override
+    public long getDropped() {
+        return 0;
+    }
+
+    @Override
+    public boolean isProcessed(long sequence) {
+        return false;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return true;
+    }
+
+    @Override
+    public List<EventHandler<ReportingEvent>> getPreprocessingHandlers() {
+        return Collections.emptyList();
+    }
+
+    @Nullable
+    @Override
+    public EagerEventSerializer getEagerEventSerializer() {
+        return null;
+    }
+}
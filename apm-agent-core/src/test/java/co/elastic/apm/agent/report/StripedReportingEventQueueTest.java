@@ -0,0 +1,137 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class StripedReportingEventQueueTest {
+
+    private static final EventTranslatorOneArg<ReportingEvent, String> LOG_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, String>() {
+        @Override
+        public void translateTo(ReportingEvent event, long sequence, String log) {
+            event.setStringLog(log);
+        }
+    };
+    private static final EventTranslatorOneArg<ReportingEvent, Thread> FLUSH_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, Thread>() {
+        @Override
+        public void translateTo(ReportingEvent event, long sequence, @Nullable Thread unparkAfterProcessed) {
+            event.setEndRequestEvent();
+            event.unparkAfterProcessed(unparkAfterProcessed);
+        }
+    };
+
+    private RecordingReportingEventHandler handler;
+    private StripedReportingEventQueue queue;
+
+    @BeforeEach
+    void setUp() {
+        handler = new RecordingReportingEventHandler();
+        queue = new StripedReportingEventQueue(4, 1024, handler);
+        queue.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        queue.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void testCapacity() {
+        assertThat(queue.getCapacity()).isEqualTo(4 * 1024);
+        assertThat(queue.getElementCount()).isEqualTo(0);
+    }
+
+    @Test
+    void testControlEventIsProcessedAfterEventsOfAllStripes() throws Exception {
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final String name = "producer-" + i;
+            producers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        queue.publish(ReportingEvent.ReportingEventType.STRING_LOG, LOG_TRANSLATOR, name);
+                    }
+                }
+            }));
+        }
+        for (Thread producer : producers) {
+            producer.start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        final long ticket = queue.tryPublishControlEvent(FLUSH_TRANSLATOR, Thread.currentThread());
+        await().until(() -> queue.isProcessed(ticket));
+
+        assertThat(handler.events).hasSize(8 * 100 + 1);
+        assertThat(handler.events.get(handler.events.size() - 1)).isEqualTo(ReportingEvent.ReportingEventType.END_REQUEST.name());
+        for (int i = 0; i < 8; i++) {
+            assertThat(Collections.frequency(handler.events, "producer-" + i)).isEqualTo(100);
+        }
+    }
+
+    @Test
+    void testPreprocessingHandlersRunBeforeReportingEventHandler() throws Exception {
+        queue.shutdown(1, TimeUnit.SECONDS);
+        final List<String> preprocessed = new CopyOnWriteArrayList<>();
+        handler = new RecordingReportingEventHandler() {
+            @Override
+            public List<EventHandler<ReportingEvent>> getPreprocessingHandlers() {
+                return Collections.<EventHandler<ReportingEvent>>singletonList(new EventHandler<ReportingEvent>() {
+                    @Override
+                    public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
+                        preprocessed.add(event.getStringLog());
+                    }
+                });
+            }
+
+            @Override
+            public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
+                assertThat(preprocessed).contains(event.getStringLog());
+                super.onEvent(event, sequence, endOfBatch);
+            }
+        };
+        queue = new StripedReportingEventQueue(2, 16, handler);
+        queue.start();
+
+        for (int i = 0; i < 100; i++) {
+            queue.publish(ReportingEvent.ReportingEventType.STRING_LOG, LOG_TRANSLATOR, "log-" + i);
+        }
+        queue.shutdown(1, TimeUnit.SECONDS);
+
+        assertThat(preprocessed).hasSize(100);
+        assertThat(handler.events).hasSize(100);
+    }
+}
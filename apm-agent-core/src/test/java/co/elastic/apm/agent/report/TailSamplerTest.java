@@ -0,0 +1,215 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.common.util.WildcardMatcher;
+import co.elastic.apm.agent.configuration.CoreConfigurationImpl;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.metadata.MetaDataMock;
+import co.elastic.apm.agent.impl.sampling.ConstantSampler;
+import co.elastic.apm.agent.impl.transaction.TransactionImpl;
+import co.elastic.apm.agent.objectpool.ObjectPoolFactoryImpl;
+import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.serialize.SerializationConstants;
+import co.elastic.apm.agent.tracer.Outcome;
+import co.elastic.apm.agent.tracer.configuration.TimeDuration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class TailSamplerTest {
+
+    @TempDir
+    File directory;
+
+    private ApmServerReporter reporter;
+    private ElasticApmTracer tracer;
+
+    @BeforeEach
+    void setUp() {
+        ConfigurationRegistry config = SpyConfiguration.createSpyConfig();
+        ReporterConfigurationImpl reporterConfiguration = config.getConfig(ReporterConfigurationImpl.class);
+        CoreConfigurationImpl coreConfiguration = config.getConfig(CoreConfigurationImpl.class);
+        SerializationConstants.init(coreConfiguration);
+        doReturn(true).when(reporterConfiguration).isTailSampling();
+        doReturn(TimeDuration.of("1s")).when(reporterConfiguration).getTailSamplingDurationThreshold();
+        doReturn(List.of(WildcardMatcher.valueOf("tier=gold"))).when(reporterConfiguration).getTailSamplingLabels();
+        doReturn(false).when(reporterConfiguration).isIntakeFileCompression();
+        doReturn((long) 2 * TailSamplingBuffer.BLOCK_SIZE).when(reporterConfiguration).getTailSamplingBufferSize();
+
+        ApmServerClient apmServerClient = new ApmServerClient(config);
+        apmServerClient.start(Collections.emptyList());
+        DslJsonSerializer payloadSerializer = new DslJsonSerializer(config, apmServerClient, MetaDataMock.create());
+        FileReportingEventHandler handler = new FileReportingEventHandler(reporterConfiguration, ProcessorEventHandler.loadProcessors(config),
+            payloadSerializer, directory);
+        reporter = new ApmServerReporter(true, reporterConfiguration, coreConfiguration, handler,
+            ReporterMonitor.NOOP, apmServerClient, payloadSerializer, new ObjectPoolFactoryImpl());
+        tracer = MockTracer.createRealTracer(reporter, config);
+    }
+
+    @AfterEach
+    void tearDown() {
+        // makes sure the reporter thread has recycled all events before checking the object pools
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+        tracer.stop();
+    }
+
+    @Test
+    void testTraceRecordedForTailSampling() {
+        TransactionImpl transaction = startTransaction(0);
+        assertThat(transaction.isSampled()).isTrue();
+        assertThat(transaction.getTraceContext().isRecordedForTailSampling()).isTrue();
+        assertThat(transaction.getTraceContext().getSampleRate()).isEqualTo(0);
+        assertThat(transaction.getTraceContext().getFlags()).isEqualTo((byte) 0);
+        assertThat(transaction.getTraceContext().toString()).endsWith("-00");
+        transaction.end(0);
+
+        TransactionImpl sampled = tracer.startRootTransaction(ConstantSampler.of(true), 0, null);
+        assertThat(sampled).isNotNull();
+        assertThat(sampled.getTraceContext().isRecordedForTailSampling()).isFalse();
+        assertThat(sampled.getTraceContext().toString()).endsWith("-01");
+        sampled.end(0);
+    }
+
+    @Test
+    void testDropFastTrace() throws Exception {
+        TransactionImpl transaction = startTransaction(0);
+        transaction.createSpan().withName("span").end(10);
+        transaction.end(100);
+
+        assertThat(getReportedEvents()).isEmpty();
+        assertThat(reporter.getTailSampler().getBuffer().getTraceCount()).isZero();
+        assertThat(reporter.getTailSampler().getBuffer().getFreeBlockCount()).isEqualTo(reporter.getTailSampler().getBuffer().getBlockCount());
+    }
+
+    @Test
+    void testReportSlowTrace() throws Exception {
+        TransactionImpl transaction = startTransaction(0);
+        transaction.createSpan().withName("span").end(10);
+        transaction.end(TimeUnit.SECONDS.toMicros(2));
+
+        List<String> events = getReportedEvents();
+        assertThat(events).hasSize(2);
+        assertThat(events.get(0)).startsWith("{\"span\":");
+        assertThat(events.get(1)).startsWith("{\"transaction\":");
+        assertThat(events.get(1)).contains("\"sample_rate\":0");
+        assertThat(reporter.getTailSampler().getBuffer().getFreeBlockCount()).isEqualTo(reporter.getTailSampler().getBuffer().getBlockCount());
+    }
+
+    @Test
+    void testReportFailedTrace() throws Exception {
+        TransactionImpl transaction = startTransaction(0);
+        transaction.createSpan().withName("span").end(10);
+        transaction.withOutcome(Outcome.FAILURE).end(100);
+
+        assertThat(getReportedEvents()).hasSize(2);
+    }
+
+    @Test
+    void testReportTraceWithError() throws Exception {
+        TransactionImpl transaction = startTransaction(0);
+        transaction.createSpan().withName("span").end(10);
+        transaction.captureException(new RuntimeException("test"));
+        transaction.end(100);
+
+        List<String> events = getReportedEvents();
+        assertThat(events).hasSize(3);
+        assertThat(events.get(0)).startsWith("{\"error\":");
+    }
+
+    @Test
+    void testReportTraceWithMatchingLabel() throws Exception {
+        TransactionImpl transaction = startTransaction(0);
+        transaction.addLabel("tier", "gold");
+        transaction.end(100);
+
+        assertThat(getReportedEvents()).hasSize(1);
+    }
+
+    @Test
+    void testDropOverflowedTrace() throws Exception {
+        TransactionImpl transaction = startTransaction(0);
+        createSpans(transaction, 200);
+        transaction.end(TimeUnit.SECONDS.toMicros(2));
+
+        assertThat(getReportedEvents()).isEmpty();
+        assertThat(reporter.getTailSampler().getBuffer().getFreeBlockCount()).isEqualTo(reporter.getTailSampler().getBuffer().getBlockCount());
+    }
+
+    @Test
+    void testReportOverflowedTraceWithError() throws Exception {
+        TransactionImpl transaction = startTransaction(0);
+        transaction.captureException(new RuntimeException("test"));
+        createSpans(transaction, 200);
+        transaction.end(100);
+
+        List<String> events = getReportedEvents();
+        assertThat(events.get(0)).startsWith("{\"error\":");
+        assertThat(events.get(events.size() - 1)).startsWith("{\"transaction\":");
+        // the spans which have been buffered until the overflow
+        assertThat(events.subList(1, events.size() - 1))
+            .isNotEmpty()
+            .hasSizeLessThan(200)
+            .allMatch(event -> event.startsWith("{\"span\":"));
+        assertThat(reporter.getTailSampler().getBuffer().getFreeBlockCount()).isEqualTo(reporter.getTailSampler().getBuffer().getBlockCount());
+    }
+
+    private void createSpans(TransactionImpl transaction, int count) {
+        for (int i = 0; i < count; i++) {
+            transaction.createSpan().withName("span " + i).end(10);
+        }
+    }
+
+    private TransactionImpl startTransaction(long epochMicros) {
+        TransactionImpl transaction = tracer.startRootTransaction(ConstantSampler.of(false), epochMicros, null);
+        assertThat(transaction).isNotNull();
+        return transaction;
+    }
+
+    private List<String> getReportedEvents() throws Exception {
+        assertThat(reporter.flush(5, TimeUnit.SECONDS, false)).isTrue();
+        File[] segments = directory.listFiles((dir, name) -> name.endsWith(".ndjson"));
+        assertThat(segments).isNotNull();
+        Arrays.sort(segments);
+        List<String> events = new ArrayList<>();
+        for (File segment : segments) {
+            List<String> lines = Files.readAllLines(segment.toPath(), StandardCharsets.UTF_8);
+            // skip the metadata
+            events.addAll(lines.subList(1, lines.size()));
+        }
+        return events;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TailSamplingBufferTest {
+
+    private final TailSamplingBuffer buffer = new TailSamplingBuffer(4 * TailSamplingBuffer.BLOCK_SIZE);
+
+    @Test
+    void testEventsSpanningBlocks() {
+        byte[] small = "small".getBytes();
+        byte[] large = new byte[TailSamplingBuffer.BLOCK_SIZE + 42];
+        Arrays.fill(large, (byte) 'x');
+        assertThat(buffer.append(1, 0, ReportingEvent.ReportingEventType.SPAN, small, small.length)).isTrue();
+        assertThat(buffer.append(1, 0, ReportingEvent.ReportingEventType.TRANSACTION, large, large.length)).isTrue();
+        assertThat(buffer.getFreeBlockCount()).isEqualTo(2);
+
+        TailSamplingBuffer.BufferedTrace trace = buffer.remove(1);
+        assertThat(trace).isNotNull();
+        List<String> events = new ArrayList<>();
+        trace.forEachEvent((type, bytes, length) -> events.add(type + ":" + new String(bytes, 0, length)));
+        trace.release();
+
+        assertThat(events).containsExactly("SPAN:small", "TRANSACTION:" + new String(large));
+        assertThat(buffer.getFreeBlockCount()).isEqualTo(4);
+        assertThat(buffer.remove(1)).isNull();
+    }
+
+    @Test
+    void testOverflow() {
+        byte[] event = new byte[TailSamplingBuffer.BLOCK_SIZE];
+        assertThat(buffer.append(1, 0, ReportingEvent.ReportingEventType.SPAN, event, event.length)).isTrue();
+        assertThat(buffer.append(2, 0, ReportingEvent.ReportingEventType.SPAN, event, event.length)).isTrue();
+        assertThat(buffer.getFreeBlockCount()).isZero();
+
+        // trace 2 can't grow, its blocks are released right away
+        assertThat(buffer.append(2, 0, ReportingEvent.ReportingEventType.SPAN, event, event.length)).isFalse();
+        assertThat(buffer.getFreeBlockCount()).isEqualTo(2);
+        assertThat(buffer.append(2, 0, ReportingEvent.ReportingEventType.SPAN, event, 1)).isFalse();
+
+        TailSamplingBuffer.BufferedTrace trace = buffer.remove(2);
+        assertThat(trace).isNotNull();
+        assertThat(trace.isOverflowed()).isTrue();
+        trace.release();
+        assertThat(buffer.getFreeBlockCount()).isEqualTo(2);
+    }
+
+    @Test
+    void testOverflowKeepsEventsOfTraceWithError() {
+        byte[] small = "small".getBytes();
+        byte[] large = new byte[TailSamplingBuffer.BLOCK_SIZE];
+        assertThat(buffer.append(1, 0, ReportingEvent.ReportingEventType.SPAN, large, large.length)).isTrue();
+        assertThat(buffer.append(1, 0, ReportingEvent.ReportingEventType.SPAN, large, large.length)).isTrue();
+        assertThat(buffer.append(2, 0, ReportingEvent.ReportingEventType.SPAN, small, small.length)).isTrue();
+        buffer.markError(2, 0);
+
+        // trace 2 can't grow, but keeps the events buffered so far as it has an error
+        assertThat(buffer.append(2, 0, ReportingEvent.ReportingEventType.SPAN, large, large.length)).isFalse();
+        assertThat(buffer.getFreeBlockCount()).isZero();
+
+        TailSamplingBuffer.BufferedTrace trace = buffer.remove(2);
+        assertThat(trace).isNotNull();
+        assertThat(trace.isOverflowed()).isTrue();
+        assertThat(trace.hasError()).isTrue();
+        List<String> events = new ArrayList<>();
+        trace.forEachEvent((type, bytes, length) -> events.add(type + ":" + new String(bytes, 0, length)));
+        trace.release();
+
+        assertThat(events).containsExactly("SPAN:small");
+        assertThat(buffer.getFreeBlockCount()).isEqualTo(1);
+    }
+
+    @Test
+    void testExpire() {
+        byte[] event = new byte[16];
+        buffer.append(1, 0, ReportingEvent.ReportingEventType.SPAN, event, event.length);
+        buffer.append(2, 100, ReportingEvent.ReportingEventType.SPAN, event, event.length);
+        buffer.markError(3, 100);
+
+        assertThat(buffer.expire(150, 100)).isEqualTo(1);
+        assertThat(buffer.getTraceCount()).isEqualTo(2);
+        assertThat(buffer.getFreeBlockCount()).isEqualTo(3);
+
+        TailSamplingBuffer.BufferedTrace trace = buffer.remove(3);
+        assertThat(trace).isNotNull();
+        assertThat(trace.hasError()).isTrue();
+    }
+}
@@ -53,6 +53,7 @@ import co.elastic.apm.agent.impl.transaction.OTelSpanKind;
 import co.elastic.apm.agent.impl.transaction.SpanImpl;
 import co.elastic.apm.agent.impl.transaction.StackFrame;
 import co.elastic.apm.agent.impl.transaction.TraceContextImpl;
+import co.elastic.apm.agent.impl.transaction.TraceState;
 import co.elastic.apm.agent.impl.transaction.TransactionImpl;
 import co.elastic.apm.agent.report.ApmServerClient;
 import co.elastic.apm.agent.sdk.internal.collections.LongList;
@@ -90,6 +91,7 @@ import java.util.function.Function;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.SoftAssertions.assertSoftly;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 
@@ -1503,9 +1505,7 @@ class DslJsonSerializerTest {
     }
 
     private void testRootTransactionSampleRate(boolean sampled, double samplerRate, @Nullable Double expectedRate) {
-        Sampler sampler = mock(Sampler.class);
-        doReturn(sampled).when(sampler).isSampled(any(IdImpl.class));
-        doReturn(samplerRate).when(sampler).getSampleRate();
+        Sampler sampler = mockSampler(sampled, samplerRate);
 
         TransactionImpl transaction = createRootTransaction(sampler);
 
@@ -1524,9 +1524,7 @@ class DslJsonSerializerTest {
     @Test
     void testSampledSpan_rateFromParent() {
 
-        Sampler sampler = mock(Sampler.class);
-        doReturn(true).when(sampler).isSampled(any(IdImpl.class));
-        doReturn(0.42d).when(sampler).getSampleRate();
+        Sampler sampler = mockSampler(true, 0.42d);
 
         TransactionImpl transaction = createRootTransaction(sampler);
         TraceContextImpl transactionContext = transaction.getTraceContext();
@@ -1543,9 +1541,7 @@ class DslJsonSerializerTest {
 
     @Test
     void testNonSampledTransaction() {
-        Sampler sampler = mock(Sampler.class);
-        doReturn(false).when(sampler).isSampled(any(IdImpl.class));
-        doReturn(0.42d).when(sampler).getSampleRate();
+        Sampler sampler = mockSampler(false, 0.42d);
         TransactionImpl transaction = createRootTransaction(sampler);
         TraceContextImpl transactionContext = transaction.getTraceContext();
         assertThat(transactionContext.isSampled()).isFalse();
@@ -1827,4 +1823,15 @@ class DslJsonSerializerTest {
         return jsonString;
     }
 
+    private static Sampler mockSampler(boolean sampled, double sampleRate) {
+        Sampler sampler = mock(Sampler.class);
+        doAnswer(invocation -> {
+            if (sampled) {
+                invocation.<TraceState>getArgument(1).set(sampleRate, TraceState.getHeaderValue(sampleRate));
+            }
+            return sampled;
+        }).when(sampler).isSampled(any(IdImpl.class), any(TraceState.class));
+        doReturn(sampleRate).when(sampler).getSampleRate();
+        return sampler;
+    }
 }
@@ -38,6 +38,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 
@@ -73,6 +74,24 @@ class MetricSetSerializationTest {
         assertThat(samples.get("bar.baz.count").get("value").doubleValue()).isEqualTo(2);
     }
 
+    @Test
+    void testSerializeHistograms() throws Exception {
+        final Labels.Mutable labels = Labels.Mutable.of("foo.bar", "baz");
+
+        registry.updateHistogram("foo.bar", labels, 1_000);
+        registry.updateHistogram("foo.bar", labels, 3, 2);
+        registry.updateHistogram("foo.bar", labels, 1_000);
+        final JsonNode jsonNode = reportAsJson();
+        assertThat(jsonNode).isNotNull();
+        final JsonNode histogram = jsonNode.get("metricset").get("samples").get("foo.bar");
+        assertThat(histogram.get("type").textValue()).isEqualTo("histogram");
+        assertThat(histogram.get("values")).hasSize(2);
+        assertThat(histogram.get("values").get(0).doubleValue()).isEqualTo(3);
+        assertThat(histogram.get("values").get(1).doubleValue()).isCloseTo(1_000, within(1_000 / 8.0));
+        assertThat(histogram.get("counts").get(0).longValue()).isEqualTo(2);
+        assertThat(histogram.get("counts").get(1).longValue()).isEqualTo(2);
+    }
+
     @Test
     void testSerializeRawMetrics() throws Exception {
         final Labels.Mutable labels = Labels.Mutable.of("foo.bar", "baz");
@@ -0,0 +1,253 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.spool;
+
+import co.elastic.apm.agent.report.ReportingEvent;
+import co.elastic.apm.agent.report.ReportingEventCounter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.ERROR;
+import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.SPAN;
+import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.TRANSACTION;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class DiskSpoolTest {
+
+    @TempDir
+    Path spoolDir;
+
+    private final ReportingEventCounter evicted = new ReportingEventCounter();
+
+    @Nullable
+    private DiskSpool spool;
+
+    @AfterEach
+    void tearDown() {
+        if (spool != null) {
+            spool.close();
+        }
+    }
+
+    @Test
+    void testAppendAndReplayInOrder() {
+        spool = open(1024 * 1024, 60_000, 40);
+        append(spool, "{\"transaction\":1}\n", TRANSACTION);
+        append(spool, "{\"span\":2}\n", SPAN);
+        append(spool, "{\"span\":3}\n", SPAN);
+        append(spool, "{\"error\":4}\n", ERROR);
+
+        List<String> replayed = replayAll(spool);
+
+        assertThat(replayed).containsExactly(
+            "{\"transaction\":1}\n{\"span\":2}\n{\"span\":3}\n",
+            "{\"error\":4}\n");
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(spool.getSizeBytes()).isZero();
+        assertThat(spoolDir.toFile().list()).containsExactly("spool.lock");
+    }
+
+    @Test
+    void testReplayedSegmentsAreUnmapped() throws Exception {
+        Path maps = Paths.get("/proc/self/maps");
+        assumeTrue(Files.isReadable(maps));
+        spool = open(1024 * 1024, 60_000, 1024);
+        append(spool, "{\"transaction\":1}\n", TRANSACTION);
+        String segmentFile = new File(spoolDir.toFile(), DiskSpool.getSegmentFileName(0)).getAbsolutePath();
+        assertThat(new String(Files.readAllBytes(maps), StandardCharsets.UTF_8)).contains(segmentFile);
+
+        replayAll(spool);
+
+        assertThat(new String(Files.readAllBytes(maps), StandardCharsets.UTF_8)).doesNotContain(segmentFile);
+    }
+
+    @Test
+    void testAbandonLeavesSegmentsMapped() throws Exception {
+        Path maps = Paths.get("/proc/self/maps");
+        assumeTrue(Files.isReadable(maps));
+        DiskSpool abandoned = open(1024 * 1024, 60_000, 1024);
+        assertThat(abandoned).isNotNull();
+        append(abandoned, "{\"transaction\":1}\n", TRANSACTION);
+        DiskSpool.Segment segment = abandoned.getOldestSegment();
+        assertThat(segment).isNotNull();
+
+        abandoned.abandon();
+
+        // another thread may still read the segment
+        assertThat(segment.getData().remaining()).isEqualTo("{\"transaction\":1}\n".length());
+        String segmentFile = new File(spoolDir.toFile(), DiskSpool.getSegmentFileName(0)).getAbsolutePath();
+        assertThat(new String(Files.readAllBytes(maps), StandardCharsets.UTF_8)).contains(segmentFile);
+        // the directory can be used again
+        spool = open(1024 * 1024, 60_000, 1024);
+        assertThat(spool).isNotNull();
+        assertThat(spool.getEventCount()).isEqualTo(1);
+    }
+
+    @Test
+    void testEventCounts() {
+        spool = open(1024 * 1024, 60_000, 1024);
+        append(spool, "{\"transaction\":1}\n", TRANSACTION);
+        append(spool, "{\"span\":2}\n", SPAN);
+        append(spool, "{\"span\":3}\n", SPAN);
+
+        DiskSpool.Segment segment = spool.getOldestSegment();
+        assertThat(segment).isNotNull();
+        assertThat(segment.getEventCount()).isEqualTo(3);
+        assertThat(segment.getEventCounts().getCount(TRANSACTION)).isEqualTo(1);
+        assertThat(segment.getEventCounts().getCount(SPAN)).isEqualTo(2);
+        assertThat(spool.getEventCount()).isEqualTo(3);
+    }
+
+    @Test
+    void testEventLargerThanSegment() {
+        spool = open(1024 * 1024, 60_000, 8);
+        assertThat(append(spool, "{\"transaction\":1}\n", TRANSACTION)).isFalse();
+        assertThat(spool.isEmpty()).isTrue();
+    }
+
+    @Test
+    void testUnsupportedEventType() {
+        spool = open(1024 * 1024, 60_000, 8);
+        assertThatThrownBy(() -> spool.append(new byte[0], 0, ReportingEvent.ReportingEventType.SHUTDOWN))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testRecoverAfterRestart() {
+        spool = open(1024 * 1024, 60_000, 32);
+        append(spool, "{\"transaction\":1}\n", TRANSACTION);
+        append(spool, "{\"span\":2}\n", SPAN);
+        append(spool, "{\"error\":3}\n", ERROR);
+        spool.close();
+
+        spool = open(1024 * 1024, 60_000, 32);
+        assertThat(spool.getEventCount()).isEqualTo(3);
+        append(spool, "{\"span\":4}\n", SPAN);
+
+        assertThat(replayAll(spool)).containsExactly(
+            "{\"transaction\":1}\n{\"span\":2}\n",
+            "{\"error\":3}\n",
+            "{\"span\":4}\n");
+    }
+
+    @Test
+    void testRecoverFromTornHeader() throws Exception {
+        spool = open(1024 * 1024, 60_000, 1024);
+        append(spool, "{\"transaction\":1}\n", TRANSACTION);
+        append(spool, "{\"span\":2}\n", SPAN);
+        spool.close();
+
+        File segmentFile = new File(spoolDir.toFile(), DiskSpool.getSegmentFileName(0));
+        // the second append has committed the header with generation 3, which is stored in the second slot
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+            file.seek(DiskSpool.HEADER_SIZE / 2 + 20);
+            file.writeInt(42);
+        }
+
+        spool = open(1024 * 1024, 60_000, 1024);
+        assertThat(replayAll(spool)).containsExactly("{\"transaction\":1}\n");
+    }
+
+    @Test
+    void testDeleteCorruptSegment() throws Exception {
+        spool = open(1024 * 1024, 60_000, 1024);
+        append(spool, "{\"transaction\":1}\n", TRANSACTION);
+        spool.close();
+
+        File segmentFile = new File(spoolDir.toFile(), DiskSpool.getSegmentFileName(0));
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+            file.write(new byte[DiskSpool.HEADER_SIZE]);
+        }
+
+        spool = open(1024 * 1024, 60_000, 1024);
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(segmentFile).doesNotExist();
+        append(spool, "{\"span\":2}\n", SPAN);
+        assertThat(replayAll(spool)).containsExactly("{\"span\":2}\n");
+    }
+
+    @Test
+    void testEvictOldestSegmentWhenFull() {
+        // room for two segments
+        spool = open(2 * (DiskSpool.HEADER_SIZE + 16), 60_000, 16);
+        append(spool, "{\"span\":1}\n", SPAN);
+        append(spool, "{\"span\":2}\n", SPAN);
+        append(spool, "{\"span\":3}\n", SPAN);
+
+        assertThat(evicted.getCount(SPAN)).isEqualTo(1);
+        assertThat(replayAll(spool)).containsExactly("{\"span\":2}\n", "{\"span\":3}\n");
+    }
+
+    @Test
+    void testEvictExpiredSegments() throws Exception {
+        spool = open(1024 * 1024, 50, 1024);
+        append(spool, "{\"span\":1}\n", SPAN);
+        Thread.sleep(100);
+
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(evicted.getCount(SPAN)).isEqualTo(1);
+    }
+
+    @Test
+    void testOnlyOneProcessUsesDirectory() {
+        spool = open(1024 * 1024, 60_000, 1024);
+        assertThat(open(1024 * 1024, 60_000, 1024)).isNull();
+    }
+
+    @Nullable
+    private DiskSpool open(long maxSizeBytes, long maxAgeMillis, int segmentCapacity) {
+        return DiskSpool.open(spoolDir.toFile(), maxSizeBytes, maxAgeMillis, segmentCapacity, new DiskSpool.EvictionListener() {
+            @Override
+            public void onEvicted(ReportingEventCounter eventCounts) {
+                evicted.addAll(eventCounts);
+            }
+        });
+    }
+
+    private static boolean append(DiskSpool spool, String event, ReportingEvent.ReportingEventType type) {
+        byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+        return spool.append(bytes, bytes.length, type);
+    }
+
+    private static List<String> replayAll(DiskSpool spool) {
+        List<String> segments = new ArrayList<>();
+        for (DiskSpool.Segment segment = spool.getOldestSegment(); segment != null; segment = spool.getOldestSegment()) {
+            ByteBuffer data = segment.getData();
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            segments.add(new String(bytes, StandardCharsets.UTF_8));
+            spool.remove(segment);
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.tracer.configuration;
+
+import co.elastic.apm.agent.common.util.WildcardMatcher;
+import co.elastic.apm.agent.common.util.WildcardMatcherSet;
+import org.stagemonitor.configuration.converter.ValueConverter;
+
+import java.util.List;
+
+/**
+ * Converts a comma separated list of wildcard strings into a {@link WildcardMatcherSet}.
+ * Use it for options which are matched on hot paths, so that {@link WildcardMatcher#anyMatch(List, CharSequence)}
+ * doesn't have to try each matcher one after another.
+ * Make sure to also wrap the default value with {@link WildcardMatcherSet#of(List)}.
+ */
+public class WildcardMatcherSetValueConverter implements ValueConverter<List<WildcardMatcher>> {
+
+    private final ListValueConverter<WildcardMatcher> delegate = new ListValueConverter<>(new WildcardMatcherValueConverter());
+
+    @Override
+    public List<WildcardMatcher> convert(String s) {
+        return WildcardMatcherSet.of(delegate.convert(s));
+    }
+
+    @Override
+    public String toString(List<WildcardMatcher> value) {
+        return delegate.toString(value);
+    }
+
+    @Override
+    public String toSafeString(List<WildcardMatcher> value) {
+        return delegate.toSafeString(value);
+    }
+}